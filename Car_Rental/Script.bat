@@ -72,11 +72,13 @@ echo Command Line Interface for Rental Shop
 echo.
 echo 1. Create a Rental Shop
 echo 2. Access Rental Shop Interface
-echo 3. Exit 
-set /p cmd=Select an option(1-3):
+echo 3. Fleet Report (all shops)
+echo 4. Exit 
+set /p cmd=Select an option(1-4):
 if "%cmd%"=="1" goto createRental
 if "%cmd%"=="2" goto accessRental
-if "%cmd%"=="3" goto menu
+if "%cmd%"=="3" goto fleetReport
+if "%cmd%"=="4" goto menu
 echo Invalid option, try again...
 pause
 goto rentalshop
@@ -98,6 +100,12 @@ java -cp bin App --location=%location%
 pause 
 goto rentalshop
 
+:fleetReport
+echo Generating Fleet Report...
+java -cp bin classes.FleetReport
+pause
+goto rentalshop
+
 :tests 
 echo Setting up test environment...
 if not exist "lib" mkdir lib 
@@ -131,9 +139,17 @@ echo ===========================
 echo.
 echo 1. Run LotManagerTest
 echo 2. Run RentalShopTest
-echo 3. Return to Main Menu
+echo 3. Run PlateCodecTest
+echo 4. Run RecordReaderTest
+echo 5. Run MoneyTest
+echo 6. Run PersistencePipelineTest
+echo 7. Run HashRingTest
+echo 8. Run ShopServerTest
+echo 9. Run FleetSimulatorTest
+echo 10. Run FleetReportTest
+echo 11. Return to Main Menu
 echo.
-set /p testopt=Select a test to run (1-3):
+set /p testopt=Select a test to run (1-11):
 if "%testopt%"=="1" (
     java -cp "bin;lib\junit-4.13.2.jar;lib\hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.LotManagerTest
     pause
@@ -144,7 +160,47 @@ if "%testopt%"=="2" (
     pause
     goto testmenu
 )
-if "%testopt%"=="3" goto menu
+if "%testopt%"=="3" (
+    java -cp "bin;lib\junit-4.13.2.jar;lib\hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.PlateCodecTest
+    pause
+    goto testmenu
+)
+if "%testopt%"=="4" (
+    java -cp "bin;lib\junit-4.13.2.jar;lib\hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.RecordReaderTest
+    pause
+    goto testmenu
+)
+if "%testopt%"=="5" (
+    java -cp "bin;lib\junit-4.13.2.jar;lib\hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.MoneyTest
+    pause
+    goto testmenu
+)
+if "%testopt%"=="6" (
+    java -cp "bin;lib\junit-4.13.2.jar;lib\hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.PersistencePipelineTest
+    pause
+    goto testmenu
+)
+if "%testopt%"=="7" (
+    java -cp "bin;lib\junit-4.13.2.jar;lib\hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.HashRingTest
+    pause
+    goto testmenu
+)
+if "%testopt%"=="8" (
+    java -cp "bin;lib\junit-4.13.2.jar;lib\hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.ShopServerTest
+    pause
+    goto testmenu
+)
+if "%testopt%"=="9" (
+    java -cp "bin;lib\junit-4.13.2.jar;lib\hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.FleetSimulatorTest
+    pause
+    goto testmenu
+)
+if "%testopt%"=="10" (
+    java -cp "bin;lib\junit-4.13.2.jar;lib\hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.FleetReportTest
+    pause
+    goto testmenu
+)
+if "%testopt%"=="11" goto menu
 echo Invalid option, try again...
 pause
 goto testmenu
@@ -92,14 +92,18 @@ rentalshop() {
     echo ""
     echo "1. Create a Rental Shop"
     echo "2. Access Rental Shop Interface"
-    echo "3. Exit"
+    echo "3. Fleet Report (all shops)"
+    echo "4. Cluster of Shop Servers"
+    echo "5. Exit"
     echo ""
-    read -p "Select an option (1-3): " cmd
+    read -p "Select an option (1-5): " cmd
 
     case "$cmd" in
         1) createRental ;;
         2) accessRental ;;
-        3) menu ;;
+        3) fleetReport ;;
+        4) cluster ;;
+        5) menu ;;
         *) echo "Invalid option, try again..."
            pause
            rentalshop ;;
@@ -126,6 +130,34 @@ accessRental() {
     rentalshop
 }
 
+# Fleet Report over all shops
+fleetReport() {
+    echo "Generating Fleet Report..."
+    java -cp bin classes.FleetReport
+    pause
+    rentalshop
+}
+
+# Cluster of shop servers on this machine, each node keeps its data in cluster/node<i>
+cluster() {
+    echo "Starting a Cluster of Shop Servers..."
+    read -p "Enter the number of nodes: " count
+    read -p "Enter the first port: " port
+    nodes=""
+    pids=""
+    for ((i = 0; i < count; i++)); do
+        mkdir -p "cluster/node$i"
+        java -cp bin classes.ShopServer --port=$((port + i)) --data="cluster/node$i" > "cluster/node$i/server.log" 2>&1 &
+        pids="$pids $!"
+        nodes="$nodes${nodes:+,}localhost:$((port + i))"
+    done
+    sleep 1
+    java -cp bin classes.ClusterRouter --nodes="$nodes"
+    kill $pids 2>/dev/null
+    pause
+    rentalshop
+}
+
 # Run Tests
 tests() {
     echo "Setting up test environment..."
@@ -166,9 +198,17 @@ testmenu() {
     echo ""
     echo "1. Run LotManagerTest"
     echo "2. Run RentalShopTest"
-    echo "3. Return to Main Menu"
+    echo "3. Run PlateCodecTest"
+    echo "4. Run RecordReaderTest"
+    echo "5. Run MoneyTest"
+    echo "6. Run PersistencePipelineTest"
+    echo "7. Run HashRingTest"
+    echo "8. Run ShopServerTest"
+    echo "9. Run FleetSimulatorTest"
+    echo "10. Run FleetReportTest"
+    echo "11. Return to Main Menu"
     echo ""
-    read -p "Select a test to run (1-3): " testopt
+    read -p "Select a test to run (1-11): " testopt
     
     case "$testopt" in
         1) 
@@ -181,7 +221,47 @@ testmenu() {
             pause
             testmenu
             ;;
-        3) menu ;;
+        3)
+            java -cp "bin:lib/junit-4.13.2.jar:lib/hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.PlateCodecTest
+            pause
+            testmenu
+            ;;
+        4)
+            java -cp "bin:lib/junit-4.13.2.jar:lib/hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.RecordReaderTest
+            pause
+            testmenu
+            ;;
+        5)
+            java -cp "bin:lib/junit-4.13.2.jar:lib/hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.MoneyTest
+            pause
+            testmenu
+            ;;
+        6)
+            java -cp "bin:lib/junit-4.13.2.jar:lib/hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.PersistencePipelineTest
+            pause
+            testmenu
+            ;;
+        7)
+            java -cp "bin:lib/junit-4.13.2.jar:lib/hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.HashRingTest
+            pause
+            testmenu
+            ;;
+        8)
+            java -cp "bin:lib/junit-4.13.2.jar:lib/hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.ShopServerTest
+            pause
+            testmenu
+            ;;
+        9)
+            java -cp "bin:lib/junit-4.13.2.jar:lib/hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.FleetSimulatorTest
+            pause
+            testmenu
+            ;;
+        10)
+            java -cp "bin:lib/junit-4.13.2.jar:lib/hamcrest-core-1.3.jar" org.junit.runner.JUnitCore tests.FleetReportTest
+            pause
+            testmenu
+            ;;
+        11) menu ;;
         *) 
             echo "Invalid option, try again..."
             pause
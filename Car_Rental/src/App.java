@@ -1,3 +1,6 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 import utils.*;
 import classes.*;
@@ -15,11 +18,71 @@ public class App {
             return;
         }
         
+        if (params.containsKey("fsync")) {
+            PersistencePipeline.SyncPolicy policy = PersistencePipeline.SyncPolicy.parse(params.get("fsync"));
+            if (policy == null) {
+                System.out.println("ERROR: Invalid fsync policy. Valid policies are: none, batch, always.");
+                return;
+            }
+            PersistencePipeline.get().setPolicy(policy);
+        }
+
+        if (params.containsKey("lock-timeout")) {
+            try {
+                FileLocks.setTimeout(Long.parseLong(params.get("lock-timeout")));
+            } catch (IllegalArgumentException e) {
+                System.out.println("ERROR: Invalid lock timeout. Please provide a positive number of milliseconds.");
+                return;
+            }
+        }
+
+        CrashRecovery.recover(); // Repair what a crash left behind before the shop reads its files
+
+        if (params.containsKey("storage")) {
+            Storage storage;
+            try {
+                if (params.get("storage").trim().equalsIgnoreCase("memory")) {
+                    storage = MemoryStorage.copyOf(FileStorage.create()); // Start from the current files, nothing is written back
+                } else {
+                    storage = Storage.create(params.get("storage"));
+                }
+            } catch (IOException e) {
+                System.out.println("ERROR: Unable to load the data files: " + e.getMessage());
+                return;
+            } catch (UncheckedIOException e) {
+                System.out.println("ERROR: " + e.getMessage());
+                return;
+            }
+            if (storage == null) {
+                System.out.println("ERROR: Invalid storage. Valid storages are: files, memory, pages.");
+                return;
+            }
+            Storage.setDefault(storage);
+        }
+
+        if (params.containsKey("replicate")) {
+            // Log the committed changes for the replica followers, always while the crash recovery replays them
+            ChangeLog.setEnabled(Boolean.parseBoolean(params.get("replicate")) || CrashRecovery.isEnabled());
+        }
+
+        if (params.containsKey("events")) {
+            EventLog.setEnabled(Boolean.parseBoolean(params.get("events"))); // Log the inventory events for TAIL and WATCH
+        }
+
+        if (params.containsKey("parallel-lots")) {
+            LotProber.setEnabled(Boolean.parseBoolean(params.get("parallel-lots"))); // Probe the lots at once when renting
+        }
+
+        if (params.containsKey("record")) {
+            CommandRecorder.start(new File(params.get("record"))); // Opt-in trace of the processed commands
+        }
+
         int spaces = (params.containsKey("spaces-available")) ? Integer.parseInt(params.get("spaces-available")) : 10; // Default spaces available
         List<String> lots = new ArrayList<>();
         lots = (params.containsKey("lots")) ? Arrays.asList(params.get("lots").split(",")) : new ArrayList<>(); // Default lots available
 
         RentalShop shop = new RentalShop(city, spaces, lots); // Create a new RentalShop instance
         shop.run(); // Start the shop
+        CommandRecorder.stop();
     }
 }
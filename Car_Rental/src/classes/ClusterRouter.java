@@ -0,0 +1,307 @@
+package classes;
+
+import utils.*;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Router of a cluster of shop servers (see ShopServer). Cities, and the lots of their shops, are spread
+ * over the nodes by consistent hashing of the city name, the router forwards each command to the node
+ * owning the city. A vehicle rented in a city of one node can be returned in a city of another node: the
+ * rental is handed off in two steps, out of the first node and into the second one, and restored on the
+ * first node if the return fails. Each node hands out its own share of the plates (--plates of ShopServer),
+ * so a plate names the same vehicle on every node.
+ *
+ * Commands, read from the console or from TCP clients with --port:
+ *  - <city> <command>                 : a shop command (RENT, RETURN, LIST, TRANSACTIONS, ...)
+ *  - OPEN <city> <spaces> [lots]      : start the shop of a city with its lots
+ *  - STOCK <city> <lot> <type> <count> : park new vehicles in a lot of a city
+ *  - OWNER <city>, NODES
+ */
+public class ClusterRouter {
+    private final HashRing<String> ring;
+    private final Map<String, NodeClient> clients = new LinkedHashMap<>();
+
+    /**
+     * Main method to run the router
+     * @param args Command line arguments
+     * --nodes=<host:port,...> : Shop servers of the cluster
+     * --port=<port> : Also accept commands from TCP clients on this port, one line each
+     * --points=<count> : Points of each node on the hash ring (default: 64)
+     */
+    public static void main(String[] args) {
+        Map<String, String> params = ParseArgs.parseArgs(args);
+        String nodes = params.get("nodes");
+        if (nodes == null || nodes.isEmpty()) {
+            System.err.println("Error: The nodes of the cluster are required.");
+            System.exit(1);
+        }
+        int points = 64;
+        int port = 0;
+        try {
+            if (params.containsKey("points")) points = Integer.parseInt(params.get("points"));
+            if (params.containsKey("port")) port = Integer.parseInt(params.get("port"));
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Invalid number format for the points or the port.");
+            System.exit(1);
+        }
+
+        ClusterRouter router = new ClusterRouter(Arrays.asList(nodes.split(",")), points);
+        if (port > 0) router.listen(port);
+
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("Router of " + router.ring.nodes() + ". Type 'exit' to quit.");
+        System.out.println("Command: <city> <command>, OPEN <city> <spaces> [lots], STOCK <city> <lot> <type> <count>, OWNER <city>, NODES");
+        System.out.print("> ");
+        while (scanner.hasNextLine()) {
+            String command = scanner.nextLine().trim();
+            if (command.equalsIgnoreCase("exit")) break;
+            if (!command.isEmpty()) System.out.print(router.route(command));
+            System.out.print("> ");
+        }
+        scanner.close();
+        router.close();
+    }
+
+    /**
+     * @param nodes Addresses of the shop servers, host:port
+     * @param points Points of each node on the hash ring
+     */
+    public ClusterRouter(List<String> nodes, int points) {
+        this.ring = new HashRing<>(points);
+        for (String node : nodes) {
+            String address = node.trim();
+            ring.add(address);
+            clients.put(address, new NodeClient(address));
+        }
+    }
+
+    /**
+     * @param city A city
+     * @return the address of the node serving the city
+     */
+    public String owner(String city) {
+        return ring.owner(city);
+    }
+
+    // Serve TCP clients in the background, each answer ends with an "END OK" or "END FAIL" line
+    private void listen(int port) {
+        Thread acceptor = new Thread(() -> {
+            try (ServerSocket socket = new ServerSocket(port)) {
+                while (true) {
+                    Socket client = socket.accept();
+                    Thread thread = new Thread(() -> serve(client), "router-client-" + client.getPort());
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                System.err.println("Error: Router stopped listening on port " + port + ": " + e.getMessage());
+            }
+        }, "router-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            String command;
+            while ((command = in.readLine()) != null) {
+                Reply reply = execute(command.trim());
+                out.write(reply.output);
+                out.write(reply.ok ? "END OK\n" : "END FAIL\n");
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away
+        }
+    }
+
+    /**
+     * Run a command on the cluster
+     * @param command The command
+     * @return the output of the command
+     */
+    public String route(String command) {
+        return execute(command).output;
+    }
+
+    private Reply execute(String command) {
+        String[] tokens = command.split(" ", 3);
+        try {
+            switch (tokens[0].toUpperCase()) {
+                case "NODES": {
+                    StringBuilder output = new StringBuilder();
+                    for (String node : ring.nodes()) output.append(node).append('\n');
+                    return new Reply(true, output.toString());
+                }
+                case "OWNER":
+                    if (tokens.length < 2) return Reply.usage("OWNER <city>");
+                    return new Reply(true, owner(tokens[1]) + "\n");
+                case "OPEN":
+                    if (tokens.length < 3) return Reply.usage("OPEN <city> <spaces> [lots]");
+                    return client(tokens[1]).send(command);
+                case "STOCK":
+                    if (tokens.length < 3) return Reply.usage("STOCK <city> <lot> <type> <count>");
+                    return client(tokens[1]).send("STOCK " + tokens[2]);
+                default: {
+                    if (tokens.length < 2) return Reply.usage("<city> <command>");
+                    String city = tokens[0];
+                    String shopCommand = command.substring(city.length()).trim();
+                    String[] options = shopCommand.split(" ");
+                    if (options[0].equalsIgnoreCase("RETURN") && options.length >= 3) {
+                        return returnVehicle(city, shopCommand, options[1], options[2]);
+                    }
+                    return client(city).send("CMD " + city + " " + shopCommand);
+                }
+            }
+        } catch (IOException e) {
+            return new Reply(false, "ERROR: Node unavailable: " + e.getMessage() + "\n");
+        }
+    }
+
+    // A vehicle is returned on the node of the city, after a handoff when it was rented from another node
+    private Reply returnVehicle(String city, String shopCommand, String licensePlate, String kilometers) throws IOException {
+        NodeClient target = client(city);
+        if (target.send("FIND " + licensePlate).ok) return target.send("CMD " + city + " " + shopCommand);
+
+        NodeClient source = null;
+        for (NodeClient client : clients.values()) {
+            if (client != target && client.send("FIND " + licensePlate).ok) {
+                source = client;
+                break;
+            }
+        }
+        if (source == null) return target.send("CMD " + city + " " + shopCommand); // Reports the missing rental
+
+        // Step 1: the rental leaves the first node, which keeps it under an id until the end of the handoff
+        Reply out = source.send("HANDOFF_OUT " + licensePlate + " " + target.address);
+        String handoff = null;
+        for (String line : out.output.split("\n")) {
+            if (line.startsWith("HANDOFF ")) handoff = line.substring("HANDOFF ".length());
+        }
+        if (!out.ok || handoff == null || handoff.indexOf(' ') < 0) return out;
+        String id = handoff.substring(0, handoff.indexOf(' '));
+
+        // Step 2: the node of the city takes the rental and returns the vehicle, once for the id
+        Reply in;
+        try {
+            in = target.send("HANDOFF_IN " + id + " " + city + " " + handoff.substring(id.length() + 1) + " " + kilometers);
+            if (!in.ok) {
+                // Cancelled on the target first, so the rental is never restored after a return that was made
+                Reply cancel = target.send("HANDOFF_CANCEL " + id);
+                if (!cancel.ok) return new Reply(false, in.output + cancel.output + openHandoff(id));
+                if (cancel.output.contains("HANDOFF DONE")) in = new Reply(true, in.output);
+            }
+        } catch (IOException e) {
+            return new Reply(false, "ERROR: Node unavailable: " + e.getMessage() + "\n" + openHandoff(id));
+        }
+        Reply end = source.send((in.ok ? "HANDOFF_DONE " : "HANDOFF_ABORT ") + id);
+        if (!end.ok) return new Reply(in.ok, in.output + end.output);
+        return in;
+    }
+
+    private static String openHandoff(String id) {
+        return "INFO: Handoff " + id + " left open, it is settled when its node starts or on RECONCILE.\n";
+    }
+
+    private NodeClient client(String city) {
+        return clients.get(ring.owner(city));
+    }
+
+    public void close() {
+        for (NodeClient client : clients.values()) client.close();
+    }
+
+    /**
+     * Answer of a node
+     */
+    static class Reply {
+        final boolean ok;
+        final String output;
+
+        Reply(boolean ok, String output) {
+            this.ok = ok;
+            this.output = output;
+        }
+
+        static Reply usage(String usage) {
+            return new Reply(false, "ERROR: Usage: " + usage + "\n");
+        }
+    }
+
+    /**
+     * Connection to one shop server, opened again after an error. Only the requests that can be applied twice
+     * are sent again on the new connection, the reply of another request may have been lost after it was applied.
+     */
+    static class NodeClient {
+        private static final Set<String> REPEATABLE = new HashSet<>(Arrays.asList(
+            "PING", "FIND", "HANDOFFS", "HANDOFF_IN", "HANDOFF_DONE", "HANDOFF_ABORT", "HANDOFF_CANCEL"));
+        private static final Set<String> READS = new HashSet<>(Arrays.asList(
+            "LIST", "TRANSACTIONS", "WHERE", "OVERDUE", "OLDEST", "MILEAGE", "TAIL", "WATCH", "LOCKS"));
+
+        final String address;
+        private final String host;
+        private final int port;
+        private Socket socket;
+        private BufferedReader in;
+        private Writer out;
+
+        NodeClient(String address) {
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("Invalid node address: " + address);
+            this.address = address;
+            this.host = address.substring(0, colon);
+            this.port = Integer.parseInt(address.substring(colon + 1));
+        }
+
+        synchronized Reply send(String request) throws IOException {
+            try {
+                return exchange(request);
+            } catch (IOException e) {
+                close();
+                if (!isRepeatable(request)) throw e;
+                return exchange(request); // Once more on a new connection, the node may have restarted
+            }
+        }
+
+        // The handoff requests carry an id the node checks, a shop command is repeatable if it only reads
+        static boolean isRepeatable(String request) {
+            String[] tokens = request.split(" ", 4);
+            String name = tokens[0].toUpperCase();
+            if (name.equals("CMD")) return tokens.length > 2 && READS.contains(tokens[2].toUpperCase());
+            return REPEATABLE.contains(name);
+        }
+
+        private Reply exchange(String request) throws IOException {
+            if (socket == null) {
+                socket = new Socket(host, port);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            }
+            out.write(request + "\n");
+            out.flush();
+            StringBuilder output = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals("END OK") || line.equals("END FAIL")) return new Reply(line.equals("END OK"), output.toString());
+                output.append(line).append('\n');
+            }
+            throw new IOException("Connection to " + host + ":" + port + " closed");
+        }
+
+        synchronized void close() {
+            if (socket == null) return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            socket = null;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package classes;
+
+import utils.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Replays a command trace recorded with --record against a fresh copy of the data directory.
+ * Each recorded shop runs on its own thread and replays its commands in order, at the original pace,
+ * N times faster or as fast as possible, then the throughput and latency distribution are reported
+ * next to the recorded ones.
+ */
+public class CommandReplay {
+    private static final String DEFAULT_DATA_DIR = "src" + File.separator + "files";
+
+    /**
+     * Main method to replay a trace
+     * @param args Command line arguments
+     * --trace=<file> : Trace recorded by the shops with --record=<file>
+     * --data=<dir> : Data directory copied before the replay (default: src/files)
+     * --speed=<factor|max> : Replay speed, 1 is the original pace (default: 1)
+     * --keep=<true|false> : Keep the copy of the data directory after the replay (default: false)
+     * --fsync=<none|batch|always> : Durability policy of the file writes (default: none)
+     * --storage=<files|memory|pages> : Replay on the copied files, on an in-memory copy of them, or on a page store
+     *                                  imported from them (default: files)
+     */
+    public static void main(String[] args) {
+        Map<String, String> params = ParseArgs.parseArgs(args);
+        String traceName = params.get("trace");
+        if (traceName == null || traceName.isEmpty()) {
+            System.err.println("Error: Trace file is required.");
+            System.exit(1);
+        }
+        double speed = 1.0;
+        String speedParam = params.getOrDefault("speed", "1");
+        try {
+            speed = speedParam.equalsIgnoreCase("max") ? Double.POSITIVE_INFINITY : Double.parseDouble(speedParam);
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Invalid replay speed.");
+            System.exit(1);
+        }
+        if (!(speed > 0)) {
+            System.err.println("Error: Replay speed must be positive.");
+            System.exit(1);
+        }
+        if (params.containsKey("fsync")) {
+            PersistencePipeline.SyncPolicy policy = PersistencePipeline.SyncPolicy.parse(params.get("fsync"));
+            if (policy == null) {
+                System.err.println("Error: Invalid fsync policy. Valid policies are: none, batch, always.");
+                System.exit(1);
+            }
+            PersistencePipeline.get().setPolicy(policy);
+        }
+
+        List<CommandRecorder.Entry> trace = null;
+        Path copy = null;
+        try {
+            trace = CommandRecorder.read(new File(traceName));
+            // Work on a copy, the data classes read their directory from the property on first use
+            copy = copyData(Paths.get(params.getOrDefault("data", DEFAULT_DATA_DIR)));
+            System.setProperty("carrental.data", copy.toString());
+            if ("memory".equalsIgnoreCase(params.get("storage"))) {
+                Storage.setDefault(MemoryStorage.copyOf(FileStorage.create())); // Measures the CPU cost only
+            } else if ("pages".equalsIgnoreCase(params.get("storage"))) {
+                Storage.setDefault(PageStorage.create()); // Imported from the copy before the replay starts
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error preparing the replay: " + e.getMessage());
+            System.exit(1);
+        }
+
+        System.out.println("Replaying " + trace.size() + " entries from " + traceName + " on " + copy
+            + " at " + (Double.isInfinite(speed) ? "max" : speed + "x") + " speed...");
+        Result result = replay(trace, speed);
+        print(result);
+
+        if (!"true".equalsIgnoreCase(params.get("keep"))) deleteData(copy);
+    }
+
+    /**
+     * Results of a replay
+     */
+    public static class Result {
+        private int shops;
+        private int commands;
+        private int failures;
+        private int mismatches; // Commands whose result differs from the recorded one
+        private long elapsedNanos;
+        private long[] latencies = new long[0];
+        private long[] recordedLatencies = new long[0];
+
+        public int getShops() { return shops; }
+        public int getCommands() { return commands; }
+        public int getFailures() { return failures; }
+        public int getMismatches() { return mismatches; }
+        public long getElapsedNanos() { return elapsedNanos; }
+    }
+
+    /**
+     * Replay a trace, the data directory must already point to the copy
+     * @param trace The recorded entries
+     * @param speed The replay speed, infinite for as fast as possible
+     * @return the results
+     */
+    public static Result replay(List<CommandRecorder.Entry> trace, double speed) {
+        // Commands per shop, in recorded order, with the first recorded start of each shop
+        Map<String, CommandRecorder.Entry> starts = new LinkedHashMap<>();
+        Map<String, List<CommandRecorder.Entry>> commands = new LinkedHashMap<>();
+        long firstTime = Long.MAX_VALUE;
+        for (CommandRecorder.Entry entry : trace) {
+            if (entry.isShopStarted()) {
+                starts.putIfAbsent(entry.getCity(), entry);
+            } else {
+                commands.computeIfAbsent(entry.getCity(), city -> new ArrayList<>()).add(entry);
+                firstTime = Math.min(firstTime, entry.getTime());
+            }
+        }
+
+        Result result = new Result();
+        List<long[]> shopLatencies = Collections.synchronizedList(new ArrayList<>());
+        int[] failures = new int[1];
+        int[] mismatches = new int[1];
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The shops print every command
+        try {
+            // Start the shops first so that their initialization is not measured
+            Map<String, RentalShop> shops = new LinkedHashMap<>();
+            for (String city : commands.keySet()) {
+                CommandRecorder.Entry start = starts.get(city);
+                shops.put(city, (start != null)
+                    ? new RentalShop(city, start.getSpaces(), start.getLots())
+                    : new RentalShop(city, 10, new ArrayList<>()));
+            }
+
+            long wallStart = System.nanoTime();
+            long traceStart = firstTime;
+            List<Thread> threads = new ArrayList<>();
+            for (Map.Entry<String, List<CommandRecorder.Entry>> shopCommands : commands.entrySet()) {
+                RentalShop shop = shops.get(shopCommands.getKey());
+                List<CommandRecorder.Entry> entries = shopCommands.getValue();
+                Thread thread = new Thread(() -> {
+                    long[] latencies = new long[entries.size()];
+                    int failed = 0;
+                    int differed = 0;
+                    for (int i = 0; i < entries.size(); i++) {
+                        CommandRecorder.Entry entry = entries.get(i);
+                        waitUntil(wallStart, entry.getTime() - traceStart, speed);
+                        long begin = System.nanoTime();
+                        boolean ok;
+                        try {
+                            ok = shop.processCommand(entry.getCommand());
+                        } catch (RuntimeException e) {
+                            ok = false;
+                        }
+                        latencies[i] = System.nanoTime() - begin;
+                        if (!ok) failed++;
+                        if (ok != entry.isSucceeded()) differed++;
+                    }
+                    shopLatencies.add(latencies);
+                    synchronized (failures) {
+                        failures[0] += failed;
+                        mismatches[0] += differed;
+                    }
+                }, "replay-" + shopCommands.getKey());
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            result.elapsedNanos = System.nanoTime() - wallStart;
+        } finally {
+            System.setOut(console);
+        }
+
+        result.shops = commands.size();
+        result.failures = failures[0];
+        result.mismatches = mismatches[0];
+        int count = 0;
+        for (long[] latencies : shopLatencies) count += latencies.length;
+        result.latencies = new long[count];
+        int i = 0;
+        for (long[] latencies : shopLatencies) {
+            System.arraycopy(latencies, 0, result.latencies, i, latencies.length);
+            i += latencies.length;
+        }
+        Arrays.sort(result.latencies);
+        result.commands = count;
+
+        List<Long> recorded = new ArrayList<>();
+        for (List<CommandRecorder.Entry> entries : commands.values()) {
+            for (CommandRecorder.Entry entry : entries) recorded.add(entry.getNanos());
+        }
+        result.recordedLatencies = recorded.stream().mapToLong(Long::longValue).sorted().toArray();
+        return result;
+    }
+
+    // Sleep until the recorded offset of a command, scaled by the replay speed
+    private static void waitUntil(long wallStart, long offsetMillis, double speed) {
+        if (Double.isInfinite(speed)) return;
+        long due = wallStart + (long) (TimeUnit.MILLISECONDS.toNanos(offsetMillis) / speed);
+        long wait = due - System.nanoTime();
+        if (wait <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void print(Result result) {
+        double seconds = result.elapsedNanos / 1e9;
+        System.out.println("----REPLAY REPORT----");
+        System.out.println("Shops: " + result.shops);
+        System.out.println("Commands: " + result.commands + " (" + result.failures + " failed, "
+            + result.mismatches + " with a different result than recorded)");
+        System.out.println("Elapsed: " + String.format("%.3f", seconds) + " s");
+        System.out.println("Throughput: " + String.format("%.1f", seconds > 0 ? result.commands / seconds : 0) + " commands/s");
+        System.out.println("Latency:  " + distribution(result.latencies));
+        System.out.println("Recorded: " + distribution(result.recordedLatencies));
+        System.out.println("---------------------");
+    }
+
+    // Percentiles of sorted latencies, in microseconds
+    private static String distribution(long[] sorted) {
+        if (sorted.length == 0) return "no commands";
+        return "p50 " + micros(sorted, 0.50) + " us; p90 " + micros(sorted, 0.90) + " us; p99 " + micros(sorted, 0.99)
+            + " us; p99.9 " + micros(sorted, 0.999) + " us; max " + TimeUnit.NANOSECONDS.toMicros(sorted[sorted.length - 1]) + " us";
+    }
+
+    private static long micros(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, index)]);
+    }
+
+    // Copy the data directory to a temporary one, without the lock sidecars
+    private static Path copyData(Path source) throws IOException {
+        Path target = Files.createTempDirectory("carrental-replay");
+        if (!Files.isDirectory(source)) return target;
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".lock") || name.endsWith(".holder") || name.endsWith(".tmp")) continue;
+                Path destination = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) Files.createDirectories(destination);
+                else Files.copy(path, destination, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return target;
+    }
+
+    private static void deleteData(Path copy) {
+        try (Stream<Path> paths = Files.walk(copy)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Error deleting the replay data: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package classes;
+
+import utils.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Brings the data files back to a consistent state after a crash, run when the shops, lots and servers start.
+ *  - Rewrites interrupted in the middle (rentals, lots, logs) are finished from their journal, see
+ *    PersistencePipeline, and so are the slot writes of the slotted lots, see SlottedLot.
+ *  - Lines or records cut at the end of the append-only files are truncated.
+ *  - Shop files saved since the last checkpoint are checked against their checksum. A damaged shop is
+ *    restored from its copy in the checkpoint, then brought forward with its changes logged since the
+ *    checkpoint (see ChangeLog, always written while checkpoints are taken). The vehicles still rented are
+ *    taken out of it and the locations of the others are set again. A shop saved after its last logged change
+ *    (the log was turned off) is restored as far as the log goes and reported as an error.
+ * The work done is bounded by the interrupted writes and the files changed since the last checkpoint, there is
+ * no scan of the whole fleet.
+ *
+ * A checkpoint links the current generation of every shop file into "checkpoint/shops-<time>" (shop files are
+ * never modified in place, a link is enough) and records the time and the offset of the change log in
+ * "checkpoint/checkpoint.txt": "<time>,<change log offset>,<directory>". The running shops take one every
+ * -Dcarrental.checkpoint.interval milliseconds (default: 10 minutes, 0 to take none).
+ */
+public class CrashRecovery {
+    private static final String CHECKPOINT_DIR = DataPaths.ROOT + File.separator + "checkpoint";
+    private static final String CHECKPOINT_FILE = "checkpoint.txt";
+    private static final String RENTALS_FILE = "rentals.txt";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String SLOT_JOURNAL_SUFFIX = ".slots";
+    private static final long CHECKPOINT_INTERVAL = Long.getLong("carrental.checkpoint.interval", 600_000L);
+    private static final int READ_BYTES = 1 << 20;
+
+    private static long nextCheckpoint = System.currentTimeMillis() + CHECKPOINT_INTERVAL;
+
+    /**
+     * @return true if the running shops take checkpoints, the change log is then always written
+     */
+    public static boolean isEnabled() { return CHECKPOINT_INTERVAL > 0; }
+
+    /**
+     * Main method to recover the data directory and optionally take a checkpoint
+     * @param args Command line arguments
+     * --checkpoint=<true|false> : Take a checkpoint once the files are recovered (default: false)
+     */
+    public static void main(String[] args) {
+        Map<String, String> params = ParseArgs.parseArgs(args);
+        long start = System.nanoTime();
+        int repaired = recover();
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Recovery done: " + repaired + " files repaired in " + elapsed + " ms.");
+        if (Boolean.parseBoolean(params.getOrDefault("checkpoint", "false"))) {
+            try {
+                int shops = checkpoint();
+                System.out.println("Checkpoint taken: " + shops + " shops.");
+            } catch (IOException e) {
+                System.err.println("Error taking the checkpoint: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    // ----- Recovery -----
+
+    /**
+     * Repair the data files left inconsistent by a crash
+     * @return the number of files repaired
+     */
+    public static int recover() {
+        int repaired = 0;
+        try {
+            repaired += finishJournals();
+            repaired += truncateTornTails();
+            repaired += restoreShops();
+        } catch (IOException e) {
+            System.err.println("ERROR: Recovery failed: " + e.getMessage());
+        }
+        return repaired;
+    }
+
+    // Finish the rewrites interrupted by a crash
+    private static int finishJournals() throws IOException {
+        int finished = 0;
+        for (String dir : Arrays.asList(DataPaths.ROOT, DataPaths.SHOPS_DIR, DataPaths.LOTS_DIR, DataPaths.INDEXES_DIR, CHECKPOINT_DIR)) {
+            for (File journal : list(dir, JOURNAL_SUFFIX)) {
+                if (journal.length() == 0) continue;
+                String path = journal.getPath();
+                File file = new File(path.substring(0, path.length() - JOURNAL_SUFFIX.length()));
+                if (PersistencePipeline.recoverJournal(file)) {
+                    System.out.println("INFO: Recovery finished the interrupted rewrite of " + file.getName() + ".");
+                    finished++;
+                }
+            }
+        }
+        for (File journal : list(DataPaths.LOTS_DIR, SLOT_JOURNAL_SUFFIX)) {
+            if (journal.length() == 0) continue;
+            String path = journal.getPath();
+            File lot = new File(path.substring(0, path.length() - SLOT_JOURNAL_SUFFIX.length()));
+            if (SlottedLot.recover(lot)) {
+                System.out.println("INFO: Recovery finished the interrupted slot writes of " + lot.getName() + ".");
+                finished++;
+            }
+        }
+        return finished;
+    }
+
+    // Truncate the line or record cut at the end of the files that are appended to
+    private static int truncateTornTails() throws IOException {
+        List<File> files = new ArrayList<>();
+        files.add(new File(DataPaths.SHOPS_DIR, RENTALS_FILE));
+        files.addAll(list(DataPaths.LOTS_DIR, ".txt"));
+        files.addAll(list(DataPaths.INDEXES_DIR, ".txt"));
+        files.add(ChangeLog.logFile(DataPaths.ROOT));
+        files.add(EventLog.logFile(DataPaths.ROOT));
+        files.add(new File(DataPaths.ROOT, "handoffs.txt"));
+        File[] archives = new File(DataPaths.ARCHIVE_DIR).listFiles(File::isDirectory);
+        if (archives != null) for (File archive : archives) files.add(new File(archive, "segments.txt"));
+        int truncated = 0;
+        for (File file : files) {
+            if (file.exists() && truncateTornLine(file)) {
+                System.out.println("INFO: Recovery dropped an incomplete line at the end of " + file.getName() + ".");
+                truncated++;
+            }
+        }
+        if (OdometerIndex.truncateTornRecord()) {
+            System.out.println("INFO: Recovery dropped an incomplete record at the end of the odometer index.");
+            truncated++;
+        }
+        return truncated;
+    }
+
+    /**
+     * Truncate a line file after its last new line
+     * @param file The file, appended to under its exclusive lock
+     * @return true if the file ended with an incomplete line
+     */
+    static boolean truncateTornLine(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            FileLocks.Lock lock = FileLocks.lock(channel, file, false, "recover");
+            try {
+                long size = channel.size();
+                long end = size;
+                ByteBuffer buffer = ByteBuffer.allocate(4096);
+                while (end > 0) {
+                    int length = (int) Math.min(buffer.capacity(), end);
+                    buffer.clear().limit(length);
+                    while (buffer.hasRemaining() && channel.read(buffer, end - length + buffer.position()) > 0) { }
+                    int i = length - 1;
+                    while (i >= 0 && buffer.get(i) != '\n') i--;
+                    if (i >= 0) {
+                        end = end - length + i + 1;
+                        break;
+                    }
+                    end -= length;
+                }
+                if (end == size) return false;
+                channel.truncate(end);
+                channel.force(false);
+                return true;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    // Restore the shop files saved since the last checkpoint that fail their checksum
+    private static int restoreShops() throws IOException {
+        Checkpoint checkpoint = Checkpoint.read();
+        List<String> damaged = new ArrayList<>();
+        for (File file : list(DataPaths.SHOPS_DIR, ".txt")) {
+            if (file.getName().equals(RENTALS_FILE)) continue;
+            boolean checked = checkpoint != null && file.lastModified() < checkpoint.time && new File(checkpoint.dir, file.getName()).exists();
+            if (checked) continue; // Unchanged since it was checked for the checkpoint
+            if (!ShopPersistanceManager.verifyShop(file)) damaged.add(file.getName().substring(0, file.getName().length() - 4));
+        }
+        if (damaged.isEmpty()) return 0;
+
+        // Start from the copy in the checkpoint, or from nothing, keeping the damaged file aside
+        Set<String> restored = new TreeSet<>();
+        Map<String, Long> saved = new HashMap<>();   // Time of the damaged save of each city
+        Map<String, Long> logged = new HashMap<>();  // Time of its last logged change
+        for (String city : damaged) {
+            File file = shopFile(city);
+            saved.put(city, file.lastModified());
+            Files.move(file.toPath(), Paths.get(file.getPath() + ".corrupt"), StandardCopyOption.REPLACE_EXISTING);
+            File copy = (checkpoint != null) ? new File(checkpoint.dir, city + ".txt") : null;
+            if (copy != null && copy.exists() && ShopPersistanceManager.verifyShop(copy)) {
+                PersistencePipeline.await(PersistencePipeline.get().publish(file, Files.readAllBytes(copy.toPath())));
+                restored.add(city);
+            }
+        }
+
+        // Then replay their changes logged since the checkpoint
+        File log = ChangeLog.logFile(DataPaths.ROOT);
+        long offset = (checkpoint != null) ? checkpoint.offset : 0;
+        boolean[] gap = { false };
+        List<ChangeLog.Change> changes;
+        while (!(changes = ChangeLog.read(log, offset, READ_BYTES)).isEmpty()) {
+            for (ChangeLog.Change change : changes) {
+                offset = change.getNextOffset();
+                if (!change.getType().equals("SHOP") || !damaged.contains(change.field(1))) continue;
+                if (ReplicaFollower.applyShop(change, () -> gap[0] = true)) restored.add(change.field(1));
+                logged.put(change.field(1), change.getTime());
+            }
+        }
+
+        for (String city : damaged) {
+            if (!restored.contains(city)) {
+                System.out.println("ERROR: Shop " + city + " is damaged and has no checkpoint or logged change, kept as " + city + ".txt.corrupt.");
+                continue;
+            }
+            RentalShop shop = ShopPersistanceManager.loadShop(city);
+            if (shop == null) continue;
+
+            // A vehicle rented after the restored save is still in the rentals, not in the shop
+            List<Vehicle> rented = new ArrayList<>();
+            for (Vehicle vehicle : shop.getVehicles()) {
+                if (Storage.get().rentals().find(vehicle.getLicensePlate()) != null) rented.add(vehicle);
+            }
+            for (Vehicle vehicle : rented) shop.getVehicles().remove(vehicle);
+            if (!rented.isEmpty() && !ShopPersistanceManager.saveShop(shop)) {
+                System.out.println("ERROR: Shop " + city + " still lists " + rented.size() + " rented vehicles, it could not be saved.");
+            }
+            for (Vehicle vehicle : shop.getVehicles()) {
+                Storage.get().locations().atShop(vehicle.getPlateCode(), city);
+                Storage.get().locations().odometer(vehicle.getPlateCode(), vehicle.getOdometer());
+            }
+            shop.releaseSnapshot();
+
+            long since = (checkpoint != null) ? checkpoint.time : 0;
+            if (logged.getOrDefault(city, since) < saved.get(city)) {
+                System.out.println("ERROR: Shop " + city + " was saved after its last logged change, the change log was off. It was restored"
+                    + " from the " + ((checkpoint != null) ? "checkpoint" : "change log") + " without its later rentals, returns and balance,"
+                    + " the damaged file is kept as " + city + ".txt.corrupt.");
+                continue;
+            }
+            System.out.println("INFO: Recovery restored shop " + city + " from the " + ((checkpoint != null) ? "checkpoint" : "change log")
+                + (gap[0] ? ", some transactions could not be recovered." : "."));
+        }
+        return restored.size();
+    }
+
+    // ----- Checkpoints -----
+
+    /**
+     * Take a checkpoint if the last one of this process is older than the interval
+     */
+    public static synchronized void checkpointIfDue() {
+        if (!isEnabled() || System.currentTimeMillis() < nextCheckpoint) return;
+        nextCheckpoint = System.currentTimeMillis() + CHECKPOINT_INTERVAL;
+        try {
+            checkpoint(true);
+        } catch (IOException e) {
+            System.err.println("ERROR: Unable to take a checkpoint: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Link the current generation of every valid shop file into a new checkpoint and drop the previous one.
+     * Only the shop files saved since the previous checkpoint are read to check them.
+     * @return the number of shops in the checkpoint
+     */
+    public static int checkpoint() throws IOException {
+        return checkpoint(false);
+    }
+
+    private static int checkpoint(boolean ifDue) throws IOException {
+        File dir = new File(CHECKPOINT_DIR);
+        dir.mkdirs();
+        File lockFile = new File(dir, "checkpoint.lock");
+        try (RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+             FileChannel channel = raf.getChannel()) {
+            FileLocks.Lock lock = FileLocks.lock(channel, lockFile, false, "checkpoint");
+            try {
+                Checkpoint previous = Checkpoint.read();
+                if (ifDue && previous != null && System.currentTimeMillis() - previous.time < CHECKPOINT_INTERVAL) return 0; // Taken by another process
+
+                // Offset and time first: the changes logged while linking are replayed again, which is harmless
+                long time = System.currentTimeMillis();
+                long offset = ChangeLog.logFile(DataPaths.ROOT).length();
+                File shops = new File(dir, "shops-" + time);
+                shops.mkdirs();
+                int linked = 0;
+                for (File file : list(DataPaths.SHOPS_DIR, ".txt")) {
+                    if (file.getName().equals(RENTALS_FILE)) continue;
+                    File target = new File(shops, file.getName());
+                    boolean checked = previous != null && file.lastModified() < previous.time && new File(previous.dir, file.getName()).exists();
+                    try {
+                        Files.createLink(target.toPath(), file.toPath());
+                    } catch (UnsupportedOperationException | IOException e) {
+                        Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    if (!checked && !ShopPersistanceManager.verifyShop(target)) {
+                        Files.delete(target.toPath()); // A damaged shop is left for the recovery
+                        continue;
+                    }
+                    linked++;
+                }
+                byte[] line = (time + "," + offset + "," + shops.getName() + "\n").getBytes(StandardCharsets.UTF_8);
+                PersistencePipeline.await(PersistencePipeline.get().replace(new File(dir, CHECKPOINT_FILE), line));
+                if (previous != null) delete(previous.dir);
+                return linked;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    // The last checkpoint taken
+    private static class Checkpoint {
+        final long time;
+        final long offset;
+        final File dir;
+
+        private Checkpoint(long time, long offset, File dir) {
+            this.time = time;
+            this.offset = offset;
+            this.dir = dir;
+        }
+
+        static Checkpoint read() {
+            File file = new File(CHECKPOINT_DIR, CHECKPOINT_FILE);
+            if (!file.exists()) return null;
+            try {
+                String[] fields = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split(",");
+                return new Checkpoint(Long.parseLong(fields[0]), Long.parseLong(fields[1]), new File(CHECKPOINT_DIR, fields[2]));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("ERROR: Unable to read the checkpoint, every shop file is checked: " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    // ----- Files -----
+
+    private static File shopFile(String city) {
+        return new File(DataPaths.SHOPS_DIR, city + ".txt");
+    }
+
+    private static List<File> list(String dir, String suffix) {
+        File[] files = new File(dir).listFiles((parent, name) -> name.endsWith(suffix));
+        return (files == null) ? new ArrayList<>() : new ArrayList<>(Arrays.asList(files));
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        dir.delete();
+    }
+}
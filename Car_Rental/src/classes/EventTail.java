@@ -0,0 +1,59 @@
+package classes;
+
+import utils.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the event log of a data directory (see EventLog, enabled on the shops and lots with --events=true)
+ * and prints every new event as it is appended, one line per event starting with its offset. A consumer
+ * that stops can resume from the offset after the last event it printed.
+ */
+public class EventTail {
+    private static final int READ_BYTES = 1 << 20;
+
+    /**
+     * Main method to follow the event log
+     * @param args Command line arguments
+     * --offset=<offset> : Offset of the first event printed (default: the end of the log, only new events)
+     * --city=<city> : Only print the events of this shop or lot
+     * --interval=<millis> : Delay between two reads of the event log (default: 200)
+     * --follow=<true|false> : Keep waiting for new events (default: true)
+     */
+    public static void main(String[] args) {
+        Map<String, String> params = ParseArgs.parseArgs(args);
+        File log = EventLog.logFile(DataPaths.ROOT);
+        long offset = EventLog.end(log);
+        long interval = 200;
+        try {
+            if (params.containsKey("offset")) offset = Long.parseLong(params.get("offset"));
+            if (params.containsKey("interval")) interval = Long.parseLong(params.get("interval"));
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Invalid number format for the offset or the interval.");
+            System.exit(1);
+        }
+        String city = params.get("city");
+        boolean follow = !params.containsKey("follow") || Boolean.parseBoolean(params.get("follow"));
+
+        try {
+            while (true) {
+                List<EventLog.Event> events = EventLog.read(log, offset, READ_BYTES);
+                for (EventLog.Event event : events) {
+                    if (city == null || event.getLocation().equals(city)) System.out.println(event.toString());
+                    offset = event.getNextOffset();
+                }
+                if (!events.isEmpty()) continue; // More may be waiting past the read buffer
+                if (!follow) break;
+                System.out.flush();
+                TimeUnit.MILLISECONDS.sleep(interval);
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading the event log: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Next offset: " + offset);
+    }
+}
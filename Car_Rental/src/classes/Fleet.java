@@ -0,0 +1,142 @@
+package classes;
+
+import utils.IntHashMap;
+import utils.PlateCodec;
+import java.util.*;
+
+/**
+ * In-memory container for the vehicles parked at a shop.
+ * Keeps three views of the same vehicles in sync:
+ *  - a queue per vehicle type, so renting a type is O(1)
+ *  - a plate code -> vehicle hash index, so lookups and removals by plate are O(1)
+ *  - an odometer ordered set, so low-mileage selection is O(log n) per vehicle
+ * NOTE: a vehicle's odometer must not change while it is inside the fleet, update it before adding it.
+ */
+public class Fleet extends AbstractCollection<Vehicle> {
+    // Orders vehicles by odometer, ties broken by license plate
+    private static final Comparator<Vehicle> BY_ODOMETER = (v1, v2) -> {
+        int cmp = Integer.compare(v1.getOdometer(), v2.getOdometer());
+        return (cmp != 0) ? cmp : Integer.compare(v1.getPlateCode(), v2.getPlateCode());
+    };
+
+    private final IntHashMap<Vehicle> byPlate = new IntHashMap<>();
+    private final List<LinkedHashSet<Vehicle>> byType = new ArrayList<>();
+    private final TreeSet<Vehicle> byOdometer = new TreeSet<>(BY_ODOMETER);
+
+    public Fleet() {
+        for (int i = 0; i < VehicleType.count(); i++) byType.add(new LinkedHashSet<>());
+    }
+
+    public Fleet(Collection<Vehicle> vehicles) {
+        this();
+        addAll(vehicles);
+    }
+
+    /**
+     * Add a vehicle to the fleet
+     * @param vehicle The vehicle to add
+     * @return true if added, false if a vehicle with the same plate is already parked
+     */
+    @Override
+    public boolean add(Vehicle vehicle) {
+        if (byPlate.putIfAbsent(vehicle.getPlateCode(), vehicle) != null) return false;
+        byType.get(vehicle.getType().ordinal()).add(vehicle);
+        byOdometer.add(vehicle);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Vehicle)) return false;
+        Vehicle vehicle = (Vehicle) o;
+        if (byPlate.get(vehicle.getPlateCode()) != vehicle) return false;
+        return removeByPlate(vehicle.getPlateCode()) != null;
+    }
+
+    /**
+     * Remove a vehicle by its license plate
+     * @param plate The license plate of the vehicle, encoded with PlateCodec
+     * @return the removed vehicle, or null if it is not parked here
+     */
+    public Vehicle removeByPlate(int plate) {
+        Vehicle vehicle = byPlate.remove(plate);
+        if (vehicle != null) {
+            byType.get(vehicle.getType().ordinal()).remove(vehicle);
+            byOdometer.remove(vehicle);
+        }
+        return vehicle;
+    }
+
+    /**
+     * Take the first vehicle of a type out of the fleet
+     * @param type The type of vehicle to take
+     * @return the vehicle, or null if no vehicle of that type is parked
+     */
+    public Vehicle pollType(VehicleType type) {
+        Iterator<Vehicle> it = byType.get(type.ordinal()).iterator();
+        if (!it.hasNext()) return null;
+        Vehicle vehicle = it.next();
+        it.remove();
+        byPlate.remove(vehicle.getPlateCode());
+        byOdometer.remove(vehicle);
+        return vehicle;
+    }
+
+    public Vehicle get(int plate) { return byPlate.get(plate); }
+    public Vehicle get(String licensePlate) { return byPlate.get(PlateCodec.lookup(licensePlate)); }
+    public int countOf(VehicleType type) { return byType.get(type.ordinal()).size(); }
+
+    /**
+     * Vehicles in ascending odometer order, used to pick low-mileage vehicles
+     * @return a read-only view ordered by odometer
+     */
+    public SortedSet<Vehicle> byOdometer() { return Collections.unmodifiableSortedSet(byOdometer); }
+
+    @Override
+    public int size() { return byPlate.size(); }
+
+    @Override
+    public void clear() {
+        byPlate.clear();
+        for (Set<Vehicle> set : byType) set.clear();
+        byOdometer.clear();
+    }
+
+    /**
+     * Iterates the vehicles grouped by type (SEDAN, SUV, VAN), in arrival order inside each type
+     */
+    @Override
+    public Iterator<Vehicle> iterator() {
+        return new Iterator<Vehicle>() {
+            private int typeIndex = 0;
+            private Iterator<Vehicle> current = byType.get(0).iterator();
+            private Iterator<Vehicle> lastIterator;
+            private Vehicle last;
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && typeIndex < byType.size() - 1) {
+                    current = byType.get(++typeIndex).iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Vehicle next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                lastIterator = current;
+                last = current.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) throw new IllegalStateException();
+                lastIterator.remove();
+                byPlate.remove(last.getPlateCode());
+                byOdometer.remove(last);
+                last = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,208 @@
+package classes;
+
+import utils.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fleet-wide daily report over every shop file.
+ * Shop files are loaded in parallel on a fork-join pool (shared locks only, so shops keep working)
+ * and the per-city results are merged into a global summary.
+ */
+public class FleetReport {
+    private static final int LEAF_SIZE = 16; // Shop files loaded sequentially by a single task
+
+    /**
+     * Report of a single city, or the merge of several cities
+     */
+    public static class Summary {
+        private int shops;
+        private int spaces;
+        private int availableSpaces;
+        private long balance;
+        private int transactions;
+        private int archived;
+        private long archivedAmount;
+        private final int[] vehiclesByType = new int[VehicleType.count()];
+        private final List<Summary> cities = new ArrayList<>();
+        private final List<String> failures = new ArrayList<>();
+        private String city;
+
+        private static Summary of(RentalShop shop) {
+            Summary summary = new Summary();
+            summary.city = shop.getCity();
+            summary.shops = 1;
+            summary.spaces = shop.getSpaces();
+            summary.availableSpaces = shop.getSpaces() - shop.getVehicles().size();
+            summary.balance = shop.getBalance();
+            summary.transactions = shop.getTransactionCount(); // Counted without parsing the transactions
+            summary.archived = shop.getArchivedCount();
+            try {
+                // Totals of the archived transactions from the segment summaries, no segment is read
+                for (TransactionArchive.Segment segment : TransactionArchive.segments(shop.getCity(), shop.getArchivedCount())) {
+                    summary.archivedAmount += segment.getTotal();
+                }
+            } catch (IOException e) {
+                System.err.println("ERROR: Unable to read the transaction archive of " + shop.getCity() + ": " + e.getMessage());
+            }
+            for (VehicleType type : VehicleType.values()) {
+                summary.vehiclesByType[type.ordinal()] = shop.getVehicles().countOf(type);
+            }
+            summary.cities.add(summary);
+            return summary;
+        }
+
+        private Summary merge(Summary other) {
+            shops += other.shops;
+            spaces += other.spaces;
+            availableSpaces += other.availableSpaces;
+            balance += other.balance;
+            transactions += other.transactions;
+            archived += other.archived;
+            archivedAmount += other.archivedAmount;
+            for (int i = 0; i < vehiclesByType.length; i++) vehiclesByType[i] += other.vehiclesByType[i];
+            cities.addAll(other.cities);
+            failures.addAll(other.failures);
+            return this;
+        }
+
+        public int getShops() { return shops; }
+        public int getSpaces() { return spaces; }
+        public int getAvailableSpaces() { return availableSpaces; }
+        public long getBalance() { return balance; }
+        public int getTransactions() { return transactions; }
+        public int getArchivedTransactions() { return archived; }
+        public long getArchivedAmount() { return archivedAmount; }
+        public int getVehicles(VehicleType type) { return vehiclesByType[type.ordinal()]; }
+        public List<Summary> getCities() { return cities; }
+        public List<String> getFailures() { return failures; }
+        public String getCity() { return city; }
+
+        public int getVehicles() {
+            int total = 0;
+            for (int count : vehiclesByType) total += count;
+            return total;
+        }
+    }
+
+    // Loads a slice of the shop files, splitting it until it is small enough
+    private static class ReportTask extends RecursiveTask<Summary> {
+        private static final long serialVersionUID = 1L; // Unique ID for serialization
+        private final String[] cities;
+        private final int from;
+        private final int to;
+
+        ReportTask(String[] cities, int from, int to) {
+            this.cities = cities;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Summary compute() {
+            if (to - from > LEAF_SIZE) {
+                int mid = (from + to) >>> 1;
+                ReportTask left = new ReportTask(cities, from, mid);
+                left.fork();
+                Summary right = new ReportTask(cities, mid, to).compute();
+                return right.merge(left.join());
+            }
+            Summary summary = new Summary();
+            for (int i = from; i < to; i++) {
+                RentalShop shop = Storage.get().shops().load(cities[i]);
+                if (shop == null) {
+                    summary.failures.add(cities[i]);
+                } else {
+                    summary.merge(Summary.of(shop));
+                    shop.releaseSnapshot();
+                }
+            }
+            return summary;
+        }
+    }
+
+    /**
+     * Main method to print the fleet report
+     * @param args Command line arguments
+     * --parallelism=<threads> : Maximum number of shop files loaded at once (default: number of cores)
+     * --per-city=<true|false> : Print a line per city before the summary (default: true)
+     */
+    public static void main(String[] args) {
+        Map<String, String> params = ParseArgs.parseArgs(args);
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        try {
+            if (params.containsKey("parallelism")) parallelism = Integer.parseInt(params.get("parallelism"));
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Invalid number format for parallelism.");
+            System.exit(1);
+        }
+        if (parallelism < 1) {
+            System.err.println("Error: Parallelism must be at least 1.");
+            System.exit(1);
+        }
+        boolean perCity = !"false".equalsIgnoreCase(params.get("per-city"));
+
+        long start = System.nanoTime();
+        Summary summary = generate(parallelism);
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        print(summary, perCity);
+        System.out.println("Report generated in " + elapsed + " ms using " + parallelism + " threads.");
+    }
+
+    /**
+     * Discover the cities that have a shop file
+     * @return the city names, sorted
+     */
+    public static String[] discoverCities() {
+        return Storage.get().shops().cities().toArray(new String[0]);
+    }
+
+    /**
+     * Load every shop in parallel and merge the results
+     * @param parallelism Maximum number of shop files loaded at once
+     * @return the merged summary, with one entry per city
+     */
+    public static Summary generate(int parallelism) {
+        String[] cities = discoverCities();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Summary summary = pool.invoke(new ReportTask(cities, 0, cities.length));
+            summary.cities.sort(Comparator.comparing(Summary::getCity));
+            return summary;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void print(Summary summary, boolean perCity) {
+        if (perCity) {
+            System.out.println("----CITY REPORT----");
+            for (Summary city : summary.getCities()) {
+                StringBuilder line = new StringBuilder();
+                line.append(city.getCity())
+                    .append(": Balance: $");
+                Money.append(line, city.getBalance())
+                    .append("; Available Spaces: ").append(city.getAvailableSpaces()).append("/").append(city.getSpaces());
+                for (VehicleType type : VehicleType.values()) {
+                    line.append("; ").append(type).append(": ").append(city.getVehicles(type));
+                }
+                System.out.println(line);
+            }
+        }
+        System.out.println("----FLEET REPORT----");
+        System.out.println("Shops: " + summary.getShops());
+        System.out.println("Total Balance: $" + Money.format(summary.getBalance()));
+        System.out.println("Available Parking Spaces: " + summary.getAvailableSpaces() + "/" + summary.getSpaces());
+        System.out.println("Transactions: " + summary.getTransactions());
+        System.out.println("Archived Transactions: " + summary.getArchivedTransactions() + " ($" + Money.format(summary.getArchivedAmount()) + ")");
+        for (VehicleType type : VehicleType.values()) {
+            System.out.println(type + " Vehicles: " + summary.getVehicles(type));
+        }
+        System.out.println("Total Vehicles: " + summary.getVehicles());
+        for (String city : summary.getFailures()) {
+            System.out.println("ERROR: Unable to load shop data for " + city + ".");
+        }
+        System.out.println("--------------------");
+    }
+}
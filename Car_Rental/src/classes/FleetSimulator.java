@@ -0,0 +1,521 @@
+package classes;
+
+import utils.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Discrete-event simulator of a network of shops and lots, to tune the shop rules (see ShopPolicy) and the
+ * number of spaces before changing them on the real shops.
+ *
+ * Every rental and return goes through RentalShop.processCommand, so the simulated shops follow exactly the
+ * rules of the real ones, on a private in-memory storage whose lot operations are counted. Demand is either
+ * synthetic (rentals arriving at random shops, with random durations and return shops) or the RENT and
+ * RETURN commands of a trace recorded with --record; the plates of a trace do not exist in the simulation,
+ * so each recorded return brings back the oldest simulated rental still open.
+ *
+ * A sweep runs one scenario per combination of the listed values, in parallel, all scenarios drawing the
+ * same random demand from the seed so that their results can be compared with each other: every arrival
+ * draws its shop, type, duration and return shop whether its rental succeeds or not, and the shops choose
+ * their lots with a random seeded from the demand.
+ */
+public class FleetSimulator {
+    private static final double HOUR_MILLIS = 3_600_000.0;
+
+    // The simulated shops print every command, not even encoded
+    private static final PrintStream SILENT = new PrintStream(OutputStream.nullOutputStream()) {
+        @Override public void println(String line) { }
+        @Override public void print(String text) { }
+    };
+
+    /**
+     * Main method to run a sweep
+     * @param args Command line arguments
+     * --shops=<count> : Number of shops (default: 100)
+     * --lots=<count> : Number of lots (default: 20)
+     * --lots-per-shop=<count> : Lots each shop pulls from and pushes to (default: 2)
+     * --vehicles-per-lot=<count> : Vehicles parked in each lot at the start (default: 100)
+     * --days=<days> : Simulated time (default: 28)
+     * --rate=<rentals> : Rentals per shop per hour (default: 0.5)
+     * --hours=<hours> : Mean rental duration (default: 24)
+     * --km-per-hour=<km> : Kilometers driven per rented hour (default: 15)
+     * --same-shop=<probability> : Probability of returning the vehicle where it was rented (default: 0.5)
+     * --seed=<seed> : Seed of the demand (default: 1)
+     * --trace=<file> : Recorded trace used as demand instead of the synthetic one, with its shops and lots
+     * --spaces=<list> : Spaces of every shop, comma-separated values to sweep (default: 10, or the recorded ones)
+     * --reserve=<list> : Free spaces kept by the shops (default: 2)
+     * --redistribution=<list> : Fraction of the vehicles pushed back to the lots (default: 0.2)
+     * --discount=<list> : Price factor of the rentals pulled from a lot (default: 0.9)
+     * --rates=<type:amount,...> : Price per kilometer of the vehicle types, e.g. suv:1.50,van:2.00 (default: 1.00)
+     * --threads=<count> : Scenarios run in parallel (default: number of processors)
+     */
+    public static void main(String[] args) {
+        Map<String, String> params = ParseArgs.parseArgs(args);
+        Demand demand = new Demand();
+        List<Scenario> scenarios = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            demand.shops = Integer.parseInt(params.getOrDefault("shops", "100"));
+            demand.lots = Integer.parseInt(params.getOrDefault("lots", "20"));
+            demand.lotsPerShop = Integer.parseInt(params.getOrDefault("lots-per-shop", "2"));
+            demand.vehiclesPerLot = Integer.parseInt(params.getOrDefault("vehicles-per-lot", "100"));
+            demand.days = Double.parseDouble(params.getOrDefault("days", "28"));
+            demand.rate = Double.parseDouble(params.getOrDefault("rate", "0.5"));
+            demand.hours = Double.parseDouble(params.getOrDefault("hours", "24"));
+            demand.kmPerHour = Double.parseDouble(params.getOrDefault("km-per-hour", "15"));
+            demand.sameShop = Double.parseDouble(params.getOrDefault("same-shop", "0.5"));
+            demand.seed = Long.parseLong(params.getOrDefault("seed", "1"));
+            if (params.containsKey("threads")) threads = Integer.parseInt(params.get("threads"));
+            for (String spaces : params.getOrDefault("spaces", "0").split(",")) {
+                for (String reserve : params.getOrDefault("reserve", "2").split(",")) {
+                    for (String redistribution : params.getOrDefault("redistribution", "0.2").split(",")) {
+                        for (String discount : params.getOrDefault("discount", "0.9").split(",")) {
+                            Pricing pricing = new Pricing(Pricing.DEFAULT_RATE, Pricing.basisPoints(Double.parseDouble(discount.trim())));
+                            if (params.containsKey("rates")) pricing = pricing.withRates(params.get("rates"));
+                            scenarios.add(new Scenario(Integer.parseInt(spaces.trim()), new ShopPolicy(Integer.parseInt(reserve.trim()),
+                                Double.parseDouble(redistribution.trim()), pricing)));
+                        }
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Invalid number format: " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+        if (demand.shops <= 0 || demand.lots <= 0 || demand.lotsPerShop <= 0 || threads <= 0) {
+            System.err.println("Error: The numbers of shops, lots, lots per shop and threads must be positive.");
+            System.exit(1);
+        }
+        if (params.containsKey("trace")) {
+            try {
+                demand.trace = CommandRecorder.read(new File(params.get("trace")));
+            } catch (IOException e) {
+                System.err.println("Error reading the trace: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        System.out.println("Simulating " + scenarios.size() + " scenarios on " + threads + " threads...");
+        long start = System.nanoTime();
+        List<Result> results = sweep(demand, scenarios, threads);
+        print(results, System.nanoTime() - start);
+    }
+
+    /**
+     * Demand and network shared by the scenarios of a sweep
+     */
+    public static class Demand {
+        int shops = 100;
+        int lots = 20;
+        int lotsPerShop = 2;
+        int vehiclesPerLot = 100;
+        double days = 28;
+        double rate = 0.5;
+        double hours = 24;
+        double kmPerHour = 15;
+        double sameShop = 0.5;
+        long seed = 1;
+        List<CommandRecorder.Entry> trace; // Recorded demand, replaces the synthetic one
+
+        public void setShops(int shops) { this.shops = shops; }
+        public void setLots(int lots) { this.lots = lots; }
+        public void setVehiclesPerLot(int vehiclesPerLot) { this.vehiclesPerLot = vehiclesPerLot; }
+        public void setDays(double days) { this.days = days; }
+        public void setSeed(long seed) { this.seed = seed; }
+    }
+
+    /**
+     * One combination of the swept values
+     */
+    public static class Scenario {
+        private final int spaces; // 0 for the recorded spaces, or 10
+        private final ShopPolicy policy;
+
+        public Scenario(int spaces, ShopPolicy policy) {
+            this.spaces = spaces;
+            this.policy = policy;
+        }
+
+        public int getSpaces() { return spaces; }
+        public ShopPolicy getPolicy() { return policy; }
+
+        @Override
+        public String toString() {
+            return "spaces=" + (spaces > 0 ? spaces : "default") + ", " + policy;
+        }
+    }
+
+    /**
+     * Outcome of one scenario
+     */
+    public static class Result {
+        private final Scenario scenario;
+        private long events;
+        private long rentals;
+        private long stockouts;   // RENT commands that found no vehicle
+        private long lotRentals;  // Rentals whose vehicle was pulled from a lot, at the discounted price
+        private long returns;
+        private long unmatched;   // Recorded returns with no open simulated rental
+        private long lotPulls;    // Vehicles asked from a lot, each one a lot file rewrite on the file storage
+        private long lotPushes;   // Vehicles pushed back to a lot, each one a lot file append
+        private long revenue;
+        private long nanos;
+
+        private Result(Scenario scenario) {
+            this.scenario = scenario;
+        }
+
+        public Scenario getScenario() { return scenario; }
+        public long getEvents() { return events; }
+        public long getRentals() { return rentals; }
+        public long getStockouts() { return stockouts; }
+        public long getLotRentals() { return lotRentals; }
+        public long getReturns() { return returns; }
+        public long getLotPulls() { return lotPulls; }
+        public long getLotPushes() { return lotPushes; }
+        public long getRevenue() { return revenue; }
+        public long getNanos() { return nanos; }
+    }
+
+    /**
+     * Run scenarios in parallel
+     * @param demand The demand of every scenario
+     * @param scenarios The scenarios
+     * @param threads Scenarios run at the same time
+     * @return the results, in the order of the scenarios
+     */
+    public static List<Result> sweep(Demand demand, List<Scenario> scenarios, int threads) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Scenario scenario : scenarios) futures.add(pool.submit(() -> simulate(demand, scenario)));
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) results.add(future.get());
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Simulation interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Simulation failed: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // ----- One scenario -----
+
+    private static final int RENT = 0;
+    private static final int RETURN = 1;
+
+    /**
+     * A scheduled rental or return
+     */
+    private static class Event implements Comparable<Event> {
+        final double time;  // Hours since the start
+        final long order;   // Ties broken by scheduling order
+        final int kind;
+        final int shop;
+        final String plate; // RETURN: the rented vehicle, null for a recorded return
+        final int kilometers;
+        final VehicleType type;
+
+        Event(double time, long order, int kind, int shop, String plate, int kilometers, VehicleType type) {
+            this.time = time;
+            this.order = order;
+            this.kind = kind;
+            this.shop = shop;
+            this.plate = plate;
+            this.kilometers = kilometers;
+            this.type = type;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int cmp = Double.compare(time, other.time);
+            return (cmp != 0) ? cmp : Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Simulate one scenario on its own storage
+     * @param demand The demand
+     * @param scenario The spaces and rules of the shops
+     * @return the outcome
+     */
+    public static Result simulate(Demand demand, Scenario scenario) throws IOException {
+        Result result = new Result(scenario);
+        Storage memory = MemoryStorage.create();
+        Lots lots = new Lots(memory.lots());
+        Rentals rentals = new Rentals();
+        Storage storage = new Storage(new Shops(), lots, rentals, memory.plates(), new Locations());
+        SplittableRandom random = new SplittableRandom(demand.seed);
+
+        // The network: recorded shops and lots, or numbered ones
+        List<String> cities = new ArrayList<>();
+        List<Integer> recordedSpaces = new ArrayList<>();
+        List<List<String>> shopLots = new ArrayList<>();
+        Set<String> lotNames = new TreeSet<>();
+        if (demand.trace != null) {
+            Map<String, CommandRecorder.Entry> starts = new LinkedHashMap<>();
+            for (CommandRecorder.Entry entry : demand.trace) {
+                if (entry.isShopStarted()) starts.putIfAbsent(entry.getCity(), entry);
+                else if (!starts.containsKey(entry.getCity())) starts.put(entry.getCity(), null);
+            }
+            for (Map.Entry<String, CommandRecorder.Entry> start : starts.entrySet()) {
+                cities.add(start.getKey());
+                recordedSpaces.add(start.getValue() != null ? start.getValue().getSpaces() : 10);
+                List<String> names = (start.getValue() != null) ? start.getValue().getLots() : new ArrayList<>();
+                shopLots.add(names);
+                lotNames.addAll(names);
+            }
+        } else {
+            for (int i = 0; i < demand.shops; i++) {
+                cities.add(String.format("shop%04d", i));
+                recordedSpaces.add(10);
+                List<String> names = new ArrayList<>();
+                for (int j = 0; j < Math.min(demand.lotsPerShop, demand.lots); j++) names.add(String.format("lot%04d", (i * demand.lotsPerShop + j) % demand.lots));
+                shopLots.add(names);
+                lotNames.addAll(names);
+            }
+        }
+        int code = 0;
+        for (String lot : lotNames) {
+            List<Vehicle> vehicles = new ArrayList<>(demand.vehiclesPerLot);
+            for (int i = 0; i < demand.vehiclesPerLot; i++) {
+                vehicles.add(new Vehicle(code++, VehicleType.of(i % VehicleType.count()), 0));
+            }
+            PersistencePipeline.await(storage.lots().write(lot, vehicles));
+        }
+        List<RentalShop> network = new ArrayList<>(cities.size());
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < cities.size(); i++) {
+            int spaces = (scenario.getSpaces() > 0) ? scenario.getSpaces() : recordedSpaces.get(i);
+            RentalShop shop = new RentalShop(storage, cities.get(i), spaces, shopLots.get(i), scenario.getPolicy(), SILENT);
+            shop.setRandom(new Random(random.nextLong()));
+            network.add(shop);
+            index.put(cities.get(i), i);
+        }
+        lots.reset(); // Only the lot operations of the simulated period are reported
+
+        // The demand
+        PriorityQueue<Event> queue = new PriorityQueue<>();
+        long order = 0;
+        double end = demand.days * 24;
+        if (demand.trace != null) {
+            long first = Long.MAX_VALUE;
+            for (CommandRecorder.Entry entry : demand.trace) if (!entry.isShopStarted()) first = Math.min(first, entry.getTime());
+            for (CommandRecorder.Entry entry : demand.trace) {
+                if (entry.isShopStarted()) continue;
+                String[] tokens = entry.getCommand().trim().split(" ");
+                double time = (entry.getTime() - first) / HOUR_MILLIS;
+                int shop = index.get(entry.getCity());
+                if (tokens[0].equalsIgnoreCase("RENT") && tokens.length >= 2) {
+                    queue.add(new Event(time, order++, RENT, shop, null, 0, VehicleType.parse(tokens[1])));
+                } else if (tokens[0].equalsIgnoreCase("RETURN") && tokens.length >= 3) {
+                    try {
+                        queue.add(new Event(time, order++, RETURN, shop, null, Integer.parseInt(tokens[2]), null));
+                    } catch (NumberFormatException e) {
+                        // Not a valid return, the shop refused it as well
+                    }
+                }
+            }
+            end = Double.POSITIVE_INFINITY;
+        } else if (demand.rate > 0) {
+            queue.add(new Event(exponential(random, 1 / (demand.rate * network.size())), order++, RENT, -1, null, 0, null));
+        }
+
+        ArrayDeque<String> open = new ArrayDeque<>(); // Open rentals in rental order, for the recorded returns
+        long start = System.nanoTime();
+        Event event;
+        while ((event = queue.poll()) != null && event.time <= end) {
+            result.events++;
+            if (event.kind == RENT) {
+                int shop = event.shop;
+                VehicleType type = event.type;
+                double hours = 0;
+                int target = shop;
+                if (demand.trace == null) {
+                    // Next synthetic arrival, then this one at a random shop, drawn even if the rental fails
+                    queue.add(new Event(event.time + exponential(random, 1 / (demand.rate * network.size())), order++, RENT, -1, null, 0, null));
+                    shop = random.nextInt(network.size());
+                    type = VehicleType.of(random.nextInt(VehicleType.count()));
+                    hours = exponential(random, demand.hours);
+                    target = (random.nextDouble() < demand.sameShop) ? shop : random.nextInt(network.size());
+                }
+                if (type == null) continue;
+                rentals.last = null;
+                if (!network.get(shop).processCommand("RENT " + type)) {
+                    result.stockouts++;
+                    continue;
+                }
+                RentInfo rentInfo = rentals.last;
+                result.rentals++;
+                if (rentInfo.isDiscount()) result.lotRentals++;
+                String plate = rentInfo.getVehicle().getLicensePlate();
+                if (demand.trace != null) {
+                    open.add(plate);
+                } else {
+                    queue.add(new Event(event.time + hours, order++, RETURN, target, plate, (int) Math.round(hours * demand.kmPerHour), null));
+                }
+            } else {
+                String plate = (event.plate != null) ? event.plate : open.poll();
+                if (plate == null) {
+                    result.unmatched++;
+                    continue;
+                }
+                if (network.get(event.shop).processCommand("RETURN " + plate + " " + event.kilometers)) result.returns++;
+            }
+        }
+        result.nanos = System.nanoTime() - start;
+
+        for (RentalShop shop : network) result.revenue += shop.getBalance();
+        result.lotPulls = lots.pulls;
+        result.lotPushes = lots.pushes;
+        return result;
+    }
+
+    private static double exponential(SplittableRandom random, double mean) {
+        return -mean * Math.log(1 - random.nextDouble());
+    }
+
+    private static void print(List<Result> results, long nanos) {
+        System.out.println("----SIMULATION REPORT----");
+        long events = 0;
+        for (Result result : results) {
+            events += result.events;
+            double seconds = result.nanos / 1e9;
+            System.out.println(result.scenario);
+            System.out.println(String.format("  rentals %d (%d from lots), stockouts %d (%.2f%%), returns %d%s",
+                result.rentals, result.lotRentals, result.stockouts,
+                (result.rentals + result.stockouts > 0) ? 100.0 * result.stockouts / (result.rentals + result.stockouts) : 0.0,
+                result.returns, (result.unmatched > 0) ? " (" + result.unmatched + " recorded returns unmatched)" : ""));
+            System.out.println(String.format("  lot pulls %d, lot pushes %d, revenue $%s, %d events at %.0f events/s",
+                result.lotPulls, result.lotPushes, Money.format(result.revenue), result.events, (seconds > 0) ? result.events / seconds : 0.0));
+        }
+        double seconds = nanos / 1e9;
+        System.out.println(String.format("Total: %d scenarios, %d events in %.3f s (%.0f events/s)", results.size(), events, seconds,
+            (seconds > 0) ? events / seconds : 0.0));
+        System.out.println("-------------------------");
+    }
+
+    // ----- Stores of a simulation, used by a single thread -----
+
+    /**
+     * Keeps the live shops themselves, a shop reloading itself gets its own state back without any copy.
+     * Saved transactions are dropped, the revenue is in the balance.
+     */
+    private static class Shops implements ShopStore {
+        private final Map<String, RentalShop> shops = new HashMap<>();
+        private final Closeable unlocked = () -> { };
+
+        public RentalShop load(String city) { return shops.get(city); }
+
+        public boolean save(RentalShop shop) {
+            shops.put(shop.getCity(), shop);
+            shop.getTransactions().clear();
+            return true;
+        }
+
+        public List<String> cities() {
+            List<String> cities = new ArrayList<>(shops.keySet());
+            Collections.sort(cities);
+            return cities;
+        }
+
+        public Closeable lock(String city, String operation) { return unlocked; }
+    }
+
+    /**
+     * Counts the lot operations that would read or rewrite a lot file
+     */
+    private static class Lots implements LotStore {
+        private final LotStore lots;
+        private long pulls;
+        private long pushes;
+
+        Lots(LotStore lots) {
+            this.lots = lots;
+        }
+
+        void reset() {
+            pulls = 0;
+            pushes = 0;
+        }
+
+        public boolean exists(String lot) { return lots.exists(lot); }
+        public List<String> names() { return lots.names(); }
+        public List<Vehicle> read(String lot) throws IOException { return lots.read(lot); }
+
+        public CompletableFuture<Void> write(String lot, Collection<Vehicle> vehicles) {
+            pushes++;
+            return lots.write(lot, vehicles);
+        }
+
+        public CompletableFuture<Void> add(String lot, Vehicle vehicle) {
+            pushes++;
+            return lots.add(lot, vehicle);
+        }
+
+        public boolean update(String lot, Collection<Vehicle> added, int removedPlate) throws IOException {
+            pushes++;
+            return lots.update(lot, added, removedPlate);
+        }
+
+        public Vehicle pull(String lot, VehicleType type, String shop) throws IOException {
+            pulls++;
+            return lots.pull(lot, type, shop);
+        }
+    }
+
+    /**
+     * Open rentals by plate, remembering the last one added to schedule its return.
+     * Not ordered by start time, the simulation never asks for the oldest rentals.
+     */
+    private static class Rentals implements RentalRegistry {
+        private final IntHashMap<RentInfo> rentals = new IntHashMap<>();
+        private RentInfo last;
+
+        public boolean add(RentInfo rentInfo) {
+            rentals.put(rentInfo.getVehicle().getPlateCode(), rentInfo);
+            last = rentInfo;
+            return true;
+        }
+
+        public RentInfo find(String licensePlate) { return rentals.get(PlateCodec.lookup(licensePlate)); }
+
+        public boolean remove(String licensePlate) {
+            rentals.remove(PlateCodec.lookup(licensePlate));
+            return true;
+        }
+
+        public List<RentInfo> olderThan(long cutoff) {
+            List<RentInfo> older = new ArrayList<>();
+            rentals.forEach((plate, rentInfo) -> { if (rentInfo.getStartTime() < cutoff) older.add(rentInfo); });
+            older.sort(Comparator.comparingLong(RentInfo::getStartTime));
+            return older;
+        }
+
+        public List<RentInfo> oldest(int count) {
+            List<RentInfo> oldest = olderThan(Long.MAX_VALUE);
+            return oldest.subList(0, Math.min(count, oldest.size()));
+        }
+    }
+
+    /**
+     * Vehicle locations are not simulated, the shops only record them
+     */
+    private static class Locations implements LocationStore {
+        public void atLot(int plate, String lot) { }
+        public void atShop(int plate, String city) { }
+        public void rented(int plate) { }
+        public void remove(int plate) { }
+        public LocationIndex.Location where(String licensePlate) { return null; }
+        public void odometer(int plate, int odometer) { }
+        public List<OdometerIndex.Entry> highest(int count) { return Collections.emptyList(); }
+        public List<OdometerIndex.Entry> range(int min, int max, int limit) { return Collections.emptyList(); }
+    }
+}
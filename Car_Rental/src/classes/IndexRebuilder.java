@@ -0,0 +1,47 @@
+package classes;
+
+import utils.*;
+import java.io.IOException;
+import java.util.*;
+
+public class IndexRebuilder {
+    /**
+     * Main method to rebuild the derived indexes from the lot, shop and rental files
+     * @param args Command line arguments
+     * --parallelism=<threads> : Maximum number of files scanned at once (default: number of cores)
+     */
+    public static void main(String[] args) {
+        Map<String, String> params = ParseArgs.parseArgs(args);
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        try {
+            if (params.containsKey("parallelism")) parallelism = Integer.parseInt(params.get("parallelism"));
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Invalid number format for parallelism.");
+            System.exit(1);
+        }
+        if (parallelism < 1) {
+            System.err.println("Error: Parallelism must be at least 1.");
+            System.exit(1);
+        }
+
+        try {
+            long start = System.nanoTime();
+            int indexed = LocationIndex.rebuild(parallelism);
+            long elapsed = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("Location index rebuilt: " + indexed + " vehicles indexed in " + elapsed + " ms.");
+        } catch (IOException e) {
+            System.err.println("Error rebuilding the location index: " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            long start = System.nanoTime();
+            int indexed = OdometerIndex.rebuild();
+            long elapsed = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("Odometer index rebuilt: " + indexed + " vehicles indexed in " + elapsed + " ms.");
+        } catch (IOException e) {
+            System.err.println("Error rebuilding the odometer index: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -7,8 +7,7 @@ import java.util.*;
 
 public class LotManager {
     // Constant for file directory
-    private static final String LOTS_DIR = "src" + File.separator + "files" + File.separator + "lots";
-    private static final String[] VEHICLE_TYPES = {"SEDAN", "SUV", "VAN"};
+    private static final String LOTS_DIR = DataPaths.LOTS_DIR;
 
     // Vehicle counts 
     private static int sedans;
@@ -23,6 +22,9 @@ public class LotManager {
      * --add-suv=<count> : Number of SUVs to add
      * --add-van=<count> : Number of vans to add
      * --remove-vehicle=<license_plate> : License plate of the vehicle to remove
+     * --fsync=<none|batch|always> : Durability policy of the file writes (default: none)
+     * --events=<true|false> : Log the stocked and removed vehicles to the event log (default: false)
+     * --slotted=<true|false> : Write the lot with one region per vehicle type, see SlottedLot (default: false)
      */
     public static void main(String[] args) {
         // Create the directory if it doesn't exist 
@@ -42,6 +44,19 @@ public class LotManager {
             System.exit(1);
         }
 
+        if (params.containsKey("fsync")) {
+            PersistencePipeline.SyncPolicy policy = PersistencePipeline.SyncPolicy.parse(params.get("fsync"));
+            if (policy == null) {
+                System.err.println("Error: Invalid fsync policy. Valid policies are: none, batch, always.");
+                System.exit(1);
+            }
+            PersistencePipeline.get().setPolicy(policy);
+        }
+
+        CrashRecovery.recover();
+        if (params.containsKey("events")) EventLog.setEnabled(Boolean.parseBoolean(params.get("events")));
+        if (params.containsKey("slotted")) SlottedLot.setEnabled(Boolean.parseBoolean(params.get("slotted")));
+
         try {
             sedans = params.containsKey("add-sedan") ? Integer.parseInt(params.get("add-sedan")) : 0;
             suvs = params.containsKey("add-suv") ? Integer.parseInt(params.get("add-suv")) : 0;
@@ -51,74 +66,33 @@ public class LotManager {
             System.exit(1);
         }
 
-        // Retrieve existing vehicles from the lot file 
-        List<Vehicle> vehicles = getContents(lotName);
-
-        // Add new vehicles to the list
-        for (int i = 0; i < sedans; i++) { vehicles.add(VehicleFactory.createVehicle("SEDAN")); }
-        for (int i = 0; i < suvs; i++) { vehicles.add(VehicleFactory.createVehicle("SUV")); }
-        for (int i = 0; i < vans; i++) { vehicles.add(VehicleFactory.createVehicle("VAN")); }
-
-        // Check for deletes 
-        if (params.containsKey("remove-vehicle")) {
-            String licensePlate = params.get("remove-vehicle");
-            vehicles.removeIf(vehicle -> vehicle.getLicensePlate().equals(licensePlate));
-        }
-
-        // Add vehicles to the file 
-        addContents(lotName, vehicles);
-    }
-
-    /**
-     * Reads the contents of the lot file
-     * @param lotName Name of the lot
-     * @return List of vehicles in the lot
-     */
-    private static List<Vehicle> getContents(String lotName) {
-        List<Vehicle> vehicles = new ArrayList<>();
-        File lotFile = new File(LOTS_DIR + File.separator + lotName + ".txt");
-
-        // Create the file if it doesn't exist 
-        if (!lotFile.exists()) {
-            try {
-                lotFile.createNewFile();
-            } catch (IOException e) {
-                System.err.println("Error creating lot file: " + e.getMessage());
-                System.exit(1);
-            }
-        }
+        // New vehicles to stock and the vehicle to delete
+        List<Vehicle> added = new ArrayList<>();
+        for (int i = 0; i < sedans; i++) { added.add(VehicleFactory.createVehicle(VehicleType.SEDAN)); }
+        for (int i = 0; i < suvs; i++) { added.add(VehicleFactory.createVehicle(VehicleType.SUV)); }
+        for (int i = 0; i < vans; i++) { added.add(VehicleFactory.createVehicle(VehicleType.VAN)); }
+        int plate = params.containsKey("remove-vehicle") ? PlateCodec.encode(params.get("remove-vehicle")) : PlateCodec.NONE;
 
-        // Read the file contents 
-        try (BufferedReader reader = new BufferedReader(new FileReader(lotFile))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 3) {
-                    vehicles.add(new Vehicle(parts[0], parts[1], Integer.parseInt(parts[2])));
-                }
-            }
+        // Change the lot in one step on its current content, pulls and returns of the shops meanwhile are kept
+        int removedPlate = PlateCodec.NONE;
+        try {
+            if (Storage.get().lots().update(lotName, added, plate) && plate != PlateCodec.NONE) removedPlate = plate;
         } catch (IOException e) {
-            System.err.println("Error reading lot file: " + e.getMessage());
+            System.err.println("Error writing to lot file: " + e.getMessage());
+            System.exit(1);
         }
 
-        return vehicles;
-    }
-
-    /**
-     * Writes the contents of the lot file
-     * @param lotName Name of the lot
-     * @param vehicles List of vehicles to write
-     */
-    private static void addContents(String lotName, List<Vehicle> vehicles) {
-        File lotFile = new File(LOTS_DIR + File.separator + lotName + ".txt");
-
-        // Write the file contents 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(lotFile))) {
-            for (Vehicle vehicle : vehicles) {
-                writer.write(vehicle.getLicensePlate() + "," + vehicle.getType() + "," + vehicle.getOdometer() + "\n");
-            }
-        } catch (IOException e) {
-            System.err.println("Error writing to lot file: " + e.getMessage());
+        // Keep the indexes in sync and log the changes of the lot
+        List<String> events = new ArrayList<>();
+        for (Vehicle vehicle : added) {
+            Storage.get().locations().atLot(vehicle.getPlateCode(), lotName);
+            Storage.get().locations().odometer(vehicle.getPlateCode(), vehicle.getOdometer());
+            events.add(EventLog.event(EventLog.Type.VEHICLE_STOCKED, lotName, vehicle.getLicensePlate(), vehicle.getType() + "," + vehicle.getOdometer()));
+        }
+        if (removedPlate != PlateCodec.NONE) {
+            Storage.get().locations().remove(removedPlate);
+            events.add(EventLog.event(EventLog.Type.VEHICLE_REMOVED, lotName, PlateCodec.decode(removedPlate), ""));
         }
+        EventLog.publish(events);
     }
 }
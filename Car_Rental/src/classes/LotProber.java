@@ -0,0 +1,87 @@
+package classes;
+
+import utils.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Opt-in parallel retrieval from the lots of a shop, enabled with -Dcarrental.lots.parallel=true or setEnabled().
+ *
+ * Instead of waiting for the lock of each lot in turn, every lot is probed at once: a probe takes the lot lock
+ * only if it is free (LotStore.tryPull()), and the first probe that finds a vehicle of the type claims the
+ * request. The claim is checked under the lot lock, so the other lots are never rewritten, and the probes that
+ * start after it return at once. probe() returns once every probe has ended and released its lot. The lots that
+ * were locked are then pulled in order as without probing, so a busy lot is still used when no free lot has the
+ * type. The vehicle comes from whichever lot answered first, not necessarily the first lot of the list.
+ */
+public class LotProber {
+    private static volatile boolean enabled = Boolean.getBoolean("carrental.lots.parallel");
+
+    private static final ExecutorService probes = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "lot-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static boolean isEnabled() { return enabled; }
+    public static void setEnabled(boolean enabled) { LotProber.enabled = enabled; }
+
+    /**
+     * Probe the lots concurrently for a vehicle of a type
+     * @param storage Where the lots are kept
+     * @param lots The lots of the shop, in order
+     * @param type The type of vehicle wanted
+     * @param shop The shop asking for the vehicle
+     * @param busy Receives the lots that were locked, in order, when no lot gave a vehicle
+     * @return the vehicle and its lot, or null if no free lot had one
+     */
+    public static VehicleRetrival probe(Storage storage, List<String> lots, VehicleType type, String shop, List<String> busy) {
+        AtomicReference<Vehicle> claim = new AtomicReference<>();
+        CompletionService<LotStore.Probe> completion = new ExecutorCompletionService<>(probes);
+        Map<Future<LotStore.Probe>, String> submitted = new LinkedHashMap<>();
+        for (String lot : lots) {
+            if (!storage.lots().exists(lot)) continue; // Skip if the file doesn't exist
+            submitted.put(completion.submit(() -> (claim.get() != null) ? LotStore.Probe.EMPTY // Claimed before it started
+                : storage.lots().tryPull(lot, type, shop, claim)), lot);
+        }
+
+        // Wait for every probe, the losers only end once they released their lot
+        Set<String> locked = new HashSet<>();
+        String winner = null;
+        boolean interrupted = false;
+        for (int done = 0; done < submitted.size(); ) {
+            Future<LotStore.Probe> future;
+            try {
+                future = completion.take();
+            } catch (InterruptedException e) {
+                interrupted = true; // A probe may hold the claim or a lot, keep waiting for it
+                continue;
+            }
+            done++;
+            String lot = submitted.get(future);
+            try {
+                switch (future.get()) {
+                    case TAKEN: winner = lot; break;
+                    case BUSY: locked.add(lot); break;
+                    default: break;
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) System.err.println("Error accessing lot file: " + cause.getMessage());
+                else System.err.println("Error probing lot " + lot + ": " + cause);
+            } catch (InterruptedException e) {
+                interrupted = true; // Not reached, the future is done
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        if (winner != null) return new VehicleRetrival(claim.get(), winner);
+        for (String lot : submitted.values()) {
+            if (locked.contains(lot)) busy.add(lot);
+        }
+        return null;
+    }
+}
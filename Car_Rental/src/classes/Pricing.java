@@ -0,0 +1,95 @@
+package classes;
+
+import utils.Money;
+
+import java.util.Arrays;
+
+/**
+ * Computes the charge of a rental from integer rates, without boxing or string work:
+ * a rate in cents per kilometer for each vehicle type and a lot-pull discount in basis points.
+ * The default prices every type at 1.00 per kilometer with a 10% discount, the original rules.
+ */
+public class Pricing {
+    public static final long DEFAULT_RATE = Money.CENTS_PER_UNIT; // 1.00 per kilometer
+    public static final int FULL_PRICE = 10_000;                  // Basis points of an undiscounted rental
+    public static final Pricing DEFAULT = new Pricing(DEFAULT_RATE, 9_000);
+
+    private final long[] rates = new long[VehicleType.count()];
+    private final int lotDiscount;
+
+    /**
+     * @param rate Rate of every vehicle type, in cents per kilometer
+     * @param lotDiscount Price factor of a rental whose vehicle had to be pulled from a lot, in basis points
+     */
+    public Pricing(long rate, int lotDiscount) {
+        if (rate < 0) throw new IllegalArgumentException("The rate cannot be negative.");
+        if (lotDiscount < 0) throw new IllegalArgumentException("The discount factor cannot be negative.");
+        Arrays.fill(rates, rate);
+        this.lotDiscount = lotDiscount;
+    }
+
+    private Pricing(long[] rates, int lotDiscount) {
+        System.arraycopy(rates, 0, this.rates, 0, rates.length);
+        this.lotDiscount = lotDiscount;
+    }
+
+    /**
+     * @param type The vehicle type
+     * @param rate The rate of that type, in cents per kilometer
+     * @return a copy of these prices with the rate of the type replaced
+     */
+    public Pricing withRate(VehicleType type, long rate) {
+        if (rate < 0) throw new IllegalArgumentException("The rate cannot be negative.");
+        Pricing pricing = new Pricing(rates, lotDiscount);
+        pricing.rates[type.ordinal()] = rate;
+        return pricing;
+    }
+
+    /**
+     * @param rates Comma-separated "type:amount" pairs, e.g. "suv:1.50,van:2.00", the amounts per kilometer
+     * @return a copy of these prices with the rates of the listed types replaced
+     * @throws IllegalArgumentException if a type or an amount is not valid
+     */
+    public Pricing withRates(String rates) {
+        Pricing pricing = this;
+        for (String rate : rates.split(",")) {
+            String[] parts = rate.split(":");
+            VehicleType type = (parts.length == 2) ? VehicleType.parse(parts[0]) : null;
+            if (type == null) throw new IllegalArgumentException("Invalid rate " + rate.trim() + ", expected <type>:<amount> with a type in " + VehicleType.names() + ".");
+            pricing = pricing.withRate(type, Money.parse(parts[1]));
+        }
+        return pricing;
+    }
+
+    /**
+     * @param lotDiscount A price factor, e.g. 0.9
+     * @return the factor in basis points, e.g. 9000
+     */
+    public static int basisPoints(double lotDiscount) {
+        return (int) Math.round(lotDiscount * FULL_PRICE);
+    }
+
+    /**
+     * @param type The vehicle type
+     * @param kilometers Kilometers driven during the rental
+     * @param discount true if the vehicle had to be pulled from a lot
+     * @return the charge in cents, a discounted charge is rounded half up to the cent
+     */
+    public long charge(VehicleType type, int kilometers, boolean discount) {
+        long charge = rates[type.ordinal()] * kilometers;
+        return discount ? (charge * lotDiscount + FULL_PRICE / 2) / FULL_PRICE : charge;
+    }
+
+    public long getRate(VehicleType type) { return rates[type.ordinal()]; }
+    public int getLotDiscount() { return lotDiscount; }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < rates.length; i++) {
+            if (builder.length() > 0) builder.append(", ");
+            Money.append(builder.append(VehicleType.of(i).name().toLowerCase()).append('='), rates[i]).append("/km");
+        }
+        return builder.append(", discount=").append(lotDiscount / (double) FULL_PRICE).toString();
+    }
+}
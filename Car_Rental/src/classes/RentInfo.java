@@ -1,18 +1,57 @@
 package classes;
 
 import java.io.Serializable;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 
 public class RentInfo implements Serializable {
-    private static final long serialVersionUID = 1L; // Unique ID for serialization
+    private static final long serialVersionUID = 2L; // Unique ID for serialization
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
     private Vehicle vehicle; // Vehicle being rented
     private boolean discount; // Indicates if a 10% discount is applied
+    private long startTime; // When the rental started (epoch millis), 0 if unknown
+    private String shop; // Shop the vehicle was rented from, null if unknown
 
     // Constructor for RentInfo
     public RentInfo(Vehicle vehicle, boolean discount) {
+        this(vehicle, discount, System.currentTimeMillis(), null);
+    }
+
+    /**
+     * Constructor for a rental starting now
+     * @param vehicle Vehicle being rented
+     * @param discount Indicates if a 10% discount is applied
+     * @param shop Shop the vehicle is rented from
+     */
+    public RentInfo(Vehicle vehicle, boolean discount, String shop) {
+        this(vehicle, discount, System.currentTimeMillis(), shop);
+    }
+
+    /**
+     * Constructor for a recorded rental
+     * @param vehicle Vehicle being rented
+     * @param discount Indicates if a 10% discount is applied
+     * @param startTime When the rental started (epoch millis), 0 if unknown
+     * @param shop Shop the vehicle was rented from, null if unknown
+     */
+    public RentInfo(Vehicle vehicle, boolean discount, long startTime, String shop) {
         this.vehicle = vehicle;
         this.discount = discount;
+        this.startTime = startTime;
+        this.shop = shop;
     }
 
     public Vehicle getVehicle() { return vehicle; }
     public boolean isDiscount() { return discount; }
-}
\ No newline at end of file
+    public long getStartTime() { return startTime; }
+    public String getShop() { return shop; }
+
+    @Override
+    public String toString() {
+        return "RENTAL: " + vehicle.getLicensePlate() + "; Type: " + vehicle.getType()
+            + "; Since: " + (startTime > 0 ? DATE_FORMAT.format(Instant.ofEpochMilli(startTime)) : "unknown")
+            + "; Shop: " + (shop != null ? shop : "unknown");
+    }
+}
@@ -0,0 +1,53 @@
+package classes;
+
+import utils.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Report of the long-outstanding rentals, read from the start of the rental file (see RentalFileManager for
+ * how far its append order follows the start times).
+ */
+public class RentalReport {
+
+    /**
+     * Main method to print the rental report
+     * @param args Command line arguments
+     * --older-than-days=<days> : Print the rentals open for longer than this (default: 7)
+     * --oldest=<count> : Print the oldest open rentals instead
+     */
+    public static void main(String[] args) {
+        Map<String, String> params = ParseArgs.parseArgs(args);
+        int days = 7;
+        int oldest = 0;
+        try {
+            if (params.containsKey("older-than-days")) days = Integer.parseInt(params.get("older-than-days"));
+            if (params.containsKey("oldest")) oldest = Integer.parseInt(params.get("oldest"));
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Invalid number format for the report options.");
+            System.exit(1);
+        }
+        if (days < 0 || oldest < 0) {
+            System.err.println("Error: Report options must be positive numbers.");
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        List<RentInfo> rentals;
+        if (oldest > 0) {
+            rentals = Storage.get().rentals().oldest(oldest);
+            System.out.println("----OLDEST " + oldest + " RENTALS----");
+        } else {
+            rentals = Storage.get().rentals().olderThan(now - TimeUnit.DAYS.toMillis(days));
+            System.out.println("----RENTALS OLDER THAN " + days + " DAYS----");
+        }
+        for (RentInfo rentInfo : rentals) {
+            String open = (rentInfo.getStartTime() > 0) ? TimeUnit.MILLISECONDS.toDays(now - rentInfo.getStartTime()) + " days" : "unknown";
+            System.out.println(rentInfo.toString() + "; Open for: " + open);
+        }
+        System.out.println("Total: " + rentals.size());
+        System.out.println("--------------------");
+        System.out.println("Report generated in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+    }
+}
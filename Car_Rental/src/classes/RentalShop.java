@@ -4,23 +4,35 @@ import utils.*;
 
 import java.io.*;
 import java.util.*;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public class RentalShop {
     // File Directory 
-    private static final String FILES_DIR = "src" + File.separator + "files" + File.separator + "shops";
-    private static final String LOTS_DIR = "src" + File.separator + "files" + File.separator + "lots";
-    private static final String[] CAR_TYPES = {"SEDAN", "SUV", "VAN"};
+    private static final String FILES_DIR = DataPaths.SHOPS_DIR;
+    private static final long ARCHIVE_INTERVAL = Long.getLong("carrental.archive.interval", 60_000L); // Between two archive checks
 
     // Attributes 
+    private Storage storage;
     private String city;
     private int spaces; 
-    private double balance = 0.0;
+    private long balance = 0;                                     // In cents, see Money
+    private int archived = 0;                                     // Oldest transactions moved to the archive, see TransactionArchive
     private String shopFile;
     private List<String> lots;
-    private List<Vehicle> vehicles = new ArrayList<>();
-    private List<Transaction> transactions = new ArrayList<>();
+    private Fleet vehicles = new Fleet();                         // null until loaded from the snapshot
+    private List<Transaction> transactions = new ArrayList<>();   // null until loaded from the snapshot
+    private List<Transaction> pendingTransactions = new ArrayList<>(); // Added while transactions are not loaded
+    private List<Transaction> unsavedTransactions = new ArrayList<>(); // Added since the shop was loaded or last saved
+    private ShopSnapshot snapshot; // Open generation of the shop file, sections are read from it on first access
+    private boolean unreadable;    // A section could not be read or was dropped unloaded, the shop must not be saved
+    private ShopPolicy policy = ShopPolicy.DEFAULT;
+    private final List<String> events = new ArrayList<>(); // Events of the running command, see EventLog
+    private long nextArchive = System.currentTimeMillis(); // Next archive check, see archiveIfDue()
+    private PrintStream output;  // Messages and errors of the shop, null for the console
+    private Random random;       // Lot choice of the redistribution, null for ThreadLocalRandom
 
     /**
      * Constructor for RentalShop class
@@ -29,21 +41,77 @@ public class RentalShop {
      * @param lots The list of parking lots
      */
     public RentalShop(String city, int spaces, List<String> lots) {
+        this(Storage.get(), city, spaces, lots);
+    }
+
+    /**
+     * Constructor for RentalShop class on a given storage
+     * @param storage Where the shop, lots and rentals are kept
+     * @param city The city where the shop is located
+     * @param spaces The number of parking spaces 
+     * @param lots The list of parking lots
+     */
+    public RentalShop(Storage storage, String city, int spaces, List<String> lots) {
+        this(storage, city, spaces, lots, ShopPolicy.DEFAULT);
+    }
+
+    /**
+     * Constructor for RentalShop class on a given storage with its own rules
+     * @param storage Where the shop, lots and rentals are kept
+     * @param city The city where the shop is located
+     * @param spaces The number of parking spaces 
+     * @param lots The list of parking lots
+     * @param policy The reserve, redistribution and discount rules of the shop
+     */
+    public RentalShop(Storage storage, String city, int spaces, List<String> lots, ShopPolicy policy) {
+        this(storage, city, spaces, lots, policy, null);
+    }
+
+    /**
+     * Constructor for RentalShop class printing somewhere else than the console, e.g. nowhere in a simulation
+     * @param storage Where the shop, lots and rentals are kept
+     * @param city The city where the shop is located
+     * @param spaces The number of parking spaces 
+     * @param lots The list of parking lots
+     * @param policy The reserve, redistribution and discount rules of the shop
+     * @param output Where the shop prints its messages and errors, null for System.out and System.err
+     */
+    public RentalShop(Storage storage, String city, int spaces, List<String> lots, ShopPolicy policy, PrintStream output) {
+        this.storage = storage;
+        this.policy = policy;
+        this.output = output;
         this.city = city; 
         this.spaces = spaces; 
         this.lots = new ArrayList<>(lots);
         this.shopFile = FILES_DIR + File.separator + city + ".txt"; // File name for the shop
 
-        RentalShop loadedShop = ShopPersistanceManager.loadShop(this.city);
-        if (loadedShop != null) {
-            this.spaces = loadedShop.getSpaces();
-            this.balance = loadedShop.getBalance();
-            this.lots = loadedShop.getLots();
-            this.vehicles = loadedShop.getVehicles();
-            this.transactions = loadedShop.getTransactions();
-        } else { 
+        if (!reloadShop()) { 
             initializeShopData(); 
+            events.clear(); // Published by the save if it succeeded
         }
+        if (CommandRecorder.isActive()) CommandRecorder.shopStarted(city, spaces, this.lots);
+    }
+
+    /**
+     * Replace the in-memory state with the current generation of the shop file.
+     * Only the header is parsed, vehicles and transactions are loaded on first access.
+     * @return true if the shop file was loaded, false otherwise
+     */
+    private boolean reloadShop() {
+        RentalShop loadedShop = storage.shops().load(this.city);
+        if (loadedShop == null) return false;
+        releaseSnapshot();
+        this.spaces = loadedShop.spaces;
+        this.balance = loadedShop.balance;
+        this.archived = loadedShop.archived;
+        this.lots = loadedShop.lots;
+        this.vehicles = loadedShop.vehicles;
+        this.transactions = loadedShop.transactions;
+        this.pendingTransactions = loadedShop.pendingTransactions;
+        this.unsavedTransactions = loadedShop.unsavedTransactions;
+        this.snapshot = loadedShop.snapshot;
+        this.unreadable = loadedShop.unreadable;
+        return true;
     }
 
     /**
@@ -52,9 +120,10 @@ public class RentalShop {
      * @param city city name
      */
     public RentalShop(String shopFile, String city) {
+        this.storage = Storage.get();
         this.city = city;
         this.spaces = 0;
-        this.balance = 0.0;
+        this.balance = 0;
         this.shopFile = shopFile;
         this.lots = new ArrayList<>();
     }
@@ -68,104 +137,379 @@ public class RentalShop {
      */
     public String getCity() { return city; }
     public int getSpaces() { return spaces; }
-    public double getBalance() { return balance; }
+    public long getBalance() { return balance; }
+    public int getArchivedCount() { return archived; }
     public String getShopFile() { return shopFile; }
     public List<String> getLots() { return lots; }
-    public List<Vehicle> getVehicles() { return vehicles; }
-    public List<Transaction> getTransactions() { return transactions; }
+    public ShopSnapshot getSnapshot() { return snapshot; }
+    public ShopPolicy getPolicy() { return policy; }
+    public boolean isTransactionsLoaded() { return transactions != null; }
+    public List<Transaction> getPendingTransactions() { return pendingTransactions; }
+    public List<Transaction> getUnsavedTransactions() { return unsavedTransactions; }
+    public void markSaved() { this.unsavedTransactions.clear(); }
     public void setSpaces(int spaces) { this.spaces = spaces; }
-    public void setBalance(double balance) { this.balance = balance; }
+    public void setBalance(long balance) { this.balance = balance; }
+    public void setArchivedCount(int archived) { this.archived = archived; }
     public void setShopFile(String shopFile) { this.shopFile = shopFile; }
     public void setLots(List<String> lots) { this.lots = lots; }
-    public void setVehicles(List<Vehicle> vehicles) { this.vehicles = vehicles; }
-    public void setTransactions(List<Transaction> transactions) { this.transactions = transactions; }
+    public void setVehicles(Collection<Vehicle> vehicles) { this.vehicles = new Fleet(vehicles); }
+    public void setOutput(PrintStream output) { this.output = output; }
+    public void setRandom(Random random) { this.random = random; } // Seeded for a repeatable simulation
+    public void setTransactions(List<Transaction> transactions) {
+        this.transactions = transactions;
+        this.pendingTransactions.clear();
+    }
+
+    // Resolved on each use, so a shop follows System.setOut like the rest of the process
+    private PrintStream out() { return (output != null) ? output : System.out; }
+    private PrintStream err() { return (output != null) ? output : System.err; }
 
     // Helper methods to load shop data 
     public void addLot(String lot) { this.lots.add(lot); }
-    public void addVehicle(Vehicle vehicle) { this.vehicles.add(vehicle); }
-    public void addTransaction(Transaction transaction) { this.transactions.add(transaction); }
+    public void addVehicle(Vehicle vehicle) { getVehicles().add(vehicle); }
+    public void addTransaction(Transaction transaction) {
+        unsavedTransactions.add(transaction);
+        if (transactions != null) transactions.add(transaction);
+        else pendingTransactions.add(transaction); // Appended to the section on save, without parsing it
+    }
+
+    /**
+     * Vehicles parked at the shop, parsed from the snapshot on first access
+     * @return the fleet of the shop
+     */
+    public Fleet getVehicles() {
+        if (vehicles == null) {
+            try {
+                vehicles = snapshot.readVehicles();
+            } catch (IOException | NumberFormatException e) {
+                err().println("ERROR: Unable to load the vehicles of " + city + ": " + e.getMessage());
+                vehicles = new Fleet();
+                unreadable = true; // Saving the empty fleet would lose the vehicles of the file
+            }
+        }
+        return vehicles;
+    }
+
+    /**
+     * Transactions kept in the shop, parsed from the snapshot on first access. The archived ones are not included.
+     * @return the transactions, in the order they were recorded
+     */
+    public List<Transaction> getTransactions() {
+        if (transactions == null) {
+            try {
+                transactions = snapshot.readTransactions();
+            } catch (IOException | NumberFormatException e) {
+                err().println("ERROR: Unable to load the transactions of " + city + ": " + e.getMessage());
+                transactions = new ArrayList<>();
+                unreadable = true;
+            }
+            transactions.addAll(pendingTransactions);
+            pendingTransactions.clear();
+        }
+        return transactions;
+    }
+
+    /**
+     * @return false if a section of the shop could not be read, or was dropped by releaseSnapshot() before it was
+     * read; the storages refuse to save such a shop, which would replace the section with an empty one
+     */
+    public boolean isReadable() { return !unreadable; }
+
+    // Parse the vehicles before a command changes anything, a shop whose vehicles cannot be read is left as is
+    private boolean vehiclesReadable() {
+        getVehicles();
+        return !unreadable;
+    }
+
+    /**
+     * Number of transactions since the shop opened, the ones kept in the shop are counted without parsing them
+     * when they are not loaded
+     * @return the number of transactions, including the archived ones
+     */
+    public int getTransactionCount() {
+        if (transactions != null) return archived + transactions.size();
+        try {
+            return archived + snapshot.countTransactions() + pendingTransactions.size();
+        } catch (IOException e) {
+            return archived + getTransactions().size();
+        }
+    }
+
+    /**
+     * Stream the transactions, parsing them while the stream is consumed when they are not loaded.
+     * The stream must be closed.
+     * @return the transactions, in the order they were recorded
+     */
+    public Stream<Transaction> streamTransactions() throws IOException {
+        if (transactions != null) return transactions.stream();
+        return Stream.concat(snapshot.streamTransactions(), new ArrayList<>(pendingTransactions).stream());
+    }
+
+    /**
+     * Stream the archived transactions then the ones kept in the shop, the archive segments are read as the
+     * stream reaches them. The stream must be closed.
+     * @return all the transactions since the shop opened, in the order they were recorded
+     */
+    public Stream<Transaction> streamAllTransactions() throws IOException {
+        return Stream.concat(TransactionArchive.stream(city, archived), streamTransactions());
+    }
+
+    /**
+     * Attach the snapshot the sections are lazily read from, used by the ShopPersistanceManager
+     * @param snapshot The open shop file generation
+     */
+    public void attachSnapshot(ShopSnapshot snapshot) {
+        this.snapshot = snapshot;
+        this.vehicles = null;
+        this.transactions = null;
+        this.pendingTransactions = new ArrayList<>();
+        this.unreadable = false;
+    }
+
+    /**
+     * Close the snapshot once lazy access is no longer needed, the sections not loaded yet are dropped and the
+     * shop can no longer be saved
+     */
+    public void releaseSnapshot() {
+        if (snapshot == null) return;
+        try {
+            snapshot.close();
+        } catch (IOException e) {
+            err().println("ERROR: Unable to close the shop snapshot: " + e.getMessage());
+        }
+        snapshot = null;
+        if (vehicles == null || transactions == null) unreadable = true;
+        if (vehicles == null) vehicles = new Fleet();
+        if (transactions == null) transactions = new ArrayList<>(pendingTransactions);
+        pendingTransactions.clear();
+    }
 
     // Print the shop state
-    public void printShopState() {
-        RentalShop temp = ShopPersistanceManager.loadShop(this.city); // Load the shop data before printing the state
-        if (temp != null) {
-            this.spaces = temp.getSpaces();
-            this.balance = temp.getBalance();
-            this.lots = temp.getLots();
-            this.vehicles = temp.getVehicles();
-            this.transactions = temp.getTransactions();
-        } else {
-            System.out.println("ERROR: Unable to load shop data.");
-            return;
+    public boolean printShopState() {
+        if (!reloadShop()) { // Load the shop data before using it
+            out().println("ERROR: Unable to load shop data.");
+            return false;
         }
 
         // Print the shop state
-        System.out.println("----SHOP STATE (" + city + ")----");
-        System.out.println("Total Parking Spaces: " + spaces);
-        System.out.println("Available Parking Spaces: " + (spaces - vehicles.size()));
-        System.out.println("Current Balance: $" + balance);
-        System.out.println("Parking Lots: " + String.join(", ", lots));
-        System.out.println("Vehicles: ");
-        for (Vehicle vehicle : vehicles) {
-            System.out.println(vehicle.toString());
+        out().println("----SHOP STATE (" + city + ")----");
+        out().println("Total Parking Spaces: " + spaces);
+        out().println("Available Parking Spaces: " + (spaces - getVehicles().size()));
+        out().println("Current Balance: $" + Money.format(balance));
+        out().println("Parking Lots: " + String.join(", ", lots));
+        out().println("Vehicles: ");
+        for (Vehicle vehicle : getVehicles()) {
+            out().println(vehicle.toString());
         }
         /* 
-        System.out.println("Transactions: ");
+        out().println("Transactions: ");
         for (Transaction transaction : transactions) {
-            System.out.println(transaction.toString());
+            out().println(transaction.toString());
         }
         */
-        System.out.println("------------------------------");
-    }
-
-    // Print the shop transactions
-    public void printShopTransactions() {
-        RentalShop temp = ShopPersistanceManager.loadShop(this.city); // Load the shop data before printing the state
-        if (temp != null) {
-            this.spaces = temp.getSpaces();
-            this.balance = temp.getBalance();
-            this.lots = temp.getLots();
-            this.vehicles = temp.getVehicles();
-            this.transactions = temp.getTransactions();
-        } else {
-            System.out.println("ERROR: Unable to load shop data.");
-            return;
+        out().println("------------------------------");
+        return true;
+    }
+
+    /**
+     * Print the shop transactions
+     * @param all true to print the archived transactions before the ones kept in the shop
+     * @return true if the transactions were printed
+     */
+    public boolean printShopTransactions(boolean all) {
+        if (!reloadShop()) { // Load the shop data before using it
+            out().println("ERROR: Unable to load shop data.");
+            return false;
         }
 
         // Print the shop state
-        System.out.println("----SHOP Transactions (" + city + ")----");
-        System.out.println("Transactions: ");
-        for (Transaction transaction : transactions) {
-            System.out.println(transaction.toString());
+        out().println("----SHOP Transactions (" + city + ")----");
+        out().println("Transactions: ");
+        // Streamed from the shop file, the transactions are never all held in memory
+        try (Stream<Transaction> stream = all ? streamAllTransactions() : streamTransactions()) {
+            stream.forEach(transaction -> out().println(transaction.toString()));
+        } catch (IOException | UncheckedIOException e) {
+            out().println("ERROR: Unable to read the shop transactions: " + e.getMessage());
+            return false;
+        }
+        out().println("------------------------------");
+        return true;
+    }
+
+    /**
+     * WHERE IS A VEHICLE - WHERE CMD
+     * Looks up the fleet-wide location index, no file is scanned.
+     * @param licensePlate the license plate of the vehicle to find
+     * @return true if the vehicle was found
+     */
+    private boolean printVehicleLocation(String licensePlate) {
+        LocationIndex.Location location = storage.locations().where(licensePlate);
+        if (location == null) {
+            out().println("ERROR: Vehicle " + licensePlate + " not found in the location index.");
+            return false;
+        } else if (location.getKind() == LocationIndex.Kind.RENTED) {
+            out().println("INFO: Vehicle " + licensePlate + " is currently rented.");
+        } else {
+            out().println("INFO: Vehicle " + licensePlate + " is at " + location + ".");
+        }
+        return true;
+    }
+
+    /**
+     * OVERDUE RENTALS - OVERDUE CMD
+     * Reads only the start of the rental file, whose append order follows the start times (see RentalFileManager).
+     * @param days the number of days a rental must have been open for
+     * @return true if the days are valid
+     */
+    private boolean printOverdueRentals(int days) {
+        if (days < 0) {
+            out().println("ERROR: Invalid number of days. Must be a positive number.");
+            return false;
+        }
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+        List<RentInfo> rentals = storage.rentals().olderThan(cutoff);
+        out().println("----RENTALS OLDER THAN " + days + " DAYS----");
+        for (RentInfo rentInfo : rentals) out().println(rentInfo.toString());
+        out().println("Total: " + rentals.size());
+        out().println("------------------------------");
+        return true;
+    }
+
+    /**
+     * OLDEST RENTALS - OLDEST CMD
+     * @param count the number of rentals to print
+     * @return true if the count is valid
+     */
+    private boolean printOldestRentals(int count) {
+        if (count <= 0) {
+            out().println("ERROR: Invalid number of rentals. Must be a positive number.");
+            return false;
+        }
+        List<RentInfo> rentals = storage.rentals().oldest(count);
+        out().println("----OLDEST " + count + " RENTALS----");
+        for (RentInfo rentInfo : rentals) out().println(rentInfo.toString());
+        out().println("------------------------------");
+        return true;
+    }
+
+    /**
+     * HIGHEST AND RANGE OF ODOMETERS - MILEAGE CMD
+     * Reads the fleet-wide odometer index, no lot or shop file is scanned.
+     * @param args "TOP <count>" or "RANGE <min> <max> [limit]"
+     * @return true if the query is valid
+     */
+    private boolean printMileage(String[] args) {
+        String query = (args.length > 1) ? args[1].toUpperCase() : "";
+        List<OdometerIndex.Entry> entries;
+        if (query.equals("TOP") && args.length >= 3) {
+            int count;
+            try {
+                count = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                out().println("ERROR: Invalid number of vehicles. Must be a positive number.");
+                return false;
+            }
+            if (count <= 0) {
+                out().println("ERROR: Invalid number of vehicles. Must be a positive number.");
+                return false;
+            }
+            entries = storage.locations().highest(count);
+            out().println("----TOP " + count + " BY ODOMETER----");
+        } else if (query.equals("RANGE") && args.length >= 4) {
+            int min;
+            int max;
+            int limit;
+            try {
+                min = Integer.parseInt(args[2]);
+                max = Integer.parseInt(args[3]);
+                limit = (args.length >= 5) ? Integer.parseInt(args[4]) : Integer.MAX_VALUE;
+            } catch (NumberFormatException e) {
+                out().println("ERROR: Invalid odometer range. Expected 0 <= min <= max and a positive limit.");
+                return false;
+            }
+            if (min < 0 || max < min || limit <= 0) {
+                out().println("ERROR: Invalid odometer range. Expected 0 <= min <= max and a positive limit.");
+                return false;
+            }
+            entries = storage.locations().range(min, max, limit);
+            out().println("----ODOMETERS FROM " + min + " TO " + max + " KM----");
+        } else {
+            out().println("ERROR: MILEAGE command requires TOP <count> or RANGE <min> <max> [limit].");
+            return false;
+        }
+        for (OdometerIndex.Entry entry : entries) {
+            LocationIndex.Location location = storage.locations().where(entry.getLicensePlate());
+            String where = (location == null) ? "unknown" : (location.getKind() == LocationIndex.Kind.RENTED) ? "rented" : location.toString();
+            out().println(entry + " (" + where + ")");
+        }
+        out().println("Total: " + entries.size());
+        out().println("------------------------------");
+        return true;
+    }
+
+    /**
+     * READ THE EVENT LOG - TAIL AND WATCH CMDS
+     * Prints the events logged from an offset, then the offset to read the next ones from.
+     * @param location the shop or lot whose events are printed, all of them if null
+     * @param offset the offset of the first event, the start of a line of the log
+     * @param limit the maximum number of events printed
+     * @return true if the offset is valid
+     */
+    private boolean printEvents(String location, long offset, int limit) {
+        if (limit <= 0) {
+            out().println("ERROR: Invalid number of events. Must be a positive number.");
+            return false;
         }
-        System.out.println("------------------------------");
+        File log = EventLog.logFile(DataPaths.ROOT);
+        long next = offset;
+        int printed = 0;
+        out().println("----EVENTS" + ((location != null) ? " OF " + location : "") + " FROM " + offset + "----");
+        try {
+            List<EventLog.Event> batch;
+            while (printed < limit && !(batch = EventLog.read(log, next, 1 << 16)).isEmpty()) {
+                for (EventLog.Event event : batch) {
+                    if (printed >= limit) break;
+                    next = event.getNextOffset();
+                    if (location != null && !event.getLocation().equals(location)) continue;
+                    out().println(event.toString());
+                    printed++;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            out().println("ERROR: Unable to read the event log: " + e.getMessage());
+            return false;
+        }
+        if (!EventLog.isEnabled()) out().println("INFO: Events are not logged by this shop, start it with --events=true.");
+        out().println("Next offset: " + next);
+        out().println("------------------------------");
+        return true;
     }
 
     /**
      * Initialize the shop data with vehicles from the Lots 
      */
     private void initializeShopData() {
-        while (vehicles.size() < spaces - 2) {
+        while (getVehicles().size() < spaces - policy.getReserve()) {
             boolean foundVehicle = false;
             // Request vehicles from the parking lots
-            for (String type : CAR_TYPES) {
+            for (VehicleType type : VehicleType.values()) {
                 VehicleRetrival retrival = requestVehicle(type);
                 if (retrival != null) {
                     addVehicle(retrival.getVehicle());
                     foundVehicle = true;
-                    if (vehicles.size() >= spaces - 2) break;
+                    if (getVehicles().size() >= spaces - policy.getReserve()) break;
                 }
             }
             if (!foundVehicle) {
-                System.out.println("No more vehicles available in the parking lots.");
+                out().println("No more vehicles available in the parking lots.");
                 break; // Exit the loop if no vehicles are found
             }
         }
         // Save the shop data to a file
-        if (!ShopPersistanceManager.saveShop(this)) {
-            System.out.println("ERROR: Unable to save shop data.");
+        if (!storage.shops().save(this)) {
+            out().println("ERROR: Unable to save shop data.");
         } else {
-            System.out.println("Shop data initialized and saved successfully.");
+            out().println("Shop data initialized and saved successfully.");
         }
     }
 
@@ -174,53 +518,35 @@ public class RentalShop {
      * @param type The type of vehicle to request
      * @return VehicleRetrival object containing the vehicle and its lot
      */
-    public VehicleRetrival requestVehicle(String type) {
+    public VehicleRetrival requestVehicle(VehicleType type) {
         VehicleRetrival retrival = null;
-        // Check if the requested vehicle type is valid
-        for (String lot : lots) {
-            String lotFile = LOTS_DIR + File.separator + lot + ".txt";
-            List<Vehicle> vehicles = new ArrayList<>(); 
-            File file = new File(lotFile);
-            if (!file.exists()) continue; // Skip if the file doesn't exist
-            // Open the file and read the vehicles
-            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-                 FileChannel channel = raf.getChannel()) {
-                // Acquire a reader/writer lock on the file 
-                FileLock lock = channel.lock(0, Long.MAX_VALUE, false);
-                raf.seek(0);
-                String line;
-                try {
-                    // Read the vehicles from the file 
-                    while ((line = raf.readLine()) != null) {
-                        String[] strings = line.split(",");
-                        if (strings.length == 3) {
-                            String licensePlate = strings[0];
-                            String model = strings[1];
-                            int kilometers = Integer.parseInt(strings[2]);
-                            vehicles.add(new Vehicle(licensePlate, model, kilometers));
-                        }
-                    }
-                    // Check if the requested vehicle type is available in the lot
-                    for (Vehicle vehicle : vehicles) {
-                        if (vehicle.getType().equalsIgnoreCase(type)) {
-                            retrival = new VehicleRetrival(vehicle, lot);
-                            vehicles.remove(vehicle); // Remove the vehicle from the lot
-                            break;
-                        }
-                    }
-                    // Write the updated vehicles back to the file
-                    if (retrival != null) {
-                        raf.setLength(0); // Clear the file
-                        for (Vehicle vehicle : vehicles) {
-                            raf.writeBytes(vehicle.getLicensePlate() + "," + vehicle.getType() + "," + vehicle.getOdometer() + "\n");
-                        }
-                    }
-                } finally {
-                    lock.release(); // Release the lock
-                }
+        List<String> candidates = lots;
+        if (LotProber.isEnabled() && lots.size() > 1) {
+            // Probe the free lots at once, then fall back to the locked ones in order
+            candidates = new ArrayList<>();
+            retrival = LotProber.probe(storage, lots, type, city, candidates);
+        }
+
+        // Check the lots in order until one can supply the requested type
+        for (String lot : candidates) {
+            if (retrival != null) break; // Only take one vehicle
+            if (!storage.lots().exists(lot)) continue; // Skip if the file doesn't exist
+
+            // Take the first vehicle of the requested type, pending pulls of other shops are served in the same pass
+            Vehicle vehicle;
+            try {
+                vehicle = storage.lots().pull(lot, type, city);
             } catch (IOException e) {
-                System.err.println("Error accessing lot file: " + e.getMessage());
+                err().println("Error accessing lot file: " + e.getMessage());
+                continue;
             }
+            if (vehicle != null) retrival = new VehicleRetrival(vehicle, lot);
+        }
+
+        if (retrival != null) {
+            Vehicle vehicle = retrival.getVehicle();
+            storage.locations().atShop(vehicle.getPlateCode(), city); // The vehicle now belongs to this shop
+            event(EventLog.Type.VEHICLE_PULLED_FROM_LOT, vehicle.getLicensePlate(), retrival.getLot());
         }
         return retrival;
     }
@@ -229,62 +555,54 @@ public class RentalShop {
      * RENT A VEHICLE - RENT CMD
      * This method is used to rent a vehicle from the shop.
      * @param vehicleType The type of vehicle to rent (e.g., SEDAN, SUV, VAN)
+     * @return true if the vehicle was rented
      */
-    private void rentVehicle(String vehicleType) {
-        RentalShop temp = ShopPersistanceManager.loadShop(this.city); // Load the shop data before printing the state
-        if (temp != null) {
-            this.spaces = temp.getSpaces();
-            this.balance = temp.getBalance();
-            this.lots = temp.getLots();
-            this.vehicles = temp.getVehicles();
-            this.transactions = temp.getTransactions();
-        } else {
-            System.out.println("ERROR: Unable to load shop data.");
-            return;
+    private boolean rentVehicle(String vehicleType) {
+        if (!reloadShop() || !vehiclesReadable()) { // Load the shop data before using it
+            out().println("ERROR: Unable to load shop data.");
+            return false;
         }
 
-        Vehicle vehicle = null;
         boolean applyDiscount = false; 
         
         // Check validity of the vehicle type
-        if (!Arrays.asList(CAR_TYPES).contains(vehicleType.toUpperCase())) {
-            System.out.println("ERROR: Invalid vehicle type. Please choose from: " + String.join(", ", CAR_TYPES));
-            return;
+        VehicleType type = VehicleType.parse(vehicleType);
+        if (type == null) {
+            out().println("ERROR: Invalid vehicle type. Please choose from: " + VehicleType.names());
+            return false;
         }
 
-        // Check if the vehicle is available in the shop
-        for (Vehicle v : vehicles) {
-            if (v.getType().equalsIgnoreCase(vehicleType)) {
-                vehicle = v;
-                break;
-            }
-        }
+        // Take a vehicle of the requested type from the shop, if one is parked here
+        Vehicle vehicle = getVehicles().pollType(type);
 
         if (vehicle == null) {
             // If the vehicle is not available, request it from the parking lots
-            VehicleRetrival retrival = requestVehicle(vehicleType);
+            VehicleRetrival retrival = requestVehicle(type);
             if (retrival == null) {
-                System.out.println("ERROR: No vehicles available for rent.");
-                return;
+                out().println("ERROR: No vehicles available for rent.");
+                return false;
             }
             vehicle = retrival.getVehicle();
             String lot = retrival.getLot();
             applyDiscount = true; // Apply discount if the vehicle is retrieved from a lot
-            System.out.println("INFO: Vehicle " + vehicle.getLicensePlate() + " retrieved from lot: " + lot);
+            out().println("INFO: Vehicle " + vehicle.getLicensePlate() + " retrieved from lot: " + lot);
         } else {
-            vehicles.remove(vehicle); // Remove the vehicle from the shop   
-            System.out.println("INFO: Vehicle " + vehicle.getLicensePlate() + " rented from the shop.");
+            out().println("INFO: Vehicle " + vehicle.getLicensePlate() + " rented from the shop.");
         }
 
         // Record the rental information 
-        if (RentalFileManager.addToRentalFile(new RentInfo(vehicle, applyDiscount))) {
-            System.out.println("INFO: Vehicle " + vehicle.getLicensePlate() + " rented successfully.");
+        boolean rented = storage.rentals().add(new RentInfo(vehicle, applyDiscount, city));
+        if (rented) {
+            storage.locations().rented(vehicle.getPlateCode());
+            event(EventLog.Type.VEHICLE_RENTED, vehicle.getLicensePlate(), vehicle.getType() + "," + vehicle.getOdometer() + "," + applyDiscount);
+            out().println("INFO: Vehicle " + vehicle.getLicensePlate() + " rented successfully.");
         } else {
-            vehicles.add(vehicle); // Add the vehicle back to the shop if rental fails
-            System.out.println("ERROR: Could not add rental information to the file, vehicle not rented.");
+            getVehicles().add(vehicle); // Add the vehicle back to the shop if rental fails
+            out().println("ERROR: Could not add rental information to the file, vehicle not rented.");
         }
 
-        ShopPersistanceManager.saveShop(this); // Save the shop data after renting a vehicle
+        storage.shops().save(this); // Save the shop data after renting a vehicle
+        return rented;
     }
 
     /**
@@ -292,25 +610,19 @@ public class RentalShop {
      * This method is used to return a vehicle to any shop.
      * @param licensePlate the license plate of the vehicle to return
      * @param kilometers the number of kilometers driven during the rental period 
+     * @return true if the vehicle was returned
      */
-    private void returnVehicle(String licensePlate, int kilometers) {
-        RentalShop temp = ShopPersistanceManager.loadShop(this.city); // Load the shop data before printing the state
-        if (temp != null) {
-            this.spaces = temp.getSpaces();
-            this.balance = temp.getBalance();
-            this.lots = temp.getLots();
-            this.vehicles = temp.getVehicles();
-            this.transactions = temp.getTransactions();
-        } else {
-            System.out.println("ERROR: Unable to load shop data.");
-            return;
+    private boolean returnVehicle(String licensePlate, int kilometers) {
+        if (!reloadShop() || !vehiclesReadable()) { // Load the shop data before using it
+            out().println("ERROR: Unable to load shop data.");
+            return false;
         }
         
         // Check if the vehicle is in the rental record 
-        RentInfo rentInfo = RentalFileManager.checkRentalRecord(licensePlate);
+        RentInfo rentInfo = storage.rentals().find(licensePlate);
         if (rentInfo == null) {
-            System.out.println("ERROR: Vehicle " + licensePlate + " not found in rental record.");
-            return;
+            out().println("ERROR: Vehicle " + licensePlate + " not found in rental record.");
+            return false;
         }
 
         // Calculate the rental cost and load the transaction
@@ -318,140 +630,347 @@ public class RentalShop {
 
         // Check if the kilometers driven is valid
         if (kilometers < 0) {
-            System.out.println("ERROR: Invalid kilometers driven. Must be a positive number.");
-            return;
+            out().println("ERROR: Invalid kilometers driven. Must be a positive number.");
+            return false;
         }
 
         // Update the vehicle's odometer and calculate the rental cost 
         vehicle.addToOdometer(kilometers);
-        double cost = (rentInfo.isDiscount()) ? 0.9 * kilometers : kilometers; 
+        long cost = policy.getPricing().charge(vehicle.getType(), kilometers, rentInfo.isDiscount());
         this.balance += cost; // Update the shop's balance
 
         // Add the vehicle back to the shop
-        vehicles.add(vehicle);
+        getVehicles().add(vehicle);
+        storage.locations().atShop(vehicle.getPlateCode(), city);
+        storage.locations().odometer(vehicle.getPlateCode(), vehicle.getOdometer());
 
         // Create a transaction record for the return
-        Transaction transaction = new Transaction(licensePlate, kilometers, rentInfo.isDiscount(), cost);
-        transactions.add(transaction); // Add the transaction to the list
+        Transaction transaction = new Transaction(licensePlate, kilometers, rentInfo.isDiscount(), cost, System.currentTimeMillis());
+        addTransaction(transaction); // Add the transaction to the list
+        event(EventLog.Type.VEHICLE_RETURNED, licensePlate, kilometers + "," + Money.format(cost));
+        event(EventLog.Type.TRANSACTION_RECORDED, licensePlate, kilometers + "," + rentInfo.isDiscount() + "," + Money.format(cost));
 
         // Remove from the rental file 
-        RentalFileManager.removeFromRentalFile(licensePlate); // Remove the rental record from the file
+        storage.rentals().remove(licensePlate); // Remove the rental record from the file
 
         // Check spaces threshold
         checkThreshold(); 
 
-        if (ShopPersistanceManager.saveShop(this)) {
-            System.out.println("INFO: Vehicle " + licensePlate + " returned successfully. Total cost: $" + cost);
+        if (storage.shops().save(this)) {
+            out().println("INFO: Vehicle " + licensePlate + " returned successfully. Total cost: $" + Money.format(cost));
+            return true;
         } else {
-            System.out.println("ERROR: Could not save shop data after vehicle return.");
+            out().println("ERROR: Could not save shop data after vehicle return.");
+            return false;
         }
-
     }
 
     private void checkThreshold() {
-        int availableSpaces = spaces - vehicles.size(); // Calculate available spaces
-        if (availableSpaces < 2) {
-            System.out.println("WARNING: Available parking spaces below threshold (" + availableSpaces + " spaces).");
-            System.out.println("Redistributing 20% of vehicles to parking lots...");
-
-            int vehiclesToRedistribute = (int) Math.ceil(vehicles.size() * 0.2); // Calculate vehicles to redistribute
-            System.out.println("Moving " + vehiclesToRedistribute + " vehicles to parking lots.");
-
-            // Sort Vehicles by odometer reading in ascending order
-            vehicles.sort((v1, v2) -> Integer.compare(v1.getOdometer(), v2.getOdometer())); 
-
-            // Keep track of successfully moved vehicles
-            int movedVehicles = 0;
-            List<Vehicle> vehiclesToRemove = new ArrayList<>(); // List to store vehicles to move
-            for (int i = 0; i < vehicles.size() && movedVehicles < vehiclesToRedistribute; i++) {
-                Vehicle vehicle = vehicles.get(i);
-                if (returnVehicleToLot(vehicle)) {
-                    vehiclesToRemove.add(vehicle); // Add the vehicle to the list of vehicles to remove
-                    movedVehicles++;
-                }
+        int availableSpaces = spaces - getVehicles().size(); // Calculate available spaces
+        if (availableSpaces < policy.getReserve()) {
+            out().println("WARNING: Available parking spaces below threshold (" + availableSpaces + " spaces).");
+            out().println("Redistributing " + Math.round(policy.getRedistribution() * 100) + "% of vehicles to parking lots...");
+
+            int vehiclesToRedistribute = (int) Math.ceil(getVehicles().size() * policy.getRedistribution()); // Calculate vehicles to redistribute
+            out().println("Moving " + vehiclesToRedistribute + " vehicles to parking lots.");
+
+            // Queue the moves of the lowest odometer readings first, the pipeline writes them as one batch
+            Map<Vehicle, String> destinations = new LinkedHashMap<>();
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (Vehicle vehicle : getVehicles().byOdometer()) {
+                if (destinations.size() >= vehiclesToRedistribute) break;
+                String lot = returnVehicleToLot(vehicle, writes);
+                if (lot != null) destinations.put(vehicle, lot);
             }
 
-            // Remove moved vehicles from the shop
-            vehicles.removeAll(vehiclesToRemove); // Remove vehicles from the shop list
+            // Remove the vehicles whose lot write succeeded from the shop
+            int i = 0;
+            for (Map.Entry<Vehicle, String> move : destinations.entrySet()) {
+                Vehicle vehicle = move.getKey();
+                try {
+                    PersistencePipeline.await(writes.get(i++));
+                } catch (IOException e) {
+                    err().println("ERROR: Could not write to lot file: " + e.getMessage());
+                    continue;
+                }
+                getVehicles().remove(vehicle); // Remove the vehicle from the shop
+                storage.locations().atLot(vehicle.getPlateCode(), move.getValue());
+                event(EventLog.Type.VEHICLE_REDISTRIBUTED, vehicle.getLicensePlate(), move.getValue());
+                out().println("INFO: Vehicle " + vehicle.getLicensePlate() + " returned to lot: " + move.getValue());
+            }
         }
     }
 
     /**
-     * Returns a vehicle to the parking lot
+     * Queues the return of a vehicle to a random parking lot
      * @param vehicle The vehicle to return to a lot
-     * @return true if successful, false otherwise
+     * @param writes The list receiving the pending write of the lot file
+     * @return the chosen lot, or null if there is no lot to return the vehicle to
      */
-    private boolean returnVehicleToLot(Vehicle vehicle) {
+    private String returnVehicleToLot(Vehicle vehicle, List<CompletableFuture<Void>> writes) {
         // Check if we have any lots to return vehicles to
         if (lots == null || lots.isEmpty()) {
-            System.err.println("ERROR: No parking lots available to return vehicle " + vehicle.getLicensePlate());
-            return false;
+            err().println("ERROR: No parking lots available to return vehicle " + vehicle.getLicensePlate());
+            return null;
         }
 
-        // Shuffle the lots to randomize the selection
-        List<String> randomizedLots = new ArrayList<>(lots);
-        Collections.shuffle(randomizedLots);
-        for (String lot : randomizedLots) {
-            String lotFile = LOTS_DIR + File.separator + lot + ".txt";
-            File file = new File(lotFile);
-            File dir = new File(file.getParent());
-            if (!dir.exists()) dir.mkdirs();
-    
-            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-                 FileChannel channel = raf.getChannel()) {
-                
-                FileLock lock = channel.lock(0, Long.MAX_VALUE, false); // Acquire a writer lock on the file
-                try {
-                    raf.seek(raf.length());
-                    String line = vehicle.getLicensePlate() + "," + vehicle.getType() + "," + vehicle.getOdometer() + "\n";
-                    raf.writeBytes(line); // Write the vehicle information to the file
-                    System.out.println("INFO: Vehicle " + vehicle.getLicensePlate() + " returned to lot: " + randomizedLots.get(0));
-                } finally {
-                    lock.release(); // Release the lock
-                }
+        // Pick a random lot and append the vehicle to it
+        String lot = lots.get(((random != null) ? random : ThreadLocalRandom.current()).nextInt(lots.size()));
+        writes.add(storage.lots().add(lot, vehicle));
+        return lot;
+    }
+
+
+
+    /**
+     * Process a command from the user, recorded when a command recorder is active
+     * @param command The command line
+     * @return true if the command succeeded
+     */
+    public boolean processCommand(String command) {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            ok = executeCommand(command);
+            return ok;
+        } finally {
+            events.clear(); // The events of a command that failed or threw before its save
+            if (CommandRecorder.isActive()) CommandRecorder.command(city, command, ok, System.nanoTime() - start);
+        }
+    }
+
+    // Queue an event of this shop, published by its next save
+    private void event(EventLog.Type type, String licensePlate, String details) {
+        if (EventLog.isEnabled()) events.add(EventLog.event(type, city, licensePlate, details));
+    }
+
+    /**
+     * Append the events queued since the last save to the event log, called by the storage once the shop is saved
+     * @return true if the events were written
+     */
+    public boolean publishEvents() {
+        if (events.isEmpty()) return true;
+        try {
+            return EventLog.publish(events);
+        } finally {
+            events.clear();
+        }
+    }
+
+    /**
+     * Run a command as one unit of work of the storage, a single atomic write on the page store.
+     * The shop stays locked from its reload to its save, so a transfer cannot save over it (see ShopTransfers).
+     * @param command The command to run
+     * @return true if the command succeeded and its updates were stored
+     */
+    private boolean atomically(Storage.Work<Boolean> command) {
+        Closeable lock;
+        try {
+            lock = storage.shops().lock(city, "command");
+        } catch (IOException e) {
+            out().println("ERROR: Unable to lock the shop: " + e.getMessage());
+            return false;
+        }
+        try {
+            return storage.atomically(command);
+        } catch (IOException e) {
+            out().println("ERROR: The command was rolled back: " + e.getMessage());
+            return false;
+        } finally {
+            try {
+                lock.close();
             } catch (IOException e) {
-                System.err.println("ERROR: Could not write to lot file: " + e.getMessage());
-                return false;
+                err().println("ERROR: Unable to release the shop lock: " + e.getMessage());
             }
-            break;
         }
+    }
 
-        return true; // Vehicle successfully returned to a lot
+    /**
+     * TRANSFER VEHICLES TO ANOTHER SHOP - TRANSFER CMD
+     * @param target the city of the receiving shop
+     * @param vehicleType the type of the vehicles
+     * @param count the number of vehicles to move
+     * @return true if at least one vehicle was moved
+     */
+    private boolean transferVehicles(String target, String vehicleType, int count) {
+        VehicleType type = VehicleType.parse(vehicleType);
+        if (type == null) {
+            out().println("ERROR: Invalid vehicle type. Please choose from: " + VehicleType.names());
+            return false;
+        }
+        if (count <= 0) {
+            out().println("ERROR: Invalid number of vehicles. Must be a positive number.");
+            return false;
+        }
+        int moved = ShopTransfers.transfer(storage, city, target, type, count);
+        if (moved == 0) out().println("ERROR: No " + type + " could be moved to " + target + ".");
+        return moved > 0;
     }
 
+    /**
+     * REBALANCE VEHICLES ACROSS SHOPS - REBALANCE CMD
+     * @param others the cities to rebalance with, all shops if empty
+     * @return true if the shops were rebalanced
+     */
+    private boolean rebalanceShops(List<String> others) {
+        Set<String> cities = new TreeSet<>(others.isEmpty() ? storage.shops().cities() : others);
+        cities.add(city);
+        return ShopTransfers.rebalance(storage, cities) != null;
+    }
 
+    /**
+     * ARCHIVE OLD TRANSACTIONS - ARCHIVE CMD
+     * Moves the oldest transactions due (see TransactionArchive) out of the shop into archive segments, then
+     * saves the shop with the number archived. The balance is unchanged.
+     * @return true if the transactions due were archived, or if none was due
+     */
+    private boolean archiveTransactions() {
+        if (!reloadShop()) {
+            out().println("ERROR: Unable to load shop data.");
+            return false;
+        }
+        List<Transaction> kept = getTransactions();
+        if (!isReadable()) {
+            out().println("ERROR: Unable to load shop data.");
+            return false;
+        }
+        int due = TransactionArchive.due(kept, System.currentTimeMillis());
+        if (due == 0) {
+            out().println("INFO: No transaction of " + city + " is due for the archive.");
+            return true;
+        }
+        try {
+            int segmentSize = TransactionArchive.getSegmentSize();
+            for (int start = 0; start < due; start += segmentSize) {
+                TransactionArchive.write(city, archived + start, kept.subList(start, Math.min(due, start + segmentSize)));
+            }
+        } catch (IOException e) {
+            out().println("ERROR: Could not write the transaction archive: " + e.getMessage());
+            return false;
+        }
+        List<Transaction> moved = new ArrayList<>(kept.subList(0, due));
+        kept.subList(0, due).clear();
+        archived += due;
+        if (!storage.shops().save(this)) {
+            kept.addAll(0, moved); // The saved shop still holds them, the segments are written again next time
+            archived -= due;
+            out().println("ERROR: Could not save shop data after archiving transactions.");
+            return false;
+        }
+        out().println("INFO: Archived " + due + " transactions of " + city + ", " + kept.size() + " kept in the shop.");
+        return true;
+    }
+
+    /**
+     * Archive the transactions due if the last check of this shop is older than the archive interval
+     */
+    public void archiveIfDue() {
+        if (System.currentTimeMillis() < nextArchive) return;
+        nextArchive = System.currentTimeMillis() + ARCHIVE_INTERVAL;
+        if (getTransactionCount() - archived > TransactionArchive.getKeep() || TransactionArchive.getAge() > 0) {
+            atomically(this::archiveTransactions);
+        }
+    }
 
     // Process commands from the user 
-    public void processCommand(String command) {
+    private boolean executeCommand(String command) {
         String[] tokens = command.split(" ");
-        if (tokens.length == 0) return; // No command entered
+        if (tokens.length == 0) return false; // No command entered
         String action = tokens[0].toUpperCase(); // Get the action (RENT, RETURN, LIST, TRANSACTIONS)
         switch (action) {
             case "RENT":
                 if (tokens.length < 2) {
-                    System.out.println("ERROR: RENT command requires a vehicle type.");
-                } else {
-                    String vehicleType = tokens[1];
-                    rentVehicle(vehicleType);
+                    out().println("ERROR: RENT command requires a vehicle type.");
+                    return false;
                 }
-                break;
+                String vehicleType = tokens[1];
+                return atomically(() -> rentVehicle(vehicleType));
             case "RETURN": 
                 if (tokens.length < 3) {
-                    System.out.println("ERROR: RETURN command requires a license plate and kilometers driven.");
-                } else {
-                    String licensePlate = tokens[1];
-                    int kilometers = Integer.parseInt(tokens[2]);
-                    returnVehicle(licensePlate, kilometers);
+                    out().println("ERROR: RETURN command requires a license plate and kilometers driven.");
+                    return false;
                 }
-                break;
+                String licensePlate = tokens[1];
+                int kilometers = Integer.parseInt(tokens[2]);
+                return atomically(() -> returnVehicle(licensePlate, kilometers));
             case "LIST":
-                printShopState();
-                break;
+                return printShopState();
             case "TRANSACTIONS":
-                printShopTransactions();
-                break;
+                return printShopTransactions(tokens.length > 1 && tokens[1].equalsIgnoreCase("--all"));
+            case "ARCHIVE":
+                return atomically(this::archiveTransactions);
+            case "WHERE":
+                if (tokens.length < 2) {
+                    out().println("ERROR: WHERE command requires a license plate.");
+                    return false;
+                }
+                return printVehicleLocation(tokens[1]);
+            case "OVERDUE":
+                if (tokens.length < 2) {
+                    out().println("ERROR: OVERDUE command requires a number of days.");
+                    return false;
+                }
+                try {
+                    return printOverdueRentals(Integer.parseInt(tokens[1]));
+                } catch (NumberFormatException e) {
+                    out().println("ERROR: Invalid number of days. Must be a positive number.");
+                    return false;
+                }
+            case "OLDEST":
+                if (tokens.length < 2) {
+                    out().println("ERROR: OLDEST command requires a number of rentals.");
+                    return false;
+                }
+                try {
+                    return printOldestRentals(Integer.parseInt(tokens[1]));
+                } catch (NumberFormatException e) {
+                    out().println("ERROR: Invalid number of rentals. Must be a positive number.");
+                    return false;
+                }
+            case "TAIL":
+                if (tokens.length < 2) {
+                    out().println("ERROR: TAIL command requires an offset.");
+                    return false;
+                }
+                try {
+                    return printEvents(null, Long.parseLong(tokens[1]), (tokens.length > 2) ? Integer.parseInt(tokens[2]) : 100);
+                } catch (NumberFormatException e) {
+                    out().println("ERROR: Invalid offset or number of events. Must be positive numbers.");
+                    return false;
+                }
+            case "WATCH":
+                if (tokens.length < 2) {
+                    out().println("ERROR: WATCH command requires a city.");
+                    return false;
+                }
+                try {
+                    return printEvents(tokens[1], (tokens.length > 2) ? Long.parseLong(tokens[2]) : 0, (tokens.length > 3) ? Integer.parseInt(tokens[3]) : 100);
+                } catch (NumberFormatException e) {
+                    out().println("ERROR: Invalid offset or number of events. Must be positive numbers.");
+                    return false;
+                }
+            case "MILEAGE":
+                return printMileage(tokens);
+            case "TRANSFER":
+                if (tokens.length < 4) {
+                    out().println("ERROR: TRANSFER command requires a city, a vehicle type and a number of vehicles.");
+                    return false;
+                }
+                try {
+                    return transferVehicles(tokens[1], tokens[2], Integer.parseInt(tokens[3]));
+                } catch (NumberFormatException e) {
+                    out().println("ERROR: Invalid number of vehicles. Must be a positive number.");
+                    return false;
+                }
+            case "REBALANCE":
+                return rebalanceShops((tokens.length < 2) ? new ArrayList<>() : Arrays.asList(tokens[1].split(",")));
+            case "LOCKS":
+                out().println("Locks: " + FileLocks.stats());
+                out().println("Writes: " + PersistencePipeline.get().stats());
+                return true;
             default:
-                System.out.println("ERROR: Unknown command. Valid commands are: RENT, RETURN, LIST, TRANSACTIONS.");
+                out().println("ERROR: Unknown command. Valid commands are: RENT, RETURN, LIST, TRANSACTIONS, ARCHIVE, WHERE, OVERDUE, OLDEST, MILEAGE, TAIL, WATCH, TRANSFER, REBALANCE, LOCKS.");
+                return false;
         }
     }
 
@@ -460,15 +979,17 @@ public class RentalShop {
      */
     public void run() {
         Scanner scanner = new Scanner(System.in);
-        System.out.println("Welcome to the Rental Shop in " + city + "! Type 'exit' to quit.");
-        System.out.println("Command: RENT <vehicle_type>, RETURN <license_plate> <kilometers>, LIST, TRANSACTIONS");
+        out().println("Welcome to the Rental Shop in " + city + "! Type 'exit' to quit.");
+        out().println("Command: RENT <vehicle_type>, RETURN <license_plate> <kilometers>, LIST, TRANSACTIONS [--all], ARCHIVE, WHERE <license_plate>, OVERDUE <days>, OLDEST <count>, MILEAGE TOP <count>|RANGE <min> <max> [limit], TAIL <offset> [limit], WATCH <city> [offset] [limit], TRANSFER <city> <vehicle_type> <count>, REBALANCE [cities], LOCKS");
         while (true) {
-            System.out.print("> ");
+            out().print("> ");
             String command = scanner.nextLine().trim();
             if (command.equalsIgnoreCase("exit") || command == null) {
                 break; // Exit the loop if the user types 'exit'
             }
             processCommand(command); // Process the command entered by the user
+            archiveIfDue();
+            CrashRecovery.checkpointIfDue();
         }
         scanner.close(); // Close the scanner
     }
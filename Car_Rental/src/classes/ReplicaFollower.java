@@ -0,0 +1,341 @@
+package classes;
+
+import utils.*;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read replica of the shops and rentals of a primary data directory.
+ * Tails the change log of the primary (see ChangeLog, enabled on the shops with --replicate=true) and applies
+ * every change to its own data directory, then answers the read queries from that copy without taking any
+ * lock of the primary: LIST <city>, TRANSACTIONS <city> [--all], OVERDUE <days>, OLDEST <count> and LAG.
+ * The reports can also be run on the replica with -Dcarrental.data=<replica dir>. Read capacity grows by
+ * starting more followers, each with its own directory.
+ *
+ * The position reached in the log is kept in "replica.state" in the replica directory. A new replica first
+ * copies the shop, rental and archive files of the primary from a log position read before the copy, the changes
+ * logged during the copy are applied again, which leaves the same state.
+ */
+public class ReplicaFollower {
+    private static final String DEFAULT_PRIMARY_DIR = "src" + File.separator + "files";
+    private static final String STATE_FILE = "replica.state";
+    private static final String RENTALS_FILE = "rentals.txt";
+    private static final String SUMMARY_FILE = "segments.txt";
+    private static final int READ_BYTES = 1 << 20;
+
+    private final File primary;
+    private final File log;
+    private final File state;
+    private volatile long offset;       // Offset of the first change not applied yet
+    private volatile long appliedTime;  // Commit time of the last applied change
+    private volatile long nextTime;     // Commit time of the first change not applied yet, 0 when caught up
+    private volatile long logSize;
+    private volatile boolean diverged;
+
+    /**
+     * Main method to run a follower
+     * @param args Command line arguments
+     * --primary=<dir> : Data directory of the shops, whose change log is followed (default: src/files)
+     * --data=<dir> : Data directory of the replica, must not be the primary one
+     * --interval=<millis> : Delay between two reads of the change log (default: 200)
+     */
+    public static void main(String[] args) {
+        Map<String, String> params = ParseArgs.parseArgs(args);
+        String data = params.get("data");
+        if (data == null || data.isEmpty()) {
+            System.err.println("Error: Replica data directory is required.");
+            System.exit(1);
+        }
+        long interval = 200;
+        try {
+            if (params.containsKey("interval")) interval = Long.parseLong(params.get("interval"));
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Invalid number format for the interval.");
+            System.exit(1);
+        }
+        File primary = new File(params.getOrDefault("primary", DEFAULT_PRIMARY_DIR));
+        try {
+            if (primary.getCanonicalPath().equals(new File(data).getCanonicalPath())) {
+                System.err.println("Error: The replica must use its own data directory.");
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+
+        // The data classes read their directory from the property on first use, the replica never logs changes
+        System.setProperty("carrental.data", data);
+        ChangeLog.setEnabled(false);
+        Storage.setDefault(FileStorage.create());
+
+        ReplicaFollower follower = new ReplicaFollower(primary, new File(data));
+        try {
+            follower.start();
+        } catch (IOException e) {
+            System.err.println("Error starting the replica: " + e.getMessage());
+            System.exit(1);
+        }
+
+        long delay = interval;
+        Thread tail = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                follower.poll();
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }, "replica-tail");
+        tail.setDaemon(true);
+        tail.start();
+
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("Replica of " + primary + " in " + data + ". Type 'exit' to quit.");
+        System.out.println("Command: LIST <city>, TRANSACTIONS <city> [--all], OVERDUE <days>, OLDEST <count>, LAG");
+        System.out.print("> ");
+        while (scanner.hasNextLine()) {
+            String command = scanner.nextLine().trim();
+            if (command.equalsIgnoreCase("exit")) break;
+            follower.query(command);
+            System.out.print("> ");
+        }
+        scanner.close();
+        tail.interrupt();
+        try {
+            tail.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param primary Data directory of the primary
+     * @param replica Data directory of the replica, the current one of the process
+     */
+    public ReplicaFollower(File primary, File replica) {
+        this.primary = primary;
+        this.log = ChangeLog.logFile(primary.getPath());
+        this.state = new File(replica, STATE_FILE);
+    }
+
+    public long getOffset() { return offset; }
+
+    /**
+     * Resume from the saved position, or copy the primary when the replica is new
+     */
+    public void start() throws IOException {
+        if (state.exists()) {
+            String[] fields = new String(Files.readAllBytes(state.toPath()), StandardCharsets.UTF_8).trim().split(",");
+            offset = Long.parseLong(fields[0]);
+            appliedTime = Long.parseLong(fields[1]);
+            return;
+        }
+        long start = log.exists() ? log.length() : 0; // Read before the copy, see the class comment
+        File shops = new File(primary, "shops");
+        File[] files = shops.listFiles((dir, name) -> name.endsWith(".txt"));
+        Path target = Paths.get(DataPaths.SHOPS_DIR);
+        Files.createDirectories(target);
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().equals(RENTALS_FILE)) copyLines(file, target.resolve(file.getName()), "copy rentals");
+                else Files.copy(file.toPath(), target.resolve(file.getName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        // Copied after the shops, so every segment a copied shop counts as archived is there
+        File[] archives = new File(primary, "archive").listFiles(File::isDirectory);
+        if (archives != null) {
+            for (File archive : archives) {
+                Path dir = Paths.get(DataPaths.ARCHIVE_DIR, archive.getName());
+                Files.createDirectories(dir);
+                File[] segments = archive.listFiles(File::isFile);
+                if (segments == null) continue;
+                for (File file : segments) {
+                    if (file.getName().equals(SUMMARY_FILE)) copyLines(file, dir.resolve(file.getName()), "copy archive summary");
+                    else Files.copy(file.toPath(), dir.resolve(file.getName()), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        offset = start;
+        saveState();
+    }
+
+    // The file is appended in place, copy whole lines only
+    private static void copyLines(File file, Path target, String purpose) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            FileLocks.Lock lock = FileLocks.lock(channel, file, true, purpose);
+            try {
+                Files.copy(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Apply the changes logged since the last poll
+     * @return the number of changes applied
+     */
+    public int poll() {
+        int count = 0;
+        try {
+            logSize = log.exists() ? log.length() : 0;
+            while (offset < logSize) {
+                List<ChangeLog.Change> changes = ChangeLog.read(log, offset, READ_BYTES);
+                if (changes.isEmpty()) break; // The next line is still being written
+                for (ChangeLog.Change change : changes) {
+                    nextTime = change.getTime();
+                    if (!apply(change)) {
+                        saveState();
+                        return count; // Retried on the next poll
+                    }
+                    offset = change.getNextOffset();
+                    appliedTime = change.getTime();
+                    count++;
+                }
+                saveState();
+            }
+            nextTime = 0;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("ERROR: Unable to follow the change log: " + e.getMessage());
+        }
+        return count;
+    }
+
+    // Apply one change to the replica files, every change can be applied twice
+    private boolean apply(ChangeLog.Change change) {
+        switch (change.getType()) {
+            case "SHOP":
+                return applyShop(change, () -> {
+                    if (diverged) return;
+                    diverged = true;
+                    System.err.println("ERROR: Transactions of " + change.field(1) + " are missing from the replica, rebuild it.");
+                });
+            case "RENT": {
+                RentInfo rentInfo = change.toRental();
+                String plate = rentInfo.getVehicle().getLicensePlate();
+                if (RentalFileManager.checkRentalRecord(plate) != null && !RentalFileManager.removeFromRentalFile(plate)) return false;
+                return RentalFileManager.addToRentalFile(rentInfo);
+            }
+            case "RETURN":
+                return RentalFileManager.removeFromRentalFile(change.field(1)) || RentalFileManager.checkRentalRecord(change.field(1)) == null;
+            default:
+                System.err.println("ERROR: Unknown change in the log at offset " + change.getOffset() + ": " + change.getType());
+                return true;
+        }
+    }
+
+    /**
+     * Apply a SHOP change to the shop file of the current data directory, every change can be applied twice
+     * @param change The SHOP change
+     * @param gap Called when the shop file lacks transactions older than the ones of the change
+     * @return true if the shop was saved
+     */
+    static boolean applyShop(ChangeLog.Change change, Runnable gap) {
+        RentalShop update = change.toShop();
+        RentalShop shop = ShopPersistanceManager.loadShop(update.getCity());
+        int count = 0;
+        if (shop == null) {
+            shop = new RentalShop(null, update.getCity());
+            shop.setTransactions(new ArrayList<>());
+        } else {
+            count = shop.getTransactionCount();
+        }
+        shop.setSpaces(update.getSpaces());
+        shop.setBalance(update.getBalance());
+        shop.setLots(update.getLots());
+        shop.setVehicles(update.getVehicles());
+        // Only the transactions the file does not have yet
+        List<Transaction> added = update.getTransactions();
+        int index = change.getTransactionCount() - added.size();
+        for (Transaction transaction : added) {
+            if (index > count) gap.run();
+            if (index++ >= count) {
+                shop.addTransaction(transaction);
+                count++;
+            }
+        }
+        boolean saved = ShopPersistanceManager.saveShop(shop, false); // Never logged again, recovery replays the log of this directory
+        shop.releaseSnapshot();
+        return saved;
+    }
+
+    private void saveState() throws IOException {
+        byte[] bytes = (offset + "," + appliedTime + "\n").getBytes(StandardCharsets.UTF_8);
+        PersistencePipeline.await(PersistencePipeline.get().replace(state, bytes));
+    }
+
+    /**
+     * @return the replication lag in bytes of log and in milliseconds since the oldest change not applied
+     */
+    public String lag() {
+        long bytes = Math.max(0, logSize - offset);
+        long waiting = nextTime;
+        long millis = (bytes > 0 && waiting > 0) ? Math.max(0, System.currentTimeMillis() - waiting) : 0;
+        return "Replication lag: " + bytes + " bytes, " + millis + " ms (offset " + offset + ")";
+    }
+
+    /**
+     * Answer a read query from the replica
+     * @param command The query
+     * @return true if the query succeeded
+     */
+    public boolean query(String command) {
+        String[] tokens = command.split(" ");
+        String action = tokens[0].toUpperCase();
+        boolean ok;
+        try {
+            switch (action) {
+                case "LIST":
+                case "TRANSACTIONS": {
+                    if (tokens.length < 2) {
+                        System.out.println("ERROR: " + action + " requires a city.");
+                        return false;
+                    }
+                    RentalShop shop = ShopPersistanceManager.loadShop(tokens[1]);
+                    if (shop == null) {
+                        System.out.println("ERROR: Shop " + tokens[1] + " not found in the replica.");
+                        return false;
+                    }
+                    ok = action.equals("LIST") ? shop.printShopState() : shop.printShopTransactions(tokens.length > 2 && tokens[2].equalsIgnoreCase("--all"));
+                    shop.releaseSnapshot();
+                    break;
+                }
+                case "OVERDUE": {
+                    int days = Integer.parseInt(tokens[1]);
+                    List<RentInfo> rentals = RentalFileManager.rentalsOlderThan(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days));
+                    System.out.println("----RENTALS OLDER THAN " + days + " DAYS----");
+                    for (RentInfo rentInfo : rentals) System.out.println(rentInfo.toString());
+                    System.out.println("Total: " + rentals.size());
+                    System.out.println("------------------------------");
+                    ok = true;
+                    break;
+                }
+                case "OLDEST": {
+                    int count = Integer.parseInt(tokens[1]);
+                    System.out.println("----OLDEST " + count + " RENTALS----");
+                    for (RentInfo rentInfo : RentalFileManager.oldestRentals(count)) System.out.println(rentInfo.toString());
+                    System.out.println("------------------------------");
+                    ok = true;
+                    break;
+                }
+                case "LAG":
+                    ok = true;
+                    break;
+                default:
+                    System.out.println("ERROR: Unknown command. Valid commands are: LIST, TRANSACTIONS, OVERDUE, OLDEST, LAG.");
+                    return false;
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.out.println("ERROR: " + action + " requires a number.");
+            return false;
+        }
+        System.out.println("INFO: " + lag());
+        return ok;
+    }
+}
@@ -0,0 +1,45 @@
+package classes;
+
+/**
+ * The tunable rules of a shop, fixed by default to the original ones
+ */
+public class ShopPolicy {
+    public static final ShopPolicy DEFAULT = new ShopPolicy(2, 0.2, 0.9);
+
+    private final int reserve;
+    private final double redistribution;
+    private final Pricing pricing;
+
+    /**
+     * @param reserve Parking spaces kept free, a shop is filled up to spaces - reserve and pushes vehicles
+     *                back to its lots when fewer spaces are left
+     * @param redistribution Fraction of the parked vehicles pushed back to the lots when the reserve is reached
+     * @param lotDiscount Price factor of a rental whose vehicle had to be pulled from a lot
+     */
+    public ShopPolicy(int reserve, double redistribution, double lotDiscount) {
+        this(reserve, redistribution, new Pricing(Pricing.DEFAULT_RATE, Pricing.basisPoints(lotDiscount)));
+    }
+
+    /**
+     * @param reserve Parking spaces kept free
+     * @param redistribution Fraction of the parked vehicles pushed back to the lots when the reserve is reached
+     * @param pricing The rates and lot discount of the rentals
+     */
+    public ShopPolicy(int reserve, double redistribution, Pricing pricing) {
+        if (reserve < 0) throw new IllegalArgumentException("The reserve cannot be negative.");
+        if (redistribution < 0 || redistribution > 1) throw new IllegalArgumentException("The redistribution must be between 0 and 1.");
+        this.reserve = reserve;
+        this.redistribution = redistribution;
+        this.pricing = pricing;
+    }
+
+    public int getReserve() { return reserve; }
+    public double getRedistribution() { return redistribution; }
+    public double getLotDiscount() { return pricing.getLotDiscount() / (double) Pricing.FULL_PRICE; }
+    public Pricing getPricing() { return pricing; }
+
+    @Override
+    public String toString() {
+        return "reserve=" + reserve + ", redistribution=" + redistribution + ", " + pricing;
+    }
+}
@@ -0,0 +1,555 @@
+package classes;
+
+import utils.*;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shop node of a cluster (see ClusterRouter): serves the shops of the cities it owns from its own data
+ * directory over TCP. Each request is one line, answered by the lines the command printed and a last line
+ * "END OK" or "END FAIL":
+ *  - OPEN <city> <spaces> [lots]     : start the shop of a city, as App does
+ *  - CMD <city> <command>            : run a shop command (RENT, RETURN, LIST, ...)
+ *  - STOCK <lot> <type> <count>      : park new vehicles in a lot
+ *  - FIND <plate>                    : succeeds if the vehicle was rented from this node
+ *  - HANDOFF_OUT <plate> <node>      : step 1 of a return in a city of another node, prints "HANDOFF <id> <rental>"
+ *  - HANDOFF_IN <id> <city> <rental> <km> : step 2 on the node of the city, the rental is returned to its shop
+ *  - HANDOFF_DONE <id>               : the return succeeded, the rental is forgotten by the first node
+ *  - HANDOFF_ABORT <id>              : the return failed, the rental is restored on the first node
+ *  - HANDOFF_CANCEL <id>             : on the node of the city, prints "HANDOFF DONE" if the return was made,
+ *                                      otherwise "HANDOFF CANCELLED" and a later HANDOFF_IN of the id is refused
+ *  - RECONCILE                       : settle the open handoffs of this node with their target nodes
+ *  - HANDOFFS, PING
+ * A rental leaving the node is kept in "handoffs.txt" with the id and the target node until its handoff ends,
+ * so it can always be restored. The node of the city records the outcome of each id in "handoffs-in.txt", so
+ * a HANDOFF_IN sent twice is applied once, and a handoff left open by a router that stopped is settled by
+ * asking the target (RECONCILE, also run when the node starts). Every request can be sent again safely
+ * except OPEN, STOCK, HANDOFF_OUT and the shop commands that change a shop.
+ */
+public class ShopServer {
+    private static final String HANDOFFS_FILE = "handoffs.txt";
+    private static final String HANDOFFS_IN_FILE = "handoffs-in.txt";
+    private static final String PENDING = "PENDING";
+    private static final String DONE = "DONE";
+    private static final String FAILED = "FAILED";
+
+    private final Storage storage;
+    private final File handoffs;
+    private final File handoffsIn;     // Outcome of the handoffs received: id,state,plate, the last state wins
+    private final Map<String, RentalShop> shops = new ConcurrentHashMap<>();
+    private final Object handoffLock = new Object();
+    private ServerSocket socket;
+    private Thread acceptor;
+
+    /**
+     * Main method to run a node
+     * @param args Command line arguments
+     * --port=<port> : Port to listen on (default: 7000)
+     * --data=<dir> : Data directory of the node (default: src/files)
+     * --plates=<node>/<nodes> : Share of the license plates of the node, every node of a cluster needs its own
+     */
+    public static void main(String[] args) {
+        Map<String, String> params = ParseArgs.parseArgs(args);
+        int port = 7000;
+        try {
+            if (params.containsKey("port")) port = Integer.parseInt(params.get("port"));
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Invalid port number.");
+            System.exit(1);
+        }
+        if (params.containsKey("plates") && !PlateRange.parse(params.get("plates"))) {
+            System.err.println("Error: Invalid plate range, expected <node>/<nodes> with 0 <= node < nodes.");
+            System.exit(1);
+        }
+        // The data classes read their directory from the property on first use
+        if (params.containsKey("data")) System.setProperty("carrental.data", params.get("data"));
+
+        CrashRecovery.recover();
+        ShopServer server = new ShopServer(Storage.get(), new File(DataPaths.ROOT));
+        try {
+            server.listen(port);
+        } catch (IOException e) {
+            System.err.println("Error running the shop server: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("Shop server listening on port " + port + " with data in " + DataPaths.ROOT + ".");
+        int settled = server.reconcileHandoffs();
+        if (settled > 0) System.out.println("INFO: " + settled + " open handoffs settled.");
+        try {
+            server.acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param storage Where the shops of the node are kept
+     * @param dir Directory of the handoff files of the node
+     */
+    public ShopServer(Storage storage, File dir) {
+        this.storage = storage;
+        this.handoffs = new File(dir, HANDOFFS_FILE);
+        this.handoffsIn = new File(dir, HANDOFFS_IN_FILE);
+        resolvePending();
+    }
+
+    /**
+     * Accept clients in the background, what each request prints is sent to its client
+     * @param port Port to listen on, 0 for any free port
+     * @return the port the node listens on
+     */
+    public synchronized int listen(int port) throws IOException {
+        CommandOutput.install();
+        ServerSocket server = new ServerSocket(port);
+        socket = server;
+        acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket client = server.accept();
+                    Thread thread = new Thread(() -> serve(client), "client-" + client.getPort());
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                if (!server.isClosed()) System.err.println("Error running the shop server: " + e.getMessage());
+            }
+        }, "server-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.getLocalPort();
+    }
+
+    /**
+     * Stop accepting clients, the clients already connected are still served
+     */
+    public synchronized void close() {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        socket = null;
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            String request;
+            while ((request = in.readLine()) != null) {
+                CommandOutput.begin();
+                boolean ok;
+                try {
+                    ok = handle(request.trim());
+                } catch (RuntimeException e) {
+                    System.out.println("ERROR: " + e);
+                    ok = false;
+                }
+                out.write(CommandOutput.end());
+                out.write(ok ? "END OK\n" : "END FAIL\n");
+                out.flush();
+                CrashRecovery.checkpointIfDue();
+            }
+        } catch (IOException e) {
+            // The client went away
+        }
+    }
+
+    /**
+     * Handle one request, its output is printed
+     * @param request The request line
+     * @return true if the request succeeded
+     */
+    public boolean handle(String request) {
+        String[] tokens = request.split(" ", 3);
+        switch (tokens[0].toUpperCase()) {
+            case "PING":
+                return true;
+            case "OPEN": {
+                if (tokens.length < 3) return usage("OPEN <city> <spaces> [lots]");
+                String[] options = tokens[2].split(" ");
+                int spaces = Integer.parseInt(options[0]);
+                List<String> lots = (options.length > 1) ? Arrays.asList(options[1].split(",")) : new ArrayList<>();
+                shops.put(tokens[1], new RentalShop(storage, tokens[1], spaces, lots));
+                return true;
+            }
+            case "CMD": {
+                if (tokens.length < 3) return usage("CMD <city> <command>");
+                RentalShop shop = shop(tokens[1]);
+                synchronized (shop) {
+                    boolean ok = shop.processCommand(tokens[2]);
+                    shop.archiveIfDue();
+                    return ok;
+                }
+            }
+            case "STOCK":
+                if (tokens.length < 3) return usage("STOCK <lot> <type> <count>");
+                return stock(tokens[1], tokens[2]);
+            case "FIND": {
+                if (tokens.length < 2) return usage("FIND <plate>");
+                RentInfo rentInfo = storage.rentals().find(tokens[1]);
+                if (rentInfo != null) System.out.println(rentInfo.toString());
+                return rentInfo != null;
+            }
+            case "HANDOFF_OUT":
+                if (tokens.length < 3) return usage("HANDOFF_OUT <plate> <node>");
+                return handoffOut(tokens[1], tokens[2].trim());
+            case "HANDOFF_IN": {
+                String[] options = request.split(" ");
+                if (options.length < 5) return usage("HANDOFF_IN <id> <city> <rental> <km>");
+                int kilometers;
+                try {
+                    kilometers = Integer.parseInt(options[4]);
+                } catch (NumberFormatException e) {
+                    System.out.println("ERROR: Invalid kilometers. Must be a number.");
+                    return false;
+                }
+                return handoffIn(options[1], options[2], options[3], kilometers);
+            }
+            case "HANDOFF_DONE":
+                if (tokens.length < 2) return usage("HANDOFF_DONE <id>");
+                return endHandoff(tokens[1].trim(), false);
+            case "HANDOFF_ABORT":
+                if (tokens.length < 2) return usage("HANDOFF_ABORT <id>");
+                return endHandoff(tokens[1].trim(), true);
+            case "HANDOFF_CANCEL":
+                if (tokens.length < 2) return usage("HANDOFF_CANCEL <id>");
+                return cancelHandoff(tokens[1].trim());
+            case "RECONCILE": {
+                int settled = reconcileHandoffs();
+                System.out.println("INFO: " + settled + " open handoffs settled, " + readHandoffs().size() + " still open.");
+                return true;
+            }
+            case "HANDOFFS":
+                for (String line : readHandoffs()) System.out.println("HANDOFF " + line);
+                return true;
+            default:
+                System.out.println("ERROR: Unknown request. Valid requests are: OPEN, CMD, STOCK, FIND, HANDOFF_OUT, HANDOFF_IN, HANDOFF_DONE, HANDOFF_ABORT, HANDOFF_CANCEL, RECONCILE, HANDOFFS, PING.");
+                return false;
+        }
+    }
+
+    private static boolean usage(String usage) {
+        System.out.println("ERROR: Usage: " + usage);
+        return false;
+    }
+
+    // Shop of a city, started with the defaults of App if it was not opened
+    private RentalShop shop(String city) {
+        return shops.computeIfAbsent(city, name -> new RentalShop(storage, name, 10, new ArrayList<>()));
+    }
+
+    private boolean stock(String lot, String options) {
+        String[] fields = options.split(" ");
+        VehicleType type = VehicleType.parse(fields[0]);
+        if (type == null || fields.length < 2) {
+            System.out.println("ERROR: Invalid vehicle type. Please choose from: " + VehicleType.names());
+            return false;
+        }
+        int count = Integer.parseInt(fields[1]);
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Vehicle vehicle = VehicleFactory.createVehicle(type, storage.plates());
+            writes.add(storage.lots().add(lot, vehicle));
+            storage.locations().atLot(vehicle.getPlateCode(), lot);
+            storage.locations().odometer(vehicle.getPlateCode(), vehicle.getOdometer());
+        }
+        try {
+            for (CompletableFuture<Void> write : writes) PersistencePipeline.await(write);
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not write to lot: " + e.getMessage());
+            return false;
+        }
+        System.out.println("INFO: " + count + " " + type + " added to lot " + lot + ".");
+        return true;
+    }
+
+    // ----- Handoff of a rental to another node -----
+
+    private boolean handoffOut(String licensePlate, String target) {
+        synchronized (handoffLock) {
+            RentInfo rentInfo = storage.rentals().find(licensePlate);
+            if (rentInfo == null) {
+                System.out.println("ERROR: Vehicle " + licensePlate + " not found in rental record.");
+                return false;
+            }
+            String id = UUID.randomUUID().toString();
+            String line = rentalLine(rentInfo);
+            try {
+                // Kept before the rental is removed, a crash in between leaves it in both and restorable
+                PersistencePipeline.await(PersistencePipeline.get().append(handoffs, (id + "," + target + "," + line + "\n").getBytes(StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                System.out.println("ERROR: Could not record the handoff: " + e.getMessage());
+                return false;
+            }
+            if (!storage.rentals().remove(licensePlate)) {
+                removeHandoff(id);
+                System.out.println("ERROR: Could not remove the rental of " + licensePlate + ".");
+                return false;
+            }
+            System.out.println("HANDOFF " + id + " " + line);
+            return true;
+        }
+    }
+
+    private boolean handoffIn(String id, String city, String line, int kilometers) {
+        synchronized (handoffLock) {
+            String state = readStates().get(id);
+            if (DONE.equals(state)) {
+                System.out.println("INFO: Handoff " + id + " was already done.");
+                return true;
+            }
+            if (state != null) {
+                System.out.println("ERROR: Handoff " + id + " was cancelled.");
+                return false;
+            }
+            RentInfo rentInfo = parseRental(line);
+            String licensePlate = rentInfo.getVehicle().getLicensePlate();
+            if (isKnown(licensePlate)) {
+                recordState(id, FAILED, licensePlate);
+                System.out.println("ERROR: Vehicle " + licensePlate + " is already on this node, the handoff is refused.");
+                return false;
+            }
+            // Recorded first, so a crash before the outcome is settled by resolvePending()
+            if (!recordState(id, PENDING, licensePlate)) return false;
+            if (!storage.rentals().add(rentInfo)) {
+                recordState(id, FAILED, licensePlate);
+                System.out.println("ERROR: Could not record the rental of " + licensePlate + ".");
+                return false;
+            }
+            RentalShop shop = shop(city);
+            boolean returned;
+            synchronized (shop) {
+                returned = shop.processCommand("RETURN " + licensePlate + " " + kilometers);
+            }
+            if (!returned && storage.rentals().find(licensePlate) != null) storage.rentals().remove(licensePlate);
+            recordState(id, returned ? DONE : FAILED, licensePlate); // Left PENDING on error, settled as above
+            return returned;
+        }
+    }
+
+    // A plate rented from this node or parked in one of its lots or shops belongs to another vehicle
+    private boolean isKnown(String licensePlate) {
+        if (storage.rentals().find(licensePlate) != null) return true;
+        LocationIndex.Location location = storage.locations().where(licensePlate);
+        return location != null && location.getKind() != LocationIndex.Kind.RENTED;
+    }
+
+    // Asked by the first node when the outcome of a handoff is unknown, a later HANDOFF_IN of the id is refused
+    private boolean cancelHandoff(String id) {
+        synchronized (handoffLock) {
+            String state = readStates().get(id);
+            if (PENDING.equals(state)) state = resolve(id, readPlates().get(id));
+            else if (state == null && recordState(id, FAILED, "")) state = FAILED;
+            if (state == null) return false;
+            System.out.println(DONE.equals(state) ? "HANDOFF DONE" : "HANDOFF CANCELLED");
+            return true;
+        }
+    }
+
+    // Settle the handoffs interrupted by a crash of this node, before any request
+    private void resolvePending() {
+        synchronized (handoffLock) {
+            Map<String, String> plates = readPlates();
+            for (Map.Entry<String, String> entry : readStates().entrySet()) {
+                if (PENDING.equals(entry.getValue())) resolve(entry.getKey(), plates.get(entry.getKey()));
+            }
+        }
+    }
+
+    // The return was made if the rental is gone and the vehicle is in this node, otherwise it is undone
+    private String resolve(String id, String licensePlate) {
+        if (licensePlate == null) return recordState(id, FAILED, "") ? FAILED : null;
+        if (storage.rentals().find(licensePlate) != null) {
+            storage.rentals().remove(licensePlate);
+            return recordState(id, FAILED, licensePlate) ? FAILED : null;
+        }
+        LocationIndex.Location location = storage.locations().where(licensePlate);
+        String state = (location != null && location.getKind() != LocationIndex.Kind.RENTED) ? DONE : FAILED;
+        return recordState(id, state, licensePlate) ? state : null;
+    }
+
+    private boolean recordState(String id, String state, String licensePlate) {
+        try {
+            byte[] line = (id + "," + state + "," + licensePlate + "\n").getBytes(StandardCharsets.UTF_8);
+            PersistencePipeline.await(PersistencePipeline.get().append(handoffsIn, line));
+            return true;
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not record the handoff " + id + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Last state of each handoff id received by this node
+    private Map<String, String> readStates() {
+        Map<String, String> states = new HashMap<>();
+        for (String line : readLines(handoffsIn)) {
+            String[] fields = line.split(",", 3);
+            if (fields.length == 3) states.put(fields[0], fields[1]);
+        }
+        return states;
+    }
+
+    private Map<String, String> readPlates() {
+        Map<String, String> plates = new HashMap<>();
+        for (String line : readLines(handoffsIn)) {
+            String[] fields = line.split(",", 3);
+            if (fields.length == 3 && !fields[2].isEmpty()) plates.put(fields[0], fields[2]);
+        }
+        return plates;
+    }
+
+    private boolean endHandoff(String id, boolean restore) {
+        synchronized (handoffLock) {
+            String line = null;
+            for (String handoff : readHandoffs()) {
+                if (handoff.startsWith(id + ",")) line = handoff;
+            }
+            if (line == null) {
+                System.out.println("INFO: No open handoff " + id + " on this node."); // Already ended
+                return true;
+            }
+            RentInfo rentInfo = parseRental(line.split(",", 3)[2]);
+            String plate = rentInfo.getVehicle().getLicensePlate();
+            if (restore && storage.rentals().find(plate) == null && !storage.rentals().add(rentInfo)) {
+                System.out.println("ERROR: Could not restore the rental of " + plate + ".");
+                return false;
+            }
+            return removeHandoff(id);
+        }
+    }
+
+    /**
+     * Settle the open handoffs of this node: each target node is asked to cancel the handoff, which is then
+     * ended as the target answers. The handoffs of an unreachable node stay open.
+     * @return the number of handoffs settled
+     */
+    public int reconcileHandoffs() {
+        int settled = 0;
+        for (String handoff : readHandoffs()) {
+            String[] fields = handoff.split(",", 3);
+            if (fields.length < 3) continue;
+            ClusterRouter.NodeClient target;
+            try {
+                target = new ClusterRouter.NodeClient(fields[1]);
+            } catch (IllegalArgumentException e) {
+                System.out.println("ERROR: " + e.getMessage());
+                continue;
+            }
+            try {
+                ClusterRouter.Reply reply = target.send("HANDOFF_CANCEL " + fields[0]);
+                if (!reply.ok) continue;
+                boolean done = Arrays.asList(reply.output.split("\n")).contains("HANDOFF DONE");
+                if (endHandoff(fields[0], !done)) settled++;
+            } catch (IOException e) {
+                System.out.println("INFO: Handoff " + fields[0] + " left open, node " + fields[1] + " is unavailable.");
+            } finally {
+                target.close();
+            }
+        }
+        return settled;
+    }
+
+    private boolean removeHandoff(String id) {
+        PersistencePipeline.Mutation removal = current -> {
+            StringBuilder kept = new StringBuilder();
+            for (String line : new String(current, StandardCharsets.UTF_8).split("\n")) {
+                if (!line.isEmpty() && !line.startsWith(id + ",")) kept.append(line).append("\n");
+            }
+            return kept.toString().getBytes(StandardCharsets.UTF_8);
+        };
+        try {
+            PersistencePipeline.await(PersistencePipeline.get().mutate(handoffs, removal));
+            return true;
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not update the handoffs: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Open handoffs of this node: id,target,rental
+    private List<String> readHandoffs() {
+        return readLines(handoffs);
+    }
+
+    private static List<String> readLines(File file) {
+        List<String> lines = new ArrayList<>();
+        if (!file.exists()) return lines;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) lines.add(line);
+            }
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not read the handoffs: " + e.getMessage());
+        }
+        return lines;
+    }
+
+    // Same fields as the rental file: plate,type,odometer,discount,start,shop
+    static String rentalLine(RentInfo rentInfo) {
+        Vehicle vehicle = rentInfo.getVehicle();
+        return vehicle.getLicensePlate() + "," + vehicle.getType() + "," + vehicle.getOdometer() + "," + rentInfo.isDiscount()
+            + "," + rentInfo.getStartTime() + "," + (rentInfo.getShop() != null ? rentInfo.getShop() : "");
+    }
+
+    static RentInfo parseRental(String line) {
+        String[] fields = line.split(",", -1);
+        Vehicle vehicle = new Vehicle(fields[0], fields[1], Integer.parseInt(fields[2]));
+        String shop = (fields.length > 5 && !fields[5].isEmpty()) ? fields[5] : null;
+        return new RentInfo(vehicle, Boolean.parseBoolean(fields[3]), Long.parseLong(fields[4]), shop);
+    }
+
+    /**
+     * Sends what a request prints to its client, the shops print their results on the console
+     */
+    private static class CommandOutput extends OutputStream {
+        private static final ThreadLocal<ByteArrayOutputStream> captured = new ThreadLocal<>();
+        private final PrintStream console;
+
+        private CommandOutput(PrintStream console) {
+            this.console = console;
+        }
+
+        private static PrintStream out;
+        private static PrintStream err;
+
+        // Only once, unless the streams were replaced since
+        static synchronized void install() {
+            if (System.out == out && System.err == err) return;
+            out = new PrintStream(new CommandOutput(System.out), true, StandardCharsets.UTF_8);
+            err = new PrintStream(new CommandOutput(System.err), true, StandardCharsets.UTF_8);
+            System.setOut(out);
+            System.setErr(err);
+        }
+
+        static void begin() { captured.set(new ByteArrayOutputStream()); }
+
+        static String end() {
+            ByteArrayOutputStream bytes = captured.get();
+            captured.remove();
+            String output = bytes.toString(StandardCharsets.UTF_8);
+            return (output.isEmpty() || output.endsWith("\n")) ? output : output + "\n";
+        }
+
+        @Override
+        public void write(int b) {
+            ByteArrayOutputStream bytes = captured.get();
+            if (bytes != null) bytes.write(b);
+            else console.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ByteArrayOutputStream bytes = captured.get();
+            if (bytes != null) bytes.write(b, off, len);
+            else console.write(b, off, len);
+        }
+    }
+}
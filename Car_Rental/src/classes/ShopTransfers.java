@@ -0,0 +1,227 @@
+package classes;
+
+import utils.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Moves vehicles directly from one shop to another, instead of one shop pushing them to a lot when it is
+ * full and another pulling them back from the lot when it runs out.
+ *
+ * Every shop involved is locked in city name order, so two transfers in opposite directions cannot wait on
+ * each other, then loaded once, changed in memory and saved once. The saves run as one unit of the storage
+ * (a single commit on the page store); with the files, the receiving shops are saved before the giving ones
+ * so that a failure in between leaves a vehicle listed twice rather than lost.
+ */
+public class ShopTransfers {
+    /**
+     * A batch of vehicles of one type moved between two shops
+     */
+    public static class Move {
+        private final String from;
+        private final String to;
+        private final VehicleType type;
+        private final int count;
+
+        public Move(String from, String to, VehicleType type, int count) {
+            this.from = from;
+            this.to = to;
+            this.type = type;
+            this.count = count;
+        }
+
+        public String getFrom() { return from; }
+        public String getTo() { return to; }
+        public VehicleType getType() { return type; }
+        public int getCount() { return count; }
+
+        @Override
+        public String toString() {
+            return count + " " + type + " from " + from + " to " + to;
+        }
+    }
+
+    /**
+     * Plans the moves between the loaded shops
+     */
+    @FunctionalInterface
+    private interface Planner {
+        List<Move> plan(Map<String, RentalShop> shops);
+    }
+
+    /**
+     * Move vehicles of one type from a shop to another, as many as the receiving shop has room for above its reserve
+     * @param storage Where the shops are kept
+     * @param from The city of the giving shop
+     * @param to The city of the receiving shop
+     * @param type The type of the vehicles
+     * @param count The number of vehicles to move
+     * @return the number of vehicles moved, or -1 if the transfer failed
+     */
+    public static int transfer(Storage storage, String from, String to, VehicleType type, int count) {
+        if (from.equals(to)) {
+            System.out.println("ERROR: A shop cannot transfer vehicles to itself.");
+            return -1;
+        }
+        List<Move> moves = run(storage, Arrays.asList(from, to), "transfer", shops -> {
+            RentalShop receiver = shops.get(to);
+            int room = receiver.getSpaces() - receiver.getPolicy().getReserve() - receiver.getVehicles().size();
+            int moved = Math.min(count, Math.min(room, shops.get(from).getVehicles().countOf(type)));
+            return (moved > 0) ? Collections.singletonList(new Move(from, to, type, moved)) : Collections.emptyList();
+        });
+        if (moves == null) return -1;
+        return moves.isEmpty() ? 0 : moves.get(0).getCount();
+    }
+
+    /**
+     * Even out the vehicles of each type across shops, in proportion to their spaces
+     * @param storage Where the shops are kept
+     * @param cities The cities of the shops
+     * @return the moves made, or null if the rebalancing failed
+     */
+    public static List<Move> rebalance(Storage storage, Collection<String> cities) {
+        return run(storage, cities, "rebalance", shops -> plan(new ArrayList<>(shops.values())));
+    }
+
+    /**
+     * Plan the moves evening out each vehicle type across shops. Every shop gets a share of each type
+     * proportional to its spaces, the shops above their share give their surplus to the ones below it,
+     * largest surplus to largest deficit, without filling a shop into its reserve of free spaces.
+     * @param shops The shops, their fleets are not changed
+     * @return the planned moves
+     */
+    public static List<Move> plan(List<RentalShop> shops) {
+        List<Move> moves = new ArrayList<>();
+        int n = shops.size();
+        int[] sizes = new int[n];
+        long totalSpaces = 0;
+        for (int i = 0; i < n; i++) {
+            sizes[i] = shops.get(i).getVehicles().size();
+            totalSpaces += shops.get(i).getSpaces();
+        }
+        if (n < 2 || totalSpaces <= 0) return moves;
+
+        for (VehicleType type : VehicleType.values()) {
+            int total = 0;
+            int[] counts = new int[n];
+            for (int i = 0; i < n; i++) total += counts[i] = shops.get(i).getVehicles().countOf(type);
+            if (total == 0) continue;
+
+            // Share of each shop, the vehicles left by rounding down go to the largest remainders
+            int[] targets = new int[n];
+            double[] remainders = new double[n];
+            int assigned = 0;
+            for (int i = 0; i < n; i++) {
+                double share = (double) total * shops.get(i).getSpaces() / totalSpaces;
+                targets[i] = (int) share;
+                remainders[i] = share - targets[i];
+                assigned += targets[i];
+            }
+            for (; assigned < total; assigned++) {
+                int best = 0;
+                for (int i = 1; i < n; i++) if (remainders[i] > remainders[best]) best = i;
+                targets[best]++;
+                remainders[best] = -1;
+            }
+
+            // Largest surplus to largest deficit
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> Integer.compare(targets[a] - counts[a], targets[b] - counts[b]));
+            int giver = 0;
+            for (int k = n - 1; k >= 0; k--) {
+                int receiver = order[k];
+                int deficit = targets[receiver] - counts[receiver];
+                while (deficit > 0 && giver < k) {
+                    int donor = order[giver];
+                    int surplus = counts[donor] - targets[donor];
+                    if (surplus <= 0) break;
+                    int room = shops.get(receiver).getSpaces() - shops.get(receiver).getPolicy().getReserve() - sizes[receiver];
+                    int count = Math.min(Math.min(surplus, deficit), room);
+                    if (count <= 0) break;
+                    moves.add(new Move(shops.get(donor).getCity(), shops.get(receiver).getCity(), type, count));
+                    counts[donor] -= count;
+                    counts[receiver] += count;
+                    sizes[donor] -= count;
+                    sizes[receiver] += count;
+                    deficit -= count;
+                    if (counts[donor] <= targets[donor]) giver++;
+                }
+            }
+        }
+        return moves;
+    }
+
+    // Lock, load, plan, move and save the shops, each saved shop written once
+    private static List<Move> run(Storage storage, Collection<String> cities, String operation, Planner planner) {
+        List<String> sorted = new ArrayList<>(new TreeSet<>(cities)); // The lock order
+        Deque<Closeable> locks = new ArrayDeque<>();
+        Map<String, RentalShop> shops = new LinkedHashMap<>();
+        try {
+            for (String city : sorted) locks.push(storage.shops().lock(city, operation));
+            for (String city : sorted) {
+                RentalShop shop = storage.shops().load(city);
+                if (shop == null) {
+                    System.out.println("ERROR: Shop " + city + " not found.");
+                    return null;
+                }
+                shops.put(city, shop);
+            }
+
+            // Move the vehicles in memory, the receivers are saved first
+            List<Move> moves = new ArrayList<>();
+            Map<Vehicle, String> moved = new LinkedHashMap<>();
+            Set<String> receivers = new LinkedHashSet<>();
+            Set<String> givers = new LinkedHashSet<>();
+            for (Move move : planner.plan(shops)) {
+                Fleet from = shops.get(move.getFrom()).getVehicles();
+                Fleet to = shops.get(move.getTo()).getVehicles();
+                int count = 0;
+                Vehicle vehicle;
+                while (count < move.getCount() && (vehicle = from.pollType(move.getType())) != null) {
+                    if (!to.add(vehicle)) {
+                        from.add(vehicle); // Already listed at the receiver, left where it is
+                        break;
+                    }
+                    moved.put(vehicle, move.getTo());
+                    count++;
+                }
+                if (count == 0) continue;
+                moves.add(new Move(move.getFrom(), move.getTo(), move.getType(), count));
+                receivers.add(move.getTo());
+                givers.add(move.getFrom());
+            }
+            if (moves.isEmpty()) {
+                System.out.println("INFO: No vehicles to move.");
+                return moves;
+            }
+            givers.removeAll(receivers);
+
+            storage.atomically(() -> {
+                for (String city : receivers) save(storage, shops.get(city));
+                for (String city : givers) save(storage, shops.get(city));
+                return null;
+            });
+            for (Map.Entry<Vehicle, String> entry : moved.entrySet()) storage.locations().atShop(entry.getKey().getPlateCode(), entry.getValue());
+            for (Move move : moves) System.out.println("INFO: Moved " + move + ".");
+            return moves;
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not move the vehicles: " + e.getMessage());
+            return null;
+        } finally {
+            for (RentalShop shop : shops.values()) shop.releaseSnapshot();
+            while (!locks.isEmpty()) {
+                try {
+                    locks.pop().close();
+                } catch (IOException e) {
+                    System.err.println("ERROR: Unable to release a shop lock: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void save(Storage storage, RentalShop shop) throws IOException {
+        if (!storage.shops().save(shop)) throw new IOException("Unable to save shop " + shop.getCity() + ".");
+    }
+}
@@ -1,27 +1,44 @@
 package classes;
 
+import utils.Money;
+import utils.PlateCodec;
+
 public class Transaction implements java.io.Serializable {
-    private static final long serialVersionUID = 1L;    // Unique ID for serialization
-    private String licensePlate;                        // License plate of the vehicle
+    private static final long serialVersionUID = 3L;    // Unique ID for serialization
+    private int plate;                                  // License plate of the vehicle, encoded with PlateCodec
     private int distance;                                    // Kilometers driven during the rental period  
     private boolean discount;                           // Indicates if a 10% discount is applied 
-    private double amount;                              // Amount charged for the transaction
+    private long amount;                                // Amount charged for the transaction, in cents (see Money)
+    private long time;                                  // Time of the return in millis, 0 if it was not recorded
+
+    public Transaction(String licensePlate, int kms, boolean discount, long charge) {
+        this(PlateCodec.encode(licensePlate), kms, discount, charge, 0);
+    }
+
+    public Transaction(String licensePlate, int kms, boolean discount, long charge, long time) {
+        this(PlateCodec.encode(licensePlate), kms, discount, charge, time);
+    }
 
-    public Transaction(String licensePlate, int kms, boolean discount, double charge) {
-        this.licensePlate = licensePlate;
+    // Constructor for an already encoded license plate
+    public Transaction(int plate, int kms, boolean discount, long charge, long time) {
+        this.plate = plate;
         this.distance = kms;
         this.discount = discount;
         this.amount = charge;
+        this.time = time;
     }
 
     public boolean isDiscount() { return discount; }
-    public double getAmount() { return amount; }
-    public String getLicensePlate() { return licensePlate; }
+    public long getAmount() { return amount; }
+    public String getLicensePlate() { return PlateCodec.decode(plate); }
+    public int getPlateCode() { return plate; }
     public int getDistance() { return distance; } 
+    public long getTime() { return time; }
 
     @Override 
     public String toString() {
-        return "TRANSACTION: " + licensePlate + "; Distance: " + distance + " km; Discount: " + (discount ? "10%" : "0%") + "; Amount: $" + amount;
+        return "TRANSACTION: " + getLicensePlate() + "; Distance: " + distance + " km; Discount: " + (discount ? "10%" : "0%") + "; Amount: $" + Money.format(amount)
+            + ((time > 0) ? "; Time: " + time : "");
     }
     
 }
@@ -1,21 +1,42 @@
 package classes;
 
+import utils.PlateCodec;
+
 public class Vehicle implements java.io.Serializable {
-    private static final long serialVersionUID = 1L; // Unique ID for serialization
-    private String licensePlate;
-    private String type;
+    private static final long serialVersionUID = 2L; // Unique ID for serialization
+    private int plate; // License plate encoded with PlateCodec
+    private VehicleType type;
     private int odometer; 
 
     // Constructor 
-    public Vehicle(String licensePlate, String type, int odometer) {
-        this.licensePlate = licensePlate;
+    public Vehicle(String licensePlate, VehicleType type, int odometer) {
+        this(PlateCodec.encode(licensePlate), type, odometer);
+    }
+
+    // Constructor for an already encoded license plate
+    public Vehicle(int plate, VehicleType type, int odometer) {
+        this.plate = plate;
         this.type = type;
         this.odometer = odometer;
     }
 
+    // Constructor for textual types (e.g., read from a file), throws IllegalArgumentException for unknown types
+    public Vehicle(String licensePlate, String type, int odometer) {
+        this(licensePlate, requireType(type), odometer);
+    }
+
+    private static VehicleType requireType(String type) {
+        VehicleType vehicleType = VehicleType.parse(type);
+        if (vehicleType == null) {
+            throw new IllegalArgumentException("Invalid vehicle type. Valid types are: " + VehicleType.names() + ".");
+        }
+        return vehicleType;
+    }
+
     // Getters
-    public String getLicensePlate() { return licensePlate; }
-    public String getType() { return type; }
+    public String getLicensePlate() { return PlateCodec.decode(plate); }
+    public int getPlateCode() { return plate; }
+    public VehicleType getType() { return type; }
     public int getOdometer() { return odometer; }
 
     // Setters
@@ -23,8 +44,8 @@ public class Vehicle implements java.io.Serializable {
 
     @Override
     public String toString() {
-        return licensePlate 
+        return getLicensePlate() 
             + "," + type 
             + "," + odometer; 
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,39 @@
+package classes;
+
+public enum VehicleType {
+    SEDAN,
+    SUV,
+    VAN;
+
+    // Cached values array, values() clones the array on every call
+    private static final VehicleType[] TYPES = values();
+
+    /**
+     * Parse a vehicle type ignoring case
+     * @param type The type name to parse (e.g., "sedan", "SUV")
+     * @return the matching VehicleType, or null if the name is not a valid type
+     */
+    public static VehicleType parse(String type) {
+        if (type == null) return null;
+        for (VehicleType vehicleType : TYPES) {
+            if (vehicleType.name().equalsIgnoreCase(type.trim())) return vehicleType;
+        }
+        return null;
+    }
+
+    /**
+     * Comma separated list of the valid type names, used in error messages
+     * @return "SEDAN, SUV, VAN"
+     */
+    public static String names() {
+        StringBuilder builder = new StringBuilder();
+        for (VehicleType vehicleType : TYPES) {
+            if (builder.length() > 0) builder.append(", ");
+            builder.append(vehicleType.name());
+        }
+        return builder.toString();
+    }
+
+    public static int count() { return TYPES.length; }
+    public static VehicleType of(int ordinal) { return TYPES[ordinal]; }
+}
@@ -0,0 +1,100 @@
+package tests;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import classes.*;
+
+public class FleetReportTest {
+    private static final String SHOPS_DIR = "src" + File.separator + "files" + File.separator + "shops";
+    private static final String[] CITIES = { "reportCityA", "reportCityB", "reportCityC" };
+
+    private static void writeShop(String city, int spaces, String balance, String vehicles, String transactions) throws IOException {
+        String content = "City:" + city + "\nSpaces:" + spaces + "\nBalance:" + balance + "\nLots:testLot\n"
+            + "Vehicles:\n" + vehicles + "Transactions:\n" + transactions;
+        Files.write(new File(SHOPS_DIR, city + ".txt").toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        new File(SHOPS_DIR).mkdirs();
+        writeShop(CITIES[0], 10, "120.50", "RPA-001,SEDAN,100\nRPA-002,SUV,200\n",
+            "TRANSACTION: RPA-003; Distance: 50 km; Discount: 0%; Amount: $100.00\n"
+            + "TRANSACTION: RPA-004; Distance: 10 km; Discount: 10%; Amount: $20.50\n");
+        writeShop(CITIES[1], 5, "-10.25", "RPB-001,VAN,0\n", "");
+        writeShop(CITIES[2], 8, "0.00", "RPC-001,SEDAN,0\nRPC-002,SEDAN,0\nRPC-003,VAN,0\n",
+            "TRANSACTION: RPC-004; Distance: 5 km; Discount: 0%; Amount: $10.00\n");
+    }
+
+    @After
+    public void tearDown() {
+        for (String city : CITIES) new File(SHOPS_DIR, city + ".txt").delete();
+    }
+
+    private static FleetReport.Summary city(FleetReport.Summary summary, String name) {
+        for (FleetReport.Summary city : summary.getCities()) {
+            if (name.equals(city.getCity())) return city;
+        }
+        fail("The report should have a line for " + name);
+        return null;
+    }
+
+    @Test
+    public void testCitySums() {
+        FleetReport.Summary summary = FleetReport.generate(2);
+
+        FleetReport.Summary a = city(summary, CITIES[0]);
+        assertEquals(12050, a.getBalance());
+        assertEquals(8, a.getAvailableSpaces());
+        assertEquals(2, a.getTransactions());
+        assertEquals(1, a.getVehicles(VehicleType.SEDAN));
+        assertEquals(1, a.getVehicles(VehicleType.SUV));
+
+        FleetReport.Summary b = city(summary, CITIES[1]);
+        assertEquals(-1025, b.getBalance());
+        assertEquals(4, b.getAvailableSpaces());
+        assertEquals(0, b.getTransactions());
+
+        FleetReport.Summary c = city(summary, CITIES[2]);
+        assertEquals(2, c.getVehicles(VehicleType.SEDAN));
+        assertEquals(1, c.getVehicles(VehicleType.VAN));
+        assertEquals(1, c.getTransactions());
+    }
+
+    @Test
+    public void testGlobalSums() {
+        // Other shops of the data directory are in the report too, the totals are checked against the cities
+        FleetReport.Summary summary = FleetReport.generate(3);
+        assertEquals(summary.getShops(), summary.getCities().size());
+        long balance = 0;
+        int spaces = 0, available = 0, transactions = 0, vehicles = 0;
+        for (FleetReport.Summary city : summary.getCities()) {
+            balance += city.getBalance();
+            spaces += city.getSpaces();
+            available += city.getAvailableSpaces();
+            transactions += city.getTransactions();
+            vehicles += city.getVehicles();
+        }
+        assertEquals("Balances should add up", balance, summary.getBalance());
+        assertEquals(spaces, summary.getSpaces());
+        assertEquals(available, summary.getAvailableSpaces());
+        assertEquals(transactions, summary.getTransactions());
+        assertEquals(vehicles, summary.getVehicles());
+
+        // The three shops alone
+        long ours = 0;
+        for (String name : CITIES) ours += city(summary, name).getBalance();
+        assertEquals(12050 - 1025, ours);
+
+        // The merge does not depend on how the shops are split between the tasks
+        FleetReport.Summary sequential = FleetReport.generate(1);
+        assertEquals(summary.getBalance(), sequential.getBalance());
+        assertEquals(summary.getVehicles(), sequential.getVehicles());
+        List<String> cities = new ArrayList<>();
+        for (FleetReport.Summary city : summary.getCities()) cities.add(city.getCity());
+        assertTrue("Cities should be sorted", cities.equals(new ArrayList<>(new TreeSet<>(cities))));
+    }
+}
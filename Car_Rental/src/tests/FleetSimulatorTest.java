@@ -0,0 +1,46 @@
+package tests;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.util.*;
+import classes.*;
+
+public class FleetSimulatorTest {
+
+    private static FleetSimulator.Demand demand() {
+        FleetSimulator.Demand demand = new FleetSimulator.Demand();
+        demand.setShops(10);
+        demand.setLots(4);
+        demand.setVehiclesPerLot(6);
+        demand.setDays(7);
+        demand.setSeed(42);
+        return demand;
+    }
+
+    @Test
+    public void testSimulateIsRepeatable() throws Exception {
+        FleetSimulator.Scenario scenario = new FleetSimulator.Scenario(4, ShopPolicy.DEFAULT);
+        FleetSimulator.Result result = FleetSimulator.simulate(demand(), scenario);
+        assertEquals("Events", 941, result.getEvents());
+        assertEquals("Rentals", 144, result.getRentals());
+        assertEquals("Lot pulls", 1367, result.getLotPulls());
+
+        FleetSimulator.Result again = FleetSimulator.simulate(demand(), scenario);
+        assertEquals(result.getEvents(), again.getEvents());
+        assertEquals(result.getRentals(), again.getRentals());
+        assertEquals(result.getLotPulls(), again.getLotPulls());
+        assertEquals(result.getRevenue(), again.getRevenue());
+    }
+
+    @Test
+    public void testScenariosShareTheDemand() {
+        // Fewer spaces cause more stockouts, the arrivals stay the same
+        List<FleetSimulator.Scenario> scenarios = Arrays.asList(
+            new FleetSimulator.Scenario(2, ShopPolicy.DEFAULT), new FleetSimulator.Scenario(8, ShopPolicy.DEFAULT));
+        List<FleetSimulator.Result> results = FleetSimulator.sweep(demand(), scenarios, 2);
+        for (FleetSimulator.Result result : results) {
+            assertEquals("Every scenario should see the same arrivals", results.get(0).getRentals() + results.get(0).getStockouts(),
+                result.getRentals() + result.getStockouts());
+        }
+    }
+}
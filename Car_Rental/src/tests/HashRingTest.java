@@ -0,0 +1,66 @@
+package tests;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.util.*;
+import utils.*;
+
+public class HashRingTest {
+
+    private static HashRing<String> ring(String... nodes) {
+        HashRing<String> ring = new HashRing<>(64);
+        for (String node : nodes) ring.add(node);
+        return ring;
+    }
+
+    @Test
+    public void testPlacement() {
+        HashRing<String> ring = ring("nodeA:7000", "nodeB:7000", "nodeC:7000");
+        HashRing<String> same = ring("nodeC:7000", "nodeA:7000", "nodeB:7000");
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            String city = "city" + i;
+            String owner = ring.owner(city);
+            assertEquals("Placement should not depend on the order of the nodes", owner, same.owner(city));
+            counts.merge(owner, 1, Integer::sum);
+        }
+        assertEquals("Every node should own cities", 3, counts.size());
+        for (int count : counts.values()) assertTrue("Cities should be spread evenly, got " + counts, count > 600 && count < 1400);
+    }
+
+    @Test
+    public void testStability() {
+        HashRing<String> ring = ring("nodeA:7000", "nodeB:7000", "nodeC:7000");
+        Map<String, String> before = new HashMap<>();
+        for (int i = 0; i < 3000; i++) before.put("city" + i, ring.owner("city" + i));
+
+        // A new node only takes cities, the other cities keep their node
+        ring.add("nodeD:7000");
+        int moved = 0;
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String owner = ring.owner(entry.getKey());
+            if (owner.equals(entry.getValue())) continue;
+            assertEquals("Cities should only move to the new node", "nodeD:7000", owner);
+            moved++;
+        }
+        assertTrue("The new node should take about a quarter of the cities, took " + moved, moved > 300 && moved < 1200);
+
+        // Removing it gives every city back to its node
+        ring.remove("nodeD:7000");
+        for (Map.Entry<String, String> entry : before.entrySet()) assertEquals(entry.getValue(), ring.owner(entry.getKey()));
+    }
+
+    @Test
+    public void testEmptyRing() {
+        HashRing<String> ring = ring("nodeA:7000");
+        ring.remove("nodeA:7000");
+        assertNull(ring.owner("city"));
+        assertTrue(ring.nodes().isEmpty());
+        try {
+            new HashRing<String>(0);
+            fail("A ring without points should be refused");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
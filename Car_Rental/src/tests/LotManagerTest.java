@@ -31,6 +31,8 @@ public class LotManagerTest {
     @After 
     public void tearDown() {
         if (lotFile.exists()) lotFile.delete(); // Clean up after test
+        new File(LOTS_DIR + File.separator + LOT_NAME + ".pulls").delete();
+        SlottedLot.journalFile(lotFile).delete();
         // if (lotFile.getParentFile().exists()) lotFile.getParentFile().delete(); // Clean up directory
     }
 
@@ -87,4 +89,199 @@ public class LotManagerTest {
             fail("IOException while reading lot file: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testConcurrentPulls() throws Exception {
+        String[] args = {"--lot-name=" + LOT_NAME, "--add-sedan=6", "--add-van=1"};
+        LotManager.main(args);
+
+        // Hold the writer so the eight requests are all queued before the lot is served
+        File blocker = new File(LOTS_DIR + File.separator + LOT_NAME + ".blocker");
+        java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1);
+        java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        java.util.concurrent.CompletableFuture<Void> blocked = PersistencePipeline.get().mutate(blocker, current -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return current;
+        });
+        assertTrue("Writer should start the mutation", started.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        long passes = LotFileManager.getServePasses();
+
+        // Eight shops pull sedans at the same time: six get one, two find the lot empty
+        List<Thread> shops = new ArrayList<>();
+        List<Vehicle> pulled = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 8; i++) {
+            Thread shop = new Thread(() -> {
+                try {
+                    Vehicle vehicle = LotFileManager.pullVehicle(LOT_NAME, VehicleType.SEDAN, "testShop");
+                    if (vehicle != null) pulled.add(vehicle);
+                } catch (IOException e) {
+                    fail("IOException while pulling a vehicle: " + e.getMessage());
+                }
+            });
+            shops.add(shop);
+            shop.start();
+        }
+        try {
+            // Every shop is waiting on its queued request once it parks
+            long deadline = System.currentTimeMillis() + 5000;
+            for (Thread shop : shops) {
+                while (shop.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            }
+        } finally {
+            release.countDown();
+        }
+        PersistencePipeline.await(blocked);
+        for (Thread shop : shops) shop.join();
+        blocker.delete();
+
+        Set<Integer> plates = new HashSet<>();
+        for (Vehicle vehicle : pulled) plates.add(vehicle.getPlateCode());
+        assertEquals("Each sedan should be handed out once", 6, plates.size());
+        assertEquals("Only the van should be left in the lot", 1, LotFileManager.readLot(LOT_NAME).size());
+        assertTrue("Eight pulls should share far fewer lot rewrites", LotFileManager.getServePasses() - passes <= 2);
+    }
+
+    @Test
+    public void testSlottedLot() throws Exception {
+        String[] args = {"--lot-name=" + LOT_NAME, "--add-sedan=6", "--add-van=12", "--slotted=true"};
+        try {
+            LotManager.main(args);
+            assertTrue("Lot should be written slotted", SlottedLot.isSlotted(lotFile));
+
+            // Shops pull sedans and vans and return SUVs at the same time, past the capacity of the SUV region
+            List<Thread> shops = new ArrayList<>();
+            List<Vehicle> pulled = Collections.synchronizedList(new ArrayList<>());
+            List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+            for (int i = 0; i < 30; i++) {
+                final int n = i;
+                Thread shop = new Thread(() -> {
+                    try {
+                        if (n % 3 == 2) {
+                            PersistencePipeline.await(LotFileManager.addVehicle(LOT_NAME, new Vehicle("SLT-" + (100 + n), VehicleType.SUV, n)));
+                            PersistencePipeline.await(LotFileManager.addVehicle(LOT_NAME, new Vehicle("SLT-" + (200 + n), VehicleType.SUV, n)));
+                            PersistencePipeline.await(LotFileManager.addVehicle(LOT_NAME, new Vehicle("SLT-" + (300 + n), VehicleType.SUV, n)));
+                        } else {
+                            Vehicle vehicle = LotFileManager.pullVehicle(LOT_NAME, (n % 3 == 0) ? VehicleType.SEDAN : VehicleType.VAN, "testShop");
+                            if (vehicle != null) pulled.add(vehicle);
+                        }
+                    } catch (Throwable e) { // An unchecked failure would otherwise only end the thread
+                        errors.add(e);
+                    }
+                });
+                shops.add(shop);
+                shop.start();
+            }
+            for (Thread shop : shops) shop.join();
+            assertTrue("No access should fail: " + errors, errors.isEmpty());
+
+            Set<Integer> plates = new HashSet<>();
+            for (Vehicle vehicle : pulled) plates.add(vehicle.getPlateCode());
+            assertEquals("Each pulled vehicle should be handed out once", 16, plates.size());
+            Map<VehicleType, Integer> left = new EnumMap<>(VehicleType.class);
+            for (Vehicle vehicle : LotFileManager.readLot(LOT_NAME)) left.merge(vehicle.getType(), 1, Integer::sum);
+            assertNull("All the sedans should be pulled", left.get(VehicleType.SEDAN));
+            assertEquals("Two vans should be left", 2, (int) left.get(VehicleType.VAN));
+            assertEquals("Every SUV returned should be parked", 30, (int) left.get(VehicleType.SUV));
+        } finally {
+            SlottedLot.setEnabled(false);
+            new File(lotFile.getPath() + ".journal").delete();
+        }
+    }
+
+    // Stock and delete vehicles with LotManager while shops pull sedans from the lot
+    private void changeWhilePulling(String layout) throws Exception {
+        LotManager.main(new String[] {"--lot-name=" + LOT_NAME, "--add-sedan=20", "--add-van=1", layout});
+        String van = null;
+        for (Vehicle vehicle : LotFileManager.readLot(LOT_NAME)) if (vehicle.getType() == VehicleType.VAN) van = vehicle.getLicensePlate();
+
+        List<Thread> shops = new ArrayList<>();
+        List<Vehicle> pulled = Collections.synchronizedList(new ArrayList<>());
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 10; i++) {
+            Thread shop = new Thread(() -> {
+                try {
+                    Vehicle vehicle = LotFileManager.pullVehicle(LOT_NAME, VehicleType.SEDAN, "testShop");
+                    if (vehicle != null) pulled.add(vehicle);
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            shops.add(shop);
+            shop.start();
+        }
+        for (int i = 0; i < 5; i++) LotManager.main(new String[] {"--lot-name=" + LOT_NAME, "--add-suv=2", layout});
+        LotManager.main(new String[] {"--lot-name=" + LOT_NAME, "--remove-vehicle=" + van, layout});
+        for (Thread shop : shops) shop.join();
+        assertTrue("No pull should fail: " + errors, errors.isEmpty());
+
+        // Every pull stays out of the lot and every change of LotManager is kept
+        Set<Integer> left = new HashSet<>();
+        Map<VehicleType, Integer> counts = new EnumMap<>(VehicleType.class);
+        for (Vehicle vehicle : LotFileManager.readLot(LOT_NAME)) {
+            left.add(vehicle.getPlateCode());
+            counts.merge(vehicle.getType(), 1, Integer::sum);
+        }
+        assertEquals("Each shop should get a sedan", 10, pulled.size());
+        for (Vehicle vehicle : pulled) assertFalse("A pulled sedan should not come back", left.contains(vehicle.getPlateCode()));
+        assertEquals("The other sedans should stay", 10, (int) counts.get(VehicleType.SEDAN));
+        assertEquals("Every SUV stocked should be parked", 10, (int) counts.get(VehicleType.SUV));
+        assertNull("The van should be deleted", counts.get(VehicleType.VAN));
+    }
+
+    @Test
+    public void testChangesKeepConcurrentPulls() throws Exception {
+        changeWhilePulling("--slotted=false");
+    }
+
+    @Test
+    public void testSlottedChangesKeepConcurrentPulls() throws Exception {
+        try {
+            changeWhilePulling("--slotted=true");
+            assertTrue("Lot should stay slotted", SlottedLot.isSlotted(lotFile));
+        } finally {
+            SlottedLot.setEnabled(false);
+            new File(lotFile.getPath() + ".journal").delete();
+        }
+    }
+
+    @Test
+    public void testSlotJournalFinishesTornWrite() throws Exception {
+        try {
+            LotManager.main(new String[] {"--lot-name=" + LOT_NAME, "--add-sedan=2", "--slotted=true"});
+            PersistencePipeline.await(LotFileManager.addVehicle(LOT_NAME, new Vehicle("JRN-001", VehicleType.SUV, 42)));
+
+            // A crash before the slot reached the disk: its journal record is still set, the slot is still free
+            File journal = SlottedLot.journalFile(lotFile);
+            int area = (VehicleType.SUV.ordinal() + 1) * (20 + 64); // Record areas of 20 + 64 bytes, the header first
+            long position;
+            try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+                raf.seek(area);
+                raf.writeInt(0x534C4A31);
+                raf.seek(area + 8);
+                position = raf.readLong();
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(lotFile, "rw")) {
+                raf.seek(position);
+                byte[] free = new byte[31];
+                Arrays.fill(free, (byte) ' ');
+                raf.write(free);
+            }
+            assertEquals("The torn slot should have lost the vehicle", 2, LotFileManager.readLot(LOT_NAME).size());
+
+            CrashRecovery.recover();
+            List<String> plates = new ArrayList<>();
+            for (Vehicle vehicle : LotFileManager.readLot(LOT_NAME)) plates.add(vehicle.getLicensePlate());
+            assertTrue("The vehicle should be parked again", plates.contains("JRN-001"));
+            assertEquals(3, plates.size());
+            assertEquals("Journal should be emptied", 0, journal.length());
+        } finally {
+            SlottedLot.setEnabled(false);
+            new File(lotFile.getPath() + ".journal").delete();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package tests;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import classes.*;
+import utils.*;
+
+public class MoneyTest {
+
+    @Test
+    public void testFormatAndParse() {
+        long[] amounts = {0, 5, 90, 1250, -5, -1250, Long.MAX_VALUE / 1000};
+        for (long cents : amounts) {
+            assertEquals(cents, Money.parse(Money.format(cents)));
+        }
+        assertEquals("12.50", Money.format(1250));
+        assertEquals("-0.05", Money.format(-5));
+    }
+
+    @Test
+    public void testParsesLegacyAmounts() {
+        assertEquals(4000, Money.parse("40.0"));
+        assertEquals(9000, Money.parse("90"));
+        assertEquals(33, Money.parse("0.325"));
+        assertEquals(4_500_000_000L, Money.parse("4.5E7"));
+        try {
+            Money.parse("$12");
+            fail("A non numeric amount should be rejected");
+        } catch (NumberFormatException expected) { }
+
+        RecordReader reader = new RecordReader("Amount: $40.0; Balance:-12.505; Total:1.0E7".getBytes());
+        try {
+            assertTrue(reader.nextLine());
+            reader.skipPast('$');
+            assertEquals(4000, reader.readCents());
+            reader.skipPast(':');
+            assertEquals(-1251, reader.readCents());
+            reader.skipPast(':');
+            assertEquals(1_000_000_000L, reader.readCents());
+        } catch (java.io.IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testPricingIsExact() {
+        Pricing pricing = Pricing.DEFAULT.withRates("suv:1.50,van:2.05");
+        assertEquals(10_000, pricing.charge(VehicleType.SEDAN, 100, false));
+        assertEquals(9_000, pricing.charge(VehicleType.SEDAN, 100, true));
+        assertEquals(15_000, pricing.charge(VehicleType.SUV, 100, false));
+        assertEquals(185, pricing.charge(VehicleType.VAN, 1, true)); // 184.5 rounded half up
+
+        long balance = 0;
+        for (int i = 0; i < 1_000_000; i++) balance += pricing.charge(VehicleType.SEDAN, 1, true);
+        assertEquals(90_000_000, balance);
+    }
+}
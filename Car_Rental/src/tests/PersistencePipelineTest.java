@@ -0,0 +1,203 @@
+package tests;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import utils.*;
+
+public class PersistencePipelineTest {
+    private static final String DIR = "src" + File.separator + "files" + File.separator + "pipelineTest";
+    private final PersistencePipeline pipeline = PersistencePipeline.get();
+    private PersistencePipeline.SyncPolicy policy;
+
+    @Before
+    public void setUp() {
+        new File(DIR).mkdirs();
+        policy = pipeline.getPolicy();
+    }
+
+    @After
+    public void tearDown() {
+        pipeline.setPolicy(policy);
+        File[] files = new File(DIR).listFiles();
+        if (files != null) for (File file : files) file.delete();
+        new File(DIR).delete();
+    }
+
+    // Hold the writer thread in a mutation until the returned latch is released
+    private CountDownLatch blockWriter(File file) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        pipeline.mutate(file, current -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "blocked\n".getBytes(StandardCharsets.UTF_8);
+        });
+        assertTrue("Writer should start the mutation", started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    // Queue 50 appends behind a blocked writer, then let the writer drain them
+    private List<CompletableFuture<Void>> appendBehindBlockedWriter(File file) throws Exception {
+        CountDownLatch release = blockWriter(new File(DIR, "blocker.txt"));
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) futures.add(pipeline.append(file, ("line " + i + "\n").getBytes(StandardCharsets.UTF_8)));
+        release.countDown();
+        for (CompletableFuture<Void> future : futures) PersistencePipeline.await(future);
+        return futures;
+    }
+
+    @Test
+    public void testBatchPolicyGroupsWrites() throws Exception {
+        pipeline.setPolicy(PersistencePipeline.SyncPolicy.BATCH);
+        File file = new File(DIR, "batch.txt");
+        long writes = pipeline.getWrites();
+        long forces = pipeline.getForces();
+        appendBehindBlockedWriter(file);
+
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertEquals("Every append should be written", 50, lines.size());
+        assertEquals("Appends should keep their order", "line 49", lines.get(49));
+        assertTrue("Queued appends should share one write", pipeline.getWrites() - writes <= 3);
+        assertTrue("Queued appends should share one force", pipeline.getForces() - forces <= 3);
+    }
+
+    @Test
+    public void testAlwaysPolicyForcesEveryRecord() throws Exception {
+        pipeline.setPolicy(PersistencePipeline.SyncPolicy.ALWAYS);
+        File file = new File(DIR, "always.txt");
+        long forces = pipeline.getForces();
+        appendBehindBlockedWriter(file);
+
+        assertEquals("Every append should be written", 50, Files.readAllLines(file.toPath()).size());
+        assertTrue("Every record should be forced on its own", pipeline.getForces() - forces >= 51);
+    }
+
+    @Test
+    public void testNonePolicyNeverForces() throws Exception {
+        pipeline.setPolicy(PersistencePipeline.SyncPolicy.NONE);
+        long forces = pipeline.getForces();
+        appendBehindBlockedWriter(new File(DIR, "none.txt"));
+        assertEquals("Nothing should be forced", forces, pipeline.getForces());
+    }
+
+    @Test
+    public void testPublishKeepsTheGenerationBeingRead() throws Exception {
+        File file = new File(DIR, "published.txt");
+        PersistencePipeline.await(pipeline.publish(file, "first generation\n".getBytes(StandardCharsets.UTF_8)));
+        try (InputStream reader = new FileInputStream(file)) {
+            // A new generation is renamed over the file while the first one is still open
+            PersistencePipeline.await(pipeline.publish(file, "second generation\n".getBytes(StandardCharsets.UTF_8)));
+            assertEquals("The open reader should keep its generation", "first generation\n",
+                new String(reader.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertEquals("A new reader should see the new generation", "second generation\n",
+            new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        assertFalse("No temporary file should be left", new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testPublishForcesTheDirectory() throws Exception {
+        pipeline.setPolicy(PersistencePipeline.SyncPolicy.ALWAYS);
+        long forces = pipeline.getForces();
+        PersistencePipeline.await(pipeline.publish(new File(DIR, "durable.txt"), "generation\n".getBytes(StandardCharsets.UTF_8)));
+        int expected = System.getProperty("os.name").startsWith("Windows") ? 1 : 2; // Directories cannot be forced on Windows
+        assertEquals("The file and its directory should be forced", expected, pipeline.getForces() - forces);
+    }
+
+    @Test
+    public void testFailingRecordFailsAlone() throws Exception {
+        File file = new File(DIR, "isolated.txt");
+        CountDownLatch release = blockWriter(new File(DIR, "blocker.txt"));
+        CompletableFuture<Void> first = pipeline.append(file, "first\n".getBytes(StandardCharsets.UTF_8));
+        CompletableFuture<Void> failing = pipeline.mutate(file, current -> { throw new IllegalStateException("damaged"); });
+        CompletableFuture<Void> last = pipeline.append(file, "last\n".getBytes(StandardCharsets.UTF_8));
+        release.countDown();
+
+        PersistencePipeline.await(first);
+        PersistencePipeline.await(last);
+        try {
+            PersistencePipeline.await(failing);
+            fail("The failing mutation should be reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("damaged"));
+        }
+        assertEquals("The other records of the batch should be written", Arrays.asList("first", "last"), Files.readAllLines(file.toPath()));
+    }
+
+    @Test
+    public void testSharedLocksDoNotWaitForEachOther() throws Exception {
+        File file = new File(DIR, "shared.txt");
+        Files.write(file.toPath(), "content\n".getBytes(StandardCharsets.UTF_8));
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileLocks.Lock lock = FileLocks.lock(raf.getChannel(), file, true, "test read");
+            try {
+                // Another reader of the process gets in at once, a writer does not
+                assertTrue("A second reader should not wait", other.submit(() -> {
+                    try (RandomAccessFile reader = new RandomAccessFile(file, "r");
+                         FileLocks.Lock second = FileLocks.tryLock(reader.getChannel(), file, true, "test read")) {
+                        return second != null;
+                    }
+                }).get(5, TimeUnit.SECONDS));
+                assertTrue("A writer should wait for the reader", other.submit(() -> {
+                    try (RandomAccessFile writer = new RandomAccessFile(file, "rw");
+                         FileLocks.Lock exclusive = FileLocks.tryLock(writer.getChannel(), file, false, "test write")) {
+                        return exclusive == null;
+                    }
+                }).get(5, TimeUnit.SECONDS));
+            } finally {
+                lock.release();
+            }
+        } finally {
+            other.shutdown();
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileLocks.Lock lock = FileLocks.lock(raf.getChannel(), file, false, "test write");
+            try {
+                assertNotNull("The holder should be recorded while the lock is held", FileLocks.readHolder(file));
+            } finally {
+                lock.release();
+            }
+        }
+        assertFalse("The holder record should be deleted on release", new File(file.getPath() + ".holder").exists());
+    }
+
+    @Test
+    public void testOverlappingRangesWait() throws Exception {
+        File file = new File(DIR, "ranges.txt");
+        Files.write(file.toPath(), new byte[64]);
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileLocks.Lock lock = FileLocks.lockRange(raf.getChannel(), file, 10, 20, false, "test range");
+            try {
+                // A range starting inside the held one is refused instead of failing in the JVM, a disjoint one is not
+                assertTrue("An overlapping range should be locked", other.submit(() -> {
+                    try (RandomAccessFile second = new RandomAccessFile(file, "rw");
+                         FileLocks.Lock overlapping = FileLocks.tryLockRange(second.getChannel(), file, 20, 20, false, "test range")) {
+                        return overlapping == null;
+                    }
+                }).get(5, TimeUnit.SECONDS));
+                assertTrue("A disjoint range should be free", other.submit(() -> {
+                    try (RandomAccessFile second = new RandomAccessFile(file, "rw");
+                         FileLocks.Lock disjoint = FileLocks.tryLockRange(second.getChannel(), file, 30, 20, false, "test range")) {
+                        return disjoint != null;
+                    }
+                }).get(5, TimeUnit.SECONDS));
+            } finally {
+                lock.release();
+            }
+        } finally {
+            other.shutdown();
+        }
+    }
+}
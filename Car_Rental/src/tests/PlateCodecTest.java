@@ -0,0 +1,66 @@
+package tests;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import utils.*;
+
+public class PlateCodecTest {
+
+    @Test
+    public void testRoundTrip() {
+        String[] plates = {"AAA-000", "ABC-123", "ZZZ-999", "MNO-040"};
+        for (String plate : plates) {
+            int code = PlateCodec.encode(plate);
+            assertTrue("Standard plates should have a storable code", PlateCodec.isStandard(code));
+            assertEquals(plate, PlateCodec.decode(code));
+        }
+        assertEquals(0, PlateCodec.encode("AAA-000"));
+        assertEquals(PlateCodec.PLATE_COUNT - 1, PlateCodec.encode("ZZZ-999"));
+    }
+
+    @Test
+    public void testCodesKeepPlateOrder() {
+        assertTrue(PlateCodec.encode("ABC-123") < PlateCodec.encode("ABC-124"));
+        assertTrue(PlateCodec.encode("ABC-999") < PlateCodec.encode("ABD-000"));
+    }
+
+    @Test
+    public void testNonStandardPlates() {
+        assertEquals(PlateCodec.NONE, PlateCodec.lookup("NEVER-SEEN"));
+        int code = PlateCodec.encode("TEST-1");
+        assertFalse("Non-standard plates should not be storable", PlateCodec.isStandard(code));
+        assertEquals(code, PlateCodec.encode("TEST-1"));
+        assertEquals(code, PlateCodec.lookup("TEST-1"));
+        assertEquals("TEST-1", PlateCodec.decode(code));
+    }
+
+    @Test
+    public void testIntHashMap() {
+        IntHashMap<String> map = new IntHashMap<>();
+        for (int i = 0; i < 1000; i++) map.put(i * 7, "v" + i);
+        assertEquals(1000, map.size());
+        for (int i = 0; i < 1000; i += 2) assertEquals("v" + i, map.remove(i * 7));
+        assertEquals(500, map.size());
+        for (int i = 0; i < 1000; i++) {
+            if (i % 2 == 0) assertNull(map.get(i * 7));
+            else assertEquals("v" + i, map.get(i * 7));
+        }
+    }
+
+    @Test
+    public void testPlateRange() {
+        try {
+            PlateRange.setRange(1, 3);
+            Storage storage = MemoryStorage.create();
+            for (int i = 0; i < 100; i++) {
+                int code = PlateCodec.encode(storage.plates().allocate());
+                assertEquals("Node 1 of 3 should only hand out its own plates", 1, code % 3);
+                assertTrue(PlateRange.contains(code));
+            }
+            assertFalse(PlateRange.contains(3));
+            assertFalse("A node index out of the range should be refused", PlateRange.parse("3/3"));
+        } finally {
+            PlateRange.setRange(0, 1);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package tests;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.io.*;
+import classes.*;
+import utils.*;
+
+public class RecordReaderTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("records", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void write(String content) throws IOException {
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+    }
+
+    @Test
+    public void testParsesFields() throws IOException {
+        write("ABC-123,sedan,1500,true\r\nXYZ-999, VAN ,0,false\n\nCity: Paris\nBalance:-12.5");
+        try (RecordReader reader = RecordReader.open(file)) {
+            assertTrue(reader.nextLine());
+            assertEquals(PlateCodec.encode("ABC-123"), reader.readPlate());
+            assertTrue(reader.expect(','));
+            assertEquals(VehicleType.SEDAN, reader.readType());
+            assertTrue(reader.expect(','));
+            assertEquals(1500, reader.readInt());
+            assertTrue(reader.expect(','));
+            assertTrue(reader.readBoolean());
+            assertTrue(reader.atEnd());
+
+            assertTrue(reader.nextLine());
+            assertEquals(PlateCodec.encode("XYZ-999"), reader.readPlate());
+            reader.expect(',');
+            assertEquals(VehicleType.VAN, reader.readType());
+            reader.expect(',');
+            assertEquals(0, reader.readInt());
+            reader.expect(',');
+            assertFalse(reader.readBoolean());
+
+            assertTrue(reader.nextLine());
+            assertTrue(reader.isBlank());
+
+            assertTrue(reader.nextLine());
+            assertTrue(reader.startsWith("City:"));
+            reader.skip(5);
+            assertEquals("Paris", reader.readRest());
+
+            assertTrue("Last line without terminator should be read", reader.nextLine());
+            reader.skipPast(':');
+            assertEquals(-1250, reader.readCents());
+            assertFalse(reader.nextLine());
+        }
+    }
+
+    @Test
+    public void testLinesAcrossChunks() throws IOException {
+        // Enough lines to span several buffer refills, plus one line longer than a chunk
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 20000; i++) content.append(PlateCodec.decode(i)).append(",SUV,").append(i).append('\n');
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 100000; i++) longLine.append('x');
+        content.append(longLine).append('\n').append("END\n");
+        write(content.toString());
+
+        try (RecordReader reader = RecordReader.open(file)) {
+            for (int i = 0; i < 20000; i++) {
+                assertTrue(reader.nextLine());
+                assertEquals(i, reader.readPlate());
+                reader.expect(',');
+                assertEquals(VehicleType.SUV, reader.readType());
+                reader.expect(',');
+                assertEquals(i, reader.readInt());
+            }
+            assertTrue(reader.nextLine());
+            assertEquals(100000, reader.lineLength());
+            assertTrue(reader.nextLine());
+            assertTrue(reader.startsWith("END"));
+            assertFalse(reader.nextLine());
+        }
+    }
+
+    @Test
+    public void testNumberOverflow() throws IOException {
+        try (RecordReader reader = new RecordReader("9223372036854775807".getBytes())) {
+            assertTrue(reader.nextLine());
+            assertEquals(Long.MAX_VALUE, reader.readLong());
+        }
+        // Digit runs past the range are refused instead of wrapping to a valid-looking number
+        for (String line : new String[] { "9223372036854775808", "-99999999999999999999", "18446744073709551617" }) {
+            try (RecordReader reader = new RecordReader(line.getBytes())) {
+                assertTrue(reader.nextLine());
+                reader.readLong();
+                fail("A number out of range should be refused: " + line);
+            } catch (NumberFormatException e) {
+                // Expected
+            }
+        }
+        try (RecordReader reader = new RecordReader("18446744073709551617".getBytes())) {
+            assertTrue(reader.nextLine());
+            reader.readInt();
+            fail("A wrapped long should not pass the int range check");
+        } catch (NumberFormatException e) {
+            // Expected
+        }
+    }
+}
@@ -76,6 +76,7 @@ public class RentalShopTest {
         // Clean up files
         if (shopFile.exists()) shopFile.delete();
         if (rentalFile.exists()) rentalFile.delete();
+        RentalStartIndex.indexFile(rentalFile).delete();
         if (testLotFile.exists()) testLotFile.delete();
         
         // Restore output streams
@@ -158,7 +159,7 @@ public class RentalShopTest {
         assertNotNull("License plate should be found in rental file", licensePlate);
         
         // Get initial balance
-        double initialBalance = shop.getBalance();
+        long initialBalance = shop.getBalance();
         
         // Return the vehicle
         Method returnVehicleMethod = RentalShop.class.getDeclaredMethod("returnVehicle", String.class, int.class);
@@ -248,6 +249,40 @@ public class RentalShopTest {
         shop.processCommand("INVALID_COMMAND");
         assertTrue("Invalid command should display error message", 
             outContent.toString().contains("ERROR: Unknown command"));
+
+        // Numbers that do not parse are reported, not thrown
+        outContent.reset();
+        assertFalse("OVERDUE should reject a day count that is not a number", shop.processCommand("OVERDUE soon"));
+        assertFalse("OLDEST should reject a count that is not a number", shop.processCommand("OLDEST many"));
+        assertTrue("Invalid numbers should display error messages",
+            outContent.toString().contains("ERROR: Invalid number of days") && outContent.toString().contains("ERROR: Invalid number of rentals"));
+        outContent.reset();
+        assertFalse("TRANSFER should reject a count that is not a number", shop.processCommand("TRANSFER otherCity SEDAN few"));
+        assertTrue("An invalid count should display an error message", outContent.toString().contains("ERROR: Invalid number of vehicles"));
+    }
+    
+    @Test
+    public void testWhereCommand() throws Exception {
+        // Vehicles pulled from the lot during initialization are at the shop
+        Vehicle parked = shop.getVehicles().iterator().next();
+        shop.processCommand("WHERE " + parked.getLicensePlate());
+        assertTrue("WHERE should locate a parked vehicle at the shop", 
+            outContent.toString().contains("is at shop: " + TEST_CITY));
+        
+        // Renting the vehicle moves it to the rented state
+        Method rentVehicleMethod = RentalShop.class.getDeclaredMethod("rentVehicle", String.class);
+        rentVehicleMethod.setAccessible(true);
+        rentVehicleMethod.invoke(shop, parked.getType().name());
+        outContent.reset();
+        shop.processCommand("WHERE " + parked.getLicensePlate());
+        assertTrue("WHERE should report a rented vehicle", 
+            outContent.toString().contains("is currently rented"));
+        
+        // Unknown plates are reported as errors
+        outContent.reset();
+        shop.processCommand("WHERE ZZZ-000");
+        assertTrue("WHERE should report unknown vehicles", 
+            outContent.toString().contains("ERROR: Vehicle ZZZ-000 not found"));
     }
     
     @Test
@@ -269,4 +304,512 @@ public class RentalShopTest {
         assertTrue("Some vehicles should be redistributed", 
             outContent.toString().contains("Moving"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testInMemoryStorage() throws Exception {
+        // A shop on the in-memory storage never touches the data files
+        Storage storage = MemoryStorage.create();
+        List<Vehicle> parked = new ArrayList<>();
+        parked.add(new Vehicle("MEM-001", "SEDAN", 0));
+        parked.add(new Vehicle("MEM-002", "SUV", 0));
+        storage.lots().write("memLot", parked);
+        RentalShop memoryShop = new RentalShop(storage, "memCity", 4, Arrays.asList("memLot"));
+
+        assertEquals("Shop should have pulled the lot vehicles", 2, memoryShop.getVehicles().size());
+        assertTrue("RENT should succeed", memoryShop.processCommand("RENT SEDAN"));
+        assertNotNull("Rental should be registered", storage.rentals().find("MEM-001"));
+        assertTrue("RETURN should succeed", memoryShop.processCommand("RETURN MEM-001 100"));
+        assertNull("Rental should be closed", storage.rentals().find("MEM-001"));
+        assertEquals("Return should be recorded", 1, storage.shops().load("memCity").getTransactions().size());
+        assertFalse("No shop file should be written",
+            new File(SHOPS_DIR + File.separator + "memCity.txt").exists());
+    }
+
+    @Test
+    public void testPageStorage() throws Exception {
+        // Enough vehicles to split the tree pages, the shop works on the page file only
+        File store = File.createTempFile("carrental", ".db");
+        store.delete();
+        Storage storage = PageStorage.open(store);
+        List<Vehicle> parked = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) parked.add(new Vehicle(PlateCodec.decode(i), (i % 2 == 0) ? VehicleType.SEDAN : VehicleType.SUV, i));
+        PersistencePipeline.await(storage.lots().write("pageLot", parked));
+        assertEquals("Lot should hold every vehicle", 2000, storage.lots().read("pageLot").size());
+
+        RentalShop pageShop = new RentalShop(storage, "pageCity", 4, Arrays.asList("pageLot"));
+        assertEquals("Shop should have pulled the first arrivals", 2, pageShop.getVehicles().size());
+        assertEquals("Pulled vehicles should leave the lot", 1998, storage.lots().read("pageLot").size());
+        assertTrue("RENT should succeed", pageShop.processCommand("RENT SEDAN"));
+        assertNotNull("Rental should be registered", storage.rentals().find("AAA-000"));
+        assertEquals("Vehicle should be rented", LocationIndex.Kind.RENTED, storage.locations().where("AAA-000").getKind());
+        assertEquals("Oldest rental should be listed", 1, storage.rentals().oldest(10).size());
+        assertTrue("RETURN should succeed", pageShop.processCommand("RETURN AAA-000 100"));
+        assertNull("Rental should be closed", storage.rentals().find("AAA-000"));
+        assertEquals("Return should be recorded", 1, storage.shops().load("pageCity").getTransactions().size());
+        assertEquals("Odometer should be updated", 100, storage.shops().load("pageCity").getVehicles().get("AAA-000").getOdometer());
+        assertFalse("No shop file should be written", new File(SHOPS_DIR + File.separator + "pageCity.txt").exists());
+        store.deleteOnExit();
+        new File(store.getPath() + ".wal").deleteOnExit();
+    }
+
+    @Test
+    public void testMileageQueries() throws Exception {
+        // The page store keeps the odometer tree with the vehicle records, a return moves the vehicle in it
+        File store = File.createTempFile("carrental", ".db");
+        store.delete();
+        Storage storage = PageStorage.open(store);
+        List<Vehicle> parked = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) parked.add(new Vehicle(PlateCodec.decode(i), VehicleType.SEDAN, i * 10));
+        PersistencePipeline.await(storage.lots().write("mileageLot", parked));
+        assertEquals("Highest odometer should come first", 9990, storage.locations().highest(3).get(0).getOdometer());
+        assertEquals("Range should be inclusive", 3, storage.locations().range(100, 120, 10).size());
+
+        RentalShop shop = new RentalShop(storage, "mileageCity", 4, Arrays.asList("mileageLot"));
+        assertTrue("RENT should succeed", shop.processCommand("RENT SEDAN"));
+        assertTrue("RETURN should succeed", shop.processCommand("RETURN AAA-000 20000"));
+        OdometerIndex.Entry top = storage.locations().highest(1).get(0);
+        assertEquals("Returned vehicle should lead the ranking", "AAA-000", top.getLicensePlate());
+        assertEquals("Ranking should hold the new odometer", 20000, top.getOdometer());
+        assertTrue("Old odometer should be gone", storage.locations().range(0, 0, 10).isEmpty());
+        assertTrue("MILEAGE TOP should succeed", shop.processCommand("MILEAGE TOP 5"));
+        assertFalse("MILEAGE without a query should fail", shop.processCommand("MILEAGE"));
+        assertFalse("MILEAGE TOP should reject a count that is not a number", shop.processCommand("MILEAGE TOP ten"));
+        assertFalse("MILEAGE RANGE should reject bounds that are not numbers", shop.processCommand("MILEAGE RANGE 0 lots"));
+        store.deleteOnExit();
+        new File(store.getPath() + ".wal").deleteOnExit();
+    }
+
+    @Test
+    public void testEventLog() throws Exception {
+        // The events of a command are readable from the offset the consumer stopped at
+        File log = EventLog.logFile(DataPaths.ROOT);
+        long offset = EventLog.end(log);
+        EventLog.setEnabled(true);
+        try {
+            assertTrue("RENT should succeed", shop.processCommand("RENT SEDAN"));
+            assertTrue("RETURN should succeed", shop.processCommand("RETURN ABC-123 30"));
+            assertFalse("A failed command should log nothing", shop.processCommand("RETURN ABC-123 30"));
+        } finally {
+            EventLog.setEnabled(false);
+        }
+        List<EventLog.Event> events = EventLog.read(log, offset, 1 << 16);
+        List<String> types = new ArrayList<>();
+        for (EventLog.Event event : events) types.add(event.getType());
+        assertEquals("Events should follow the commands",
+            Arrays.asList("VehicleRented", "VehicleReturned", "TransactionRecorded"), types);
+        assertEquals("Event should name the vehicle", "ABC-123", events.get(0).getLicensePlate());
+        assertTrue("Nothing should follow the last event", EventLog.read(log, events.get(2).getNextOffset(), 1 << 16).isEmpty());
+        assertTrue("WATCH should succeed", shop.processCommand("WATCH " + TEST_CITY + " " + offset));
+        assertTrue("WATCH should print the shop events", outContent.toString().contains("VehicleReturned " + TEST_CITY + " ABC-123"));
+        assertFalse("TAIL inside an event should fail", shop.processCommand("TAIL " + (offset + 1)));
+        assertFalse("TAIL should reject an offset that is not a number", shop.processCommand("TAIL start"));
+        assertFalse("WATCH should reject a limit that is not a number", shop.processCommand("WATCH " + TEST_CITY + " 0 all"));
+    }
+
+    private static List<String> plates(List<RentInfo> rentals) {
+        List<String> plates = new ArrayList<>();
+        for (RentInfo rentInfo : rentals) plates.add(rentInfo.getVehicle().getLicensePlate());
+        return plates;
+    }
+
+    @Test
+    public void testOldestRentalsFollowStartTimes() throws Exception {
+        // Written out of start time order, the late line of a rental started first included
+        long now = System.currentTimeMillis();
+        String[] plates = { "IDX-003", "IDX-001", "IDX-004", "IDX-002" };
+        long[] starts = { now - 3_000_000, now - 9_000_000, now - 1_000, now - 5_000_000 };
+        for (int i = 0; i < plates.length; i++) {
+            assertTrue("Rental should be written", RentalFileManager.addToRentalFile(
+                new RentInfo(new Vehicle(plates[i], VehicleType.SEDAN, 0), false, starts[i], TEST_CITY)));
+        }
+        assertEquals(Arrays.asList("IDX-001", "IDX-002"), plates(RentalFileManager.oldestRentals(2)));
+        assertEquals(Arrays.asList("IDX-001", "IDX-002", "IDX-003"), plates(RentalFileManager.rentalsOlderThan(now - 1_000_000)));
+        assertTrue("Nothing started before the first rental", RentalFileManager.rentalsOlderThan(now - 10_000_000).isEmpty());
+
+        // A return moves the later lines, the index follows
+        assertTrue("Rental should be removed", RentalFileManager.removeFromRentalFile("IDX-002"));
+        assertEquals(Arrays.asList("IDX-001", "IDX-003", "IDX-004"), plates(RentalFileManager.oldestRentals(10)));
+
+        // A missing index, or one that does not describe the file, is rebuilt
+        File index = RentalStartIndex.indexFile(rentalFile);
+        assertTrue("Index should be written", index.delete());
+        assertEquals(Arrays.asList("IDX-001", "IDX-003"), plates(RentalFileManager.oldestRentals(2)));
+        assertTrue("Index should be rebuilt", index.exists());
+        try (FileOutputStream out = new FileOutputStream(rentalFile, true)) {
+            out.write(("IDX-005,VAN,0,false," + (now - 20_000_000) + "," + TEST_CITY + "\n").getBytes("UTF-8"));
+        }
+        assertEquals(Arrays.asList("IDX-005", "IDX-001"), plates(RentalFileManager.oldestRentals(2)));
+
+        // The shop commands
+        assertTrue("OLDEST should succeed", shop.processCommand("OLDEST 2"));
+        String output = outContent.toString();
+        assertTrue("OLDEST should list the oldest rentals first",
+            output.indexOf("IDX-005") >= 0 && output.indexOf("IDX-005") < output.indexOf("IDX-001") && !output.contains("IDX-003"));
+        outContent.reset();
+        assertTrue("OVERDUE should succeed", shop.processCommand("OVERDUE 0"));
+        assertTrue("OVERDUE should count every rental started before now", outContent.toString().contains("Total: 4"));
+    }
+
+    @Test
+    public void testCrashRecovery() throws Exception {
+        assertTrue("RENT should succeed", shop.processCommand("RENT SEDAN"));
+        assertTrue("RENT should succeed", shop.processCommand("RENT SUV"));
+        byte[] rentals = java.nio.file.Files.readAllBytes(rentalFile.toPath());
+
+        // A line cut by a crash at the end of the rentals is dropped
+        try (FileOutputStream out = new FileOutputStream(rentalFile, true)) {
+            out.write("GHI-789,VA".getBytes("UTF-8"));
+        }
+        CrashRecovery.recover();
+        assertArrayEquals("Torn line should be dropped", rentals, java.nio.file.Files.readAllBytes(rentalFile.toPath()));
+
+        // A rewrite cut after its journal is written again, a torn journal is dropped
+        File journal = PersistencePipeline.journalFile(rentalFile);
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        crc.update(rentals);
+        java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(16).putInt(0, 0x4A524E31).putInt(4, rentals.length).putInt(8, (int) crc.getValue());
+        try (FileOutputStream out = new FileOutputStream(journal)) {
+            out.write(header.array());
+            out.write(rentals);
+        }
+        try (FileOutputStream out = new FileOutputStream(rentalFile)) {
+            out.write(rentals, 0, 7);
+        }
+        assertTrue("Journal should be replayed", PersistencePipeline.recoverJournal(rentalFile));
+        assertArrayEquals("Rewrite should be finished", rentals, java.nio.file.Files.readAllBytes(rentalFile.toPath()));
+        try (FileOutputStream out = new FileOutputStream(journal)) {
+            out.write(header.array());
+            out.write(rentals, 0, 5);
+        }
+        assertFalse("Torn journal should be dropped", PersistencePipeline.recoverJournal(rentalFile));
+        assertEquals("Journal should be emptied", 0, journal.length());
+        journal.delete();
+
+        // Shop files carry a checksum of their content
+        assertTrue("Saved shop should be valid", ShopPersistanceManager.verifyShop(shopFile));
+        File truncated = File.createTempFile("shop", ".txt");
+        byte[] bytes = java.nio.file.Files.readAllBytes(shopFile.toPath());
+        java.nio.file.Files.write(truncated.toPath(), Arrays.copyOf(bytes, bytes.length - 4));
+        assertFalse("Truncated shop should be detected", ShopPersistanceManager.verifyShop(truncated));
+        truncated.delete();
+    }
+
+    // Cut the end of the shop file as a crash during its save would, keeping the time of the save
+    private void damageShopFile() throws IOException {
+        long saved = shopFile.lastModified();
+        byte[] bytes = java.nio.file.Files.readAllBytes(shopFile.toPath());
+        java.nio.file.Files.write(shopFile.toPath(), Arrays.copyOf(bytes, bytes.length - 4));
+        shopFile.setLastModified(saved);
+    }
+
+    private static boolean hasVehicle(RentalShop shop, String licensePlate) {
+        for (Vehicle vehicle : shop.getVehicles()) if (vehicle.getLicensePlate().equals(licensePlate)) return true;
+        return false;
+    }
+
+    @Test
+    public void testRestoreFromCheckpoint() throws Exception {
+        File checkpoints = new File(DataPaths.ROOT, "checkpoint");
+        File corrupt = new File(shopFile.getPath() + ".corrupt");
+        boolean logging = ChangeLog.isEnabled();
+        try {
+            // The change log is written by default, a damaged shop comes back as last saved
+            assertTrue("The change log should be written while checkpoints are taken", ChangeLog.isEnabled());
+            CrashRecovery.checkpoint();
+            assertTrue("RENT should succeed", shop.processCommand("RENT SEDAN"));
+            damageShopFile();
+            outContent.reset();
+            CrashRecovery.recover();
+            assertTrue("The shop should be restored", outContent.toString().contains("INFO: Recovery restored shop " + TEST_CITY));
+            RentalShop restored = ShopPersistanceManager.loadShop(TEST_CITY);
+            assertFalse("The rented vehicle should not be back in the shop", hasVehicle(restored, "ABC-123"));
+            assertTrue("The other vehicles should be in the shop", hasVehicle(restored, "DEF-456"));
+            restored.releaseSnapshot();
+
+            // Without the log the restore misses the later saves, which is reported, and rented vehicles stay out
+            ChangeLog.setEnabled(false);
+            CrashRecovery.checkpoint();
+            shop.processCommand("LIST"); // Reloads the restored shop
+            assertTrue("RENT should succeed", shop.processCommand("RENT SUV"));
+            damageShopFile();
+            outContent.reset();
+            CrashRecovery.recover();
+            assertTrue("The missing changes should be reported",
+                outContent.toString().contains("ERROR: Shop " + TEST_CITY + " was saved after its last logged change"));
+            restored = ShopPersistanceManager.loadShop(TEST_CITY);
+            assertFalse("A vehicle rented after the checkpoint should not reappear", hasVehicle(restored, "DEF-456"));
+            restored.releaseSnapshot();
+        } finally {
+            ChangeLog.setEnabled(logging);
+            corrupt.delete();
+            File[] dirs = checkpoints.listFiles();
+            if (dirs != null) for (File dir : dirs) {
+                File[] files = dir.listFiles();
+                if (files != null) for (File file : files) file.delete();
+                dir.delete();
+            }
+            checkpoints.delete();
+        }
+    }
+
+    @Test
+    public void testLazySnapshotSections() throws Exception {
+        assertTrue("RENT should succeed", shop.processCommand("RENT SEDAN"));
+        assertTrue("RETURN should succeed", shop.processCommand("RETURN ABC-123 25"));
+
+        RentalShop loaded = ShopPersistanceManager.loadShop(TEST_CITY);
+        try {
+            assertNotNull("The generation should stay open for lazy reads", loaded.getSnapshot());
+            assertFalse("Transactions should not be parsed on load", loaded.isTransactionsLoaded());
+            assertEquals("Counting should not parse the transactions", 1, loaded.getTransactionCount());
+            assertFalse("Transactions should still not be parsed", loaded.isTransactionsLoaded());
+
+            // A newer generation is published, the loaded shop still reads its own
+            assertTrue("RENT should succeed", shop.processCommand("RENT SEDAN"));
+            assertEquals("The loaded generation should be read", 1, loaded.getTransactions().size());
+            assertTrue("Transactions should be parsed once read", loaded.isTransactionsLoaded());
+            assertEquals(25, loaded.getTransactions().get(0).getDistance());
+            assertNotNull("The returned sedan should be in the loaded generation", loaded.getVehicles().get("ABC-123"));
+        } finally {
+            loaded.releaseSnapshot();
+        }
+    }
+
+    @Test
+    public void testUnreadableVehiclesAreNotSaved() throws Exception {
+        assertTrue("RENT should succeed", shop.processCommand("RENT SEDAN"));
+        String content = new String(java.nio.file.Files.readAllBytes(shopFile.toPath()), "UTF-8");
+        assertTrue("The shop should park the SUV", content.contains("DEF-456,SUV,0\n"));
+        byte[] damaged = content.replace("DEF-456,SUV,0\n", "DEF-456,SUV,x\n").getBytes("UTF-8");
+        java.nio.file.Files.write(shopFile.toPath(), damaged);
+
+        // The command fails before any change, the file keeps every vehicle line
+        assertFalse("RETURN should fail on an unreadable shop", shop.processCommand("RETURN ABC-123 10"));
+        assertFalse("RENT should fail on an unreadable shop", shop.processCommand("RENT VAN"));
+        assertArrayEquals("The shop file should be left as is", damaged, java.nio.file.Files.readAllBytes(shopFile.toPath()));
+        assertNotNull("The rental should be kept", RentalFileManager.checkRentalRecord("ABC-123"));
+
+        // A shop released before its sections were read cannot be saved over the file either
+        RentalShop loaded = ShopPersistanceManager.loadShop(TEST_CITY);
+        loaded.releaseSnapshot();
+        assertFalse("A shop with dropped sections should not be saved", ShopPersistanceManager.saveShop(loaded));
+        assertArrayEquals(damaged, java.nio.file.Files.readAllBytes(shopFile.toPath()));
+    }
+
+    @Test
+    public void testTransactionArchive() throws Exception {
+        File archive = TransactionArchive.directory(TEST_CITY);
+        TransactionArchive.setLimits(1, 0, 2);
+        try {
+            for (int i = 1; i <= 4; i++) {
+                assertTrue("RENT should succeed", shop.processCommand("RENT SEDAN"));
+                assertTrue("RETURN should succeed", shop.processCommand("RETURN ABC-123 " + (i * 10)));
+            }
+            long balance = shop.getBalance();
+            assertTrue("ARCHIVE should succeed", shop.processCommand("ARCHIVE"));
+
+            // Whole segments leave the shop, the balance and the total count are kept
+            assertEquals("Only the newest transactions should be kept", 2, shop.getTransactions().size());
+            assertEquals("Archived transactions should still be counted", 4, shop.getTransactionCount());
+            assertEquals("Balance should not change", balance, shop.getBalance());
+            assertEquals("Archived count should be saved", 2, ShopPersistanceManager.loadShop(TEST_CITY).getArchivedCount());
+            List<TransactionArchive.Segment> segments = TransactionArchive.segments(TEST_CITY, 2);
+            assertEquals(1, segments.size());
+            assertEquals("Summary should total the segment", 3000, segments.get(0).getTotal());
+            assertEquals("ABC-123", segments.get(0).getLowestPlate());
+
+            // The archived transactions are streamed back before the kept ones
+            List<Integer> distances = new ArrayList<>();
+            try (java.util.stream.Stream<Transaction> all = shop.streamAllTransactions()) {
+                all.forEach(transaction -> distances.add(transaction.getDistance()));
+            }
+            assertEquals(Arrays.asList(10, 20, 30, 40), distances);
+            outContent.reset();
+            assertTrue("TRANSACTIONS --all should succeed", shop.processCommand("TRANSACTIONS --all"));
+            assertTrue("Archived transactions should be printed", outContent.toString().contains("Distance: 10 km"));
+            outContent.reset();
+            assertTrue("TRANSACTIONS should succeed", shop.processCommand("TRANSACTIONS"));
+            assertFalse("Only the kept transactions should be printed", outContent.toString().contains("Distance: 10 km"));
+
+            // Archived transactions without their summary are an error, not an empty archive
+            assertTrue(new File(archive, "segments.txt").delete());
+            try {
+                TransactionArchive.segments(TEST_CITY, 2);
+                fail("A missing summary should be reported");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("Missing archive summary"));
+            }
+        } finally {
+            TransactionArchive.setLimits(10_000, 0, 1_000);
+            File[] files = archive.listFiles();
+            if (files != null) for (File file : files) file.delete();
+            archive.delete();
+        }
+    }
+
+    @Test
+    public void testParallelLotProbing() throws Exception {
+        Storage storage = Storage.get();
+        List<String> lots = Arrays.asList("probeLotA", "probeLotB");
+        PersistencePipeline.await(storage.lots().write("probeLotA", Arrays.asList(new Vehicle("PRB-001", "SEDAN", 0))));
+        PersistencePipeline.await(storage.lots().write("probeLotB", Arrays.asList(new Vehicle("PRB-002", "SEDAN", 0), new Vehicle("PRB-003", "SUV", 0))));
+        try {
+            // Both lots have a sedan, only the first one to answer gives it
+            List<String> busy = new ArrayList<>();
+            VehicleRetrival retrival = LotProber.probe(storage, lots, VehicleType.SEDAN, TEST_CITY, busy);
+            assertNotNull("A free lot should supply the vehicle", retrival);
+            int sedans = 0;
+            for (String lot : lots) {
+                for (Vehicle vehicle : storage.lots().read(lot)) if (vehicle.getType() == VehicleType.SEDAN) sedans++;
+            }
+            assertEquals("Exactly one vehicle should leave the lots", 1, sedans);
+
+            assertNull("No lot has a van", LotProber.probe(storage, lots, VehicleType.VAN, TEST_CITY, busy));
+            assertTrue("No lot was locked", busy.isEmpty());
+
+            // A locked lot is left for the sequential pull
+            File lotB = LotFileManager.lotFile("probeLotB");
+            try (RandomAccessFile raf = new RandomAccessFile(lotB, "rw")) {
+                FileLocks.Lock lock = FileLocks.lock(raf.getChannel(), lotB, false, "test");
+                try {
+                    assertNull("The locked lot should not be read", LotProber.probe(storage, lots, VehicleType.SUV, TEST_CITY, busy));
+                    assertEquals(Arrays.asList("probeLotB"), busy);
+                } finally {
+                    lock.release();
+                }
+            }
+            assertFalse("The holder record should go with the lock", new File(lotB.getPath() + ".holder").exists());
+            assertEquals("The locked lot should keep its SUV", 1, storage.lots().read("probeLotB").stream()
+                .filter(vehicle -> vehicle.getType() == VehicleType.SUV).count());
+        } finally {
+            for (String lot : lots) {
+                File file = LotFileManager.lotFile(lot);
+                for (String suffix : Arrays.asList("", ".journal")) new File(file.getPath() + suffix).delete();
+            }
+        }
+    }
+
+    @Test
+    public void testReplicaAppliesChangesOnce() throws Exception {
+        File primary = java.nio.file.Files.createTempDirectory("carrental-primary").toFile();
+        File log = ChangeLog.logFile(primary.getPath());
+        File state = new File(DataPaths.ROOT, "replica.state");
+        File replicaShop = new File(SHOPS_DIR + File.separator + "replCity.txt");
+        try {
+            // Two saves of a shop, each logging only the transaction it added, and the rentals in between
+            RentalShop logged = new RentalShop(null, "replCity");
+            logged.setTransactions(new ArrayList<>());
+            logged.setSpaces(5);
+            logged.addTransaction(new Transaction("REP-001", 10, false, 1000, 1));
+            String firstSave = ChangeLog.shopChange(logged);
+            logged.markSaved();
+            logged.addTransaction(new Transaction("REP-002", 20, true, 1800, 2));
+            String secondSave = ChangeLog.shopChange(logged);
+            assertEquals("A save should log only its own transactions", 1, secondSave.split("\\|", -1)[7].split(";").length);
+            StringBuilder lines = new StringBuilder();
+            for (String change : Arrays.asList(firstSave,
+                    ChangeLog.rentChange(new RentInfo(new Vehicle("REP-001", "SEDAN", 0), false, 1, "replCity")),
+                    ChangeLog.rentChange(new RentInfo(new Vehicle("REP-002", "SUV", 0), false, 2, "replCity")),
+                    ChangeLog.returnChange("REP-001"), secondSave)) {
+                lines.append(System.currentTimeMillis()).append('|').append(change).append('\n');
+            }
+            java.nio.file.Files.write(log.toPath(), lines.toString().getBytes());
+            long lastLine = log.length() - (lines.length() - lines.lastIndexOf("\n", lines.length() - 2) - 1);
+
+            // Apply the log, then every line again, then the last SHOP line a third time
+            for (long from : new long[] { 0, 0, lastLine }) {
+                java.nio.file.Files.write(state.toPath(), (from + ",0\n").getBytes());
+                ReplicaFollower follower = new ReplicaFollower(primary, new File(DataPaths.ROOT));
+                follower.start();
+                follower.poll();
+                assertEquals("The follower should reach the end of the log", log.length(), follower.getOffset());
+            }
+
+            RentalShop replicated = ShopPersistanceManager.loadShop("replCity");
+            assertNotNull("The shop should be replicated", replicated);
+            assertEquals("Applying lines again should not duplicate transactions", 2, replicated.getTransactions().size());
+            assertEquals("The shop should keep the logged spaces", 5, replicated.getSpaces());
+            replicated.releaseSnapshot();
+            assertNull("The returned rental should be closed", RentalFileManager.checkRentalRecord("REP-001"));
+            assertNotNull("The open rental should be replicated", RentalFileManager.checkRentalRecord("REP-002"));
+        } finally {
+            log.delete();
+            primary.delete();
+            state.delete();
+            replicaShop.delete();
+        }
+    }
+
+    // A memory store with one lot of a sedan and an SUV, the starting data of a recording and of its replay
+    private Storage recordingStorage() throws IOException {
+        Storage storage = MemoryStorage.create();
+        PersistencePipeline.await(storage.lots().write("recLot",
+            Arrays.asList(new Vehicle("REC-001", "SEDAN", 0), new Vehicle("REC-002", "SUV", 0))));
+        return storage;
+    }
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        Storage previous = Storage.get();
+        File trace = File.createTempFile("carrental", ".trace");
+        trace.delete();
+        try {
+            // Record a shop start and three commands, one of them failing
+            Storage.setDefault(recordingStorage());
+            CommandRecorder.start(trace);
+            RentalShop recordedShop = new RentalShop("recCity", 4, Arrays.asList("recLot"));
+            assertTrue("RENT should succeed", recordedShop.processCommand("RENT SEDAN"));
+            assertFalse("RETURN of an unknown vehicle should fail", recordedShop.processCommand("RETURN ZZZ-999 10"));
+            assertTrue("RETURN should succeed", recordedShop.processCommand("RETURN REC-001 120"));
+            CommandRecorder.stop();
+
+            List<CommandRecorder.Entry> entries = CommandRecorder.read(trace);
+            assertEquals("The start and every command should be recorded", 4, entries.size());
+            assertTrue("The shop start should come first", entries.get(0).isShopStarted());
+            assertEquals("The start should keep the spaces", 4, entries.get(0).getSpaces());
+            assertEquals("The start should keep the lots", Arrays.asList("recLot"), entries.get(0).getLots());
+            assertEquals("Commands should keep their order", "RETURN ZZZ-999 10", entries.get(2).getCommand());
+            assertFalse("The failure should be recorded", entries.get(2).isSucceeded());
+            assertTrue("The success should be recorded", entries.get(3).isSucceeded());
+
+            // Replayed on the same starting data, every command gives the recorded result
+            Storage replayed = recordingStorage();
+            Storage.setDefault(replayed);
+            CommandReplay.Result result = CommandReplay.replay(entries, Double.POSITIVE_INFINITY);
+            assertEquals("One shop should be replayed", 1, result.getShops());
+            assertEquals("Every command should be replayed", 3, result.getCommands());
+            assertEquals("The recorded failure should fail again", 1, result.getFailures());
+            assertEquals("No command should differ from the recording", 0, result.getMismatches());
+            assertEquals("The replayed return should be recorded", 1, replayed.shops().load("recCity").getTransactions().size());
+        } finally {
+            CommandRecorder.stop();
+            Storage.setDefault(previous);
+            trace.delete();
+        }
+    }
+
+    @Test
+    public void testTransferAndRebalance() throws Exception {
+        // One full shop and one empty shop of the same size, the vehicles move without touching a lot
+        Storage storage = MemoryStorage.create();
+        List<Vehicle> parked = new ArrayList<>();
+        for (int i = 0; i < 8; i++) parked.add(new Vehicle("TRF-00" + i, (i < 6) ? "SEDAN" : "SUV", 0));
+        storage.lots().write("fullLot", parked);
+        RentalShop full = new RentalShop(storage, "fullCity", 10, Arrays.asList("fullLot"));
+        RentalShop empty = new RentalShop(storage, "emptyCity", 10, new ArrayList<>());
+        assertEquals("Shop should have pulled the lot vehicles", 8, full.getVehicles().size());
+
+        assertTrue("TRANSFER should succeed", full.processCommand("TRANSFER emptyCity SEDAN 2"));
+        assertEquals("Receiver should get the vehicles", 2, storage.shops().load("emptyCity").getVehicles().countOf(VehicleType.SEDAN));
+        assertEquals("Giver should lose the vehicles", 4, storage.shops().load("fullCity").getVehicles().countOf(VehicleType.SEDAN));
+        assertFalse("TRANSFER of a missing type should fail", full.processCommand("TRANSFER emptyCity VAN 1"));
+
+        assertTrue("REBALANCE should succeed", empty.processCommand("REBALANCE fullCity"));
+        for (String city : Arrays.asList("fullCity", "emptyCity")) {
+            Fleet fleet = storage.shops().load(city).getVehicles();
+            assertEquals("Sedans should be split evenly", 3, fleet.countOf(VehicleType.SEDAN));
+            assertEquals("SUVs should be split evenly", 1, fleet.countOf(VehicleType.SUV));
+        }
+        assertEquals("Location should follow the vehicle", LocationIndex.Kind.SHOP, storage.locations().where("TRF-007").getKind());
+    }
+}
@@ -0,0 +1,150 @@
+package tests;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import classes.*;
+import utils.*;
+
+public class ShopServerTest {
+    private final PrintStream originalOut = System.out;
+    private final PrintStream originalErr = System.err;
+    private File dirA;
+    private File dirB;
+    private Storage storeA;
+    private Storage storeB;
+    private ShopServer serverA;
+    private ShopServer serverB;
+    private String addressB;
+    private ClusterRouter router;
+    private String cityA;
+    private String cityB;
+
+    @Before
+    public void setUp() throws IOException {
+        // The nodes print every answer, kept off the console
+        PrintStream quiet = new PrintStream(new ByteArrayOutputStream());
+        System.setOut(quiet);
+        System.setErr(quiet);
+
+        dirA = Files.createTempDirectory("carrental-nodeA").toFile();
+        dirB = Files.createTempDirectory("carrental-nodeB").toFile();
+        storeA = MemoryStorage.create();
+        storeB = MemoryStorage.create();
+        PersistencePipeline.await(storeA.lots().write("lotA", Arrays.asList(
+            new Vehicle("HND-001", "SEDAN", 0), new Vehicle("HND-002", "SUV", 0), new Vehicle("DUP-001", "VAN", 0))));
+        PersistencePipeline.await(storeB.lots().write("lotB", new ArrayList<>()));
+        serverA = new ShopServer(storeA, dirA);
+        serverB = new ShopServer(storeB, dirB);
+        String addressA = "127.0.0.1:" + serverA.listen(0);
+        addressB = "127.0.0.1:" + serverB.listen(0);
+        router = new ClusterRouter(Arrays.asList(addressA, addressB), 64);
+
+        // One city served by each node
+        for (int i = 0; cityA == null || cityB == null; i++) {
+            String city = "city" + i;
+            if (router.owner(city).equals(addressA) && cityA == null) cityA = city;
+            if (router.owner(city).equals(addressB) && cityB == null) cityB = city;
+        }
+        router.route("OPEN " + cityA + " 10 lotA");
+        router.route("OPEN " + cityB + " 10 lotB");
+    }
+
+    @After
+    public void tearDown() {
+        router.close();
+        serverA.close();
+        serverB.close();
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+        for (File dir : new File[] { dirA, dirB }) {
+            File[] files = dir.listFiles();
+            if (files != null) for (File file : files) file.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testHandoffDone() throws IOException {
+        router.route(cityA + " RENT SEDAN");
+        assertNotNull("The vehicle should be rented from the first node", storeA.rentals().find("HND-001"));
+
+        router.route(cityB + " RETURN HND-001 100");
+        assertNull("The rental should leave the first node", storeA.rentals().find("HND-001"));
+        assertNull("The rental should end on the second node", storeB.rentals().find("HND-001"));
+        assertEquals(LocationIndex.Kind.SHOP, storeB.locations().where("HND-001").getKind());
+        assertEquals("The return should be charged once", 1, storeB.shops().load(cityB).getTransactions().size());
+        assertEquals("No handoff should stay open", 0, openHandoffs(dirA));
+    }
+
+    @Test
+    public void testHandoffAbort() throws IOException {
+        router.route(cityA + " RENT SUV");
+        router.route(cityB + " RETURN HND-002 -5"); // Refused by the shop of the second node
+
+        assertNotNull("The rental should be restored on the first node", storeA.rentals().find("HND-002"));
+        assertNull("The second node should not keep the rental", storeB.rentals().find("HND-002"));
+        assertEquals("No handoff should stay open", 0, openHandoffs(dirA));
+    }
+
+    @Test
+    public void testStrandedHandoffs() throws IOException {
+        router.route(cityA + " RENT SUV");
+        String rental = rentalLine(storeA.rentals().find("HND-002"));
+
+        // Left open by a router that stopped before HANDOFF_IN, the rental is restored
+        assertTrue(serverA.handle("HANDOFF_OUT HND-002 " + addressB));
+        assertNull(storeA.rentals().find("HND-002"));
+        assertEquals(1, serverA.reconcileHandoffs());
+        assertNotNull("The rental should be restored on the first node", storeA.rentals().find("HND-002"));
+        assertFalse("A cancelled handoff should be refused", serverB.handle("HANDOFF_IN " + lastId(dirB) + " " + cityB + " " + rental + " 10"));
+
+        // Left open after HANDOFF_IN, sent twice, the return is kept and charged once
+        assertTrue(serverA.handle("HANDOFF_OUT HND-002 " + addressB));
+        String id = openId(dirA);
+        assertTrue(serverB.handle("HANDOFF_IN " + id + " " + cityB + " " + rental + " 10"));
+        assertTrue(serverB.handle("HANDOFF_IN " + id + " " + cityB + " " + rental + " 10"));
+        assertEquals(1, serverA.reconcileHandoffs());
+        assertNull("A handoff done should not be restored", storeA.rentals().find("HND-002"));
+        assertEquals("The return should be charged once", 1, storeB.shops().load(cityB).getTransactions().size());
+        assertEquals(0, openHandoffs(dirA));
+    }
+
+    @Test
+    public void testKnownPlateRefused() throws IOException {
+        router.route(cityA + " RENT VAN");
+        storeB.locations().atLot(PlateCodec.encode("DUP-001"), "lotB");
+
+        router.route(cityB + " RETURN DUP-001 50");
+        assertNotNull("The rental should stay on the first node", storeA.rentals().find("DUP-001"));
+        assertNull(storeB.rentals().find("DUP-001"));
+        assertEquals(0, storeB.shops().load(cityB).getTransactions().size());
+    }
+
+    // Same fields as HANDOFF_OUT prints: plate,type,odometer,discount,start,shop
+    private static String rentalLine(RentInfo rentInfo) {
+        Vehicle vehicle = rentInfo.getVehicle();
+        return vehicle.getLicensePlate() + "," + vehicle.getType() + "," + vehicle.getOdometer() + "," + rentInfo.isDiscount()
+            + "," + rentInfo.getStartTime() + "," + rentInfo.getShop();
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        return file.exists() ? Files.readAllLines(file.toPath()) : new ArrayList<>();
+    }
+
+    private static int openHandoffs(File dir) throws IOException {
+        return lines(new File(dir, "handoffs.txt")).size();
+    }
+
+    private static String openId(File dir) throws IOException {
+        List<String> handoffs = lines(new File(dir, "handoffs.txt"));
+        return handoffs.get(handoffs.size() - 1).split(",")[0];
+    }
+
+    private static String lastId(File dir) throws IOException {
+        List<String> outcomes = lines(new File(dir, "handoffs-in.txt"));
+        return outcomes.get(outcomes.size() - 1).split(",")[0];
+    }
+}
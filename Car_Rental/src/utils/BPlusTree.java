@@ -0,0 +1,290 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * B+tree of long keys and fixed-size values stored in the pages of a PageFile.
+ *
+ * Node layout:
+ *  - header (16 bytes): type (1 = leaf, 2 = internal), entry count, next leaf page
+ *  - leaf entries     : <key:8><value:valueSize>, sorted by key, leaves are linked for range scans
+ *  - internal entries : <first child:4> then <key:8><child:4>, child i+1 holds the keys >= key i
+ * Deleted entries are removed from their leaf without merging nodes, lots and shops shrink and grow back
+ * so the emptied space is reused by the next inserts.
+ */
+public class BPlusTree {
+    private static final int HEADER = 16;
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+    private static final int INTERNAL_CAPACITY = (PageFile.PAGE_SIZE - HEADER - 4) / 12;
+
+    private final int slot;
+    private final int valueSize;
+    private final int leafCapacity;
+
+    /**
+     * Receives the entries of a range scan
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        /**
+         * @param key The key of the entry
+         * @param value A copy of the value of the entry
+         * @return false to stop the scan
+         */
+        boolean visit(long key, byte[] value) throws IOException;
+    }
+
+    /**
+     * @param slot The root slot of the tree in the page file header
+     * @param valueSize The size of the values in bytes
+     */
+    public BPlusTree(int slot, int valueSize) {
+        if (slot < 0 || slot >= PageFile.MAX_ROOTS) throw new IllegalArgumentException("Invalid root slot: " + slot);
+        this.slot = slot;
+        this.valueSize = valueSize;
+        this.leafCapacity = (PageFile.PAGE_SIZE - HEADER) / (8 + valueSize);
+    }
+
+    public int getValueSize() { return valueSize; }
+
+    /**
+     * @return true if the tree holds no entry
+     */
+    public boolean isEmpty(PageFile.Tx tx) throws IOException {
+        int root = tx.root(slot);
+        if (root == 0) return true;
+        boolean[] empty = { true };
+        scan(tx, Long.MIN_VALUE, Long.MAX_VALUE, (key, value) -> empty[0] = false);
+        return empty[0];
+    }
+
+    /**
+     * @return a copy of the value of a key, or null if the key is not in the tree
+     */
+    public byte[] get(PageFile.Tx tx, long key) throws IOException {
+        int root = tx.root(slot);
+        if (root == 0) return null;
+        ByteBuffer leaf = ByteBuffer.wrap(tx.read(findLeaf(tx, root, key)));
+        int index = search(leaf, key);
+        return (index >= 0) ? value(leaf, index) : null;
+    }
+
+    /**
+     * Insert or replace the value of a key
+     * @return true if the key was not in the tree
+     */
+    public boolean put(PageFile.Tx tx, long key, byte[] value) throws IOException {
+        if (value.length != valueSize) throw new IllegalArgumentException("Values of this tree are " + valueSize + " bytes.");
+        int root = tx.root(slot);
+        if (root == 0) {
+            root = tx.allocate();
+            ByteBuffer.wrap(tx.write(root)).put(0, LEAF);
+            tx.setRoot(slot, root);
+        }
+        boolean[] inserted = new boolean[1];
+        long[] split = insert(tx, root, key, value, inserted);
+        if (split != null) {
+            // The root was split, the tree grows by one level
+            int newRoot = tx.allocate();
+            ByteBuffer node = ByteBuffer.wrap(tx.write(newRoot));
+            node.put(0, INTERNAL);
+            node.putShort(2, (short) 1);
+            node.putInt(HEADER, root);
+            node.putLong(HEADER + 4, split[0]);
+            node.putInt(HEADER + 12, (int) split[1]);
+            tx.setRoot(slot, newRoot);
+        }
+        return inserted[0];
+    }
+
+    /**
+     * Remove a key
+     * @return true if the key was in the tree
+     */
+    public boolean delete(PageFile.Tx tx, long key) throws IOException {
+        int root = tx.root(slot);
+        if (root == 0) return false;
+        int pageId = findLeaf(tx, root, key);
+        ByteBuffer leaf = ByteBuffer.wrap(tx.read(pageId));
+        int index = search(leaf, key);
+        if (index < 0) return false;
+        byte[] page = tx.write(pageId);
+        int count = count(ByteBuffer.wrap(page));
+        int entry = 8 + valueSize;
+        System.arraycopy(page, HEADER + (index + 1) * entry, page, HEADER + index * entry, (count - index - 1) * entry);
+        ByteBuffer.wrap(page).putShort(2, (short) (count - 1));
+        return true;
+    }
+
+    /**
+     * Visit the entries whose key is between two bounds, in key order
+     * @param from The first key, included
+     * @param to The last key, included
+     */
+    public void scan(PageFile.Tx tx, long from, long to, Visitor visitor) throws IOException {
+        int root = tx.root(slot);
+        if (root == 0) return;
+        int pageId = findLeaf(tx, root, from);
+        while (pageId != 0) {
+            ByteBuffer leaf = ByteBuffer.wrap(tx.read(pageId));
+            int count = count(leaf);
+            int index = search(leaf, from);
+            for (int i = (index >= 0) ? index : -index - 1; i < count; i++) {
+                long key = key(leaf, i);
+                if (key > to) return;
+                if (!visitor.visit(key, value(leaf, i))) return;
+            }
+            pageId = leaf.getInt(4);
+        }
+    }
+
+    // ----- Nodes -----
+
+    private int findLeaf(PageFile.Tx tx, int pageId, long key) throws IOException {
+        while (true) {
+            ByteBuffer node = ByteBuffer.wrap(tx.read(pageId));
+            if (node.get(0) != INTERNAL) return pageId;
+            pageId = child(node, childIndex(node, key));
+        }
+    }
+
+    // Index of the child holding a key: the number of separators <= key
+    private static int childIndex(ByteBuffer node, long key) {
+        int low = 0;
+        int high = count(node);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (node.getLong(HEADER + 4 + mid * 12) <= key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private static int child(ByteBuffer node, int index) {
+        return (index == 0) ? node.getInt(HEADER) : node.getInt(HEADER + 4 + (index - 1) * 12 + 8);
+    }
+
+    private static int count(ByteBuffer node) {
+        return node.getShort(2) & 0xFFFF;
+    }
+
+    private long key(ByteBuffer leaf, int index) {
+        return leaf.getLong(HEADER + index * (8 + valueSize));
+    }
+
+    private byte[] value(ByteBuffer leaf, int index) {
+        int offset = HEADER + index * (8 + valueSize) + 8;
+        return Arrays.copyOfRange(leaf.array(), offset, offset + valueSize);
+    }
+
+    // Index of a key in a leaf, or (-insertion point - 1) if it is not there
+    private int search(ByteBuffer leaf, long key) {
+        int low = 0;
+        int high = count(leaf) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = key(leaf, mid);
+            if (midKey < key) low = mid + 1;
+            else if (midKey > key) high = mid - 1;
+            else return mid;
+        }
+        return -low - 1;
+    }
+
+    // Insert below a node, returns {separator, new right page} if the node was split
+    private long[] insert(PageFile.Tx tx, int pageId, long key, byte[] value, boolean[] inserted) throws IOException {
+        ByteBuffer node = ByteBuffer.wrap(tx.read(pageId));
+        if (node.get(0) != INTERNAL) return insertInLeaf(tx, pageId, key, value, inserted);
+
+        int index = childIndex(node, key);
+        long[] split = insert(tx, child(node, index), key, value, inserted);
+        if (split == null) return null;
+
+        // Add the separator of the split child after it
+        int count = count(node);
+        long[] keys = new long[count + 1];
+        int[] children = new int[count + 2];
+        children[0] = child(node, 0);
+        for (int i = 0, j = 0; i < count; i++, j++) {
+            if (i == index) {
+                keys[j] = split[0];
+                children[++j] = (int) split[1];
+            }
+            keys[j] = node.getLong(HEADER + 4 + i * 12);
+            children[j + 1] = child(node, i + 1);
+        }
+        if (index == count) {
+            keys[count] = split[0];
+            children[count + 1] = (int) split[1];
+        }
+
+        if (keys.length <= INTERNAL_CAPACITY) {
+            writeInternal(tx.write(pageId), keys, children, 0, keys.length);
+            return null;
+        }
+        // The middle key moves up, each half keeps its own children
+        int mid = keys.length / 2;
+        int right = tx.allocate();
+        writeInternal(tx.write(pageId), keys, children, 0, mid);
+        writeInternal(tx.write(right), keys, children, mid + 1, keys.length);
+        return new long[] { keys[mid], right };
+    }
+
+    private long[] insertInLeaf(PageFile.Tx tx, int pageId, long key, byte[] value, boolean[] inserted) throws IOException {
+        ByteBuffer leaf = ByteBuffer.wrap(tx.read(pageId));
+        int index = search(leaf, key);
+        int entry = 8 + valueSize;
+        if (index >= 0) {
+            System.arraycopy(value, 0, tx.write(pageId), HEADER + index * entry + 8, valueSize);
+            return null;
+        }
+        inserted[0] = true;
+        index = -index - 1;
+        int count = count(leaf);
+
+        if (count < leafCapacity) {
+            byte[] page = tx.write(pageId);
+            System.arraycopy(page, HEADER + index * entry, page, HEADER + (index + 1) * entry, (count - index) * entry);
+            ByteBuffer.wrap(page).putLong(HEADER + index * entry, key);
+            System.arraycopy(value, 0, page, HEADER + index * entry + 8, valueSize);
+            ByteBuffer.wrap(page).putShort(2, (short) (count + 1));
+            return null;
+        }
+
+        // Full leaf: build the entries with the new one, then split them in two linked leaves
+        byte[] entries = new byte[(count + 1) * entry];
+        byte[] old = leaf.array();
+        System.arraycopy(old, HEADER, entries, 0, index * entry);
+        ByteBuffer.wrap(entries).putLong(index * entry, key);
+        System.arraycopy(value, 0, entries, index * entry + 8, valueSize);
+        System.arraycopy(old, HEADER + index * entry, entries, (index + 1) * entry, (count - index) * entry);
+
+        int mid = (count + 1) / 2;
+        int right = tx.allocate();
+        byte[] rightPage = tx.write(right);
+        byte[] leftPage = tx.write(pageId);
+        int next = ByteBuffer.wrap(leftPage).getInt(4);
+        Arrays.fill(leftPage, HEADER, PageFile.PAGE_SIZE, (byte) 0);
+        System.arraycopy(entries, 0, leftPage, HEADER, mid * entry);
+        System.arraycopy(entries, mid * entry, rightPage, HEADER, (count + 1 - mid) * entry);
+        ByteBuffer.wrap(leftPage).putShort(2, (short) mid).putInt(4, right);
+        ByteBuffer.wrap(rightPage).put(0, LEAF).putShort(2, (short) (count + 1 - mid)).putInt(4, next);
+        return new long[] { ByteBuffer.wrap(entries).getLong(mid * entry), right };
+    }
+
+    // Write keys[from, to) and their children to an internal node
+    private static void writeInternal(byte[] page, long[] keys, int[] children, int from, int to) {
+        Arrays.fill(page, 0, PageFile.PAGE_SIZE, (byte) 0);
+        ByteBuffer node = ByteBuffer.wrap(page);
+        node.put(0, INTERNAL);
+        node.putShort(2, (short) (to - from));
+        node.putInt(HEADER, children[from]);
+        for (int i = from; i < to; i++) {
+            node.putLong(HEADER + 4 + (i - from) * 12, keys[i]);
+            node.putInt(HEADER + 4 + (i - from) * 12 + 8, children[i + 1]);
+        }
+    }
+}
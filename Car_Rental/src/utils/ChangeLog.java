@@ -0,0 +1,230 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Supplier;
+import classes.*;
+
+/**
+ * Ordered log of the committed changes of the shops and rentals, tailed by the ReplicaFollower and replayed by
+ * the CrashRecovery from its last checkpoint. Written while checkpoints are taken (the default), or with
+ * -Dcarrental.replication=true or setEnabled().
+ *
+ * One line per change, fields separated by '|':
+ *  - shop saved    : <commit millis>|SHOP|<city>|<spaces>|<balance>|<lots>|<vehicles>|<transaction count>|<new transactions>
+ *  - rental added  : <commit millis>|RENT|<plate>|<type>|<odometer>|<discount>|<start millis>|<shop>
+ *  - rental closed : <commit millis>|RETURN|<plate>
+ * Vehicles are "plate,type,odometer" and transactions "plate,distance,discount,amount,time", separated by ';'.
+ * A shop line carries only the transactions added by the save with the total count after it, so applying a
+ * line twice does not duplicate them.
+ *
+ * A change is committed first, then its line is appended under the lock of the log, which gives it its position,
+ * so the lock is never held while a file is saved. Changes that depend on each other are committed one after the
+ * other by the same caller (a shop under its shop lock) or after the first one was answered (a return after its
+ * rental), so their lines are in commit order across processes. Only independent changes, which can be applied in
+ * any order, may be logged in a different order than they committed. A position in the log is the byte offset of a line.
+ */
+public class ChangeLog {
+    public static final String LOG_FILE = "changes.log";
+    private static final String SEPARATOR = "|";
+
+    private static volatile boolean enabled = Boolean.getBoolean("carrental.replication") || CrashRecovery.isEnabled();
+
+    public static boolean isEnabled() { return enabled; }
+    public static void setEnabled(boolean enabled) { ChangeLog.enabled = enabled; }
+
+    /**
+     * @param root A data directory
+     * @return the change log of that data directory
+     */
+    public static File logFile(String root) {
+        return new File(root, LOG_FILE);
+    }
+
+    /**
+     * A change to commit
+     */
+    @FunctionalInterface
+    public interface Commit {
+        /**
+         * @return true if the change was committed
+         */
+        boolean run();
+    }
+
+    /**
+     * Commit a change and log it, in the same order as the other processes when replication is enabled
+     * @param commit The change
+     * @param change The log line of the change, built once it is committed
+     * @return true if the change was committed
+     */
+    public static boolean commit(Commit commit, Supplier<String> change) {
+        if (!enabled) return commit.run();
+        if (!commit.run()) return false;
+        byte[] line = (System.currentTimeMillis() + SEPARATOR + change.get() + "\n").getBytes(StandardCharsets.UTF_8);
+        try {
+            append(line);
+        } catch (IOException e) {
+            System.err.println("ERROR: Change committed but not logged, the replicas must be rebuilt: " + e.getMessage());
+        }
+        return true;
+    }
+
+    // Append a line at the end of the log, the lock is held only to take the position and write
+    private static void append(byte[] bytes) throws IOException {
+        File log = logFile(DataPaths.ROOT);
+        try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLocks.Lock lock = FileLocks.lock(channel, log, false, "log change");
+            try {
+                ByteBuffer line = ByteBuffer.wrap(bytes);
+                long position = channel.size();
+                while (line.hasRemaining()) position += channel.write(line, position);
+                if (PersistencePipeline.get().getPolicy() != PersistencePipeline.SyncPolicy.NONE) channel.force(false);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    // ----- Lines -----
+
+    /**
+     * @param shop The saved shop
+     * @return the log line of the shop, with the transactions added since it was loaded or last saved
+     */
+    public static String shopChange(RentalShop shop) {
+        StringBuilder vehicles = new StringBuilder();
+        for (Vehicle vehicle : shop.getVehicles()) {
+            if (vehicles.length() > 0) vehicles.append(';');
+            vehicles.append(vehicle.toString());
+        }
+        StringBuilder transactions = new StringBuilder();
+        for (Transaction transaction : shop.getUnsavedTransactions()) {
+            if (transactions.length() > 0) transactions.append(';');
+            transactions.append(transaction.getLicensePlate()).append(',').append(transaction.getDistance()).append(',')
+                .append(transaction.isDiscount()).append(',');
+            Money.append(transactions, transaction.getAmount()).append(',').append(transaction.getTime());
+        }
+        return "SHOP" + SEPARATOR + shop.getCity() + SEPARATOR + shop.getSpaces() + SEPARATOR + Money.format(shop.getBalance())
+            + SEPARATOR + String.join(",", shop.getLots()) + SEPARATOR + vehicles + SEPARATOR + shop.getTransactionCount()
+            + SEPARATOR + transactions;
+    }
+
+    public static String rentChange(RentInfo rentInfo) {
+        Vehicle vehicle = rentInfo.getVehicle();
+        return "RENT" + SEPARATOR + vehicle.getLicensePlate() + SEPARATOR + vehicle.getType() + SEPARATOR + vehicle.getOdometer()
+            + SEPARATOR + rentInfo.isDiscount() + SEPARATOR + rentInfo.getStartTime()
+            + SEPARATOR + (rentInfo.getShop() != null ? rentInfo.getShop() : "");
+    }
+
+    public static String returnChange(String licensePlate) {
+        return "RETURN" + SEPARATOR + licensePlate.trim();
+    }
+
+    // ----- Reading -----
+
+    /**
+     * One logged change
+     */
+    public static class Change {
+        private final long offset;
+        private final long next;
+        private final long time;
+        private final String[] fields;
+
+        private Change(long offset, long next, long time, String[] fields) {
+            this.offset = offset;
+            this.next = next;
+            this.time = time;
+            this.fields = fields;
+        }
+
+        public long getOffset() { return offset; }
+        public long getNextOffset() { return next; }
+        public long getTime() { return time; }
+        public String getType() { return fields[0]; }
+
+        /**
+         * @param index Index of the field after the type, from 1
+         * @return the field, empty if the line has fewer fields
+         */
+        public String field(int index) { return (index < fields.length) ? fields[index] : ""; }
+
+        /**
+         * @return the shop described by a SHOP change, its transactions are the ones added by the save
+         */
+        public RentalShop toShop() {
+            RentalShop shop = new RentalShop(null, field(1));
+            shop.setSpaces(Integer.parseInt(field(2)));
+            shop.setBalance(Money.parse(field(3)));
+            shop.setLots(field(4).isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(field(4).split(","))));
+            List<Vehicle> vehicles = new ArrayList<>();
+            if (!field(5).isEmpty()) {
+                for (String vehicle : field(5).split(";")) {
+                    String[] parts = vehicle.split(",");
+                    vehicles.add(new Vehicle(parts[0], parts[1], Integer.parseInt(parts[2])));
+                }
+            }
+            shop.setVehicles(vehicles);
+            List<Transaction> transactions = new ArrayList<>();
+            if (!field(7).isEmpty()) {
+                for (String transaction : field(7).split(";")) {
+                    String[] parts = transaction.split(",");
+                    transactions.add(new Transaction(parts[0], Integer.parseInt(parts[1]), Boolean.parseBoolean(parts[2]), Money.parse(parts[3]),
+                        (parts.length > 4) ? Long.parseLong(parts[4]) : 0));
+                }
+            }
+            shop.setTransactions(transactions);
+            return shop;
+        }
+
+        /**
+         * @return the total number of transactions of the shop after a SHOP change
+         */
+        public int getTransactionCount() { return Integer.parseInt(field(6)); }
+
+        /**
+         * @return the rental of a RENT change
+         */
+        public RentInfo toRental() {
+            Vehicle vehicle = new Vehicle(field(1), field(2), Integer.parseInt(field(3)));
+            return new RentInfo(vehicle, Boolean.parseBoolean(field(4)), Long.parseLong(field(5)), field(6).isEmpty() ? null : field(6));
+        }
+    }
+
+    /**
+     * Read the complete lines of a log from an offset, a line still being written is left for the next read
+     * @param log The change log
+     * @param offset The offset of the first line to read
+     * @param maxBytes Maximum number of bytes to read, a longer first line is read whole
+     * @return the changes, empty if there is none after the offset
+     */
+    public static List<Change> read(File log, long offset, int maxBytes) throws IOException {
+        List<Change> changes = new ArrayList<>();
+        if (!log.exists()) return changes;
+        try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (offset >= size) return changes;
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size - offset, maxBytes));
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) { }
+            byte[] bytes = buffer.array();
+            int length = buffer.position();
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != '\n') continue;
+                String line = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+                String[] fields = line.split("\\|", -1);
+                changes.add(new Change(offset + start, offset + i + 1, Long.parseLong(fields[0]), Arrays.copyOfRange(fields, 1, fields.length)));
+                start = i + 1;
+            }
+            if (changes.isEmpty() && length == maxBytes && length < size - offset) {
+                return read(log, offset, maxBytes * 2); // A single line longer than the buffer
+            }
+        }
+        return changes;
+    }
+}
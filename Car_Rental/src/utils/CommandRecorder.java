@@ -0,0 +1,168 @@
+package utils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Opt-in recorder of the commands processed by the shops, replayed by CommandReplay.
+ *
+ * Each entry is one self-contained binary record appended through the persistence pipeline, so several
+ * shop processes can record into the same trace:
+ *  - shop started : 'S', <time millis>, <city>, <spaces>, <lots joined by ','>
+ *  - command      : 'C', <time millis>, <city>, <command>, <succeeded>, <duration nanos>
+ * Numbers are big-endian and strings are modified UTF-8, as written by DataOutputStream.
+ */
+public class CommandRecorder {
+    private static final byte SHOP_STARTED = 'S';
+    private static final byte COMMAND = 'C';
+
+    private static volatile File trace;
+    private static CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+
+    /**
+     * One recorded entry
+     */
+    public static class Entry {
+        private final boolean shopStarted;
+        private final long time;
+        private final String city;
+        private final String command;
+        private final boolean succeeded;
+        private final long nanos;
+        private final int spaces;
+        private final List<String> lots;
+
+        private Entry(boolean shopStarted, long time, String city, String command, boolean succeeded, long nanos, int spaces, List<String> lots) {
+            this.shopStarted = shopStarted;
+            this.time = time;
+            this.city = city;
+            this.command = command;
+            this.succeeded = succeeded;
+            this.nanos = nanos;
+            this.spaces = spaces;
+            this.lots = lots;
+        }
+
+        public boolean isShopStarted() { return shopStarted; }
+        public long getTime() { return time; }
+        public String getCity() { return city; }
+        public String getCommand() { return command; }
+        public boolean isSucceeded() { return succeeded; }
+        public long getNanos() { return nanos; }
+        public int getSpaces() { return spaces; }
+        public List<String> getLots() { return lots; }
+    }
+
+    /**
+     * Start recording into a trace file, entries are appended to it
+     * @param file The trace file
+     */
+    public static void start(File file) {
+        trace = file;
+    }
+
+    public static boolean isActive() { return trace != null; }
+
+    /**
+     * Record that a shop started, with what is needed to start it again
+     * @param city The city of the shop
+     * @param spaces The number of parking spaces
+     * @param lots The parking lots of the shop
+     */
+    public static void shopStarted(String city, int spaces, List<String> lots) {
+        write(out -> {
+            out.writeByte(SHOP_STARTED);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(city);
+            out.writeInt(spaces);
+            out.writeUTF(String.join(",", lots));
+        });
+    }
+
+    /**
+     * Record a processed command
+     * @param city The city of the shop
+     * @param command The command line
+     * @param succeeded The result of the command
+     * @param nanos How long the command took
+     */
+    public static void command(String city, String command, boolean succeeded, long nanos) {
+        write(out -> {
+            out.writeByte(COMMAND);
+            out.writeLong(System.currentTimeMillis() - nanos / 1_000_000); // When the command started
+            out.writeUTF(city);
+            out.writeUTF(command);
+            out.writeBoolean(succeeded);
+            out.writeLong(nanos);
+        });
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static synchronized void write(RecordWriter writer) {
+        File file = trace;
+        if (file == null) return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        } catch (IOException e) {
+            return; // Not possible on a byte array
+        }
+        // Not awaited, recording must not slow the command down
+        lastWrite = PersistencePipeline.get().append(file, bytes.toByteArray());
+    }
+
+    /**
+     * Stop recording and wait for the recorded entries to be written
+     */
+    public static void stop() {
+        CompletableFuture<Void> pending;
+        synchronized (CommandRecorder.class) {
+            trace = null;
+            pending = lastWrite;
+        }
+        try {
+            PersistencePipeline.await(pending);
+        } catch (IOException e) {
+            System.err.println("ERROR: Could not write the command trace: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read all the entries of a trace, in the order they were recorded
+     * @param file The trace file
+     * @return the entries
+     */
+    public static List<Entry> read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int kind = in.read();
+                if (kind < 0) break;
+                try {
+                    long time = in.readLong();
+                    String city = in.readUTF();
+                    if (kind == SHOP_STARTED) {
+                        int spaces = in.readInt();
+                        String lots = in.readUTF();
+                        List<String> lotList = lots.isEmpty() ? new ArrayList<>() : Arrays.asList(lots.split(","));
+                        entries.add(new Entry(true, time, city, null, true, 0, spaces, lotList));
+                    } else if (kind == COMMAND) {
+                        String command = in.readUTF();
+                        boolean succeeded = in.readBoolean();
+                        long nanos = in.readLong();
+                        entries.add(new Entry(false, time, city, command, succeeded, nanos, 0, null));
+                    } else {
+                        throw new IOException("Unknown trace record: " + kind);
+                    }
+                } catch (EOFException e) {
+                    break; // Torn last record
+                }
+            }
+        }
+        return entries;
+    }
+}
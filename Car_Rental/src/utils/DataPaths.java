@@ -0,0 +1,15 @@
+package utils;
+
+import java.io.File;
+
+/**
+ * Location of the data files. Defaults to "src/files" under the working directory and can be moved
+ * with -Dcarrental.data=<dir>, e.g. to replay a recorded trace against a copy of the data.
+ */
+public class DataPaths {
+    public static final String ROOT = System.getProperty("carrental.data", "src" + File.separator + "files");
+    public static final String SHOPS_DIR = ROOT + File.separator + "shops";
+    public static final String LOTS_DIR = ROOT + File.separator + "lots";
+    public static final String INDEXES_DIR = ROOT + File.separator + "indexes";
+    public static final String ARCHIVE_DIR = ROOT + File.separator + "archive";
+}
@@ -0,0 +1,178 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Opt-in stream of the inventory events of the shops and lots, for consumers that follow the changes
+ * instead of re-reading whole shops with LIST. Enabled with -Dcarrental.events=true or setEnabled().
+ *
+ * One line per event in "events.log" of the data directory, fields separated by '|':
+ *  <event millis>|<type>|<shop or lot>|<plate>|<details>
+ * The details depend on the type:
+ *  - VehicleRented         : <type>,<odometer>,<discount>
+ *  - VehicleReturned       : <kilometers>,<cost>
+ *  - VehiclePulledFromLot  : <lot>
+ *  - VehicleRedistributed  : <lot>
+ *  - TransactionRecorded   : <kilometers>,<discount>,<amount>
+ *  - VehicleStocked        : <type>,<odometer>, on a lot
+ *  - VehicleRemoved        : empty, on a lot
+ * The log is only appended, so the byte offset of a line addresses an event for good: a consumer keeps the
+ * offset after the last event it processed and reads the next ones from there. The events of a shop are
+ * appended together by its save, under the shop lock, right after the shop itself and before its change log
+ * line (see ChangeLog), so they follow the commits of the shop. The events of a command that fails are dropped.
+ */
+public class EventLog {
+    public static final String LOG_FILE = "events.log";
+    private static final String SEPARATOR = "|";
+
+    private static volatile boolean enabled = Boolean.getBoolean("carrental.events");
+
+    public static boolean isEnabled() { return enabled; }
+    public static void setEnabled(boolean enabled) { EventLog.enabled = enabled; }
+
+    /**
+     * The kinds of events
+     */
+    public enum Type {
+        VEHICLE_RENTED("VehicleRented"),
+        VEHICLE_RETURNED("VehicleReturned"),
+        VEHICLE_PULLED_FROM_LOT("VehiclePulledFromLot"),
+        VEHICLE_REDISTRIBUTED("VehicleRedistributed"),
+        TRANSACTION_RECORDED("TransactionRecorded"),
+        VEHICLE_STOCKED("VehicleStocked"),
+        VEHICLE_REMOVED("VehicleRemoved");
+
+        private final String name;
+
+        Type(String name) { this.name = name; }
+
+        public String getName() { return name; }
+    }
+
+    /**
+     * @param root A data directory
+     * @return the event log of that data directory
+     */
+    public static File logFile(String root) {
+        return new File(root, LOG_FILE);
+    }
+
+    /**
+     * @param type The kind of event
+     * @param location The city of the shop, or the lot
+     * @param licensePlate The license plate of the vehicle
+     * @param details The fields of the type, see the class comment
+     * @return the event line, stamped when it is published
+     */
+    public static String event(Type type, String location, String licensePlate, String details) {
+        return type.getName() + SEPARATOR + location + SEPARATOR + licensePlate + SEPARATOR + details;
+    }
+
+    /**
+     * Append events to the log as one write, nothing is written when the log is disabled
+     * @param events The lines built by event()
+     * @return true if the events were written
+     */
+    public static boolean publish(List<String> events) {
+        if (!enabled || events.isEmpty()) return true;
+        StringBuilder lines = new StringBuilder();
+        String time = Long.toString(System.currentTimeMillis());
+        for (String event : events) lines.append(time).append(SEPARATOR).append(event).append('\n');
+        try {
+            PersistencePipeline.await(PersistencePipeline.get().append(logFile(DataPaths.ROOT), lines.toString().getBytes(StandardCharsets.UTF_8)));
+            return true;
+        } catch (IOException e) {
+            System.err.println("ERROR: Could not write to the event log: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // ----- Reading -----
+
+    /**
+     * One logged event
+     */
+    public static class Event {
+        private final long offset;
+        private final long next;
+        private final long time;
+        private final String type;
+        private final String location;
+        private final String licensePlate;
+        private final String details;
+
+        private Event(long offset, long next, String[] fields) {
+            this.offset = offset;
+            this.next = next;
+            this.time = Long.parseLong(fields[0]);
+            this.type = fields[1];
+            this.location = fields[2];
+            this.licensePlate = fields[3];
+            this.details = (fields.length > 4) ? fields[4] : "";
+        }
+
+        public long getOffset() { return offset; }
+        public long getNextOffset() { return next; }
+        public long getTime() { return time; }
+        public String getType() { return type; }
+        public String getLocation() { return location; }
+        public String getLicensePlate() { return licensePlate; }
+        public String getDetails() { return details; }
+
+        @Override
+        public String toString() {
+            return offset + " " + type + " " + location + " " + licensePlate + (details.isEmpty() ? "" : " " + details);
+        }
+    }
+
+    /**
+     * @param log The event log
+     * @return the offset after the last complete event
+     */
+    public static long end(File log) {
+        return log.exists() ? log.length() : 0;
+    }
+
+    /**
+     * Read the complete events of a log from an offset, an event still being written is left for the next read
+     * @param log The event log
+     * @param offset The offset of the first event to read, the start of a line
+     * @param maxBytes Maximum number of bytes to read, a longer first line is read whole
+     * @return the events, empty if there is none after the offset
+     * @throws IOException if the offset is not the start of an event
+     */
+    public static List<Event> read(File log, long offset, int maxBytes) throws IOException {
+        List<Event> events = new ArrayList<>();
+        if (!log.exists()) return events;
+        try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (offset < 0 || offset > size) throw new IOException("Offset " + offset + " is outside the event log (0 to " + size + ").");
+            if (offset == size) return events;
+            if (offset > 0) {
+                ByteBuffer previous = ByteBuffer.allocate(1);
+                channel.read(previous, offset - 1);
+                if (previous.get(0) != '\n') throw new IOException("Offset " + offset + " is not the start of an event.");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size - offset, maxBytes));
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) { }
+            byte[] bytes = buffer.array();
+            int length = buffer.position();
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != '\n') continue;
+                String[] fields = new String(bytes, start, i - start, StandardCharsets.UTF_8).split("\\|", -1);
+                events.add(new Event(offset + start, offset + i + 1, fields));
+                start = i + 1;
+            }
+            if (events.isEmpty() && length == maxBytes && length < size - offset) {
+                return read(log, offset, maxBytes * 2); // A single line longer than the buffer
+            }
+        }
+        return events;
+    }
+}
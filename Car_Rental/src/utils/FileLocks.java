@@ -0,0 +1,530 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bounded-wait file locking used by every locked file access.
+ *
+ * A lock is first taken inside the process, on a fair lock per file, because the JVM does not allow two
+ * overlapping FileLocks on the same file even from different threads. The file lock itself is then polled
+ * with tryLock(), backing off exponentially with jitter, until the deadline of the operation. When the
+ * deadline passes the operation fails with a LockTimeoutException naming the current holder, instead of
+ * waiting forever behind a stuck process.
+ *
+ * A byte range of a file can be locked instead (lockRange()), so that threads and processes working on different
+ * regions of one file do not wait for each other. Inside the process a range lock holds the file lock shared and
+ * waits while an overlapping range of the file is held, an exclusive whole file lock holds it exclusively, so no
+ * two locks of the process ever overlap in the JVM, whatever ranges the callers compute.
+ *
+ * Shared whole file locks also hold the in-process lock shared, so readers of one file do not wait for each other.
+ * As the JVM allows only one FileLock over the whole file, the readers of the process share a single one, taken
+ * by the first reader on a channel of its own and released by the last. Readers and range holders of a file
+ * wait for each other.
+ *
+ * Exclusive holders of a whole file leave a record next to the file ("<file>.holder", format "<pid>,<operation>,<since>")
+ * so that waiters, and whoever is diagnosing contention, can see who holds the lock and since when. The record is
+ * deleted when the lock is released.
+ * The deadline defaults to 5 seconds and can be set with -Dcarrental.lock.timeout=<ms>.
+ */
+public class FileLocks {
+    private static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long PID = ProcessHandle.current().pid();
+
+    private static final ConcurrentHashMap<String, ReentrantReadWriteLock> processLocks = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Sharing> sharings = new ConcurrentHashMap<>();
+    private static volatile long timeoutMillis = configuredTimeout();
+
+    // Contention statistics since the process started
+    private static final AtomicLong acquired = new AtomicLong();
+    private static final AtomicLong contended = new AtomicLong();
+    private static final AtomicLong timeouts = new AtomicLong();
+    private static final AtomicLong waitNanos = new AtomicLong();
+    private static final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * A held lock, released once by release() or close()
+     */
+    public static final class Lock implements AutoCloseable {
+        private final FileLock fileLock;       // null for a shared whole file lock, held by its Sharing
+        private final java.util.concurrent.locks.Lock processLock;
+        private final long[] range;            // Position and size, null for a whole file
+        private final Sharing sharing;         // null for an exclusive whole file lock
+        private final File holder;             // The holder record to delete, null if none was written
+        private boolean released;
+
+        private Lock(FileLock fileLock, java.util.concurrent.locks.Lock processLock, long[] range, Sharing sharing, File holder) {
+            this.fileLock = fileLock;
+            this.processLock = processLock;
+            this.range = range;
+            this.sharing = sharing;
+            this.holder = holder;
+        }
+
+        public void release() throws IOException {
+            if (released) return;
+            released = true;
+            try {
+                if (holder != null) holder.delete(); // Still held, so the record of the next holder is not touched
+                if (fileLock != null && fileLock.isValid()) fileLock.release();
+            } finally {
+                try {
+                    if (sharing != null) sharing.leave(range);
+                } finally {
+                    processLock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException { release(); }
+    }
+
+    /**
+     * The in-process holders of a file that share its read lock: range holders and readers of the whole file
+     */
+    private static final class Sharing {
+        private final ReentrantLock guard = new ReentrantLock(true);
+        private final Condition changed = guard.newCondition();
+        private final List<long[]> ranges = new ArrayList<>(); // Range locks held, position and size
+        private int readers;          // Shared whole file locks held
+        private FileChannel channel;  // Opened by the first reader for the file lock of all the readers
+        private FileLock fileLock;
+
+        /**
+         * Wait until the other kind of holder, and the holders of an overlapping range, have left, then join
+         * @param range Position and size of a range lock, null for a shared whole file lock
+         * @param deadline System.nanoTime() deadline, or 0 to not wait
+         * @return true if joined
+         */
+        boolean join(long[] range, long deadline) throws InterruptedException {
+            if (deadline == 0 ? !guard.tryLock() : !guard.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) return false;
+            try {
+                while (range == null ? !ranges.isEmpty() : readers > 0 || overlaps(range)) {
+                    long left = deadline - System.nanoTime();
+                    if (deadline == 0 || left <= 0) return false;
+                    changed.await(left, TimeUnit.NANOSECONDS);
+                }
+                if (range == null) readers++;
+                else ranges.add(range);
+                return true;
+            } finally {
+                guard.unlock();
+            }
+        }
+
+        // Called with the guard held; the ranges may extend past Long.MAX_VALUE, so the ends are not added up
+        private boolean overlaps(long[] range) {
+            for (long[] held : ranges) {
+                if (range[0] - held[0] < held[1] && held[0] - range[0] < range[1]) return true;
+            }
+            return false;
+        }
+
+        void leave(long[] range) throws IOException {
+            guard.lock();
+            try {
+                if (range != null) {
+                    ranges.remove(range);
+                } else if (--readers == 0 && channel != null) {
+                    try {
+                        if (fileLock != null && fileLock.isValid()) fileLock.release();
+                    } finally {
+                        fileLock = null;
+                        channel.close();
+                        channel = null;
+                    }
+                }
+                changed.signalAll();
+            } finally {
+                guard.unlock();
+            }
+        }
+    }
+
+    private static long configuredTimeout() {
+        try {
+            long millis = Long.parseLong(System.getProperty("carrental.lock.timeout", ""));
+            if (millis > 0) return millis;
+        } catch (NumberFormatException e) {
+            // Keep the default
+        }
+        return DEFAULT_TIMEOUT_MILLIS;
+    }
+
+    public static long getTimeout() { return timeoutMillis; }
+
+    /**
+     * Set the default deadline of lock acquisitions
+     * @param millis The deadline in milliseconds, must be positive
+     */
+    public static void setTimeout(long millis) {
+        if (millis <= 0) throw new IllegalArgumentException("Lock timeout must be positive.");
+        timeoutMillis = millis;
+    }
+
+    /**
+     * Lock a whole file within the default deadline
+     * @param channel An open channel on the file
+     * @param file The locked file, used for the in-process lock and the holder record
+     * @param shared true for a shared (read) lock, false for an exclusive one
+     * @param operation What the lock is taken for, reported to waiters
+     * @return the held lock
+     * @throws LockTimeoutException if the lock could not be taken in time
+     */
+    public static Lock lock(FileChannel channel, File file, boolean shared, String operation) throws IOException {
+        return lock(channel, file, shared, operation, timeoutMillis);
+    }
+
+    /**
+     * Lock a whole file within a deadline
+     * @param channel An open channel on the file
+     * @param file The locked file, used for the in-process lock and the holder record
+     * @param shared true for a shared (read) lock, false for an exclusive one
+     * @param operation What the lock is taken for, reported to waiters
+     * @param timeout The deadline in milliseconds
+     * @return the held lock
+     * @throws LockTimeoutException if the lock could not be taken in time
+     */
+    public static Lock lock(FileChannel channel, File file, boolean shared, String operation, long timeout) throws IOException {
+        if (shared) return acquireShared(file, operation, timeout);
+        return acquire(channel, file, 0, Long.MAX_VALUE, false, operation, timeout, processLock(file).writeLock(), null);
+    }
+
+    /**
+     * Lock a byte range of a file within the default deadline. The range may extend past the end of the file.
+     * @param channel An open channel on the file
+     * @param file The locked file, used for the in-process locks
+     * @param position Start of the range
+     * @param size Length of the range
+     * @param shared true for a shared (read) lock, false for an exclusive one
+     * @param operation What the lock is taken for, reported in timeouts
+     * @return the held lock
+     * @throws LockTimeoutException if the lock could not be taken in time
+     */
+    public static Lock lockRange(FileChannel channel, File file, long position, long size, boolean shared, String operation) throws IOException {
+        return acquire(channel, file, position, size, shared, operation, timeoutMillis, processLock(file).readLock(), new long[] { position, size });
+    }
+
+    private static ReentrantReadWriteLock processLock(File file) {
+        return processLocks.computeIfAbsent(file.getAbsolutePath(), path -> new ReentrantReadWriteLock(true));
+    }
+
+    private static Sharing sharing(File file) {
+        return sharings.computeIfAbsent(file.getAbsolutePath(), path -> new Sharing());
+    }
+
+    private static Lock acquire(FileChannel channel, File file, long position, long size, boolean shared, String operation,
+            long timeout, java.util.concurrent.locks.Lock processLock, long[] range) throws IOException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        // First wait for the other threads of this process
+        boolean waited = false;
+        Sharing sharing = (range != null) ? sharing(file) : null;
+        boolean joined = false;
+        try {
+            if (!processLock.tryLock()) {
+                waited = true;
+                if (!processLock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    throw timedOut(file, operation, timeout, start);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a lock on " + file.getName() + ".");
+        }
+        try {
+            if (sharing != null) {
+                if (!sharing.join(range, 0)) {
+                    waited = true;
+                    if (!sharing.join(range, deadline)) throw timedOut(file, operation, timeout, start);
+                }
+                joined = true;
+            }
+        } catch (InterruptedException e) {
+            if (joined) sharing.leave(range);
+            processLock.unlock();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a lock on " + file.getName() + ".");
+        } catch (IOException | RuntimeException e) {
+            if (joined) sharing.leave(range);
+            processLock.unlock();
+            throw e;
+        }
+
+        // Then for the other processes, backing off with jitter until the deadline
+        try {
+            FileLock fileLock = channel.tryLock(position, size, shared);
+            if (fileLock == null) {
+                waited = true;
+                fileLock = pollFileLock(channel, file, position, size, shared, operation, timeout, start);
+            }
+            File holder = (!shared && range == null) ? writeHolder(file, operation) : null;
+            Lock lock = new Lock(fileLock, processLock, range, sharing, holder);
+            acquired.incrementAndGet();
+            if (waited) recordWait(System.nanoTime() - start);
+            return lock;
+        } catch (IOException | RuntimeException e) {
+            if (sharing != null) sharing.leave(range);
+            processLock.unlock();
+            throw e;
+        }
+    }
+
+    // Shared whole file lock: the readers of the process share the in-process lock and one file lock
+    private static Lock acquireShared(File file, String operation, long timeout) throws IOException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        java.util.concurrent.locks.Lock processLock = processLock(file).readLock();
+        Sharing sharing = sharing(file);
+        boolean waited = false;
+        try {
+            if (!processLock.tryLock()) {
+                waited = true;
+                if (!processLock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    throw timedOut(file, operation, timeout, start);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a lock on " + file.getName() + ".");
+        }
+        boolean joined = false;
+        try {
+            if (!sharing.join(null, 0)) {
+                waited = true;
+                if (!sharing.join(null, deadline)) throw timedOut(file, operation, timeout, start);
+            }
+            joined = true;
+
+            // The first reader takes the file lock for all, the others wait for it on the guard
+            if (!sharing.guard.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) throw timedOut(file, operation, timeout, start);
+            try {
+                if (sharing.fileLock == null) {
+                    if (sharing.channel == null) sharing.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    FileLock fileLock = sharing.channel.tryLock(0, Long.MAX_VALUE, true);
+                    if (fileLock == null) {
+                        waited = true;
+                        fileLock = pollFileLock(sharing.channel, file, 0, Long.MAX_VALUE, true, operation, timeout, start);
+                    }
+                    sharing.fileLock = fileLock;
+                }
+            } finally {
+                sharing.guard.unlock();
+            }
+            acquired.incrementAndGet();
+            if (waited) recordWait(System.nanoTime() - start);
+            return new Lock(null, processLock, null, sharing, null);
+        } catch (InterruptedException e) {
+            if (joined) sharing.leave(null);
+            processLock.unlock();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a lock on " + file.getName() + ".");
+        } catch (IOException | RuntimeException e) {
+            if (joined) sharing.leave(null);
+            processLock.unlock();
+            throw e;
+        }
+    }
+
+    // Poll a file lock held by another process, backing off with jitter until the deadline
+    private static FileLock pollFileLock(FileChannel channel, File file, long position, long size, boolean shared,
+            String operation, long timeout, long start) throws IOException {
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long backoff = MIN_BACKOFF_NANOS;
+        FileLock fileLock;
+        while ((fileLock = channel.tryLock(position, size, shared)) == null) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) throw timedOut(file, operation, timeout, start);
+            long pause = Math.min(left, backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+            try {
+                TimeUnit.NANOSECONDS.sleep(pause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a lock on " + file.getName() + ".");
+            }
+            backoff = Math.min(MAX_BACKOFF_NANOS, backoff * 2);
+        }
+        return fileLock;
+    }
+
+    /**
+     * Lock a whole file only if no other thread or process holds it, without waiting
+     * @param channel An open channel on the file
+     * @param file The locked file, used for the in-process lock and the holder record
+     * @param shared true for a shared (read) lock, false for an exclusive one
+     * @param operation What the lock is taken for, reported to waiters
+     * @return the held lock, or null if the file is locked
+     */
+    public static Lock tryLock(FileChannel channel, File file, boolean shared, String operation) throws IOException {
+        if (shared) return tryAcquireShared(file);
+        return tryAcquire(channel, file, 0, Long.MAX_VALUE, false, operation, processLock(file).writeLock(), null);
+    }
+
+    /**
+     * Lock a byte range of a file only if no other thread or process holds it, without waiting
+     * @param channel An open channel on the file
+     * @param file The locked file, used for the in-process locks
+     * @param position Start of the range
+     * @param size Length of the range
+     * @param shared true for a shared (read) lock, false for an exclusive one
+     * @param operation What the lock is taken for
+     * @return the held lock, or null if the range is locked
+     */
+    public static Lock tryLockRange(FileChannel channel, File file, long position, long size, boolean shared, String operation) throws IOException {
+        return tryAcquire(channel, file, position, size, shared, operation, processLock(file).readLock(), new long[] { position, size });
+    }
+
+    private static Lock tryAcquire(FileChannel channel, File file, long position, long size, boolean shared, String operation,
+            java.util.concurrent.locks.Lock processLock, long[] range) throws IOException {
+        if (!processLock.tryLock()) return null;
+        Sharing sharing = (range != null) ? sharing(file) : null;
+        boolean joined = false;
+        try {
+            if (sharing != null && !(joined = sharing.join(range, 0))) {
+                processLock.unlock();
+                return null;
+            }
+        } catch (InterruptedException e) {
+            processLock.unlock();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a lock on " + file.getName() + ".");
+        }
+        try {
+            FileLock fileLock = channel.tryLock(position, size, shared);
+            if (fileLock == null) {
+                if (joined) sharing.leave(range);
+                processLock.unlock();
+                return null;
+            }
+            File holder = (!shared && range == null) ? writeHolder(file, operation) : null;
+            Lock lock = new Lock(fileLock, processLock, range, sharing, holder);
+            acquired.incrementAndGet();
+            return lock;
+        } catch (IOException | RuntimeException e) {
+            if (joined) sharing.leave(range);
+            processLock.unlock();
+            throw e;
+        }
+    }
+
+    // Shared whole file lock without waiting, joins the file lock of the other readers of the process
+    private static Lock tryAcquireShared(File file) throws IOException {
+        java.util.concurrent.locks.Lock processLock = processLock(file).readLock();
+        Sharing sharing = sharing(file);
+        if (!processLock.tryLock()) return null;
+        boolean joined = false;
+        try {
+            if (!(joined = sharing.join(null, 0)) || !sharing.guard.tryLock()) {
+                if (joined) sharing.leave(null);
+                processLock.unlock();
+                return null;
+            }
+            try {
+                if (sharing.fileLock == null) {
+                    if (sharing.channel == null) sharing.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    sharing.fileLock = sharing.channel.tryLock(0, Long.MAX_VALUE, true);
+                }
+                if (sharing.fileLock == null) {
+                    sharing.guard.unlock();
+                    sharing.leave(null);
+                    processLock.unlock();
+                    return null;
+                }
+            } finally {
+                if (sharing.guard.isHeldByCurrentThread()) sharing.guard.unlock();
+            }
+            acquired.incrementAndGet();
+            return new Lock(null, processLock, null, sharing, null);
+        } catch (InterruptedException e) {
+            processLock.unlock();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a lock on " + file.getName() + ".");
+        } catch (IOException | RuntimeException e) {
+            if (joined) sharing.leave(null);
+            processLock.unlock();
+            throw e;
+        }
+    }
+
+    private static LockTimeoutException timedOut(File file, String operation, long timeout, long start) {
+        timeouts.incrementAndGet();
+        recordWait(System.nanoTime() - start);
+        String holder = readHolder(file);
+        return new LockTimeoutException("Timed out after " + timeout + " ms waiting for the lock on " + file.getName()
+            + " (" + operation + ")" + (holder != null ? "; held by " + holder : "") + ".");
+    }
+
+    private static void recordWait(long nanos) {
+        contended.incrementAndGet();
+        waitNanos.addAndGet(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    // ----- Holder record -----
+
+    private static File holderFile(File file) {
+        return new File(file.getPath() + ".holder");
+    }
+
+    // Write the holder record of an exclusive lock, returns the record file or null if it could not be written
+    private static File writeHolder(File file, String operation) {
+        String record = PID + "," + operation + "," + System.currentTimeMillis() + "\n";
+        File holder = holderFile(file);
+        try (FileChannel channel = FileChannel.open(holder.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8)));
+            return holder;
+        } catch (IOException e) {
+            return null; // The record is only diagnostic, the lock is held anyway
+        }
+    }
+
+    /**
+     * Describe the current exclusive holder of a file lock
+     * @param file The locked file
+     * @return "pid <pid>, <operation>, since <n> ms", or null if no holder was recorded
+     */
+    public static String readHolder(File file) {
+        File holder = holderFile(file);
+        if (!holder.exists()) return null;
+        try (RecordReader reader = RecordReader.open(holder)) {
+            if (!reader.nextLine()) return null;
+            long pid = reader.readLong();
+            reader.expect(',');
+            String operation = reader.readString(',');
+            long since = reader.readLong();
+            return "pid " + pid + ", " + operation + ", since " + (System.currentTimeMillis() - since) + " ms";
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lock statistics since the process started
+     * @return a one line summary
+     */
+    public static String stats() {
+        long waits = contended.get();
+        return "Timeout: " + timeoutMillis + " ms; Acquired: " + acquired.get() + "; Contended: " + waits
+            + "; Timeouts: " + timeouts.get()
+            + "; Avg wait: " + (waits == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(waitNanos.get() / waits)) + " us"
+            + "; Max wait: " + TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get()) + " us";
+    }
+}
@@ -0,0 +1,77 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import classes.*;
+
+/**
+ * Storage backend over the text files of the data directory, shared by every process
+ */
+public class FileStorage {
+    private static final String RENTALS_FILE = "rentals.txt";
+
+    /**
+     * @return a storage over the files of the data directory
+     */
+    public static Storage create() {
+        return new Storage(new Shops(), new Lots(), new Rentals(), LicensePlateGenerator::generateLicensePlate, new Locations());
+    }
+
+    // Names of the ".txt" files of a directory, without the extension
+    private static List<String> names(String dir, String excluded) {
+        List<String> names = new ArrayList<>();
+        File[] files = new File(dir).listFiles((d, name) -> name.endsWith(".txt") && !name.equals(excluded));
+        if (files == null) return names;
+        for (File file : files) names.add(file.getName().substring(0, file.getName().length() - 4));
+        Collections.sort(names);
+        return names;
+    }
+
+    private static class Shops implements ShopStore {
+        public RentalShop load(String city) { return ShopPersistanceManager.loadShop(city); }
+        public boolean save(RentalShop shop) { return ShopPersistanceManager.saveShop(shop); }
+        public List<String> cities() { return names(DataPaths.SHOPS_DIR, RENTALS_FILE); }
+        public Closeable lock(String city, String operation) throws IOException { return ShopLocks.lockFile(city, operation); }
+    }
+
+    private static class Lots implements LotStore {
+        public boolean exists(String lot) { return LotFileManager.lotFile(lot).exists(); }
+        public List<String> names() { return FileStorage.names(DataPaths.LOTS_DIR, null); }
+        public List<Vehicle> read(String lot) throws IOException { return LotFileManager.readLot(lot); }
+        public CompletableFuture<Void> write(String lot, Collection<Vehicle> vehicles) { return LotFileManager.writeLot(lot, vehicles); }
+        public CompletableFuture<Void> add(String lot, Vehicle vehicle) { return LotFileManager.addVehicle(lot, vehicle); }
+        public boolean update(String lot, Collection<Vehicle> added, int removedPlate) throws IOException {
+            return LotFileManager.updateLot(lot, added, removedPlate);
+        }
+        public Vehicle pull(String lot, VehicleType type, String shop) throws IOException { return LotFileManager.pullVehicle(lot, type, shop); }
+        public Probe tryPull(String lot, VehicleType type, String shop, AtomicReference<Vehicle> claim) throws IOException {
+            return LotFileManager.tryPullVehicle(lot, type, claim);
+        }
+    }
+
+    private static class Rentals implements RentalRegistry {
+        public boolean add(RentInfo rentInfo) { return RentalFileManager.addToRentalFile(rentInfo); }
+        public RentInfo find(String licensePlate) { return RentalFileManager.checkRentalRecord(licensePlate); }
+        public boolean remove(String licensePlate) { return RentalFileManager.removeFromRentalFile(licensePlate); }
+        public List<RentInfo> olderThan(long cutoff) { return RentalFileManager.rentalsOlderThan(cutoff); }
+        public List<RentInfo> oldest(int count) { return RentalFileManager.oldestRentals(count); }
+    }
+
+    private static class Locations implements LocationStore {
+        public void atLot(int plate, String lot) { LocationIndex.atLot(plate, lot); }
+        public void atShop(int plate, String city) { LocationIndex.atShop(plate, city); }
+        public void rented(int plate) { LocationIndex.rented(plate); }
+        public void remove(int plate) {
+            LocationIndex.remove(plate);
+            OdometerIndex.remove(plate);
+        }
+        public LocationIndex.Location where(String licensePlate) { return LocationIndex.where(licensePlate); }
+        public void odometer(int plate, int odometer) { OdometerIndex.set(plate, odometer); }
+        public List<OdometerIndex.Entry> highest(int count) { return OdometerIndex.highest(count); }
+        public List<OdometerIndex.Entry> range(int min, int max, int limit) { return OdometerIndex.range(min, max, limit); }
+    }
+}
@@ -0,0 +1,60 @@
+package utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent hash ring assigning keys (cities) to nodes.
+ * Each node is placed at several points of the ring and a key belongs to the first point at or after its
+ * hash, so adding or removing a node only moves the keys next to its points.
+ * @param <T> The type of the nodes, placed by their toString()
+ */
+public class HashRing<T> {
+    private final TreeMap<Long, T> ring = new TreeMap<>();
+    private final Set<T> nodes = new LinkedHashSet<>();
+    private final int points;
+
+    /**
+     * @param points Number of points per node, more points spread the keys more evenly
+     */
+    public HashRing(int points) {
+        if (points <= 0) throw new IllegalArgumentException("A node needs at least one point on the ring.");
+        this.points = points;
+    }
+
+    public synchronized void add(T node) {
+        if (!nodes.add(node)) return;
+        for (int i = 0; i < points; i++) ring.put(hash(node + "#" + i), node);
+    }
+
+    public synchronized void remove(T node) {
+        if (!nodes.remove(node)) return;
+        for (int i = 0; i < points; i++) ring.remove(hash(node + "#" + i), node);
+    }
+
+    /**
+     * @param key The key to place, e.g. a city
+     * @return the node owning the key, or null if the ring is empty
+     */
+    public synchronized T owner(String key) {
+        if (ring.isEmpty()) return null;
+        Map.Entry<Long, T> entry = ring.ceilingEntry(hash(key));
+        return (entry != null) ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public synchronized List<T> nodes() {
+        return new ArrayList<>(nodes);
+    }
+
+    // FNV-1a of the UTF-8 bytes, then the MurmurHash3 finalizer to spread similar names over the ring
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe53a87cdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,123 @@
+package utils;
+
+import java.util.*;
+
+/**
+ * Open addressing hash map with primitive int keys (linear probing, backward shift deletion).
+ * Avoids boxing the keys, used for plate code indexes. Null values are not supported.
+ * @param <V> the value type
+ */
+public class IntHashMap<V> {
+    private int[] keys;
+    private Object[] values; // A null value marks an empty slot
+    private int size;
+    private int mask;
+
+    public IntHashMap() { this(16); }
+
+    public IntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9; // Fibonacci hashing spreads sequential plate codes
+        return h ^ (h >>> 16);
+    }
+
+    private int slot(int key) {
+        int i = hash(key) & mask;
+        while (values[i] != null && keys[i] != key) i = (i + 1) & mask;
+        return i;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) { return (V) values[slot(key)]; }
+
+    public boolean containsKey(int key) { return values[slot(key)] != null; }
+
+    /**
+     * Associate a value with a key
+     * @return the previous value, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        Objects.requireNonNull(value);
+        int i = slot(key);
+        V previous = (V) values[i];
+        keys[i] = key;
+        values[i] = value;
+        if (previous == null && ++size * 2 > values.length) resize();
+        return previous;
+    }
+
+    /**
+     * Associate a value with a key only if the key is not present
+     * @return the existing value, or null if the value was inserted
+     */
+    public V putIfAbsent(int key, V value) {
+        V existing = get(key);
+        return (existing != null) ? existing : put(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int i = slot(key);
+        V previous = (V) values[i];
+        if (previous == null) return null;
+        values[i] = null;
+        size--;
+        // Shift following entries of the cluster back so lookups never stop early
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) break;
+            int home = hash(keys[j]) & mask;
+            // Move the entry if its home slot is not cyclically in (i, j]
+            if ((j > i) ? (home <= i || home > j) : (home <= i && home > j)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+        return previous;
+    }
+
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(IntObjConsumer<? super V> action) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) action.accept(keys[i], (V) values[i]);
+        }
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        mask = values.length - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface IntObjConsumer<V> {
+        void accept(int key, V value);
+    }
+}
@@ -1,34 +1,28 @@
 package utils;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.nio.channels.*;
 
 public class LicensePlateGenerator {
-    private static final String INDEX_FILE = "src" + File.separator + "files" + File.separator + "indexes" + File.separator + "index.txt";
+    private static final String INDEX_FILE = DataPaths.INDEXES_DIR + File.separator + "index.txt";
     /**
      * Generates a unique license plate in the format "XXX-###" 
      * where X is a letter and # is a digit
      * @return
      */
     public static String generateLicensePlate() {
-        List<String> plates = readExistingPlates();
+        BitSet plates = readExistingPlates();
+        if (plates.stream().filter(PlateRange::contains).count() >= PlateRange.size()) {
+            throw new IllegalStateException("All " + PlateRange.size() + " license plates of this node are in use.");
+        }
         Random random = new Random();
-        String plate;
-        StringBuilder plateBuilder;
+        int code;
         do {
-            plateBuilder = new StringBuilder();
-            for (int i = 0; i < 3; i++) {
-                char letter = (char) ('A' + random.nextInt(26)); // Random letter
-                plateBuilder.append(letter);
-            }
-            plateBuilder.append("-");
-            for (int i = 0; i < 3; i++) {
-                int digit = random.nextInt(10); // Random digit
-                plateBuilder.append(digit);
-            }
-            plate = plateBuilder.toString();
-        } while (plates.contains(plate)); // Ensure uniqueness
+            code = PlateRange.random(random); // Random plate of this node, every code maps to a valid "XXX-###"
+        } while (plates.get(code)); // Ensure uniqueness
+        String plate = PlateCodec.decode(code);
 
         // Save the new plate to the index file 
         savePlateToIndex(plate);
@@ -37,10 +31,10 @@ public class LicensePlateGenerator {
 
     /**
      * Reads existing plates from the index file
-     * @return List of existing plates
+     * @return Set of existing plates, indexed by plate code
      */
-    private static List<String> readExistingPlates() {
-        List<String> plates = new ArrayList<>();
+    private static BitSet readExistingPlates() {
+        BitSet plates = new BitSet();
         File indexFile = new File(INDEX_FILE);
         File indexDir = new File(indexFile.getParent());
 
@@ -58,11 +52,12 @@ public class LicensePlateGenerator {
         try (RandomAccessFile file = new RandomAccessFile(indexFile, "r");
              FileChannel channel = file.getChannel()) {
             // Acquire a reader lock on the file 
-            FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
-            try {
-                String line;
-                while ((line = file.readLine()) != null) {
-                    plates.add(line.trim()); // Add each plate to the list
+            FileLocks.Lock lock = FileLocks.lock(channel, indexFile, true, "read plates");
+            try (RecordReader reader = new RecordReader(channel)) {
+                while (reader.nextLine()) {
+                    if (reader.isBlank()) continue;
+                    int code = reader.readPlate();
+                    if (PlateCodec.isStandard(code)) plates.set(code); // Mark each plate as used
                 }
             } finally {
                 lock.release(); // Release the lock
@@ -80,16 +75,10 @@ public class LicensePlateGenerator {
      */
     private static void savePlateToIndex(String plate) {
         File indexFile = new File(INDEX_FILE);
-        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
-             FileChannel channel = file.getChannel()) {
-            // Acquire an exclusive lock on the file 
-            FileLock lock = channel.lock(0, Long.MAX_VALUE, false);
-            try {
-                file.seek(file.length()); // Move to the end of the file
-                file.writeBytes(plate + System.lineSeparator()); // Write the new plate
-            } finally {
-                lock.release(); // Release the lock
-            }
+        try {
+            // Append the new plate through the persistence pipeline
+            byte[] line = (plate + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+            PersistencePipeline.await(PersistencePipeline.get().append(indexFile, line));
         } catch (IOException e) {
             System.err.println("Error writing to index file: " + e.getMessage());
         }
@@ -0,0 +1,270 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fleet-wide index of where every vehicle is: in a lot, parked at a shop, or rented.
+ *
+ * The index is a memory-mapped array with one 2-byte location id per possible plate code (see PlateCodec),
+ * so a lookup or an update is a single array access shared by every process that maps the file.
+ * Location ids refer to a small dictionary file with one "LOT:<name>" or "SHOP:<city>" entry per line.
+ *  - id 0 : unknown plate
+ *  - id 1 : rented
+ *  - id n : line (n - 2) of the dictionary
+ * The index is derived data, it can be rebuilt from the lot, shop and rental files with rebuild().
+ */
+public class LocationIndex {
+    private static final String INDEX_DIR = DataPaths.INDEXES_DIR;
+    private static final String INDEX_FILE = INDEX_DIR + File.separator + "locations.idx";
+    private static final String DICTIONARY_FILE = INDEX_DIR + File.separator + "locations.txt";
+    private static final String LOTS_DIR = DataPaths.LOTS_DIR;
+    private static final String SHOPS_DIR = DataPaths.SHOPS_DIR;
+    private static final String RENTALS_FILE = "rentals.txt";
+
+    private static final short UNKNOWN = 0;
+    private static final short RENTED = 1;
+    private static final int FIRST_ENTRY = 2;
+    private static final int MAX_ENTRIES = 0xFFFF - FIRST_ENTRY;
+    private static final String LOT_PREFIX = "LOT:";
+    private static final String SHOP_PREFIX = "SHOP:";
+
+    public enum Kind { LOT, SHOP, RENTED }
+
+    /**
+     * Result of a lookup
+     */
+    public static class Location {
+        private final Kind kind;
+        private final String name;
+
+        public Location(Kind kind, String name) {
+            this.kind = kind;
+            this.name = name;
+        }
+
+        public Kind getKind() { return kind; }
+        public String getName() { return name; } // Lot name or city, null when rented
+
+        @Override
+        public String toString() {
+            switch (kind) {
+                case LOT: return "lot: " + name;
+                case SHOP: return "shop: " + name;
+                default: return "rented";
+            }
+        }
+    }
+
+    private static LocationIndex instance;
+    private static boolean unavailable; // Set when the index could not be opened, updates are skipped
+
+    private final MappedByteBuffer index;
+    private final List<String> entries = new ArrayList<>();   // Dictionary, entry i has id i + FIRST_ENTRY
+    private final Map<String, Short> ids = new HashMap<>();
+
+    private LocationIndex() throws IOException {
+        new File(INDEX_DIR).mkdirs();
+        try (RandomAccessFile raf = new RandomAccessFile(INDEX_FILE, "rw");
+             FileChannel channel = raf.getChannel()) {
+            long size = 2L * PlateCodec.PLATE_COUNT;
+            if (channel.size() < size) raf.setLength(size); // Sparse file, only touched pages use disk
+            index = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // The mapping outlives the channel
+        }
+        new File(DICTIONARY_FILE).createNewFile();
+        loadDictionary();
+    }
+
+    /**
+     * Get the shared index, opening it on first use
+     * @return the index, or null if it cannot be opened (the error is printed once)
+     */
+    private static synchronized LocationIndex get() {
+        if (instance == null && !unavailable) {
+            try {
+                instance = new LocationIndex();
+            } catch (IOException e) {
+                unavailable = true;
+                System.err.println("ERROR: Could not open the location index: " + e.getMessage());
+            }
+        }
+        return instance;
+    }
+
+    // ----- Updates, called whenever a vehicle moves -----
+
+    public static void atLot(int plate, String lot) { set(plate, LOT_PREFIX + lot); }
+    public static void atShop(int plate, String city) { set(plate, SHOP_PREFIX + city); }
+    public static void rented(int plate) { set(plate, null); }
+
+    /**
+     * Forget a vehicle that left the fleet
+     * @param plate The plate code
+     */
+    public static void remove(int plate) {
+        LocationIndex locations = get();
+        if (locations != null && PlateCodec.isStandard(plate)) locations.index.putShort(2 * plate, UNKNOWN);
+    }
+
+    private static void set(int plate, String entry) {
+        LocationIndex locations = get();
+        if (locations == null || !PlateCodec.isStandard(plate)) return; // Non-standard plates are not indexed
+        try {
+            short id = (entry == null) ? RENTED : locations.idOf(entry);
+            locations.index.putShort(2 * plate, id);
+        } catch (IOException e) {
+            System.err.println("ERROR: Could not update the location index: " + e.getMessage());
+        }
+    }
+
+    // ----- Lookups -----
+
+    /**
+     * Find where a vehicle is
+     * @param licensePlate The license plate
+     * @return the location, or null if the vehicle is not in the index
+     */
+    public static Location where(String licensePlate) {
+        int plate = PlateCodec.encodeStandard(licensePlate.trim().toUpperCase());
+        LocationIndex locations = get();
+        if (locations == null || plate == PlateCodec.NONE) return null;
+        int id = locations.index.getShort(2 * plate) & 0xFFFF;
+        if (id == UNKNOWN) return null;
+        if (id == RENTED) return new Location(Kind.RENTED, null);
+        String entry = locations.entryOf(id);
+        if (entry == null) return null;
+        return entry.startsWith(LOT_PREFIX)
+            ? new Location(Kind.LOT, entry.substring(LOT_PREFIX.length()))
+            : new Location(Kind.SHOP, entry.substring(SHOP_PREFIX.length()));
+    }
+
+    // ----- Dictionary -----
+
+    private synchronized short idOf(String entry) throws IOException {
+        Short id = ids.get(entry);
+        if (id != null) return id;
+        // Append the entry under an exclusive lock, another process may have added it meanwhile
+        try (RandomAccessFile raf = new RandomAccessFile(DICTIONARY_FILE, "rw");
+             FileChannel channel = raf.getChannel()) {
+            FileLocks.Lock lock = FileLocks.lock(channel, new File(DICTIONARY_FILE), false, "add location");
+            try {
+                readDictionary(channel);
+                id = ids.get(entry);
+                if (id != null) return id;
+                if (entries.size() >= MAX_ENTRIES) throw new IOException("Too many lots and shops in the location index.");
+                channel.write(ByteBuffer.wrap((entry + "\n").getBytes(StandardCharsets.UTF_8)), channel.size());
+                return addEntry(entry);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private synchronized String entryOf(int id) {
+        int i = id - FIRST_ENTRY;
+        if (i >= entries.size()) {
+            try {
+                loadDictionary(); // Entry added by another process
+            } catch (IOException e) {
+                System.err.println("ERROR: Could not read the location dictionary: " + e.getMessage());
+            }
+        }
+        return (i < entries.size()) ? entries.get(i) : null;
+    }
+
+    private void loadDictionary() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(DICTIONARY_FILE, "r");
+             FileChannel channel = raf.getChannel()) {
+            FileLocks.Lock lock = FileLocks.lock(channel, new File(DICTIONARY_FILE), true, "read locations");
+            try {
+                readDictionary(channel);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    // Read the dictionary entries this process does not know yet, the dictionary is append-only
+    private void readDictionary(FileChannel channel) throws IOException {
+        try (RecordReader reader = new RecordReader(channel)) {
+            int line = 0;
+            while (reader.nextLine()) {
+                if (line++ < entries.size()) continue;
+                addEntry(reader.readRest());
+            }
+        }
+    }
+
+    private short addEntry(String entry) {
+        short id = (short) (entries.size() + FIRST_ENTRY);
+        entries.add(entry);
+        ids.put(entry, id);
+        return id;
+    }
+
+    // ----- Rebuild -----
+
+    /**
+     * Reconstruct the index by scanning every lot file, shop file and the rental file in parallel
+     * @param parallelism Maximum number of files scanned at once
+     * @return the number of vehicles indexed
+     */
+    public static int rebuild(int parallelism) throws IOException {
+        LocationIndex locations = get();
+        if (locations == null) throw new IOException("Location index is not available.");
+
+        // Clear the index
+        for (int i = 0; i < PlateCodec.PLATE_COUNT; i++) locations.index.putShort(2 * i, UNKNOWN);
+
+        File[] lotFiles = new File(LOTS_DIR).listFiles((dir, name) -> name.endsWith(".txt"));
+        File[] shopFiles = new File(SHOPS_DIR).listFiles((dir, name) -> name.endsWith(".txt") && !name.equals(RENTALS_FILE));
+        List<File> files = new ArrayList<>();
+        if (lotFiles != null) files.addAll(Arrays.asList(lotFiles));
+        if (shopFiles != null) files.addAll(Arrays.asList(shopFiles));
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            int indexed = pool.submit(() -> files.parallelStream().mapToInt(file -> {
+                String name = file.getName().substring(0, file.getName().length() - 4);
+                boolean isLot = file.getParentFile().getName().equals("lots");
+                return scan(file, isLot ? LOT_PREFIX + name : SHOP_PREFIX + name, !isLot);
+            }).sum()).get();
+            // Rentals last, a rental record wins over a stale copy of the vehicle in a lot or shop
+            indexed += scan(new File(SHOPS_DIR + File.separator + RENTALS_FILE), null, false);
+            locations.index.force();
+            return indexed;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Could not rebuild the location index: " + e.getMessage(), e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Index the vehicle lines of a file, shop files only list vehicles between "Vehicles:" and "Transactions:"
+    private static int scan(File file, String entry, boolean shopFile) {
+        if (!file.exists()) return 0;
+        int indexed = 0;
+        try (RecordReader reader = RecordReader.open(file)) {
+            boolean inVehicles = !shopFile;
+            while (reader.nextLine()) {
+                if (shopFile) {
+                    if (reader.startsWith("Vehicles:")) { inVehicles = true; continue; }
+                    if (reader.startsWith("Transactions:")) break;
+                }
+                if (!inVehicles || reader.isBlank() || reader.startsWith("#")) continue; // "#" heads a slotted lot
+                int plate = reader.readPlate();
+                if (!reader.expect(',')) continue;
+                set(plate, entry);
+                indexed++;
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: Could not scan " + file.getPath() + ": " + e.getMessage());
+        }
+        return indexed;
+    }
+}
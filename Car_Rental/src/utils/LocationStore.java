@@ -0,0 +1,40 @@
+package utils;
+
+import java.util.List;
+
+/**
+ * Tracks where each vehicle is, by plate code (see PlateCodec)
+ */
+public interface LocationStore {
+    void atLot(int plate, String lot);
+    void atShop(int plate, String city);
+    void rented(int plate);
+    void remove(int plate);
+
+    /**
+     * @param licensePlate The license plate of the vehicle
+     * @return where the vehicle is, or null if it is not known
+     */
+    LocationIndex.Location where(String licensePlate);
+
+    /**
+     * Record the odometer of a vehicle for the mileage queries, remove() forgets it as well
+     * @param plate The plate code
+     * @param odometer The odometer reading
+     */
+    void odometer(int plate, int odometer);
+
+    /**
+     * @param count Maximum number of vehicles
+     * @return the vehicles with the highest odometers, highest first
+     */
+    List<OdometerIndex.Entry> highest(int count);
+
+    /**
+     * @param min Lowest odometer, inclusive
+     * @param max Highest odometer, inclusive
+     * @param limit Maximum number of vehicles
+     * @return the vehicles within the range, lowest odometer first
+     */
+    List<OdometerIndex.Entry> range(int min, int max, int limit);
+}
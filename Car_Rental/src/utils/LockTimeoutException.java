@@ -0,0 +1,14 @@
+package utils;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a file lock could not be acquired before the deadline of the operation
+ */
+public class LockTimeoutException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public LockTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,381 @@
+package utils;
+
+import java.io.*;
+import java.util.*;
+import classes.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads and writes the parking lot files, format: "<plate>,<type>,<odometer>" per line.
+ *
+ * Vehicles are pulled from a lot through a small request queue next to it ("<lot>.pulls"). A shop
+ * first appends its request to the queue, then takes the lot lock. Whoever gets the lock serves every
+ * pending request of the queue in one pass and one rewrite of the lot, and leaves the answers in the
+ * queue; the shops that were waiting behind it only pick up their answer. A burst of shops running out
+ * of the same type therefore costs one lot rewrite instead of one per shop. The lot and the queue are
+ * rewritten through one journal (PersistencePipeline.mutate(file, companion, ...)), so a crash can never
+ * leave an answer in the queue for a vehicle that is still in the lot.
+ *
+ * Queue format: "<id>,<type>,<shop>,<requested at>,PENDING|SERVED,<plate>,<odometer>|EMPTY"
+ *
+ * Lots written with the slotted layout (see SlottedLot) skip the queue: each pull or return locks only the
+ * region of its vehicle type, so shops working on different types of one lot do not wait for each other.
+ */
+public class LotFileManager {
+    private static final String LOTS_DIR = DataPaths.LOTS_DIR;
+    private static final long STALE_MILLIS = 60_000; // Answers nobody picked up by then are given back to the lot
+
+    private static final String REQUEST_PREFIX = ProcessHandle.current().pid() + "-";
+    private static final AtomicLong requestCounter = new AtomicLong();
+    private static final AtomicLong servePasses = new AtomicLong(); // Queue passes that rewrote the lot
+
+    private enum State { PENDING, SERVED, EMPTY }
+
+    // One request of the pull queue
+    private static class PullRequest {
+        String id;
+        VehicleType type;
+        String shop;
+        long requestedAt;
+        State state;
+        int plate;
+        int odometer;
+
+        void write(StringBuilder out) {
+            out.append(id).append(',').append(type).append(',').append(shop).append(',').append(requestedAt).append(',').append(state);
+            if (state == State.SERVED) out.append(',').append(PlateCodec.decode(plate)).append(',').append(odometer);
+            out.append('\n');
+        }
+    }
+
+    /**
+     * @param lotName Name of the lot
+     * @return the file holding the lot
+     */
+    public static File lotFile(String lotName) {
+        return new File(LOTS_DIR + File.separator + lotName + ".txt");
+    }
+
+    /**
+     * @return the number of queue passes of this process that took vehicles out of a lot, one lot rewrite each
+     */
+    public static long getServePasses() { return servePasses.get(); }
+
+    private static File pullsFile(String lotName) {
+        return new File(LOTS_DIR + File.separator + lotName + ".pulls");
+    }
+
+    /**
+     * Read all the vehicles of a lot
+     * @param lotName Name of the lot
+     * @return the vehicles, empty if the lot file does not exist
+     */
+    public static List<Vehicle> readLot(String lotName) throws IOException {
+        List<Vehicle> vehicles = new ArrayList<>();
+        File file = lotFile(lotName);
+        if (!file.exists()) return vehicles;
+
+        try (RecordReader reader = RecordReader.open(file)) {
+            while (reader.nextLine()) {
+                if (reader.isBlank() || reader.startsWith("#")) continue; // Free slots and header of a slotted lot
+                int plate = reader.readPlate();
+                if (!reader.expect(',')) continue;
+                VehicleType type = reader.readType();
+                if (type == null || !reader.expect(',')) continue;
+                vehicles.add(new Vehicle(plate, type, reader.readInt()));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid lot record: " + e.getMessage(), e);
+        }
+        return vehicles;
+    }
+
+    /**
+     * Replace the content of a lot
+     * @param lotName Name of the lot
+     * @param vehicles The vehicles parked in the lot
+     * @return the pending write
+     */
+    public static CompletableFuture<Void> writeLot(String lotName, Collection<Vehicle> vehicles) {
+        File lot = lotFile(lotName);
+        try {
+            if (SlottedLot.isEnabled() || SlottedLot.isSlotted(lot)) {
+                SlottedLot.write(lot, vehicles, SlottedLot.isEnabled()); // Finishes the slot writes of a crashed shop first
+                return CompletableFuture.completedFuture(null);
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        StringBuilder content = new StringBuilder();
+        for (Vehicle vehicle : vehicles) appendLine(content, vehicle);
+        return PersistencePipeline.get().replace(lot, content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Stock vehicles in a lot and take one out of it in one change of its current content, under the lot lock
+     * for both the read and the write
+     * @param lotName Name of the lot, created if needed
+     * @param added The vehicles to park
+     * @param removedPlate Code of the plate of the vehicle that leaves the fleet, PlateCodec.NONE for none
+     * @return true if the vehicle to remove was in the lot
+     */
+    public static boolean updateLot(String lotName, Collection<Vehicle> added, int removedPlate) throws IOException {
+        File lot = lotFile(lotName);
+        if (SlottedLot.isEnabled() || SlottedLot.isSlotted(lot)) return SlottedLot.update(lot, added, removedPlate, SlottedLot.isEnabled());
+
+        boolean[] removed = new boolean[1];
+        boolean[] slotted = new boolean[1];
+        PersistencePipeline.await(PersistencePipeline.get().mutate(lot, current -> {
+            slotted[0] = SlottedLot.isSlotted(current);
+            if (slotted[0]) return current; // Laid out again meanwhile
+            ByteArrayOutputStream out = new ByteArrayOutputStream(current.length + added.size() * 32);
+            try (RecordReader reader = new RecordReader(current)) {
+                while (reader.nextLine()) {
+                    if (reader.isBlank()) continue;
+                    if (removedPlate != PlateCodec.NONE) {
+                        try {
+                            if (reader.readPlate() == removedPlate) {
+                                removed[0] = true;
+                                continue;
+                            }
+                        } catch (IllegalArgumentException e) {
+                            // Damaged line, kept as it is
+                        }
+                    }
+                    reader.copyLine(out);
+                }
+            }
+            StringBuilder lines = new StringBuilder();
+            for (Vehicle vehicle : added) appendLine(lines, vehicle);
+            out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            return out.toByteArray();
+        }));
+        if (slotted[0]) return SlottedLot.update(lot, added, removedPlate, false);
+        return removed[0];
+    }
+
+    /**
+     * Park a vehicle in a lot
+     * @param lotName Name of the lot
+     * @param vehicle The vehicle to park
+     * @return the pending write
+     */
+    public static CompletableFuture<Void> addVehicle(String lotName, Vehicle vehicle) {
+        File lot = lotFile(lotName);
+        try {
+            if (SlottedLot.isSlotted(lot) || (SlottedLot.isEnabled() && !lot.exists())) {
+                SlottedLot.add(lot, vehicle); // Locks only the region of the type, on the calling thread
+                return CompletableFuture.completedFuture(null);
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        StringBuilder line = new StringBuilder();
+        appendLine(line, vehicle);
+        return PersistencePipeline.get().append(lot, line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void appendLine(StringBuilder out, Vehicle vehicle) {
+        out.append(vehicle.getLicensePlate()).append(',').append(vehicle.getType()).append(',').append(vehicle.getOdometer()).append('\n');
+    }
+
+    /**
+     * Take a vehicle of a type out of a lot. Pending pulls of other shops are served in the same pass.
+     * @param lotName Name of the lot
+     * @param type The type of vehicle wanted
+     * @param shop The shop asking for the vehicle
+     * @return the vehicle, or null if the lot has none of that type
+     */
+    public static Vehicle pullVehicle(String lotName, VehicleType type, String shop) throws IOException {
+        File lot = lotFile(lotName);
+        File pulls = pullsFile(lotName);
+        if (SlottedLot.isSlotted(lot)) return SlottedLot.pull(lot, type); // Locks only the region of the type
+
+        // Queue the request, then serve the queue under the lot lock (or find it already served)
+        PullRequest request = new PullRequest();
+        request.id = REQUEST_PREFIX + requestCounter.incrementAndGet();
+        request.type = type;
+        request.shop = shop;
+        request.requestedAt = System.currentTimeMillis();
+        request.state = State.PENDING;
+        StringBuilder line = new StringBuilder();
+        request.write(line);
+        PersistencePipeline.await(PersistencePipeline.get().append(pulls, line.toString().getBytes(StandardCharsets.UTF_8)));
+
+        // Only submitted once the request is written: a batch may write the lot before the queue
+        PullRequest[] answer = new PullRequest[1];
+        PersistencePipeline.await(PersistencePipeline.get().mutate(lot, pulls, (current, queue) -> servePulls(current, queue, request.id, answer)));
+        if (answer[0] == null && SlottedLot.isSlotted(lot)) return SlottedLot.pull(lot, type); // Laid out again meanwhile
+        if (answer[0] == null || answer[0].state != State.SERVED) return null;
+        return new Vehicle(answer[0].plate, answer[0].type, answer[0].odometer);
+    }
+
+    /**
+     * Take the first vehicle of a type out of a lot if the lot is not locked by another writer and no other
+     * probe of the claim took a vehicle first. The pull queue is left alone, its requests are served by their
+     * own shops.
+     * @param lotName Name of the lot
+     * @param type The type of vehicle wanted
+     * @param claim Shared by the probes of one request, receives the vehicle taken
+     * @return TAKEN if this lot gave the vehicle, EMPTY if it did not, BUSY if it was locked
+     */
+    public static LotStore.Probe tryPullVehicle(String lotName, VehicleType type, AtomicReference<Vehicle> claim) throws IOException {
+        File lot = lotFile(lotName);
+        if (!lot.exists()) return LotStore.Probe.EMPTY;
+        if (SlottedLot.isSlotted(lot)) return SlottedLot.tryPull(lot, type, claim);
+        boolean[] taken = new boolean[1];
+        boolean[] slotted = new boolean[1];
+        boolean locked = PersistencePipeline.get().tryMutate(lot, current -> {
+            slotted[0] = SlottedLot.isSlotted(current);
+            if (slotted[0]) return current; // Laid out again meanwhile
+            ByteArrayOutputStream out = new ByteArrayOutputStream(current.length);
+            Vehicle found = null;
+            try (RecordReader reader = new RecordReader(current)) {
+                while (reader.nextLine()) {
+                    if (reader.isBlank()) continue;
+                    if (found == null) {
+                        int plate = reader.readPlate();
+                        VehicleType lineType = reader.expect(',') ? reader.readType() : null;
+                        if (lineType == type && reader.expect(',')) {
+                            found = new Vehicle(plate, type, reader.readInt());
+                            continue;
+                        }
+                    }
+                    reader.copyLine(out);
+                }
+            }
+            // Checked under the lot lock, so a lot is only rewritten by the probe that won
+            if (found == null || !claim.compareAndSet(null, found)) return current;
+            taken[0] = true;
+            return out.toByteArray();
+        });
+        if (!locked || slotted[0]) return LotStore.Probe.BUSY;
+        return taken[0] ? LotStore.Probe.TAKEN : LotStore.Probe.EMPTY;
+    }
+
+    /**
+     * Serve all the pending pulls of a lot, called with the lot and its queue locked
+     * @param current The current content of the lot
+     * @param queue Holds the current content of the pull queue, receives its new content
+     * @param self The id of the request of the caller, its answer is taken out of the queue
+     * @param answer Receives the answer to the request of the caller
+     * @return the new content of the lot, or current if no vehicle left it
+     */
+    private static byte[] servePulls(byte[] current, byte[][] queue, String self, PullRequest[] answer) throws IOException {
+        if (SlottedLot.isSlotted(current)) return current; // Each shop pulls from a slotted lot itself
+
+        // Requests are served in arrival order; answers nobody came back for return to the lot
+        long now = System.currentTimeMillis();
+        List<PullRequest> pending = new ArrayList<>();
+        List<PullRequest> kept = new ArrayList<>();
+        List<PullRequest> reclaimed = new ArrayList<>();
+        for (PullRequest request : readQueue(queue[0])) {
+            boolean stale = now - request.requestedAt > STALE_MILLIS && !request.id.equals(self);
+            if (stale) {
+                if (request.state == State.SERVED) reclaimed.add(request);
+                continue;
+            }
+            if (request.state == State.PENDING) pending.add(request);
+            kept.add(request);
+        }
+
+        byte[] content = current;
+        if (!pending.isEmpty() || !reclaimed.isEmpty()) {
+            content = takeVehicles(current, pending, reclaimed);
+            servePasses.incrementAndGet();
+        }
+
+        // Hand the caller its answer and drop it from the queue, written together with the lot
+        StringBuilder remaining = new StringBuilder();
+        for (PullRequest request : kept) {
+            if (request.id.equals(self)) answer[0] = request;
+            else request.write(remaining);
+        }
+        queue[0] = remaining.toString().getBytes(StandardCharsets.UTF_8);
+        return content;
+    }
+
+    // Parse the pull queue, skipping lines that are not complete records
+    private static List<PullRequest> readQueue(byte[] bytes) throws IOException {
+        List<PullRequest> queue = new ArrayList<>();
+        try (RecordReader reader = new RecordReader(bytes)) {
+            while (reader.nextLine()) {
+                if (reader.isBlank()) continue;
+                PullRequest request = new PullRequest();
+                try {
+                    request.id = reader.readString(',');
+                    request.type = reader.readType();
+                    if (request.type == null || !reader.expect(',')) continue;
+                    request.shop = reader.readString(',');
+                    request.requestedAt = reader.readLong();
+                    if (!reader.expect(',')) continue;
+                    request.state = State.valueOf(reader.readString(','));
+                    if (request.state == State.SERVED) {
+                        request.plate = reader.readPlate();
+                        if (!reader.expect(',')) continue;
+                        request.odometer = reader.readInt();
+                    }
+                } catch (IllegalArgumentException e) {
+                    continue; // Includes NumberFormatException
+                }
+                queue.add(request);
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Give each pending request the first free vehicle of its type and rebuild the lot in one pass
+     * @param current The current content of the lot
+     * @param pending The requests to serve, their state is updated
+     * @param reclaimed Served requests whose vehicles go back to the lot
+     * @return the new content of the lot
+     */
+    private static byte[] takeVehicles(byte[] current, List<PullRequest> pending, List<PullRequest> reclaimed) throws IOException {
+        // Count what each type needs, then pick the first vehicles of each type while copying the others
+        int[] wanted = new int[VehicleType.count()];
+        for (PullRequest request : pending) wanted[request.type.ordinal()]++;
+        List<List<int[]>> taken = new ArrayList<>();
+        for (int t = 0; t < wanted.length; t++) taken.add(new ArrayList<>());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(current.length);
+        try (RecordReader reader = new RecordReader(current)) {
+            while (reader.nextLine()) {
+                if (reader.isBlank()) continue;
+                int plate = reader.readPlate();
+                VehicleType type = reader.expect(',') ? reader.readType() : null;
+                if (type != null && wanted[type.ordinal()] > 0 && reader.expect(',')) {
+                    wanted[type.ordinal()]--;
+                    taken.get(type.ordinal()).add(new int[] { plate, reader.readInt() });
+                    continue;
+                }
+                reader.copyLine(out);
+            }
+        }
+
+        int[] next = new int[wanted.length];
+        boolean changed = !reclaimed.isEmpty();
+        for (PullRequest request : pending) {
+            List<int[]> vehicles = taken.get(request.type.ordinal());
+            int i = next[request.type.ordinal()]++;
+            if (i < vehicles.size()) {
+                request.state = State.SERVED;
+                changed = true;
+                request.plate = vehicles.get(i)[0];
+                request.odometer = vehicles.get(i)[1];
+            } else {
+                request.state = State.EMPTY;
+            }
+        }
+
+        if (!changed) return current; // Nothing left the lot, no rewrite
+
+        StringBuilder returned = new StringBuilder();
+        for (PullRequest request : reclaimed) appendLine(returned, new Vehicle(request.plate, request.type, request.odometer));
+        out.write(returned.toString().getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+}
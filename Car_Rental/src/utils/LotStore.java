@@ -0,0 +1,90 @@
+package utils;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import classes.Vehicle;
+import classes.VehicleType;
+
+/**
+ * Where the parking lots are kept
+ */
+public interface LotStore {
+    /**
+     * Outcome of tryPull()
+     */
+    enum Probe {
+        TAKEN,  // The vehicle was taken out of the lot and set in the claim
+        EMPTY,  // The lot has no vehicle of the type, or another probe claimed first; the lot is untouched
+        BUSY    // The lot is locked by another writer and was not read
+    }
+
+    /**
+     * @param lot Name of the lot
+     * @return true if the lot exists
+     */
+    boolean exists(String lot);
+
+    /**
+     * @return the names of the lots, sorted
+     */
+    List<String> names();
+
+    /**
+     * Read all the vehicles of a lot
+     * @param lot Name of the lot
+     * @return the vehicles, empty if the lot does not exist
+     */
+    List<Vehicle> read(String lot) throws IOException;
+
+    /**
+     * Replace the content of a lot, creating it if needed
+     * @param lot Name of the lot
+     * @param vehicles The vehicles parked in the lot
+     * @return the pending write
+     */
+    CompletableFuture<Void> write(String lot, Collection<Vehicle> vehicles);
+
+    /**
+     * Park a vehicle in a lot
+     * @param lot Name of the lot
+     * @param vehicle The vehicle to park
+     * @return the pending write
+     */
+    CompletableFuture<Void> add(String lot, Vehicle vehicle);
+
+    /**
+     * Stock vehicles in a lot and take one out of it in a single change of the current content of the lot, so
+     * the pulls and returns of the shops made meanwhile are kept
+     * @param lot Name of the lot, created if needed
+     * @param added The vehicles to park
+     * @param removedPlate Code of the plate of the vehicle that leaves the fleet, PlateCodec.NONE for none
+     * @return true if the vehicle to remove was in the lot
+     */
+    boolean update(String lot, Collection<Vehicle> added, int removedPlate) throws IOException;
+
+    /**
+     * Take a vehicle of a type out of a lot
+     * @param lot Name of the lot
+     * @param type The type of vehicle wanted
+     * @param shop The shop asking for the vehicle
+     * @return the vehicle, or null if the lot has none of that type
+     */
+    Vehicle pull(String lot, VehicleType type, String shop) throws IOException;
+
+    /**
+     * Take a vehicle of a type out of a lot only if the lot can be locked without waiting, and only if no other
+     * probe of the same claim took a vehicle first. Stores that cannot probe report every lot as busy, so the
+     * caller falls back to pull().
+     * @param lot Name of the lot
+     * @param type The type of vehicle wanted
+     * @param shop The shop asking for the vehicle
+     * @param claim Shared by the probes of one request, receives the vehicle taken
+     * @return whether the vehicle was taken, the lot had none to give, or the lot was locked
+     */
+    default Probe tryPull(String lot, VehicleType type, String shop, AtomicReference<Vehicle> claim) throws IOException {
+        return Probe.BUSY;
+    }
+}
@@ -0,0 +1,271 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import classes.*;
+
+/**
+ * Concurrent in-memory storage backend, private to the process.
+ * Stored shops, lots and rentals hold their own copies of the vehicles, so a shop working on its loaded
+ * state never changes the stored one before it saves, exactly like with the files.
+ */
+public class MemoryStorage {
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    /**
+     * @return a new empty in-memory storage
+     */
+    public static Storage create() {
+        return new Storage(new Shops(), new Lots(), new Rentals(), new Plates(), new Locations());
+    }
+
+    /**
+     * Create an in-memory storage holding a copy of the content of another storage
+     * @param source The storage to copy, e.g. the files
+     * @return the new in-memory storage
+     */
+    public static Storage copyOf(Storage source) throws IOException {
+        Storage storage = create();
+        Plates plates = (Plates) storage.plates();
+        for (String lot : source.lots().names()) {
+            List<Vehicle> vehicles = source.lots().read(lot);
+            storage.lots().write(lot, vehicles);
+            for (Vehicle vehicle : vehicles) {
+                plates.reserve(vehicle.getPlateCode());
+                storage.locations().atLot(vehicle.getPlateCode(), lot);
+                storage.locations().odometer(vehicle.getPlateCode(), vehicle.getOdometer());
+            }
+        }
+        for (String city : source.shops().cities()) {
+            RentalShop shop = source.shops().load(city);
+            if (shop == null) continue;
+            storage.shops().save(shop);
+            for (Vehicle vehicle : shop.getVehicles()) {
+                plates.reserve(vehicle.getPlateCode());
+                storage.locations().atShop(vehicle.getPlateCode(), city);
+                storage.locations().odometer(vehicle.getPlateCode(), vehicle.getOdometer());
+            }
+            shop.releaseSnapshot();
+        }
+        for (RentInfo rentInfo : source.rentals().oldest(Integer.MAX_VALUE)) {
+            storage.rentals().add(rentInfo);
+            plates.reserve(rentInfo.getVehicle().getPlateCode());
+            storage.locations().rented(rentInfo.getVehicle().getPlateCode());
+            storage.locations().odometer(rentInfo.getVehicle().getPlateCode(), rentInfo.getVehicle().getOdometer());
+        }
+        return storage;
+    }
+
+    private static Vehicle copy(Vehicle vehicle) {
+        return new Vehicle(vehicle.getPlateCode(), vehicle.getType(), vehicle.getOdometer());
+    }
+
+    // Saved state of a shop, never modified once stored
+    private static class ShopState {
+        final int spaces;
+        final long balance;
+        final int archived;
+        final List<String> lots;
+        final List<Vehicle> vehicles;
+        final List<Transaction> transactions; // Transactions are immutable, they are shared
+
+        ShopState(RentalShop shop) {
+            this.spaces = shop.getSpaces();
+            this.balance = shop.getBalance();
+            this.archived = shop.getArchivedCount();
+            this.lots = new ArrayList<>(shop.getLots());
+            this.vehicles = new ArrayList<>();
+            for (Vehicle vehicle : shop.getVehicles()) vehicles.add(copy(vehicle));
+            this.transactions = new ArrayList<>(shop.getTransactions());
+        }
+    }
+
+    private static class Shops implements ShopStore {
+        private final ConcurrentHashMap<String, ShopState> shops = new ConcurrentHashMap<>();
+        private final ShopLocks locks = new ShopLocks();
+
+        public RentalShop load(String city) {
+            ShopState state = shops.get(city);
+            if (state == null) return null;
+            RentalShop shop = new RentalShop(null, city);
+            shop.setSpaces(state.spaces);
+            shop.setBalance(state.balance);
+            shop.setArchivedCount(state.archived);
+            shop.setLots(new ArrayList<>(state.lots));
+            List<Vehicle> vehicles = new ArrayList<>(state.vehicles.size());
+            for (Vehicle vehicle : state.vehicles) vehicles.add(copy(vehicle));
+            shop.setVehicles(vehicles);
+            shop.setTransactions(new ArrayList<>(state.transactions));
+            return shop;
+        }
+
+        public boolean save(RentalShop shop) {
+            ShopState state = new ShopState(shop);
+            if (!shop.isReadable()) return false; // Its empty sections would replace the stored ones
+            shops.put(shop.getCity(), state);
+            shop.publishEvents();
+            return true;
+        }
+
+        public List<String> cities() {
+            List<String> cities = new ArrayList<>(shops.keySet());
+            Collections.sort(cities);
+            return cities;
+        }
+
+        public Closeable lock(String city, String operation) throws IOException { return locks.lock(city, operation); }
+    }
+
+    private static class Lots implements LotStore {
+        private final ConcurrentHashMap<String, List<Vehicle>> lots = new ConcurrentHashMap<>();
+
+        public boolean exists(String lot) { return lots.containsKey(lot); }
+
+        public List<String> names() {
+            List<String> names = new ArrayList<>(lots.keySet());
+            Collections.sort(names);
+            return names;
+        }
+
+        public List<Vehicle> read(String lot) {
+            List<Vehicle> vehicles = lots.get(lot);
+            List<Vehicle> copies = new ArrayList<>();
+            if (vehicles == null) return copies;
+            synchronized (vehicles) {
+                for (Vehicle vehicle : vehicles) copies.add(copy(vehicle));
+            }
+            return copies;
+        }
+
+        public CompletableFuture<Void> write(String lot, Collection<Vehicle> vehicles) {
+            List<Vehicle> copies = new ArrayList<>(vehicles.size());
+            for (Vehicle vehicle : vehicles) copies.add(copy(vehicle));
+            lots.put(lot, copies);
+            return DONE;
+        }
+
+        public CompletableFuture<Void> add(String lot, Vehicle vehicle) {
+            List<Vehicle> vehicles = lots.computeIfAbsent(lot, name -> new ArrayList<>());
+            synchronized (vehicles) {
+                vehicles.add(copy(vehicle));
+            }
+            return DONE;
+        }
+
+        public boolean update(String lot, Collection<Vehicle> added, int removedPlate) {
+            List<Vehicle> vehicles = lots.computeIfAbsent(lot, name -> new ArrayList<>());
+            synchronized (vehicles) {
+                boolean removed = vehicles.removeIf(vehicle -> vehicle.getPlateCode() == removedPlate);
+                for (Vehicle vehicle : added) vehicles.add(copy(vehicle));
+                return removed;
+            }
+        }
+
+        public Vehicle pull(String lot, VehicleType type, String shop) {
+            List<Vehicle> vehicles = lots.get(lot);
+            if (vehicles == null) return null;
+            synchronized (vehicles) {
+                for (Iterator<Vehicle> it = vehicles.iterator(); it.hasNext(); ) {
+                    Vehicle vehicle = it.next();
+                    if (vehicle.getType() == type) {
+                        it.remove();
+                        return vehicle;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Rentals implements RentalRegistry {
+        private final Map<Integer, RentInfo> byPlate = new HashMap<>();
+        private final ConcurrentSkipListSet<RentInfo> byStart = new ConcurrentSkipListSet<>(
+            Comparator.comparingLong(RentInfo::getStartTime).thenComparingInt(rentInfo -> rentInfo.getVehicle().getPlateCode()));
+
+        public synchronized boolean add(RentInfo rentInfo) {
+            Vehicle vehicle = copy(rentInfo.getVehicle());
+            RentInfo stored = new RentInfo(vehicle, rentInfo.isDiscount(), rentInfo.getStartTime(), rentInfo.getShop());
+            RentInfo previous = byPlate.put(vehicle.getPlateCode(), stored);
+            if (previous != null) byStart.remove(previous);
+            byStart.add(stored);
+            return true;
+        }
+
+        public synchronized RentInfo find(String licensePlate) {
+            RentInfo rentInfo = byPlate.get(PlateCodec.lookup(licensePlate.trim()));
+            if (rentInfo == null) return null;
+            return new RentInfo(copy(rentInfo.getVehicle()), rentInfo.isDiscount(), rentInfo.getStartTime(), rentInfo.getShop());
+        }
+
+        public synchronized boolean remove(String licensePlate) {
+            RentInfo rentInfo = byPlate.remove(PlateCodec.lookup(licensePlate.trim()));
+            if (rentInfo != null) byStart.remove(rentInfo);
+            return true;
+        }
+
+        public List<RentInfo> olderThan(long cutoff) {
+            List<RentInfo> rentals = new ArrayList<>();
+            for (RentInfo rentInfo : byStart) {
+                if (rentInfo.getStartTime() >= cutoff) break;
+                rentals.add(rentInfo);
+            }
+            return rentals;
+        }
+
+        public List<RentInfo> oldest(int count) {
+            List<RentInfo> rentals = new ArrayList<>();
+            for (RentInfo rentInfo : byStart) {
+                if (rentals.size() >= count) break;
+                rentals.add(rentInfo);
+            }
+            return rentals;
+        }
+    }
+
+    private static class Plates implements PlateAllocator {
+        private final BitSet used = new BitSet();
+        private final Random random = new Random();
+
+        synchronized void reserve(int code) {
+            if (PlateCodec.isStandard(code)) used.set(code);
+        }
+
+        public synchronized String allocate() {
+            if (used.stream().filter(PlateRange::contains).count() >= PlateRange.size()) {
+                throw new IllegalStateException("All " + PlateRange.size() + " license plates of this node are in use.");
+            }
+            int code;
+            do {
+                code = PlateRange.random(random);
+            } while (used.get(code));
+            used.set(code);
+            return PlateCodec.decode(code);
+        }
+    }
+
+    private static class Locations implements LocationStore {
+        private final ConcurrentHashMap<Integer, LocationIndex.Location> locations = new ConcurrentHashMap<>();
+        private final OdometerIndex.Sorted odometers = new OdometerIndex.Sorted();
+
+        public void atLot(int plate, String lot) { locations.put(plate, new LocationIndex.Location(LocationIndex.Kind.LOT, lot)); }
+        public void atShop(int plate, String city) { locations.put(plate, new LocationIndex.Location(LocationIndex.Kind.SHOP, city)); }
+        public void rented(int plate) { locations.put(plate, new LocationIndex.Location(LocationIndex.Kind.RENTED, null)); }
+        public void remove(int plate) {
+            locations.remove(plate);
+            odometers.apply(plate, -1);
+        }
+
+        public LocationIndex.Location where(String licensePlate) {
+            int plate = PlateCodec.lookup(licensePlate.trim());
+            return (plate == PlateCodec.NONE) ? null : locations.get(plate);
+        }
+
+        public void odometer(int plate, int odometer) { if (odometer >= 0) odometers.apply(plate, odometer); }
+        public List<OdometerIndex.Entry> highest(int count) { return odometers.highest(count); }
+        public List<OdometerIndex.Entry> range(int min, int max, int limit) { return odometers.range(min, max, limit); }
+    }
+}
@@ -0,0 +1,91 @@
+package utils;
+
+/**
+ * Amounts of money held as a long number of cents, so balances stay exact after any number of additions.
+ * Text formats write the amount with exactly two decimals ("12.50", "-0.05"); parse() also accepts the
+ * floating point amounts written before ("40.0", "4.5E7"), rounded to the nearest cent.
+ */
+public class Money {
+    public static final long CENTS_PER_UNIT = 100;
+
+    /**
+     * @param amount An amount in currency units
+     * @return the amount in cents, rounded to the nearest cent
+     */
+    public static long of(double amount) {
+        return Math.round(amount * CENTS_PER_UNIT);
+    }
+
+    /**
+     * @param cents An amount in cents
+     * @return the amount in currency units, for display and statistics only
+     */
+    public static double toDouble(long cents) {
+        return cents / (double) CENTS_PER_UNIT;
+    }
+
+    /**
+     * @param cents An amount in cents
+     * @return the amount with two decimals, e.g. "12.50"
+     */
+    public static String format(long cents) {
+        return append(new StringBuilder(24), cents).toString();
+    }
+
+    /**
+     * Append an amount with two decimals without an intermediate String
+     * @param out The builder to append to
+     * @param cents An amount in cents
+     * @return the builder
+     */
+    public static StringBuilder append(StringBuilder out, long cents) {
+        if (cents < 0) out.append('-');
+        long units = Math.abs(cents / CENTS_PER_UNIT);
+        int fraction = (int) Math.abs(cents % CENTS_PER_UNIT);
+        out.append(units).append('.');
+        if (fraction < 10) out.append('0');
+        return out.append(fraction);
+    }
+
+    /**
+     * Parse an amount written by format(), or a legacy floating point amount
+     * @param text The amount in currency units
+     * @return the amount in cents, rounded half up on the third decimal
+     * @throws NumberFormatException if the text is not a number
+     */
+    public static long parse(CharSequence text) {
+        int length = text.length();
+        int start = 0;
+        while (start < length && text.charAt(start) == ' ') start++;
+        while (length > start && text.charAt(length - 1) == ' ') length--;
+        boolean negative = start < length && text.charAt(start) == '-';
+        int pos = negative ? start + 1 : start;
+        long units = 0;
+        int digits = 0;
+        while (pos < length && Character.isDigit(text.charAt(pos))) {
+            if (units > Long.MAX_VALUE / 1000) throw new NumberFormatException("Amount out of range: " + text);
+            units = units * 10 + (text.charAt(pos++) - '0');
+            digits++;
+        }
+        long fraction = 0;
+        if (pos < length && text.charAt(pos) == '.') {
+            pos++;
+            int scale = 0;
+            while (pos < length && Character.isDigit(text.charAt(pos))) {
+                int digit = text.charAt(pos++) - '0';
+                if (scale < 2) fraction = fraction * 10 + digit;
+                else if (scale == 2 && digit >= 5) fraction++; // Round half up, later digits are ignored
+                scale++;
+                digits++;
+            }
+            while (scale++ < 2) fraction *= 10;
+        }
+        if (digits == 0) throw new NumberFormatException("Expected an amount: " + text);
+        if (pos < length) {
+            if (text.charAt(pos) != 'E' && text.charAt(pos) != 'e') throw new NumberFormatException("Expected an amount: " + text);
+            return of(Double.parseDouble(text.subSequence(start, length).toString())); // Scientific notation of Double.toString
+        }
+        long cents = units * CENTS_PER_UNIT + fraction;
+        return negative ? -cents : cents;
+    }
+}
@@ -0,0 +1,300 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Fleet-wide index of the vehicles ordered by odometer, for maintenance and rotation queries: the highest
+ * mileage vehicles, or the vehicles within a mileage range, without reading any lot or shop file.
+ *
+ * Updates are appended to a shared log, "odometers.log" in the index directory, and every process keeps
+ * the index in memory, ordered by (odometer, plate), by reading the records appended since its last query.
+ *  - header : "ODO1", 4 unused bytes, generation (8 bytes)
+ *  - record : plate code (4 bytes), odometer (4 bytes), -1 when the vehicle left the fleet
+ * When the log holds many more records than vehicles it is compacted to one record per vehicle under a new
+ * generation, and the processes that see a new generation read it again from the start. Non-standard
+ * plates are not indexed. The index is derived data, it can be rebuilt from the lot, shop and rental files.
+ */
+public class OdometerIndex {
+    private static final String INDEX_DIR = DataPaths.INDEXES_DIR;
+    private static final String LOG_FILE = INDEX_DIR + File.separator + "odometers.log";
+    private static final String LOTS_DIR = DataPaths.LOTS_DIR;
+    private static final String SHOPS_DIR = DataPaths.SHOPS_DIR;
+    private static final String RENTALS_FILE = "rentals.txt";
+
+    private static final int MAGIC = 0x4F444F31; // "ODO1"
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 8;
+    private static final int REMOVED = -1;
+    private static final int COMPACT_MIN_RECORDS = 1 << 16;
+
+    /**
+     * A vehicle and its odometer
+     */
+    public static class Entry {
+        private final int plate;
+        private final int odometer;
+
+        public Entry(int plate, int odometer) {
+            this.plate = plate;
+            this.odometer = odometer;
+        }
+
+        public int getPlateCode() { return plate; }
+        public String getLicensePlate() { return PlateCodec.decode(plate); }
+        public int getOdometer() { return odometer; }
+
+        @Override
+        public String toString() {
+            return getLicensePlate() + ": " + odometer + " km";
+        }
+    }
+
+    private static final OdometerIndex instance = new OdometerIndex(new File(LOG_FILE));
+
+    private final File log;
+    private final Sorted sorted = new Sorted();
+    private long generation;
+    private long offset; // Offset of the first record not read yet, 0 before the header is read
+
+    private OdometerIndex(File log) {
+        this.log = log;
+    }
+
+    // ----- Updates -----
+
+    /**
+     * Record the odometer of a vehicle
+     * @param plate The plate code
+     * @param odometer The odometer reading
+     */
+    public static void set(int plate, int odometer) {
+        if (PlateCodec.isStandard(plate) && odometer >= 0) instance.append(plate, odometer);
+    }
+
+    /**
+     * Forget a vehicle that left the fleet
+     * @param plate The plate code
+     */
+    public static void remove(int plate) {
+        if (PlateCodec.isStandard(plate)) instance.append(plate, REMOVED);
+    }
+
+    private void append(int plate, int odometer) {
+        try {
+            new File(INDEX_DIR).mkdirs();
+            byte[] record = ByteBuffer.allocate(RECORD_SIZE).putInt(0, plate).putInt(4, odometer).array();
+            if (log.length() >= HEADER_SIZE) {
+                PersistencePipeline.await(PersistencePipeline.get().append(log, record));
+                return;
+            }
+            // First record, written with the header unless another process created the log meanwhile
+            PersistencePipeline.await(PersistencePipeline.get().mutate(log, current -> {
+                byte[] content = (current.length >= HEADER_SIZE) ? current : header(newGeneration());
+                byte[] updated = Arrays.copyOf(content, content.length + RECORD_SIZE);
+                System.arraycopy(record, 0, updated, content.length, RECORD_SIZE);
+                return updated;
+            }));
+        } catch (IOException e) {
+            System.err.println("ERROR: Could not update the odometer index: " + e.getMessage());
+        }
+    }
+
+    // ----- Queries -----
+
+    /**
+     * @param count Maximum number of vehicles
+     * @return the vehicles with the highest odometers, highest first
+     */
+    public static List<Entry> highest(int count) {
+        synchronized (instance) {
+            instance.refresh();
+            return instance.sorted.highest(count);
+        }
+    }
+
+    /**
+     * @param min Lowest odometer, inclusive
+     * @param max Highest odometer, inclusive
+     * @param limit Maximum number of vehicles
+     * @return the vehicles within the range, lowest odometer first
+     */
+    public static List<Entry> range(int min, int max, int limit) {
+        synchronized (instance) {
+            instance.refresh();
+            return instance.sorted.range(min, max, limit);
+        }
+    }
+
+    // Read the records appended since the last query, or the whole log after a compaction
+    private void refresh() {
+        if (!log.exists()) return;
+        try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ);
+             FileLocks.Lock lock = FileLocks.lock(channel, log, true, "read odometers")) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) return;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) { }
+            long current = header.getLong(8);
+            if (current != generation || offset == 0 || size < offset) {
+                sorted.clear();
+                generation = current;
+                offset = HEADER_SIZE;
+            }
+            long end = HEADER_SIZE + (size - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(end - offset, 1 << 20));
+            while (offset < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - offset));
+                while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) { }
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) sorted.apply(buffer.getInt(), buffer.getInt());
+                offset += buffer.limit();
+            }
+            lock.release();
+            if ((end - HEADER_SIZE) / RECORD_SIZE > Math.max(COMPACT_MIN_RECORDS, 4L * sorted.size())) compact();
+        } catch (IOException e) {
+            System.err.println("ERROR: Could not read the odometer index: " + e.getMessage());
+        }
+    }
+
+    // Rewrite the log with one record per vehicle, from its own content
+    private void compact() throws IOException {
+        PersistencePipeline.await(PersistencePipeline.get().mutate(log, current -> {
+            Sorted latest = new Sorted();
+            ByteBuffer records = ByteBuffer.wrap(current);
+            records.position(Math.min(HEADER_SIZE, current.length));
+            while (records.remaining() >= RECORD_SIZE) latest.apply(records.getInt(), records.getInt());
+            return latest.toLog(newGeneration());
+        }));
+    }
+
+    private static long newGeneration() {
+        return ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE | 1; // Never 0, the value before the first read
+    }
+
+    private static byte[] header(long generation) {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(0, MAGIC).putLong(8, generation).array();
+    }
+
+    /**
+     * Drop a record cut by a crash at the end of the log, the records appended after it would be misaligned
+     * @return true if the log was truncated
+     */
+    public static boolean truncateTornRecord() throws IOException {
+        File log = new File(LOG_FILE);
+        if (!log.exists()) return false;
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw");
+             FileChannel channel = raf.getChannel()) {
+            FileLocks.Lock lock = FileLocks.lock(channel, log, false, "recover");
+            try {
+                long size = channel.size();
+                long end = (size < HEADER_SIZE) ? 0 : HEADER_SIZE + (size - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+                if (end == size) return false;
+                channel.truncate(end);
+                return true;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    // ----- Rebuild -----
+
+    /**
+     * Reconstruct the index from the vehicle lines of every lot file, shop file and the rental file
+     * @return the number of vehicles indexed
+     */
+    public static int rebuild() throws IOException {
+        Sorted rebuilt = new Sorted();
+        File[] lotFiles = new File(LOTS_DIR).listFiles((dir, name) -> name.endsWith(".txt"));
+        File[] shopFiles = new File(SHOPS_DIR).listFiles((dir, name) -> name.endsWith(".txt") && !name.equals(RENTALS_FILE));
+        if (lotFiles != null) for (File file : lotFiles) scan(file, false, rebuilt);
+        if (shopFiles != null) for (File file : shopFiles) scan(file, true, rebuilt);
+        scan(new File(SHOPS_DIR + File.separator + RENTALS_FILE), false, rebuilt);
+        new File(INDEX_DIR).mkdirs();
+        byte[] content = rebuilt.toLog(newGeneration());
+        PersistencePipeline.await(PersistencePipeline.get().replace(new File(LOG_FILE), content));
+        return rebuilt.size();
+    }
+
+    // Index the "plate,type,odometer,..." lines of a file, shop files only list vehicles between "Vehicles:" and "Transactions:"
+    private static void scan(File file, boolean shopFile, Sorted index) {
+        if (!file.exists()) return;
+        try (RecordReader reader = RecordReader.open(file)) {
+            boolean inVehicles = !shopFile;
+            while (reader.nextLine()) {
+                if (shopFile) {
+                    if (reader.startsWith("Vehicles:")) { inVehicles = true; continue; }
+                    if (reader.startsWith("Transactions:")) break;
+                }
+                if (!inVehicles || reader.isBlank() || reader.startsWith("#")) continue; // "#" heads a slotted lot
+                int plate = reader.readPlate();
+                if (!reader.expect(',')) continue;
+                reader.readString(',');
+                if (PlateCodec.isStandard(plate)) index.apply(plate, reader.readInt());
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("ERROR: Could not scan " + file.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Vehicles ordered by (odometer, plate), also used by the in-memory storage
+     */
+    public static class Sorted {
+        private final TreeSet<Long> byOdometer = new TreeSet<>();
+        private final IntHashMap<Long> byPlate = new IntHashMap<>();
+
+        private static long key(int plate, int odometer) {
+            return ((long) odometer << 32) | (plate & 0xFFFFFFFFL);
+        }
+
+        private static Entry entry(long key) {
+            return new Entry((int) key, (int) (key >>> 32));
+        }
+
+        /**
+         * @param plate The plate code
+         * @param odometer The odometer reading, negative to remove the vehicle
+         */
+        public synchronized void apply(int plate, int odometer) {
+            Long previous = (odometer >= 0) ? byPlate.put(plate, key(plate, odometer)) : byPlate.remove(plate);
+            if (previous != null) byOdometer.remove(previous);
+            if (odometer >= 0) byOdometer.add(key(plate, odometer));
+        }
+
+        public synchronized List<Entry> highest(int count) {
+            List<Entry> entries = new ArrayList<>();
+            for (Iterator<Long> it = byOdometer.descendingIterator(); it.hasNext() && entries.size() < count; ) entries.add(entry(it.next()));
+            return entries;
+        }
+
+        public synchronized List<Entry> range(int min, int max, int limit) {
+            List<Entry> entries = new ArrayList<>();
+            if (min > max || max < 0) return entries;
+            for (long key : byOdometer.subSet(key(0, Math.max(0, min)), true, key(-1, max), true)) {
+                if (entries.size() >= limit) break;
+                entries.add(entry(key));
+            }
+            return entries;
+        }
+
+        public synchronized int size() { return byPlate.size(); }
+
+        synchronized void clear() {
+            byOdometer.clear();
+            byPlate.clear();
+        }
+
+        synchronized byte[] toLog(long generation) {
+            ByteBuffer content = ByteBuffer.allocate(HEADER_SIZE + RECORD_SIZE * byPlate.size());
+            content.put(header(generation));
+            for (long key : byOdometer) content.putInt((int) key).putInt((int) (key >>> 32));
+            return content.array();
+        }
+    }
+}
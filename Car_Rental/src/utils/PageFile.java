@@ -0,0 +1,349 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Single file of fixed-size pages with an LRU page cache and a write-ahead log.
+ *
+ * Page 0 is the header: magic, version, page count and the root pages of the trees stored in the file.
+ * All changes are made inside a write transaction on private copies of the pages. On commit the new page
+ * images are first appended to "<file>.wal" followed by a checksummed commit record, then written in place,
+ * then the log is cleared. A crash during the in-place writes is repaired on the next open by writing the
+ * logged pages again, so a transaction is either fully applied or not at all. The log and the file are
+ * forced unless the pipeline sync policy is NONE.
+ *
+ * The file is opened by one process at a time. Inside the process, reads share a lock and write
+ * transactions are serialized. A transaction started while the thread already runs one joins it, so several
+ * updates can be committed together; if any of them fails, none is.
+ */
+public class PageFile implements Closeable {
+    public static final int PAGE_SIZE = 4096;
+    public static final int MAX_ROOTS = 64;
+
+    private static final int MAGIC = 0x43525053; // "CRPS"
+    private static final int VERSION = 1;
+    private static final int HEADER_PAGE_COUNT = 8;
+    private static final int HEADER_ROOTS = 16;
+    private static final int COMMIT_MARK = -1;
+
+    private final File file;
+    private final FileChannel channel;
+    private final FileChannel wal;
+    private final FileLock processLock;
+    private final int cachePages;
+    private final LinkedHashMap<Integer, byte[]> cache;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private final ThreadLocal<Tx> current = new ThreadLocal<>();
+    private boolean broken;
+
+    // Statistics
+    private long hits;
+    private long misses;
+    private long commits;
+    private long pagesWritten;
+
+    /**
+     * Work done inside a transaction
+     */
+    @FunctionalInterface
+    public interface Work<T> {
+        T run(Tx tx) throws IOException;
+    }
+
+    /**
+     * Page access inside a transaction. Pages returned by read() must not be modified,
+     * write() returns the private copy of the transaction.
+     */
+    public final class Tx {
+        private final boolean writable;
+        private final Map<Integer, byte[]> dirty = new LinkedHashMap<>();
+        private boolean failed; // A joined update failed, the transaction must not be committed
+        private final List<Runnable> committed = new ArrayList<>(); // Run once committed, see afterCommit()
+
+        private Tx(boolean writable) {
+            this.writable = writable;
+        }
+
+        public byte[] read(int pageId) throws IOException {
+            byte[] page = dirty.get(pageId);
+            return (page != null) ? page : cachedPage(pageId);
+        }
+
+        public byte[] write(int pageId) throws IOException {
+            if (!writable) throw new IllegalStateException("Read-only transaction.");
+            byte[] page = dirty.get(pageId);
+            if (page == null) {
+                page = cachedPage(pageId).clone();
+                dirty.put(pageId, page);
+            }
+            return page;
+        }
+
+        /**
+         * @return the id of a new zeroed page
+         */
+        public int allocate() throws IOException {
+            ByteBuffer header = ByteBuffer.wrap(write(0));
+            int pageId = header.getInt(HEADER_PAGE_COUNT);
+            header.putInt(HEADER_PAGE_COUNT, pageId + 1);
+            dirty.put(pageId, new byte[PAGE_SIZE]);
+            return pageId;
+        }
+
+        public int root(int slot) throws IOException {
+            return ByteBuffer.wrap(read(0)).getInt(HEADER_ROOTS + slot * 4);
+        }
+
+        public void setRoot(int slot, int pageId) throws IOException {
+            ByteBuffer.wrap(write(0)).putInt(HEADER_ROOTS + slot * 4, pageId);
+        }
+    }
+
+    /**
+     * Open a page file, creating it if needed and repairing an interrupted commit
+     * @param file The page file
+     * @param cachePages Number of pages kept in memory
+     */
+    public PageFile(File file, int cachePages) throws IOException {
+        this.file = file;
+        this.cachePages = cachePages;
+        this.cache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > PageFile.this.cachePages;
+            }
+        };
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists()) dir.mkdirs();
+
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock held;
+        try {
+            held = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            held = null;
+        }
+        if (held == null) {
+            channel.close();
+            throw new IOException("Page store " + file.getName() + " is already open in another process.");
+        }
+        this.processLock = held;
+        this.wal = FileChannel.open(new File(file.getPath() + ".wal").toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        recover();
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(HEADER_PAGE_COUNT, 1);
+            writeFully(channel, header.array(), 0);
+            channel.force(false);
+        } else {
+            ByteBuffer header = ByteBuffer.wrap(readPage(0));
+            if (header.getInt(0) != MAGIC) throw new IOException(file.getName() + " is not a page store.");
+            if (header.getInt(4) != VERSION) throw new IOException("Unsupported page store version " + header.getInt(4) + ".");
+        }
+    }
+
+    /**
+     * Run a read-only transaction, concurrently with other readers
+     */
+    public <T> T read(Work<T> work) throws IOException {
+        Tx open = current.get();
+        if (open != null) return work.run(open);
+        lock.readLock().lock();
+        current.set(new Tx(false));
+        try {
+            checkUsable();
+            return work.run(current.get());
+        } finally {
+            current.remove();
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Run a write transaction and commit it atomically, or join the transaction of the thread.
+     * Nothing is written if the work throws.
+     */
+    public <T> T write(Work<T> work) throws IOException {
+        Tx open = current.get();
+        if (open != null) {
+            if (!open.writable) throw new IllegalStateException("Write inside a read-only transaction.");
+            try {
+                return work.run(open);
+            } catch (IOException | RuntimeException e) {
+                open.failed = true;
+                throw e;
+            }
+        }
+        lock.writeLock().lock();
+        Tx tx = new Tx(true);
+        current.set(tx);
+        try {
+            checkUsable();
+            T result = work.run(tx);
+            if (tx.failed) throw new IOException("Transaction rolled back after a failed update.");
+            commit(tx.dirty);
+            for (Runnable action : tx.committed) action.run();
+            return result;
+        } finally {
+            current.remove();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Run an action once the write transaction of the thread is committed, still under the write lock.
+     * Outside of a transaction the action runs at once, it is dropped if the transaction is rolled back.
+     * @param action The action
+     */
+    public void afterCommit(Runnable action) {
+        Tx open = current.get();
+        if (open == null) action.run();
+        else open.committed.add(action);
+    }
+
+    private void checkUsable() throws IOException {
+        if (broken) throw new IOException("Page store " + file.getName() + " failed during a commit, reopen it to recover.");
+    }
+
+    // ----- Commit and recovery -----
+
+    private void commit(Map<Integer, byte[]> pages) throws IOException {
+        if (pages.isEmpty()) return;
+        boolean force = PersistencePipeline.get().getPolicy() != PersistencePipeline.SyncPolicy.NONE;
+
+        // 1. Log the new page images and the commit record
+        ByteBuffer log = ByteBuffer.allocate(pages.size() * (4 + PAGE_SIZE) + 16);
+        for (Map.Entry<Integer, byte[]> page : pages.entrySet()) {
+            log.putInt(page.getKey());
+            log.put(page.getValue());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(log.array(), 0, log.position());
+        log.putInt(COMMIT_MARK);
+        log.putInt(pages.size());
+        log.putLong(crc.getValue());
+        wal.truncate(0);
+        writeFully(wal, log.array(), 0);
+        if (force) wal.force(false);
+
+        // 2. Write the pages in place, the log repairs them if this is interrupted
+        try {
+            for (Map.Entry<Integer, byte[]> page : pages.entrySet()) {
+                writeFully(channel, page.getValue(), (long) page.getKey() * PAGE_SIZE);
+            }
+            if (force) channel.force(false);
+            wal.truncate(0);
+        } catch (IOException | RuntimeException e) {
+            broken = true;
+            throw e;
+        }
+
+        synchronized (cache) {
+            cache.putAll(pages);
+        }
+        commits++;
+        pagesWritten += pages.size();
+    }
+
+    // Write the pages of a complete logged commit, ignore an incomplete one
+    private void recover() throws IOException {
+        long size = wal.size();
+        if (size == 0) return;
+        ByteBuffer log = ByteBuffer.allocate((int) size);
+        while (log.hasRemaining() && wal.read(log, log.position()) >= 0) { }
+        log.flip();
+
+        Map<Integer, byte[]> pages = new LinkedHashMap<>();
+        while (log.remaining() >= 4) {
+            int pageId = log.getInt();
+            if (pageId == COMMIT_MARK) {
+                if (log.remaining() < 12) break;
+                int count = log.getInt();
+                long expected = log.getLong();
+                CRC32 crc = new CRC32();
+                crc.update(log.array(), 0, log.position() - 16);
+                if (count == pages.size() && crc.getValue() == expected) {
+                    for (Map.Entry<Integer, byte[]> page : pages.entrySet()) {
+                        writeFully(channel, page.getValue(), (long) page.getKey() * PAGE_SIZE);
+                    }
+                    channel.force(false);
+                }
+                break;
+            }
+            if (log.remaining() < PAGE_SIZE) break; // Torn log, the commit never happened
+            byte[] page = new byte[PAGE_SIZE];
+            log.get(page);
+            pages.put(pageId, page);
+        }
+        wal.truncate(0);
+        wal.force(false);
+    }
+
+    // ----- Pages -----
+
+    private byte[] cachedPage(int pageId) throws IOException {
+        synchronized (cache) {
+            byte[] page = cache.get(pageId);
+            if (page != null) {
+                hits++;
+                return page;
+            }
+        }
+        byte[] page = readPage(pageId);
+        synchronized (cache) {
+            misses++;
+            cache.putIfAbsent(pageId, page);
+        }
+        return page;
+    }
+
+    private byte[] readPage(int pageId) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        long position = (long) pageId * PAGE_SIZE;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) break; // Past the end of the file, the rest of the page is zeros
+        }
+        return buffer.array();
+    }
+
+    private static void writeFully(FileChannel target, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) target.write(buffer, position + buffer.position());
+    }
+
+    /**
+     * Statistics of the page file since it was opened
+     * @return a one line summary
+     */
+    public String stats() {
+        synchronized (cache) {
+            return "Cache: " + cache.size() + "/" + cachePages + " pages; Hits: " + hits + "; Misses: " + misses
+                + "; Commits: " + commits + "; Pages written: " + pagesWritten;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            processLock.release();
+            wal.close();
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
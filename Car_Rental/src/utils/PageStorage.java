@@ -0,0 +1,770 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import classes.*;
+
+/**
+ * Storage backend keeping the lots, shops, rentals and plates in one page file (see PageFile), indexed by B+trees:
+ *  - vehicles      : plate -> type, odometer and location, which is also the location index
+ *  - lot vehicles  : (lot, type, arrival) -> plate, so a pull is the first entry of a key range
+ *  - lots          : lot -> next arrival number
+ *  - shops         : city -> spaces, balance, number of transactions, number archived (see TransactionArchive)
+ *  - shop lots, shop vehicles, transactions, transaction times : (city, position) -> entry
+ *  - rentals       : plate -> rental, and (start time, n) -> plate for the oldest rentals
+ *  - plates        : plates handed out by the allocator
+ *  - names         : id -> city, lot or non-standard plate
+ *  - odometers     : (odometer, plate) of the standard plates, kept with the vehicle records
+ * Amounts are stored in cents (see Money).
+ * Cities and lots are keyed by a 63-bit hash of their name, the range keys use its low 32 bits and the entries
+ * carry the full id to tell two names apart if those collide. Non-standard plates use a negative hash id.
+ *
+ * Every update is one page transaction. Work run with Storage.atomically() joins a single transaction, so a
+ * RENT that pulls a vehicle from a lot, records the rental and saves the shop is committed as one atomic write.
+ * The page file is opened by one process at a time; run the shops with the same storage in one process.
+ */
+public class PageStorage implements Storage.Transactions {
+    public static final String DEFAULT_FILE = "store.db";
+    private static final int CACHE_PAGES = Integer.getInteger("carrental.pages.cache", 1024); // 4 MB
+
+    private static final byte AT_LOT = 1;
+    private static final byte AT_SHOP = 2;
+    private static final byte RENTED = 3;
+
+    private static final int NAME_SIZE = 64;
+    private static final long LOW_BITS = 0xFFFFFFFFL;
+    private static final int ARRIVAL_BITS = 28; // Arrivals of one lot, below the type in the lot keys
+    private static final long ARRIVAL_MASK = (1L << ARRIVAL_BITS) - 1;
+    private static final int START_SLOTS = 1024; // Rentals started in the same millisecond
+
+    // Trees by root slot, the owned ones keep the full owner id at offset 8 of their values
+    private static final BPlusTree VEHICLES = new BPlusTree(0, 16);
+    private static final BPlusTree LOT_VEHICLES = new BPlusTree(1, 16);
+    private static final BPlusTree LOTS = new BPlusTree(2, 16);
+    private static final BPlusTree SHOPS = new BPlusTree(3, 32);
+    private static final BPlusTree SHOP_LOTS = new BPlusTree(4, 16);
+    private static final BPlusTree SHOP_VEHICLES = new BPlusTree(5, 16);
+    private static final BPlusTree TRANSACTIONS = new BPlusTree(6, 32);
+    private static final BPlusTree RENTALS = new BPlusTree(7, 32);
+    private static final BPlusTree RENTALS_BY_START = new BPlusTree(8, 8);
+    private static final BPlusTree PLATES = new BPlusTree(9, 0);
+    private static final BPlusTree NAMES = new BPlusTree(10, NAME_SIZE);
+    private static final BPlusTree ODOMETERS = new BPlusTree(11, 0);
+    private static final BPlusTree TRANSACTION_TIMES = new BPlusTree(12, 16);
+
+    private static final Map<String, Storage> open = new HashMap<>();
+
+    private final PageFile pages;
+    private final Map<Long, String> names = new ConcurrentHashMap<>(); // Names never change once stored
+
+    private PageStorage(PageFile pages) {
+        this.pages = pages;
+    }
+
+    /**
+     * Open the page store of the data directory, importing the data files while it is empty
+     * @return the storage over "store.db" in the data directory
+     * @throws UncheckedIOException if the store cannot be opened
+     */
+    public static Storage create() {
+        File file = new File(DataPaths.ROOT, DEFAULT_FILE);
+        try {
+            Storage storage = open(file);
+            if (storage.lots().names().isEmpty() && storage.shops().cities().isEmpty()) importFrom(FileStorage.create(), storage);
+            return storage;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open the page store: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Open a page store, the storage is shared by the callers of the same process
+     * @param file The page file, created if needed
+     * @return the storage over the page file
+     */
+    public static synchronized Storage open(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        Storage storage = open.get(path);
+        if (storage == null) {
+            PageStorage store = new PageStorage(new PageFile(file, CACHE_PAGES));
+            store.indexOdometers();
+            storage = new Storage(store.new Shops(), store.new Lots(), store.new Rentals(), store.new Plates(), store.new Locations(), store);
+            open.put(path, storage);
+        }
+        return storage;
+    }
+
+    /**
+     * Copy the content of another storage into a storage, as one unit of work
+     * @param source The storage to copy, e.g. the files
+     * @param target The storage receiving the copy
+     */
+    public static void importFrom(Storage source, Storage target) throws IOException {
+        target.atomically(() -> {
+            for (String lot : source.lots().names()) {
+                PersistencePipeline.await(target.lots().write(lot, source.lots().read(lot)));
+            }
+            for (String city : source.shops().cities()) {
+                RentalShop shop = source.shops().load(city);
+                if (shop == null) continue;
+                shop.getVehicles();
+                shop.getTransactions();
+                shop.releaseSnapshot();
+                if (!target.shops().save(shop)) throw new IOException("Unable to import the shop " + city + ".");
+            }
+            for (RentInfo rentInfo : source.rentals().oldest(Integer.MAX_VALUE)) {
+                if (!target.rentals().add(rentInfo)) throw new IOException("Unable to import the rentals.");
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public <T> T atomically(Storage.Work<T> work) throws IOException {
+        return pages.write(tx -> work.run());
+    }
+
+    // ----- Keys and names -----
+
+    private static long nameId(char kind, String name) {
+        long hash = 0xcbf29ce484222325L; // FNV-1a
+        hash = (hash ^ kind) * 0x100000001b3L;
+        for (int i = 0; i < name.length(); i++) hash = (hash ^ name.charAt(i)) * 0x100000001b3L;
+        hash &= Long.MAX_VALUE;
+        return (hash == 0) ? 1 : hash;
+    }
+
+    private static long cityId(String city) { return nameId('C', city); }
+    private static long lotId(String lot) { return nameId('L', lot); }
+
+    // First key of the entries owned by a city or a lot
+    private static long owned(long ownerId) { return (ownerId & LOW_BITS) << 32; }
+
+    private static long lotKey(long lotId, VehicleType type, long arrival) {
+        return owned(lotId) | ((long) type.ordinal() << ARRIVAL_BITS) | (arrival & ARRIVAL_MASK);
+    }
+
+    private void putName(PageFile.Tx tx, long id, String name) throws IOException {
+        if (NAMES.get(tx, id) != null) return;
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= NAME_SIZE) throw new IOException("Name too long for the page store: " + name);
+        byte[] value = new byte[NAME_SIZE];
+        value[0] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, value, 1, bytes.length);
+        NAMES.put(tx, id, value);
+    }
+
+    private String name(PageFile.Tx tx, long id) throws IOException {
+        String name = names.get(id);
+        if (name != null) return name;
+        byte[] value = NAMES.get(tx, id);
+        if (value == null) throw new IOException("Unknown name id in the page store: " + id);
+        name = new String(value, 1, value[0] & 0xFF, StandardCharsets.UTF_8);
+        names.put(id, name);
+        return name;
+    }
+
+    // Key of a plate typed by a user, standard plates are keyed by their code
+    private static long plateKey(String licensePlate) {
+        String plate = licensePlate.trim();
+        int code = PlateCodec.encodeStandard(plate);
+        return (code != PlateCodec.NONE) ? code : -nameId('P', plate);
+    }
+
+    private long plateKey(PageFile.Tx tx, int code) throws IOException {
+        if (PlateCodec.isStandard(code)) return code;
+        String plate = PlateCodec.decode(code);
+        long key = -nameId('P', plate);
+        if (tx != null) putName(tx, key, plate);
+        return key;
+    }
+
+    private int plateCode(PageFile.Tx tx, long key) throws IOException {
+        return (key >= 0) ? (int) key : PlateCodec.encode(name(tx, key));
+    }
+
+    // ----- Records -----
+
+    @FunctionalInterface
+    private interface Entries {
+        void accept(long key, ByteBuffer value) throws IOException;
+    }
+
+    // Visit the entries of a tree owned by a city or a lot, in key order
+    private static void scanOwned(PageFile.Tx tx, BPlusTree tree, long ownerId, Entries entries) throws IOException {
+        tree.scan(tx, owned(ownerId), owned(ownerId) | LOW_BITS, (key, value) -> {
+            ByteBuffer buffer = ByteBuffer.wrap(value);
+            if (buffer.getLong(8) == ownerId) entries.accept(key, buffer);
+            return true;
+        });
+    }
+
+    // Delete an entry if it belongs to the owner, a city or lot whose id has the same low bits keeps its own
+    private static void deleteOwned(PageFile.Tx tx, BPlusTree tree, long ownerId, long key) throws IOException {
+        byte[] value = tree.get(tx, key);
+        if (value != null && ByteBuffer.wrap(value).getLong(8) == ownerId) tree.delete(tx, key);
+    }
+
+    // Replace the entries owned by a city, nothing is written if they did not change
+    private static void replaceOwned(PageFile.Tx tx, BPlusTree tree, long ownerId, List<byte[]> values) throws IOException {
+        List<Long> keys = new ArrayList<>();
+        List<byte[]> existing = new ArrayList<>();
+        scanOwned(tx, tree, ownerId, (key, value) -> {
+            keys.add(key);
+            existing.add(value.array());
+        });
+        boolean same = existing.size() == values.size();
+        for (int i = 0; same && i < values.size(); i++) same = Arrays.equals(existing.get(i), values.get(i));
+        if (same) return;
+        for (long key : keys) tree.delete(tx, key);
+        for (int i = 0; i < values.size(); i++) tree.put(tx, owned(ownerId) | i, values.get(i));
+    }
+
+    private static void putIfChanged(PageFile.Tx tx, BPlusTree tree, long key, byte[] value) throws IOException {
+        if (!Arrays.equals(tree.get(tx, key), value)) tree.put(tx, key, value);
+    }
+
+    private void putVehicle(PageFile.Tx tx, Vehicle vehicle, byte kind, long locationId) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(16);
+        record.put(0, (byte) vehicle.getType().ordinal());
+        record.put(1, kind);
+        record.putInt(4, vehicle.getOdometer());
+        record.putLong(8, locationId);
+        long plate = plateKey(tx, vehicle.getPlateCode());
+        byte[] previous = VEHICLES.get(tx, plate);
+        if (Arrays.equals(previous, record.array())) return;
+        VEHICLES.put(tx, plate, record.array());
+        indexOdometer(tx, plate, previous, record.array());
+    }
+
+    private static void deleteVehicle(PageFile.Tx tx, long plate, byte[] record) throws IOException {
+        VEHICLES.delete(tx, plate);
+        indexOdometer(tx, plate, record, null);
+    }
+
+    // Move a standard plate in the odometer tree from its previous vehicle record to its new one
+    private static void indexOdometer(PageFile.Tx tx, long plate, byte[] previous, byte[] record) throws IOException {
+        if (plate < 0) return;
+        int before = (previous == null) ? -1 : ByteBuffer.wrap(previous).getInt(4);
+        int after = (record == null) ? -1 : ByteBuffer.wrap(record).getInt(4);
+        if (before == after) return;
+        if (before >= 0) ODOMETERS.delete(tx, odometerKey(plate, before));
+        if (after >= 0) ODOMETERS.put(tx, odometerKey(plate, after), new byte[0]);
+    }
+
+    private static long odometerKey(long plate, int odometer) { return ((long) odometer << 32) | plate; }
+
+    // Fill the odometer tree of a store written before it existed
+    private void indexOdometers() throws IOException {
+        boolean missing = pages.read(tx -> ODOMETERS.isEmpty(tx) && !VEHICLES.isEmpty(tx));
+        if (!missing) return;
+        pages.write(tx -> {
+            Map<Long, byte[]> records = new LinkedHashMap<>();
+            VEHICLES.scan(tx, 0, PlateCodec.PLATE_COUNT - 1, (plate, record) -> {
+                records.put(plate, record);
+                return true;
+            });
+            for (Map.Entry<Long, byte[]> entry : records.entrySet()) indexOdometer(tx, entry.getKey(), null, entry.getValue());
+            return null;
+        });
+    }
+
+    private Vehicle vehicle(PageFile.Tx tx, long plate) throws IOException {
+        byte[] value = VEHICLES.get(tx, plate);
+        if (value == null) throw new IOException("Missing vehicle record in the page store: " + plate);
+        ByteBuffer record = ByteBuffer.wrap(value);
+        return new Vehicle(plateCode(tx, plate), VehicleType.of(record.get(0)), record.getInt(4));
+    }
+
+    private static byte[] ownedEntry(long first, long ownerId) {
+        return ByteBuffer.allocate(16).putLong(0, first).putLong(8, ownerId).array();
+    }
+
+    private static CompletableFuture<Void> done(PageFile pages, PageFile.Work<Void> work) {
+        try {
+            pages.write(work);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // ----- Stores -----
+
+    private class Shops implements ShopStore {
+        private final ShopLocks locks = new ShopLocks(); // The page file is only ever open in one process
+
+        public RentalShop load(String city) {
+            try {
+                return pages.read(tx -> {
+                    long cityId = cityId(city);
+                    byte[] value = SHOPS.get(tx, cityId);
+                    if (value == null) return null;
+                    ByteBuffer record = ByteBuffer.wrap(value);
+                    RentalShop shop = new RentalShop(null, city);
+                    shop.setSpaces(record.getInt(0));
+                    shop.setBalance(record.getLong(8));
+                    shop.setArchivedCount(record.getInt(28));
+                    List<String> lots = new ArrayList<>();
+                    scanOwned(tx, SHOP_LOTS, cityId, (key, entry) -> lots.add(name(tx, entry.getLong(0))));
+                    shop.setLots(lots);
+                    List<Vehicle> vehicles = new ArrayList<>();
+                    scanOwned(tx, SHOP_VEHICLES, cityId, (key, entry) -> vehicles.add(vehicle(tx, entry.getLong(0))));
+                    shop.setVehicles(vehicles);
+                    Map<Long, Long> times = new HashMap<>();
+                    scanOwned(tx, TRANSACTION_TIMES, cityId, (key, entry) -> times.put(key, entry.getLong(0)));
+                    List<Transaction> transactions = new ArrayList<>();
+                    scanOwned(tx, TRANSACTIONS, cityId, (key, entry) -> transactions.add(new Transaction(plateCode(tx, entry.getLong(0)),
+                        entry.getInt(24), entry.get(28) != 0, entry.getLong(16), times.getOrDefault(key, 0L))));
+                    shop.setTransactions(transactions);
+                    return shop;
+                });
+            } catch (IOException e) {
+                System.err.println("Error loading shop data: " + e.getMessage());
+                return null;
+            }
+        }
+
+        public boolean save(RentalShop shop) {
+            if (!shop.isReadable()) return false; // Its empty sections would replace the stored ones
+            try {
+                pages.write(tx -> {
+                    long cityId = cityId(shop.getCity());
+                    putName(tx, cityId, shop.getCity());
+                    byte[] previous = SHOPS.get(tx, cityId);
+                    long stored = (previous != null) ? ByteBuffer.wrap(previous).getLong(16) : 0;
+                    int archived = (previous != null) ? ByteBuffer.wrap(previous).getInt(28) : 0;
+
+                    // Transactions moved to the archive since the last save are dropped
+                    for (long i = archived; i < shop.getArchivedCount(); i++) {
+                        deleteOwned(tx, TRANSACTIONS, cityId, owned(cityId) | i);
+                        deleteOwned(tx, TRANSACTION_TIMES, cityId, owned(cityId) | i);
+                    }
+
+                    // Transactions are only ever appended, the stored ones are not written again.
+                    // Their positions count the archived ones, the shop only holds the others.
+                    List<Transaction> transactions = shop.getTransactions();
+                    long total = shop.getArchivedCount() + transactions.size();
+                    for (long i = Math.max(stored, shop.getArchivedCount()); i < total; i++) {
+                        Transaction transaction = transactions.get((int) (i - shop.getArchivedCount()));
+                        ByteBuffer entry = ByteBuffer.allocate(32);
+                        entry.putLong(0, plateKey(tx, transaction.getPlateCode()));
+                        entry.putLong(8, cityId);
+                        entry.putLong(16, transaction.getAmount());
+                        entry.putInt(24, transaction.getDistance());
+                        entry.put(28, (byte) (transaction.isDiscount() ? 1 : 0));
+                        TRANSACTIONS.put(tx, owned(cityId) | i, entry.array());
+                        if (transaction.getTime() > 0) {
+                            TRANSACTION_TIMES.put(tx, owned(cityId) | i, ByteBuffer.allocate(16).putLong(0, transaction.getTime()).putLong(8, cityId).array());
+                        }
+                    }
+
+                    ByteBuffer record = ByteBuffer.allocate(32);
+                    record.putInt(0, shop.getSpaces());
+                    record.putLong(8, shop.getBalance());
+                    record.putLong(16, Math.max(stored, total));
+                    record.putInt(28, Math.max(archived, shop.getArchivedCount()));
+                    putIfChanged(tx, SHOPS, cityId, record.array());
+
+                    List<byte[]> lots = new ArrayList<>();
+                    for (String lot : shop.getLots()) {
+                        putName(tx, lotId(lot), lot);
+                        lots.add(ownedEntry(lotId(lot), cityId));
+                    }
+                    replaceOwned(tx, SHOP_LOTS, cityId, lots);
+
+                    List<byte[]> vehicles = new ArrayList<>();
+                    for (Vehicle vehicle : shop.getVehicles()) {
+                        putVehicle(tx, vehicle, AT_SHOP, cityId);
+                        vehicles.add(ownedEntry(plateKey(tx, vehicle.getPlateCode()), cityId));
+                    }
+                    replaceOwned(tx, SHOP_VEHICLES, cityId, vehicles);
+                    pages.afterCommit(shop::publishEvents); // With the command when it runs atomically
+                    return null;
+                });
+                return true;
+            } catch (IOException e) {
+                System.err.println("Error saving shop data: " + e.getMessage());
+                return false;
+            }
+        }
+
+        public List<String> cities() {
+            List<String> cities = new ArrayList<>();
+            try {
+                pages.read(tx -> {
+                    SHOPS.scan(tx, Long.MIN_VALUE, Long.MAX_VALUE, (key, value) -> cities.add(name(tx, key)));
+                    return null;
+                });
+            } catch (IOException e) {
+                System.err.println("Error reading the shops: " + e.getMessage());
+            }
+            Collections.sort(cities);
+            return cities;
+        }
+
+        public Closeable lock(String city, String operation) throws IOException { return locks.lock(city, operation); }
+    }
+
+    private class Lots implements LotStore {
+        public boolean exists(String lot) {
+            try {
+                return pages.read(tx -> LOTS.get(tx, lotId(lot)) != null);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        public List<String> names() {
+            List<String> lots = new ArrayList<>();
+            try {
+                pages.read(tx -> {
+                    LOTS.scan(tx, Long.MIN_VALUE, Long.MAX_VALUE, (key, value) -> lots.add(name(tx, key)));
+                    return null;
+                });
+            } catch (IOException e) {
+                System.err.println("Error reading the lots: " + e.getMessage());
+            }
+            Collections.sort(lots);
+            return lots;
+        }
+
+        public List<Vehicle> read(String lot) throws IOException {
+            return pages.read(tx -> {
+                List<Vehicle> vehicles = new ArrayList<>();
+                scanOwned(tx, LOT_VEHICLES, lotId(lot), (key, entry) -> vehicles.add(vehicle(tx, entry.getLong(0))));
+                return vehicles;
+            });
+        }
+
+        public CompletableFuture<Void> write(String lot, Collection<Vehicle> vehicles) {
+            return done(pages, tx -> {
+                long lotId = createLot(tx, lot);
+                Set<Long> kept = new HashSet<>();
+                for (Vehicle vehicle : vehicles) kept.add(plateKey(tx, vehicle.getPlateCode()));
+
+                // Vehicles dropped from the lot leave the fleet
+                List<Long> keys = new ArrayList<>();
+                List<Long> dropped = new ArrayList<>();
+                scanOwned(tx, LOT_VEHICLES, lotId, (key, entry) -> {
+                    keys.add(key);
+                    if (!kept.contains(entry.getLong(0))) dropped.add(entry.getLong(0));
+                });
+                for (long key : keys) LOT_VEHICLES.delete(tx, key);
+                for (long plate : dropped) {
+                    byte[] record = VEHICLES.get(tx, plate);
+                    if (record != null && record[1] == AT_LOT && ByteBuffer.wrap(record).getLong(8) == lotId) deleteVehicle(tx, plate, record);
+                }
+                for (Vehicle vehicle : vehicles) park(tx, lotId, vehicle);
+                return null;
+            });
+        }
+
+        public CompletableFuture<Void> add(String lot, Vehicle vehicle) {
+            return done(pages, tx -> {
+                park(tx, createLot(tx, lot), vehicle);
+                return null;
+            });
+        }
+
+        public boolean update(String lot, Collection<Vehicle> added, int removedPlate) throws IOException {
+            return pages.write(tx -> {
+                long lotId = createLot(tx, lot);
+                List<Long> keys = new ArrayList<>();
+                if (removedPlate != PlateCodec.NONE) {
+                    long plate = plateKey(tx, removedPlate);
+                    scanOwned(tx, LOT_VEHICLES, lotId, (key, entry) -> {
+                        if (entry.getLong(0) == plate) keys.add(key);
+                    });
+                    for (long key : keys) LOT_VEHICLES.delete(tx, key);
+                    byte[] record = VEHICLES.get(tx, plate);
+                    if (!keys.isEmpty() && record != null) deleteVehicle(tx, plate, record); // It leaves the fleet
+                }
+                for (Vehicle vehicle : added) park(tx, lotId, vehicle);
+                return !keys.isEmpty();
+            });
+        }
+
+        public Vehicle pull(String lot, VehicleType type, String shop) throws IOException {
+            return pages.write(tx -> {
+                long lotId = lotId(lot);
+                long first = lotKey(lotId, type, 0);
+                long[] entry = new long[2];
+                boolean[] hit = new boolean[1];
+                LOT_VEHICLES.scan(tx, first, first | ARRIVAL_MASK, (key, value) -> {
+                    ByteBuffer buffer = ByteBuffer.wrap(value);
+                    if (buffer.getLong(8) != lotId) return true;
+                    entry[0] = key;
+                    entry[1] = buffer.getLong(0);
+                    hit[0] = true;
+                    return false;
+                });
+                if (!hit[0]) return null;
+                LOT_VEHICLES.delete(tx, entry[0]);
+                Vehicle vehicle = vehicle(tx, entry[1]);
+                if (shop != null) {
+                    putName(tx, cityId(shop), shop);
+                    putVehicle(tx, vehicle, AT_SHOP, cityId(shop));
+                }
+                return vehicle;
+            });
+        }
+
+        private long createLot(PageFile.Tx tx, String lot) throws IOException {
+            long lotId = lotId(lot);
+            if (LOTS.get(tx, lotId) == null) {
+                putName(tx, lotId, lot);
+                LOTS.put(tx, lotId, new byte[16]);
+            }
+            return lotId;
+        }
+
+        // Park a vehicle after the ones already in the lot, pulls take the earliest arrival first
+        private void park(PageFile.Tx tx, long lotId, Vehicle vehicle) throws IOException {
+            ByteBuffer record = ByteBuffer.wrap(LOTS.get(tx, lotId));
+            long arrival = record.getLong(0);
+            record.putLong(0, arrival + 1);
+            LOTS.put(tx, lotId, record.array());
+            long plate = plateKey(tx, vehicle.getPlateCode());
+            LOT_VEHICLES.put(tx, lotKey(lotId, vehicle.getType(), arrival), ownedEntry(plate, lotId));
+            putVehicle(tx, vehicle, AT_LOT, lotId);
+        }
+    }
+
+    private class Rentals implements RentalRegistry {
+        public boolean add(RentInfo rentInfo) {
+            try {
+                pages.write(tx -> {
+                    Vehicle vehicle = rentInfo.getVehicle();
+                    long plate = plateKey(tx, vehicle.getPlateCode());
+                    byte[] previous = RENTALS.get(tx, plate);
+                    if (previous != null) RENTALS_BY_START.delete(tx, ByteBuffer.wrap(previous).getLong(16));
+
+                    long start = rentInfo.getStartTime();
+                    long startKey = start * START_SLOTS;
+                    while (RENTALS_BY_START.get(tx, startKey) != null) {
+                        if (++startKey == (start + 1) * START_SLOTS) throw new IOException("Too many rentals started at " + start + ".");
+                    }
+                    long shopId = 0;
+                    if (rentInfo.getShop() != null) {
+                        shopId = cityId(rentInfo.getShop());
+                        putName(tx, shopId, rentInfo.getShop());
+                    }
+                    ByteBuffer record = ByteBuffer.allocate(32);
+                    record.putLong(0, start);
+                    record.putLong(8, shopId);
+                    record.putLong(16, startKey);
+                    record.putInt(24, vehicle.getOdometer());
+                    record.put(28, (byte) vehicle.getType().ordinal());
+                    record.put(29, (byte) (rentInfo.isDiscount() ? 1 : 0));
+                    RENTALS.put(tx, plate, record.array());
+                    RENTALS_BY_START.put(tx, startKey, ByteBuffer.allocate(8).putLong(0, plate).array());
+                    putVehicle(tx, vehicle, RENTED, 0);
+                    return null;
+                });
+                return true;
+            } catch (IOException e) {
+                System.err.println("Error writing the rental: " + e.getMessage());
+                return false;
+            }
+        }
+
+        public RentInfo find(String licensePlate) {
+            try {
+                return pages.read(tx -> {
+                    long plate = plateKey(licensePlate);
+                    byte[] record = RENTALS.get(tx, plate);
+                    return (record != null) ? rentInfo(tx, plate, ByteBuffer.wrap(record)) : null;
+                });
+            } catch (IOException e) {
+                System.err.println("Error reading the rentals: " + e.getMessage());
+                return null;
+            }
+        }
+
+        public boolean remove(String licensePlate) {
+            try {
+                pages.write(tx -> {
+                    long plate = plateKey(licensePlate);
+                    byte[] record = RENTALS.get(tx, plate);
+                    if (record == null) return null;
+                    RENTALS_BY_START.delete(tx, ByteBuffer.wrap(record).getLong(16));
+                    RENTALS.delete(tx, plate);
+                    return null;
+                });
+                return true;
+            } catch (IOException e) {
+                System.err.println("Error removing the rental: " + e.getMessage());
+                return false;
+            }
+        }
+
+        public List<RentInfo> olderThan(long cutoff) {
+            return scan(cutoff * START_SLOTS - 1, Integer.MAX_VALUE);
+        }
+
+        public List<RentInfo> oldest(int count) {
+            return scan(Long.MAX_VALUE, count);
+        }
+
+        // Rentals in start order, up to a start key
+        private List<RentInfo> scan(long lastKey, int count) {
+            List<RentInfo> rentals = new ArrayList<>();
+            if (count <= 0) return rentals;
+            try {
+                pages.read(tx -> {
+                    RENTALS_BY_START.scan(tx, Long.MIN_VALUE, lastKey, (key, value) -> {
+                        long plate = ByteBuffer.wrap(value).getLong(0);
+                        byte[] record = RENTALS.get(tx, plate);
+                        if (record != null) rentals.add(rentInfo(tx, plate, ByteBuffer.wrap(record)));
+                        return rentals.size() < count;
+                    });
+                    return null;
+                });
+            } catch (IOException e) {
+                System.err.println("Error reading the rentals: " + e.getMessage());
+            }
+            return rentals;
+        }
+
+        private RentInfo rentInfo(PageFile.Tx tx, long plate, ByteBuffer record) throws IOException {
+            Vehicle vehicle = new Vehicle(plateCode(tx, plate), VehicleType.of(record.get(28)), record.getInt(24));
+            long shopId = record.getLong(8);
+            return new RentInfo(vehicle, record.get(29) != 0, record.getLong(0), (shopId != 0) ? name(tx, shopId) : null);
+        }
+    }
+
+    private class Plates implements PlateAllocator {
+        private static final int ATTEMPTS = 100_000;
+
+        public String allocate() {
+            try {
+                return pages.write(tx -> {
+                    for (int i = 0; i < ATTEMPTS; i++) {
+                        int code = PlateRange.random(ThreadLocalRandom.current());
+                        if (PLATES.get(tx, code) != null || VEHICLES.get(tx, code) != null) continue;
+                        PLATES.put(tx, code, new byte[0]);
+                        return PlateCodec.decode(code);
+                    }
+                    throw new IllegalStateException("No free license plate found after " + ATTEMPTS + " attempts.");
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // The stores keep the vehicle records up to date, these only repair a record that differs
+    private class Locations implements LocationStore {
+        public void atLot(int plate, String lot) { move(plate, AT_LOT, lot, lotId(lot)); }
+        public void atShop(int plate, String city) { move(plate, AT_SHOP, city, cityId(city)); }
+        public void rented(int plate) { move(plate, RENTED, null, 0); }
+
+        public void remove(int plate) {
+            try {
+                pages.write(tx -> {
+                    long key = plateKey(tx, plate);
+                    byte[] record = VEHICLES.get(tx, key);
+                    if (record != null) deleteVehicle(tx, key, record);
+                    return null;
+                });
+            } catch (IOException e) {
+                System.err.println("Error updating the vehicle location: " + e.getMessage());
+            }
+        }
+
+        private void move(int plate, byte kind, String name, long locationId) {
+            try {
+                boolean changed = pages.read(tx -> {
+                    byte[] record = VEHICLES.get(tx, plateKey(null, plate));
+                    return record != null && (record[1] != kind || ByteBuffer.wrap(record).getLong(8) != locationId);
+                });
+                if (!changed) return; // Unknown vehicles are recorded when they are stored
+                pages.write(tx -> {
+                    long key = plateKey(tx, plate);
+                    byte[] record = VEHICLES.get(tx, key);
+                    if (record == null) return null;
+                    if (name != null) putName(tx, locationId, name);
+                    record[1] = kind;
+                    ByteBuffer.wrap(record).putLong(8, locationId);
+                    VEHICLES.put(tx, key, record);
+                    return null;
+                });
+            } catch (IOException e) {
+                System.err.println("Error updating the vehicle location: " + e.getMessage());
+            }
+        }
+
+        public void odometer(int plate, int odometer) { } // Kept with the vehicle records
+
+        // The tree is only scanned upwards, windows of growing width are scanned below the highest odometer
+        public List<OdometerIndex.Entry> highest(int count) {
+            try {
+                return pages.read(tx -> {
+                    ArrayDeque<Long> top = new ArrayDeque<>();
+                    for (long width = 1024; top.size() < count; width *= 2) {
+                        long from = Math.max(0, Integer.MAX_VALUE - width);
+                        top.clear();
+                        ODOMETERS.scan(tx, from << 32, Long.MAX_VALUE, (key, value) -> {
+                            if (top.size() == count) top.removeFirst();
+                            top.addLast(key);
+                            return true;
+                        });
+                        if (from == 0) break;
+                    }
+                    List<OdometerIndex.Entry> entries = new ArrayList<>();
+                    for (Iterator<Long> it = top.descendingIterator(); it.hasNext(); ) entries.add(odometerEntry(it.next()));
+                    return entries;
+                });
+            } catch (IOException e) {
+                System.err.println("Error reading the odometers: " + e.getMessage());
+                return Collections.emptyList();
+            }
+        }
+
+        public List<OdometerIndex.Entry> range(int min, int max, int limit) {
+            List<OdometerIndex.Entry> entries = new ArrayList<>();
+            if (min > max || max < 0 || limit <= 0) return entries;
+            try {
+                pages.read(tx -> {
+                    ODOMETERS.scan(tx, odometerKey(0, Math.max(0, min)), odometerKey(LOW_BITS, max), (key, value) -> {
+                        entries.add(odometerEntry(key));
+                        return entries.size() < limit;
+                    });
+                    return null;
+                });
+            } catch (IOException e) {
+                System.err.println("Error reading the odometers: " + e.getMessage());
+            }
+            return entries;
+        }
+
+        private OdometerIndex.Entry odometerEntry(long key) {
+            return new OdometerIndex.Entry((int) (key & LOW_BITS), (int) (key >>> 32));
+        }
+
+        public LocationIndex.Location where(String licensePlate) {
+            try {
+                return pages.read(tx -> {
+                    byte[] record = VEHICLES.get(tx, plateKey(licensePlate));
+                    if (record == null) return null;
+                    long locationId = ByteBuffer.wrap(record).getLong(8);
+                    switch (record[1]) {
+                        case AT_LOT: return new LocationIndex.Location(LocationIndex.Kind.LOT, name(tx, locationId));
+                        case AT_SHOP: return new LocationIndex.Location(LocationIndex.Kind.SHOP, name(tx, locationId));
+                        case RENTED: return new LocationIndex.Location(LocationIndex.Kind.RENTED, null);
+                        default: return null;
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("Error reading the vehicle location: " + e.getMessage());
+                return null;
+            }
+        }
+    }
+}
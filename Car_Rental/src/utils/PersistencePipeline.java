@@ -0,0 +1,562 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Single-writer persistence pipeline.
+ *
+ * Commands enqueue mutation records on a bounded ring buffer instead of writing files themselves.
+ * A writer thread drains the buffer in batches, applies all records of a batch that target the same
+ * file under one exclusive lock, and issues one write per file per batch. Durability follows the
+ * sync policy:
+ *  - NONE   : no force(), the OS decides when data reaches the disk (previous behaviour)
+ *  - BATCH  : one force() per file per batch (group commit)
+ *  - ALWAYS : every record is written and forced on its own
+ * The future returned by submit() completes only once its batch is durable according to the policy,
+ * so callers that wait on it see their write acknowledged exactly like a synchronous write.
+ *
+ * Files written with publish() are never modified in place: the new content is written to a temporary
+ * file and atomically renamed over the old one, so readers can open the current generation without
+ * any lock and keep reading their generation even while a writer publishes the next one. Writers of
+ * such files serialize on a "<file>.lock" sidecar instead of the file itself.
+ *
+ * Files rewritten in place (replace, mutate) are journaled: the new content is first written with its
+ * length and CRC32 to "<file>.journal", then to the file, and the journal is emptied. A crash in the middle
+ * of the rewrite leaves a complete journal that recoverJournal() writes again, a crash while writing the
+ * journal leaves the file untouched and a journal that fails its checksum.
+ *
+ * A mutation may also rewrite a companion file in the same directory (mutate(file, companion, ...)), for
+ * files whose content must stay consistent with each other. Both new contents go into the journal of the
+ * file before either file is written, so the recovery writes both or neither.
+ */
+public class PersistencePipeline {
+    private static final int CAPACITY = 1024;   // Ring buffer slots
+    private static final int MAX_BATCH = 256;   // Records drained per batch
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final int JOURNAL_MAGIC = 0x4A524E31; // "JRN1"
+    private static final int JOURNAL_HEADER = 16;         // Magic, length, CRC32 of the content, unused
+    private static final int PAIR_MAGIC = 0x4A524E32;    // "JRN2", a rewrite of a file and its companion
+    private static final int PAIR_HEADER = 24;           // Magic, length, CRC32 of the rest, companion name length, companion length, unused
+
+    public enum SyncPolicy {
+        NONE, BATCH, ALWAYS;
+
+        /**
+         * Parse a policy name ignoring case
+         * @param name The policy name
+         * @return the policy, or null if the name is not valid
+         */
+        public static SyncPolicy parse(String name) {
+            if (name == null) return null;
+            for (SyncPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(name.trim())) return policy;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Read-modify-write operation on the whole content of a file, applied by the writer thread
+     */
+    @FunctionalInterface
+    public interface Mutation {
+        byte[] apply(byte[] current) throws IOException;
+    }
+
+    /**
+     * Read-modify-write operation on a file and its companion file, applied by the writer thread
+     */
+    @FunctionalInterface
+    public interface PairMutation {
+        /**
+         * @param current The current content of the file
+         * @param companion Holds the current content of the companion, set companion[0] to change it
+         * @return the new content of the file, or current to leave it untouched
+         */
+        byte[] apply(byte[] current, byte[][] companion) throws IOException;
+    }
+
+    private enum Kind { APPEND, REPLACE, MUTATE, MUTATE_PAIR, PUBLISH }
+
+    private static class Record {
+        final File file;
+        final Kind kind;
+        final byte[] bytes;
+        final Mutation mutation;
+        final File companion;
+        final PairMutation pair;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Record(File file, Kind kind, byte[] bytes, Mutation mutation) {
+            this(file, kind, bytes, mutation, null, null);
+        }
+
+        Record(File file, Kind kind, byte[] bytes, Mutation mutation, File companion, PairMutation pair) {
+            this.file = file.getAbsoluteFile();
+            this.kind = kind;
+            this.bytes = bytes;
+            this.mutation = mutation;
+            this.companion = (companion != null) ? companion.getAbsoluteFile() : null;
+            this.pair = pair;
+        }
+    }
+
+    private static final PersistencePipeline instance = new PersistencePipeline();
+
+    private final BlockingQueue<Record> ring = new ArrayBlockingQueue<>(CAPACITY);
+    private volatile SyncPolicy policy;
+    private Thread writer;
+
+    // Statistics, only updated by the writer thread
+    private volatile long batches;
+    private volatile long records;
+    private volatile long writes;
+    private volatile long forces;
+
+    private PersistencePipeline() {
+        SyncPolicy configured = SyncPolicy.parse(System.getProperty("carrental.fsync"));
+        this.policy = (configured != null) ? configured : SyncPolicy.NONE;
+    }
+
+    public static PersistencePipeline get() { return instance; }
+
+    public SyncPolicy getPolicy() { return policy; }
+    public void setPolicy(SyncPolicy policy) { this.policy = Objects.requireNonNull(policy); }
+
+    // ----- Submission -----
+
+    /** Append bytes at the end of a file, creating it if needed */
+    public CompletableFuture<Void> append(File file, byte[] bytes) { return submit(new Record(file, Kind.APPEND, bytes, null)); }
+
+    /** Replace the whole content of a file */
+    public CompletableFuture<Void> replace(File file, byte[] bytes) { return submit(new Record(file, Kind.REPLACE, bytes, null)); }
+
+    /** Publish a new generation of a file (write-new-then-atomic-rename), for files read without locks */
+    public CompletableFuture<Void> publish(File file, byte[] bytes) { return submit(new Record(file, Kind.PUBLISH, bytes, null)); }
+
+    /** Apply a read-modify-write mutation to the content of a file */
+    public CompletableFuture<Void> mutate(File file, Mutation mutation) { return submit(new Record(file, Kind.MUTATE, null, mutation)); }
+
+    /**
+     * Apply a read-modify-write mutation to a file and a companion file in the same directory, both locked,
+     * file first, and rewritten through one journal
+     */
+    public CompletableFuture<Void> mutate(File file, File companion, PairMutation mutation) {
+        if (!Objects.equals(file.getAbsoluteFile().getParentFile(), companion.getAbsoluteFile().getParentFile())) {
+            throw new IllegalArgumentException("The companion of " + file.getName() + " must be in the same directory.");
+        }
+        return submit(new Record(file, Kind.MUTATE_PAIR, null, null, companion, mutation));
+    }
+
+    /**
+     * Apply a read-modify-write on the calling thread if the file can be locked right away, for callers that
+     * would rather try another file than wait behind a writer. The rewrite is journaled like a mutate().
+     * @param file The file, which must exist
+     * @param mutation The operation, returning its argument leaves the file untouched
+     * @return true if the mutation was applied, false if the file is locked by another writer
+     */
+    public boolean tryMutate(File file, Mutation mutation) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel();
+             FileLocks.Lock lock = FileLocks.tryLock(channel, file, false, "write")) {
+            if (lock == null) return false;
+            byte[] original = readFully(channel);
+            byte[] content = mutation.apply(original);
+            if (content != original) rewrite(file, channel, content, policy != SyncPolicy.NONE);
+            return true;
+        }
+    }
+
+    private CompletableFuture<Void> submit(Record record) {
+        ensureWriter();
+        try {
+            ring.put(record); // Blocks while the ring is full (back pressure)
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            record.done.completeExceptionally(new InterruptedIOException("Interrupted while queueing a write."));
+        }
+        return record.done;
+    }
+
+    /**
+     * Wait for a submitted record to be durable
+     * @param future The future returned by append(), replace() or mutate()
+     * @throws IOException if the write failed
+     */
+    public static void await(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a write.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private synchronized void ensureWriter() {
+        if (writer != null) return;
+        writer = new Thread(this::runWriter, "persistence-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // ----- Writer thread -----
+
+    private void runWriter() {
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                batch.add(ring.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            ring.drainTo(batch, MAX_BATCH - 1);
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<Record> batch) {
+        // Group the records by file, keeping the submission order inside each file
+        Map<File, List<Record>> byFile = new LinkedHashMap<>();
+        for (Record record : batch) byFile.computeIfAbsent(record.file, f -> new ArrayList<>()).add(record);
+
+        SyncPolicy current = policy;
+        for (Map.Entry<File, List<Record>> entry : byFile.entrySet()) {
+            List<Record> fileRecords = entry.getValue();
+            try {
+                if (current == SyncPolicy.ALWAYS) {
+                    for (Record record : fileRecords) {
+                        writeFile(entry.getKey(), Collections.singletonList(record), true);
+                        record.done.complete(null);
+                    }
+                } else {
+                    writeFile(entry.getKey(), fileRecords, current == SyncPolicy.BATCH);
+                    for (Record record : fileRecords) record.done.complete(null);
+                }
+            } catch (IOException | RuntimeException e) {
+                for (Record record : fileRecords) record.done.completeExceptionally(e);
+            }
+        }
+        batches++;
+        records += batch.size();
+    }
+
+    // Apply the records of one file under an exclusive lock with a single write
+    private void writeFile(File file, List<Record> fileRecords, boolean force) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) dir.mkdirs();
+
+        Record last = fileRecords.get(fileRecords.size() - 1);
+        if (last.kind == Kind.PUBLISH) {
+            publishGeneration(file, last.bytes, force); // Only the newest generation of the batch is written
+            return;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            FileLocks.Lock lock = FileLocks.lock(channel, file, false, "write");
+            try {
+                boolean appendOnly = true;
+                for (Record record : fileRecords) appendOnly &= record.kind == Kind.APPEND;
+
+                if (appendOnly) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    for (Record record : fileRecords) out.write(record.bytes);
+                    writeFully(channel, out.toByteArray(), channel.size());
+                } else {
+                    byte[] content = (fileRecords.get(0).kind == Kind.REPLACE) ? null : readFully(channel);
+                    byte[] original = content;
+                    Companion companion = null;
+                    try {
+                        for (Record record : fileRecords) {
+                            // A record that throws fails alone, the others of the batch are applied without it
+                            byte[] before = content;
+                            byte[] companionBefore = (companion != null) ? companion.content[0] : null;
+                            try {
+                                switch (record.kind) {
+                                    case APPEND: content = concat(content, record.bytes); break;
+                                    case REPLACE: content = record.bytes; break;
+                                    case MUTATE_PAIR:
+                                        if (companion == null) companion = new Companion(record.companion);
+                                        else if (!companion.file.equals(record.companion)) throw new IOException("Only one companion per file and batch.");
+                                        content = record.pair.apply(content, companion.content);
+                                        break;
+                                    default: content = record.mutation.apply(content); break;
+                                }
+                            } catch (IOException | RuntimeException e) {
+                                content = before;
+                                if (companion != null) companion.content[0] = (companionBefore != null) ? companionBefore : companion.original;
+                                record.done.completeExceptionally(e);
+                            }
+                        }
+                        boolean companionChanged = companion != null && companion.content[0] != companion.original;
+                        if (content == original && !companionChanged) return; // Mutations left the files untouched, nothing to write
+                        if (companionChanged) rewrite(file, channel, content, companion, force);
+                        else rewrite(file, channel, content, force);
+                    } finally {
+                        if (companion != null) companion.close();
+                    }
+                }
+                writes++;
+                if (force) {
+                    channel.force(false);
+                    forces++;
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    // Write the generation to a temporary file and rename it over the current one
+    private void publishGeneration(File file, byte[] content, boolean force) throws IOException {
+        File lockFile = new File(file.getPath() + ".lock");
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile lockRaf = new RandomAccessFile(lockFile, "rw");
+             FileChannel lockChannel = lockRaf.getChannel()) {
+            FileLocks.Lock lock = FileLocks.lock(lockChannel, lockFile, false, "publish"); // Serializes writers, readers never take it
+            try {
+                try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    writeFully(channel, content, 0);
+                    if (force) {
+                        channel.force(false);
+                        forces++;
+                    }
+                }
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                if (force) forceDirectory(file.getAbsoluteFile().getParentFile()); // The rename is durable once its directory is
+                writes++;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    // Flush the entries of a directory, not supported on every platform (e.g. Windows), where it is skipped
+    private void forceDirectory(File dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+            forces++;
+        } finally {
+            channel.close();
+        }
+    }
+
+    // A companion file locked and read for the pair mutations of a batch
+    private static class Companion implements Closeable {
+        final File file;
+        final RandomAccessFile raf;
+        final FileLocks.Lock lock;
+        final byte[] original;
+        final byte[][] content;
+
+        Companion(File file) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            try {
+                this.lock = FileLocks.lock(raf.getChannel(), file, false, "write companion");
+            } catch (IOException | RuntimeException e) {
+                raf.close();
+                throw e;
+            }
+            this.original = readFully(raf.getChannel());
+            this.content = new byte[][] { original };
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                lock.release();
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    // ----- Journal -----
+
+    /**
+     * @param file A file rewritten in place
+     * @return the journal of its rewrites
+     */
+    public static File journalFile(File file) {
+        return new File(file.getPath() + JOURNAL_SUFFIX);
+    }
+
+    // Rewrite a locked file in place, through its journal
+    static void rewrite(File file, FileChannel channel, byte[] content, boolean force) throws IOException {
+        try (RandomAccessFile journal = new RandomAccessFile(journalFile(file), "rw")) {
+            writeJournal(journal.getChannel(), content, force);
+            channel.truncate(0);
+            writeFully(channel, content, 0);
+            if (force) channel.force(false);
+            journal.setLength(0); // The rewrite is complete
+        }
+    }
+
+    // Rewrite a locked file and its locked companion in place, through one journal
+    private static void rewrite(File file, FileChannel channel, byte[] content, Companion companion, boolean force) throws IOException {
+        byte[] name = companion.file.getName().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        byte[] companionContent = companion.content[0];
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        crc.update(name);
+        crc.update(companionContent);
+        ByteBuffer header = ByteBuffer.allocate(PAIR_HEADER).putInt(0, PAIR_MAGIC).putInt(4, content.length).putInt(8, (int) crc.getValue())
+            .putInt(12, name.length).putInt(16, companionContent.length);
+        try (RandomAccessFile journal = new RandomAccessFile(journalFile(file), "rw")) {
+            FileChannel journalChannel = journal.getChannel();
+            journalChannel.truncate(0);
+            writeFully(journalChannel, header.array(), 0);
+            writeFully(journalChannel, content, PAIR_HEADER);
+            writeFully(journalChannel, name, PAIR_HEADER + content.length);
+            writeFully(journalChannel, companionContent, PAIR_HEADER + content.length + name.length);
+            if (force) journalChannel.force(false);
+
+            channel.truncate(0);
+            writeFully(channel, content, 0);
+            FileChannel other = companion.raf.getChannel();
+            other.truncate(0);
+            writeFully(other, companionContent, 0);
+            if (force) {
+                channel.force(false);
+                other.force(false);
+            }
+            journal.setLength(0); // Both rewrites are complete
+        }
+    }
+
+    private static void writeJournal(FileChannel journal, byte[] content, boolean force) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER).putInt(0, JOURNAL_MAGIC).putInt(4, content.length).putInt(8, (int) crc.getValue());
+        journal.truncate(0);
+        writeFully(journal, header.array(), 0);
+        writeFully(journal, content, JOURNAL_HEADER);
+        if (force) journal.force(false);
+    }
+
+    /**
+     * Finish the rewrite of a file interrupted by a crash, from its journal. A journal that is incomplete or
+     * fails its checksum belongs to a rewrite that never started, it is dropped and the file is left as is.
+     * @param file A file rewritten in place
+     * @return true if the file was written again from its journal
+     */
+    public static boolean recoverJournal(File file) throws IOException {
+        File journalFile = journalFile(file);
+        if (!journalFile.exists() || journalFile.length() == 0) return false;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            FileLocks.Lock lock = FileLocks.lock(channel, file, false, "recover");
+            try (RandomAccessFile journal = new RandomAccessFile(journalFile, "rw")) {
+                byte[] bytes = readFully(journal.getChannel()); // Read under the lock, a live writer has finished with it
+                if (bytes.length == 0) return false;
+                ByteBuffer header = ByteBuffer.wrap(bytes);
+                if (bytes.length >= PAIR_HEADER && header.getInt(0) == PAIR_MAGIC) {
+                    boolean valid = recoverPair(file, channel, bytes);
+                    journal.setLength(0);
+                    return valid;
+                }
+                boolean valid = bytes.length >= JOURNAL_HEADER && header.getInt(0) == JOURNAL_MAGIC
+                    && header.getInt(4) == bytes.length - JOURNAL_HEADER;
+                if (valid) {
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes, JOURNAL_HEADER, bytes.length - JOURNAL_HEADER);
+                    valid = (int) crc.getValue() == header.getInt(8);
+                }
+                if (valid) {
+                    channel.truncate(0);
+                    writeFully(channel, Arrays.copyOfRange(bytes, JOURNAL_HEADER, bytes.length), 0);
+                    channel.force(false);
+                }
+                journal.setLength(0);
+                return valid;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    // Write a file and its companion again from a pair journal, the file is locked by the caller
+    private static boolean recoverPair(File file, FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(bytes);
+        long length = header.getInt(4), nameLength = header.getInt(12), companionLength = header.getInt(16);
+        if (length < 0 || nameLength <= 0 || companionLength < 0 || PAIR_HEADER + length + nameLength + companionLength != bytes.length) return false;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, PAIR_HEADER, bytes.length - PAIR_HEADER);
+        if ((int) crc.getValue() != header.getInt(8)) return false;
+
+        int nameStart = PAIR_HEADER + (int) length;
+        String name = new String(bytes, nameStart, (int) nameLength, java.nio.charset.StandardCharsets.UTF_8);
+        File companion = new File(file.getAbsoluteFile().getParentFile(), name);
+        try (RandomAccessFile raf = new RandomAccessFile(companion, "rw")) {
+            FileLocks.Lock lock = FileLocks.lock(raf.getChannel(), companion, false, "recover");
+            try {
+                channel.truncate(0);
+                writeFully(channel, Arrays.copyOfRange(bytes, PAIR_HEADER, nameStart), 0);
+                channel.force(false);
+                raf.getChannel().truncate(0);
+                writeFully(raf.getChannel(), Arrays.copyOfRange(bytes, nameStart + (int) nameLength, bytes.length), 0);
+                raf.getChannel().force(false);
+            } finally {
+                lock.release();
+            }
+        }
+        return true;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * Read the whole content of a channel
+     * @param channel The channel to read
+     * @return the file bytes
+     */
+    public static byte[] readFully(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) { }
+        return buffer.array();
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) channel.write(buffer, position + buffer.position());
+    }
+
+    public long getBatches() { return batches; }
+    public long getRecords() { return records; }
+    public long getWrites() { return writes; }
+    public long getForces() { return forces; }
+
+    /**
+     * Statistics of the pipeline since the process started
+     * @return a one line summary
+     */
+    public String stats() {
+        return "Policy: " + policy + "; Batches: " + batches + "; Records: " + records
+            + "; Writes: " + writes + "; Forces: " + forces;
+    }
+}
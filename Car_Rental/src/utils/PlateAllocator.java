@@ -0,0 +1,12 @@
+package utils;
+
+/**
+ * Hands out license plates that are not used by any vehicle yet
+ */
+public interface PlateAllocator {
+    /**
+     * Plates are drawn from the share of this process (see PlateRange), so they are unique across a cluster
+     * @return a new unique license plate in the format "XXX-###"
+     */
+    String allocate();
+}
@@ -0,0 +1,105 @@
+package utils;
+
+import java.util.*;
+
+/**
+ * Maps license plates in the format "XXX-###" to and from a compact int code.
+ * code = ((L1 * 26 + L2) * 26 + L3) * 1000 + ###, so valid codes are in [0, 17_576_000)
+ * and keep the alphabetical order of the plates.
+ * Plates that do not follow the format (legacy or hand-written ones) are interned
+ * and receive a negative code that is only stable within the running process.
+ */
+public class PlateCodec {
+    public static final int PLATE_COUNT = 26 * 26 * 26 * 1000; // 17,576,000 possible plates
+    public static final int NONE = Integer.MIN_VALUE;           // Code returned by lookup() for unknown plates
+
+    // Interned non-standard plates, code -(i + 1) maps to nonStandard.get(i)
+    private static final Map<String, Integer> nonStandardCodes = new HashMap<>();
+    private static final List<String> nonStandard = new ArrayList<>();
+
+    /**
+     * Check if a code belongs to a plate in the "XXX-###" format
+     * @param code The plate code
+     * @return true if the code can be stored in binary formats
+     */
+    public static boolean isStandard(int code) { return code >= 0 && code < PLATE_COUNT; }
+
+    /**
+     * Encode a plate, interning it if it does not follow the standard format
+     * @param plate The license plate
+     * @return the plate code
+     */
+    public static int encode(String plate) {
+        int code = encodeStandard(plate);
+        if (code != NONE) return code;
+        synchronized (nonStandard) {
+            Integer existing = nonStandardCodes.get(plate);
+            if (existing != null) return existing;
+            nonStandard.add(plate);
+            code = -nonStandard.size();
+            nonStandardCodes.put(plate, code);
+            return code;
+        }
+    }
+
+    /**
+     * Encode a plate without interning it, used for lookups of user input
+     * @param plate The license plate
+     * @return the plate code, or NONE if the plate was never seen by this process
+     */
+    public static int lookup(String plate) {
+        int code = encodeStandard(plate);
+        if (code != NONE) return code;
+        synchronized (nonStandard) {
+            Integer existing = nonStandardCodes.get(plate);
+            return (existing != null) ? existing : NONE;
+        }
+    }
+
+    /**
+     * Encode a plate in the "XXX-###" format
+     * @param plate The license plate
+     * @return the plate code, or NONE if the plate does not follow the format
+     */
+    public static int encodeStandard(CharSequence plate) {
+        if (plate == null || plate.length() != 7 || plate.charAt(3) != '-') return NONE;
+        int code = 0;
+        for (int i = 0; i < 3; i++) {
+            char c = plate.charAt(i);
+            if (c < 'A' || c > 'Z') return NONE;
+            code = code * 26 + (c - 'A');
+        }
+        for (int i = 4; i < 7; i++) {
+            char c = plate.charAt(i);
+            if (c < '0' || c > '9') return NONE;
+            code = code * 10 + (c - '0');
+        }
+        return code;
+    }
+
+    /**
+     * Decode a plate code back to its text form
+     * @param code The plate code
+     * @return the license plate
+     */
+    public static String decode(int code) {
+        if (!isStandard(code)) {
+            synchronized (nonStandard) {
+                int index = -code - 1;
+                if (index < 0 || index >= nonStandard.size()) throw new IllegalArgumentException("Unknown plate code: " + code);
+                return nonStandard.get(index);
+            }
+        }
+        char[] chars = new char[7];
+        int digits = code % 1000;
+        int letters = code / 1000;
+        chars[6] = (char) ('0' + digits % 10);
+        chars[5] = (char) ('0' + (digits / 10) % 10);
+        chars[4] = (char) ('0' + digits / 100);
+        chars[3] = '-';
+        chars[2] = (char) ('A' + letters % 26);
+        chars[1] = (char) ('A' + (letters / 26) % 26);
+        chars[0] = (char) ('A' + letters / 676);
+        return new String(chars);
+    }
+}
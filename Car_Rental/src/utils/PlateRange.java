@@ -0,0 +1,74 @@
+package utils;
+
+import java.util.Random;
+
+/**
+ * Share of the license plates this process hands out, so that the nodes of a cluster (see ShopServer) never
+ * allocate the same plate: node i of n only hands out the plate codes equal to i modulo n.
+ * Set with -Dcarrental.plates=<node>/<nodes> or setRange(), the whole range by default.
+ */
+public class PlateRange {
+    private static volatile int[] range = { 0, 1 }; // Node and number of nodes, replaced together
+
+    static {
+        String range = System.getProperty("carrental.plates");
+        if (range != null && !range.isEmpty() && !parse(range)) {
+            System.err.println("Error: Invalid plate range " + range + ", expected <node>/<nodes>. Every plate is used.");
+        }
+    }
+
+    public static int getNode() { return range[0]; }
+    public static int getNodes() { return range[1]; }
+
+    /**
+     * Set the share of the plates of this process
+     * @param node The index of this node, from 0
+     * @param nodes The number of nodes sharing the plates
+     */
+    public static void setRange(int node, int nodes) {
+        if (nodes <= 0 || node < 0 || node >= nodes) throw new IllegalArgumentException("Invalid plate range " + node + "/" + nodes + ".");
+        range = new int[] { node, nodes };
+    }
+
+    /**
+     * Set the share of the plates from its text form
+     * @param range "<node>/<nodes>"
+     * @return true if the range is valid and was set
+     */
+    public static boolean parse(String range) {
+        String[] fields = range.trim().split("/");
+        if (fields.length != 2) return false;
+        try {
+            setRange(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]));
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false; // Includes NumberFormatException
+        }
+    }
+
+    /**
+     * @param code A plate code
+     * @return true if this process may hand out the plate
+     */
+    public static boolean contains(int code) {
+        int[] current = range;
+        return PlateCodec.isStandard(code) && code % current[1] == current[0];
+    }
+
+    /**
+     * @return the number of plate codes this process may hand out
+     */
+    public static int size() {
+        int[] current = range;
+        return (PlateCodec.PLATE_COUNT - current[0] + current[1] - 1) / current[1];
+    }
+
+    /**
+     * @param random The random generator to draw from
+     * @return a random plate code of the share of this process
+     */
+    public static int random(Random random) {
+        int[] current = range;
+        return current[0] + current[1] * random.nextInt((PlateCodec.PLATE_COUNT - current[0] + current[1] - 1) / current[1]);
+    }
+}
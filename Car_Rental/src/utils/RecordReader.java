@@ -0,0 +1,377 @@
+package utils;
+
+import classes.VehicleType;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Buffered reader for the line based text files of the project (lots, shops, rentals, indexes).
+ * Reads the file in large chunks with positional channel reads and parses fields directly from the
+ * bytes of the current line into primitives, without allocating a String per line or per field.
+ *
+ * Usage:
+ *   while (reader.nextLine()) {
+ *       int plate = reader.readPlate(); reader.expect(',');
+ *       VehicleType type = reader.readType(); ...
+ *   }
+ *
+ * The reader does not lock the file, callers keep holding their FileLock while reading.
+ */
+public class RecordReader implements Closeable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final boolean ownsChannel;
+    private ByteBuffer buffer;
+    private byte[] bytes;        // Backing array of the buffer
+    private long bufferOffset;   // File offset of bytes[0]
+    private int limit;           // Number of valid bytes in the buffer
+    private long filePosition;   // Next file offset to read into the buffer
+    private boolean eof;
+
+    // Current line, [lineStart, lineEnd) excluding the line terminator
+    private int lineStart;
+    private int lineEnd;
+    private int next;            // Start of the following line
+    private int pos;             // Field cursor inside the current line
+
+    /**
+     * Create a reader over an open channel, starting at the beginning of the file
+     * @param channel The channel to read, it is not closed by the reader
+     */
+    public RecordReader(FileChannel channel) { this(channel, 0L, false); }
+
+    /**
+     * Create a reader over an open channel, starting at a file offset
+     * @param channel The channel to read
+     * @param start The file offset of the first line
+     * @param ownsChannel true if close() should also close the channel
+     */
+    public RecordReader(FileChannel channel, long start, boolean ownsChannel) {
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        this.bytes = buffer.array();
+        this.bufferOffset = start;
+        this.filePosition = start;
+    }
+
+    /**
+     * Create a reader over bytes already in memory (e.g., a file content inside a pipeline mutation)
+     * @param data The content to read
+     */
+    public RecordReader(byte[] data) {
+        this.channel = null;
+        this.ownsChannel = false;
+        this.buffer = ByteBuffer.wrap(data);
+        this.bytes = data;
+        this.limit = data.length;
+        this.eof = true;
+    }
+
+    /**
+     * Open a file for reading without locking it
+     * @param file The file to read
+     * @return a reader that closes the file when closed
+     */
+    public static RecordReader open(File file) throws IOException {
+        return new RecordReader(FileChannel.open(file.toPath(), StandardOpenOption.READ), 0L, true);
+    }
+
+    /**
+     * Advance to the next line
+     * @return true if a line is available, false at the end of the file
+     */
+    public boolean nextLine() throws IOException {
+        int start = next;
+        while (true) {
+            for (int i = start; i < limit; i++) {
+                if (bytes[i] == '\n') {
+                    setLine(next, i, i + 1);
+                    return true;
+                }
+            }
+            start = limit;
+            if (eof) {
+                if (next >= limit) return false;
+                setLine(next, limit, limit); // Last line without a terminator
+                return true;
+            }
+            int shift = next;
+            fill();
+            start -= shift;
+        }
+    }
+
+    private void setLine(int start, int end, int following) {
+        lineStart = start;
+        lineEnd = (end > start && bytes[end - 1] == '\r') ? end - 1 : end;
+        next = following;
+        pos = start;
+    }
+
+    // Move the unread bytes to the front of the buffer (growing it for long lines) and read the next chunk
+    private void fill() throws IOException {
+        if (next > 0) {
+            System.arraycopy(bytes, next, bytes, 0, limit - next);
+            bufferOffset += next;
+            limit -= next;
+            next = 0;
+        }
+        if (limit == bytes.length) {
+            ByteBuffer larger = ByteBuffer.allocate(bytes.length * 2);
+            larger.put(bytes, 0, limit);
+            buffer = larger;
+            bytes = buffer.array();
+        }
+        buffer.limit(bytes.length).position(limit);
+        int read = channel.read(buffer, filePosition);
+        if (read < 0) {
+            eof = true;
+        } else {
+            filePosition += read;
+            limit += read;
+        }
+    }
+
+    // ----- Line level accessors -----
+
+    /** @return the file offset of the first byte of the current line */
+    public long lineOffset() { return bufferOffset + lineStart; }
+    /** @return the file offset of the line following the current one */
+    public long nextLineOffset() { return bufferOffset + next; }
+    /** @return true if the reader has no content at all (e.g., reader over an empty array) */
+    public boolean isEmpty() { return channel == null && limit == 0; }
+        /** @return the length of the current line excluding the terminator */
+    public int lineLength() { return lineEnd - lineStart; }
+    public boolean isBlank() {
+        for (int i = lineStart; i < lineEnd; i++) {
+            if (bytes[i] != ' ' && bytes[i] != '\t') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check if the current line starts with an ASCII prefix
+     * @param prefix The prefix to check
+     * @return true if the line starts with the prefix
+     */
+    public boolean startsWith(String prefix) {
+        if (prefix.length() > lineEnd - lineStart) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[lineStart + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the raw bytes of the current line, including a '\n' terminator
+     * @param out The destination
+     */
+    public void copyLine(ByteArrayOutputStream out) {
+        out.write(bytes, lineStart, lineEnd - lineStart);
+        out.write('\n');
+    }
+
+    // ----- Field cursor -----
+
+    public boolean atEnd() { return pos >= lineEnd; }
+
+    /** Skip n bytes of the current line */
+    public void skip(int n) { pos = Math.min(lineEnd, pos + n); }
+
+    public void skipSpaces() {
+        while (pos < lineEnd && (bytes[pos] == ' ' || bytes[pos] == '\t')) pos++;
+    }
+
+    /**
+     * Move the cursor past the next occurrence of a separator
+     * @param separator The separator to look for
+     * @return true if the separator was found, false if the end of the line was reached
+     */
+    public boolean skipPast(char separator) {
+        while (pos < lineEnd) {
+            if (bytes[pos++] == separator) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Consume a separator at the cursor, ignoring surrounding spaces
+     * @param separator The expected separator
+     * @return true if the separator was present
+     */
+    public boolean expect(char separator) {
+        skipSpaces();
+        if (pos < lineEnd && bytes[pos] == separator) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parse a signed integer at the cursor, leading spaces are ignored
+     * @return the parsed value
+     * @throws NumberFormatException if there are no digits at the cursor
+     */
+    public int readInt() {
+        long value = readLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) throw new NumberFormatException("Value out of int range: " + value);
+        return (int) value;
+    }
+
+    /**
+     * Parse a signed long at the cursor, leading spaces are ignored
+     * @return the parsed value
+     * @throws NumberFormatException if there are no digits at the cursor or the value does not fit in a long
+     */
+    public long readLong() {
+        skipSpaces();
+        boolean negative = pos < lineEnd && bytes[pos] == '-';
+        if (negative) pos++;
+        int start = pos;
+        long value = 0;
+        while (pos < lineEnd && bytes[pos] >= '0' && bytes[pos] <= '9') {
+            int digit = bytes[pos] - '0';
+            if (value > (Long.MAX_VALUE - digit) / 10) throw new NumberFormatException("Value out of range at column " + (start - lineStart));
+            value = value * 10 + digit;
+            pos++;
+        }
+        if (pos == start) throw new NumberFormatException("Expected a number at column " + (pos - lineStart));
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse an amount of money (e.g., "-12.50") at the cursor, see Money
+     * @return the amount in cents, legacy amounts with more decimals are rounded to the nearest cent
+     * @throws NumberFormatException if there are no digits at the cursor
+     */
+    public long readCents() {
+        skipSpaces();
+        boolean negative = pos < lineEnd && bytes[pos] == '-';
+        int start = negative ? pos + 1 : pos;
+        int end = start;
+        while (end < lineEnd && (bytes[end] >= '0' && bytes[end] <= '9' || bytes[end] == '.')) end++;
+        if (end < lineEnd && (bytes[end] == 'E' || bytes[end] == 'e')) {
+            // Scientific notation (e.g., 1.0E7 from Double.toString) of a legacy amount falls back to the JDK parser
+            end++;
+            while (end < lineEnd && (bytes[end] == '-' || (bytes[end] >= '0' && bytes[end] <= '9'))) end++;
+            String number = new String(bytes, pos, end - pos, StandardCharsets.US_ASCII);
+            pos = end;
+            return Money.of(Double.parseDouble(number));
+        }
+        if (negative) pos++;
+        long units = 0;
+        while (pos < lineEnd && bytes[pos] >= '0' && bytes[pos] <= '9') units = units * 10 + (bytes[pos++] - '0');
+        long fraction = 0;
+        int scale = 0;
+        if (pos < lineEnd && bytes[pos] == '.') {
+            pos++;
+            while (pos < lineEnd && bytes[pos] >= '0' && bytes[pos] <= '9') {
+                int digit = bytes[pos++] - '0';
+                if (scale < 2) fraction = fraction * 10 + digit;
+                else if (scale == 2 && digit >= 5) fraction++;
+                scale++;
+            }
+        }
+        if (pos == start || pos == start + 1 && bytes[start] == '.') throw new NumberFormatException("Expected an amount at column " + (pos - lineStart));
+        for (; scale < 2; scale++) fraction *= 10;
+        long cents = units * Money.CENTS_PER_UNIT + fraction;
+        return negative ? -cents : cents;
+    }
+
+    /**
+     * Parse "true" or "false" (ignoring case) at the cursor
+     * @return true only for "true"
+     */
+    public boolean readBoolean() {
+        skipSpaces();
+        if (lineEnd - pos >= 4
+            && (bytes[pos] | 0x20) == 't' && (bytes[pos + 1] | 0x20) == 'r'
+            && (bytes[pos + 2] | 0x20) == 'u' && (bytes[pos + 3] | 0x20) == 'e') {
+            pos += 4;
+            return true;
+        }
+        while (pos < lineEnd && Character.isLetter(bytes[pos])) pos++;
+        return false;
+    }
+
+    /**
+     * Parse a license plate at the cursor, up to the next ',' or ';' or the end of the line
+     * @return the plate code (see PlateCodec)
+     */
+    public int readPlate() {
+        skipSpaces();
+        int start = pos;
+        while (pos < lineEnd && bytes[pos] != ',' && bytes[pos] != ';') pos++;
+        int end = pos;
+        while (end > start && bytes[end - 1] == ' ') end--;
+        if (end - start == 7 && bytes[start + 3] == '-') {
+            int code = 0;
+            boolean valid = true;
+            for (int i = 0; i < 3 && valid; i++) {
+                int c = bytes[start + i] - 'A';
+                valid = c >= 0 && c < 26;
+                code = code * 26 + c;
+            }
+            for (int i = 4; i < 7 && valid; i++) {
+                int c = bytes[start + i] - '0';
+                valid = c >= 0 && c < 10;
+                code = code * 10 + c;
+            }
+            if (valid) return code;
+        }
+        // Non-standard plates are rare, intern them through the codec
+        return PlateCodec.encode(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parse a vehicle type (ignoring case) at the cursor, up to the next ',' or ';' or the end of the line
+     * @return the vehicle type, or null if the name is not a valid type
+     */
+    public VehicleType readType() {
+        skipSpaces();
+        int start = pos;
+        while (pos < lineEnd && bytes[pos] != ',' && bytes[pos] != ';') pos++;
+        int end = pos;
+        while (end > start && bytes[end - 1] == ' ') end--;
+        for (int t = 0; t < VehicleType.count(); t++) {
+            String name = VehicleType.of(t).name();
+            if (name.length() != end - start) continue;
+            boolean match = true;
+            for (int i = 0; i < name.length() && match; i++) {
+                match = (bytes[start + i] & ~0x20) == name.charAt(i);
+            }
+            if (match) return VehicleType.of(t);
+        }
+        return null;
+    }
+
+    /**
+     * Read the text up to a separator (or the end of the line), trimmed. Allocates, used for names.
+     * @param separator The separator ending the field, it is consumed
+     * @return the field text
+     */
+    public String readString(char separator) {
+        skipSpaces();
+        int start = pos;
+        while (pos < lineEnd && bytes[pos] != separator) pos++;
+        int end = pos;
+        if (pos < lineEnd) pos++;
+        while (end > start && bytes[end - 1] == ' ') end--;
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /** @return the rest of the line, trimmed */
+    public String readRest() { return readString('\n'); }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsChannel && channel != null) channel.close();
+    }
+}
@@ -3,12 +3,23 @@ package utils;
 import java.io.*;
 import java.util.*;
 import classes.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
 
+/**
+ * Reads and writes the open rentals, format: "<plate>,<type>,<odometer>,<discount>,<start time>,<shop>"
+ * (records written before start times were kept only have the first four fields).
+ *
+ * The rentals are ordered by start time in a sidecar index (see RentalStartIndex), rewritten with the file by
+ * the same pipeline mutation on every add and remove, so OVERDUE and OLDEST read only the rentals they return,
+ * whatever order the lines were written in.
+ */
 public class RentalFileManager {
-    private static final String FILES_DIR = "src" + File.separator + "files" + File.separator + "shops";
+    private static final String FILES_DIR = DataPaths.SHOPS_DIR;
     private static final String RENT_FILE = FILES_DIR + File.separator + "rentals.txt";
+    private static final int LINE_CHUNK = 128;
 
     /**
      * Add rental information to the rental file.
@@ -26,29 +37,33 @@ public class RentalFileManager {
             }
         }
 
-        // Append the rental information to the file 
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-             FileChannel channel = raf.getChannel()) {
-            // Acquire an exclusive lock on the file 
-            FileLock lock = channel.lock(0, Long.MAX_VALUE, false);
+        // Append the rental information to the file and its start time to the index through the persistence
+        // pipeline, logged for the replicas if enabled
+        Vehicle vehicle = rentInfo.getVehicle();
+        boolean isDiscounted = rentInfo.isDiscount();
+        String line = vehicle.getLicensePlate() + ","
+            + vehicle.getType() + ","
+            + vehicle.getOdometer() + ","
+            + isDiscounted + ","
+            + rentInfo.getStartTime() + ","
+            + (rentInfo.getShop() != null ? rentInfo.getShop() : "") + "\n";
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        PersistencePipeline.PairMutation append = (current, index) -> {
+            byte[] indexed = RentalStartIndex.matches(index[0], current.length) ? index[0] : RentalStartIndex.build(current);
+            byte[] content = Arrays.copyOf(current, current.length + bytes.length);
+            System.arraycopy(bytes, 0, content, current.length, bytes.length);
+            index[0] = RentalStartIndex.add(indexed, rentInfo.getStartTime(), current.length, content.length);
+            return content;
+        };
+        return ChangeLog.commit(() -> {
             try {
-                raf.seek(raf.length());
-                Vehicle vehicle = rentInfo.getVehicle();
-                boolean isDiscounted = rentInfo.isDiscount();
-                String line = vehicle.getLicensePlate() + ","
-                    + vehicle.getType() + ","
-                    + vehicle.getOdometer() + ","
-                    + isDiscounted + "\n";
-                raf.writeBytes(line);
-            } finally {
-                // Release the lock 
-                lock.release();
+                PersistencePipeline.await(PersistencePipeline.get().mutate(file, RentalStartIndex.indexFile(file), append));
+            } catch (IOException e) {
+                System.err.println("ERROR: Could not write to rental file: " + e.getMessage());
+                return false;
             }
-        } catch (IOException e) {
-            System.err.println("ERROR: Could not write to rental file: " + e.getMessage());
-            return false;
-        }
-        return true;
+            return true;
+        }, () -> ChangeLog.rentChange(rentInfo));
     }
 
     /**
@@ -60,27 +75,23 @@ public class RentalFileManager {
         RentInfo rentInfo = null;
         File file = new File(RENT_FILE);
         if (!file.exists()) return rentInfo;
+        String plate = licensePlate.trim();
+        int target = PlateCodec.lookup(plate); // User input is not interned, a mistyped plate stays NONE
 
         // Read the rental file to check for the vehicle
         try (RandomAccessFile raf = new RandomAccessFile(file, "r");
              FileChannel channel = raf.getChannel()) {
             
             // Acquire a shared lock on the file
-            FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
-            try {
-                String line;
-                while ((line = raf.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    if (parts.length == 4 && parts[0].trim().equals(licensePlate)) {
-                        String plate = parts[0].trim();
-                        String type = parts[1].trim();
-                        int odometer = Integer.parseInt(parts[2].trim());
-                        boolean isDiscounted = Boolean.parseBoolean(parts[3].trim());
-                        
-                        // Create a RentInfo object with the found data
-                        rentInfo = new RentInfo(new Vehicle(plate, type, odometer), isDiscounted);
-                        break; // Exit loop if vehicle is found
-                    }
+            FileLocks.Lock lock = FileLocks.lock(channel, file, true, "check rental");
+            try (RecordReader reader = new RecordReader(channel)) {
+                while (reader.nextLine()) {
+                    if (reader.isBlank()) continue;
+                    int code = reader.readPlate();
+                    if (target == PlateCodec.NONE) target = PlateCodec.lookup(plate); // Interned once read from the file
+                    if (code != target) continue;
+                    rentInfo = parseRental(reader, target); // Null for a corrupted record, the vehicle is not rented
+                    break; // Exit loop if vehicle is found
                 }
             } finally {
                 // Release the lock
@@ -99,36 +110,151 @@ public class RentalFileManager {
     public static boolean removeFromRentalFile(String licensePlate) {
         File file = new File(RENT_FILE);
         if (!file.exists()) return false;
+        String plate = licensePlate.trim();
 
-        // Rewrite the rentals except the one to be removed 
-        List<String> remainingRentals = new ArrayList<>();
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-             FileChannel channel = raf.getChannel()) {
-            
-            // Acquire an exclusive lock on the file
-            FileLock lock = channel.lock(0, Long.MAX_VALUE, false);
-            try {
-                String line;
-                while ((line = raf.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    if (parts.length == 4 && !parts[0].trim().equals(licensePlate)) {
-                        remainingRentals.add(line); // Keep the rental record
+        // Rewrite the rentals except the one to be removed and their index, applied by the persistence pipeline
+        PersistencePipeline.PairMutation removal = (current, index) -> {
+            ByteArrayOutputStream remainingRentals = new ByteArrayOutputStream(current.length);
+            int target = PlateCodec.lookup(plate); // User input is not interned, a mistyped plate stays NONE
+            try (RecordReader reader = new RecordReader(current)) {
+                while (reader.nextLine()) {
+                    if (reader.isBlank()) continue;
+                    int code = reader.readPlate();
+                    if (target == PlateCodec.NONE) target = PlateCodec.lookup(plate); // Interned once read from the file
+                    if (code != target) {
+                        reader.copyLine(remainingRentals); // Keep the rental record
                     }
                 }
+            }
+            byte[] remaining = remainingRentals.toByteArray();
+            index[0] = RentalStartIndex.build(remaining); // Every later line moved
+            return remaining;
+        };
+        return ChangeLog.commit(() -> {
+            try {
+                PersistencePipeline.await(PersistencePipeline.get().mutate(file, RentalStartIndex.indexFile(file), removal));
+            } catch (IOException e) {
+                System.err.println("ERROR: Could not access rental file: " + e.getMessage());
+                return false;
+            }
+            return true;
+        }, () -> ChangeLog.returnChange(licensePlate));
+    }
+
+    /**
+     * Parse the fields of a rental record following the plate
+     * @param reader The reader positioned after the plate
+     * @param plate The plate code of the record
+     * @return the rental, or null if the record is corrupted
+     */
+    private static RentInfo parseRental(RecordReader reader, int plate) {
+        try {
+            if (!reader.expect(',')) return null;
+            VehicleType type = reader.readType();
+            if (type == null || !reader.expect(',')) return null;
+            int odometer = reader.readInt();
+            if (!reader.expect(',')) return null;
+            boolean isDiscounted = reader.readBoolean();
+
+            // Start time and shop, missing from the records written before they were kept
+            long startTime = 0;
+            String shop = null;
+            if (reader.expect(',')) {
+                startTime = reader.readLong();
+                if (reader.expect(',')) shop = reader.readRest();
+                if (shop != null && shop.isEmpty()) shop = null;
+            }
+            return new RentInfo(new Vehicle(plate, type, odometer), isDiscounted, startTime, shop);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
-                // Clear the file and write the remaining rentals back
-                raf.setLength(0); // Clear the file
-                for (String rental : remainingRentals) {
-                    raf.writeBytes(rental + "\n"); // Write each remaining rental
+    /**
+     * Open rentals that started before a given time, oldest first. Only the rentals returned are read.
+     * @param cutoff Start time (epoch millis) the rentals must be older than
+     * @return the rentals
+     */
+    public static List<RentInfo> rentalsOlderThan(long cutoff) {
+        return readOldest(cutoff, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The oldest open rentals. Only the rentals returned are read.
+     * @param count Maximum number of rentals
+     * @return the rentals, oldest first
+     */
+    public static List<RentInfo> oldestRentals(int count) {
+        return readOldest(Long.MAX_VALUE, count);
+    }
+
+    // Read the rentals before the cut-off, up to the count, through the start time index
+    private static List<RentInfo> readOldest(long cutoff, int count) {
+        File file = new File(RENT_FILE);
+        if (!file.exists() || count <= 0) return new ArrayList<>();
+        try {
+            List<RentInfo> rentals = readIndexed(file, cutoff, count);
+            if (rentals != null) return rentals;
+
+            // The index does not describe the file, it is rebuilt once
+            PersistencePipeline.await(PersistencePipeline.get().mutate(file, RentalStartIndex.indexFile(file), (current, index) -> {
+                if (!RentalStartIndex.matches(index[0], current.length)) index[0] = RentalStartIndex.build(current);
+                return current;
+            }));
+            rentals = readIndexed(file, cutoff, count);
+            if (rentals != null) return rentals;
+            System.err.println("ERROR: Could not rebuild the rental index.");
+        } catch (IOException e) {
+            System.err.println("ERROR: Could not read rental file: " + e.getMessage());
+        }
+        return new ArrayList<>();
+    }
+
+    // The rentals at the offsets given by the index, or null if the index does not describe the file
+    private static List<RentInfo> readIndexed(File file, long cutoff, int count) throws IOException {
+        File indexFile = RentalStartIndex.indexFile(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            FileLocks.Lock lock = FileLocks.lock(channel, file, true, "read rentals"); // The index is written under its exclusive lock
+            try {
+                if (!indexFile.exists()) return null;
+                long[] offsets;
+                try (FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                    offsets = RentalStartIndex.oldest(index, channel.size(), cutoff, count);
+                }
+                if (offsets == null) return null;
+                List<RentInfo> rentals = new ArrayList<>(offsets.length);
+                for (long offset : offsets) {
+                    RentInfo rentInfo = readRental(channel, offset);
+                    if (rentInfo != null) rentals.add(rentInfo);
                 }
+                return rentals;
             } finally {
-                // Release the lock
                 lock.release();
             }
-        } catch (IOException e) {
-            System.err.println("ERROR: Could not access rental file: " + e.getMessage());
-            return false;
         }
-        return true;
+    }
+
+    // Parse the rental line at an offset of the file
+    private static RentInfo readRental(FileChannel channel, long offset) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(LINE_CHUNK);
+        ByteBuffer chunk = ByteBuffer.allocate(LINE_CHUNK);
+        long position = offset;
+        while (true) {
+            chunk.clear();
+            int read = channel.read(chunk, position);
+            if (read <= 0) break;
+            int end = 0;
+            while (end < read && chunk.get(end) != '\n') end++;
+            line.write(chunk.array(), 0, end);
+            if (end < read) break;
+            position += read;
+        }
+        try (RecordReader reader = new RecordReader(line.toByteArray())) {
+            if (!reader.nextLine() || reader.isBlank()) return null;
+            return parseRental(reader, reader.readPlate());
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 }
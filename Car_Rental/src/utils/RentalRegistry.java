@@ -0,0 +1,42 @@
+package utils;
+
+import java.util.List;
+import classes.RentInfo;
+
+/**
+ * Where the open rentals are kept
+ */
+public interface RentalRegistry {
+    /**
+     * Record a rental
+     * @param rentInfo The rental
+     * @return true if the rental was recorded
+     */
+    boolean add(RentInfo rentInfo);
+
+    /**
+     * Find the open rental of a vehicle
+     * @param licensePlate The license plate of the vehicle
+     * @return the rental, or null if the vehicle is not rented
+     */
+    RentInfo find(String licensePlate);
+
+    /**
+     * Close the rental of a vehicle
+     * @param licensePlate The license plate of the vehicle
+     * @return true if the registry could be updated
+     */
+    boolean remove(String licensePlate);
+
+    /**
+     * @param cutoff Start time (epoch millis) the rentals must be older than
+     * @return the open rentals started before the cut-off, oldest first
+     */
+    List<RentInfo> olderThan(long cutoff);
+
+    /**
+     * @param count Maximum number of rentals
+     * @return the oldest open rentals, oldest first
+     */
+    List<RentInfo> oldest(int count);
+}
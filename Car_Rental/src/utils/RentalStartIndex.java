@@ -0,0 +1,141 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Start time index of the open rentals, "rentals.idx" next to the rental file, for the OVERDUE and OLDEST
+ * queries: the rentals that started before a time are found with a binary search and read at their offsets in
+ * the rental file, O(log n + k) reads instead of a scan of the file.
+ *  - header : "RIX1", 4 unused bytes, length of the rental file the index describes (8 bytes)
+ *  - entry  : start time (8 bytes), offset of the rental line (8 bytes), ordered by start time then offset
+ * Records written before start times were kept start at 0, the oldest. The index is rewritten with the rental
+ * file in one journaled pair mutation (PersistencePipeline.mutate(file, companion, ...)), so both always match.
+ * An index that does not describe the current length of the file (missing, or the file was copied, truncated by
+ * the recovery or written by another tool) is rebuilt from the file by the next update or query.
+ */
+public class RentalStartIndex {
+    public static final String INDEX_FILE = "rentals.idx";
+
+    private static final int MAGIC = 0x52495831; // "RIX1"
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 16;
+
+    /**
+     * @param rentals The rental file
+     * @return the index of the rental file, in the same directory
+     */
+    public static File indexFile(File rentals) {
+        return new File(rentals.getAbsoluteFile().getParentFile(), INDEX_FILE);
+    }
+
+    /**
+     * @param index The content of an index file
+     * @param length The length of the rental file
+     * @return true if the index describes a rental file of that length
+     */
+    public static boolean matches(byte[] index, long length) {
+        if (index == null || index.length < HEADER_SIZE || (index.length - HEADER_SIZE) % ENTRY_SIZE != 0) return false;
+        ByteBuffer header = ByteBuffer.wrap(index);
+        return header.getInt(0) == MAGIC && header.getLong(8) == length;
+    }
+
+    /**
+     * Index every rental line of a rental file, the damaged lines are left out
+     * @param rentals The content of the rental file
+     * @return the content of the index file
+     */
+    public static byte[] build(byte[] rentals) throws IOException {
+        List<long[]> entries = new ArrayList<>();
+        try (RecordReader reader = new RecordReader(rentals)) {
+            while (reader.nextLine()) {
+                if (reader.isBlank()) continue;
+                long offset = reader.lineOffset();
+                try {
+                    // plate,type,odometer,discount[,start,shop]
+                    int fields = 0;
+                    while (fields < 4 && reader.skipPast(',')) fields++;
+                    if (fields < 3) continue;
+                    entries.add(new long[] { (fields == 4) ? reader.readLong() : 0, offset });
+                } catch (NumberFormatException e) {
+                    // Damaged line, never returned by the queries
+                }
+            }
+        }
+        entries.sort((a, b) -> (a[0] != b[0]) ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + entries.size() * ENTRY_SIZE);
+        index.putInt(MAGIC).putInt(0).putLong(rentals.length);
+        for (long[] entry : entries) index.putLong(entry[0]).putLong(entry[1]);
+        return index.array();
+    }
+
+    /**
+     * Add the entry of a rental line appended at the end of the rental file
+     * @param index The content of an index matching the file before the append
+     * @param startTime The start time of the rental
+     * @param offset The offset of the line, the length of the file before the append
+     * @param length The length of the file after the append
+     * @return the content of the new index
+     */
+    public static byte[] add(byte[] index, long startTime, long offset, long length) {
+        // The line is the last of the file, so it goes after every entry of the same start time
+        int count = (index.length - HEADER_SIZE) / ENTRY_SIZE;
+        ByteBuffer entries = ByteBuffer.wrap(index);
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries.getLong(HEADER_SIZE + mid * ENTRY_SIZE) <= startTime) low = mid + 1;
+            else high = mid;
+        }
+        int position = HEADER_SIZE + low * ENTRY_SIZE;
+        byte[] added = new byte[index.length + ENTRY_SIZE];
+        System.arraycopy(index, 0, added, 0, position);
+        System.arraycopy(index, position, added, position + ENTRY_SIZE, index.length - position);
+        ByteBuffer.wrap(added).putLong(8, length).putLong(position, startTime).putLong(position + 8, offset);
+        return added;
+    }
+
+    /**
+     * Offsets of the oldest rental lines, read from an index file under the lock of the rental file
+     * @param index An open channel on the index file
+     * @param length The length of the rental file
+     * @param cutoff Start time (epoch millis) the rentals must be older than, Long.MAX_VALUE for any
+     * @param count Maximum number of offsets
+     * @return the offsets, oldest rental first, or null if the index does not describe the rental file
+     */
+    public static long[] oldest(FileChannel index, long length, long cutoff, int count) throws IOException {
+        long size = index.size();
+        if (size < HEADER_SIZE || (size - HEADER_SIZE) % ENTRY_SIZE != 0) return null;
+        ByteBuffer header = read(index, 0, HEADER_SIZE);
+        if (header.getInt(0) != MAGIC || header.getLong(8) != length) return null;
+        long entries = (size - HEADER_SIZE) / ENTRY_SIZE;
+
+        // First entry at or after the cut-off
+        long end = entries;
+        if (cutoff != Long.MAX_VALUE) {
+            long low = 0, high = entries;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (read(index, HEADER_SIZE + mid * ENTRY_SIZE, 8).getLong(0) < cutoff) low = mid + 1;
+                else high = mid;
+            }
+            end = low;
+        }
+        int found = (int) Math.min(end, count);
+        ByteBuffer block = read(index, HEADER_SIZE, found * ENTRY_SIZE);
+        long[] offsets = new long[found];
+        for (int i = 0; i < found; i++) offsets[i] = block.getLong(i * ENTRY_SIZE + 8);
+        return offsets;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Rental index ends early.");
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,66 @@
+package utils;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks held on a shop while it is loaded, changed and saved, so that a command and a transfer of vehicles
+ * between shops never save over each other. Operations needing several shops lock them in city name order.
+ *
+ * Shops kept in files are locked on a "<city>.lock" file next to the shop file, which is itself replaced on
+ * every save and cannot be locked. Shops of a storage private to the process only need an in-process lock.
+ */
+public class ShopLocks {
+    private final ConcurrentHashMap<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Lock a shop inside the process, within the deadline of FileLocks
+     * @param city The city of the shop
+     * @param operation What the lock is taken for, reported on timeout
+     * @return the held lock, released by close()
+     * @throws LockTimeoutException if the lock could not be taken in time
+     */
+    public Closeable lock(String city, String operation) throws IOException {
+        ReentrantLock lock = locks.computeIfAbsent(city, name -> new ReentrantLock(true));
+        try {
+            if (!lock.tryLock(FileLocks.getTimeout(), TimeUnit.MILLISECONDS)) {
+                throw new LockTimeoutException("Timed out after " + FileLocks.getTimeout() + " ms waiting for the lock on shop " + city + " (" + operation + ").");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the lock on shop " + city + ".");
+        }
+        return lock::unlock;
+    }
+
+    /**
+     * Lock a shop kept in the shop files, against the other threads and processes
+     * @param city The city of the shop
+     * @param operation What the lock is taken for, reported to waiters
+     * @return the held lock, released by close()
+     * @throws LockTimeoutException if the lock could not be taken in time
+     */
+    public static Closeable lockFile(String city, String operation) throws IOException {
+        File file = new File(DataPaths.SHOPS_DIR, city + ".lock");
+        file.getParentFile().mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        FileLocks.Lock lock;
+        try {
+            lock = FileLocks.lock(channel, file, false, operation);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+        return () -> {
+            try {
+                lock.release();
+            } finally {
+                raf.close();
+            }
+        };
+    }
+}
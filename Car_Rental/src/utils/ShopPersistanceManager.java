@@ -5,19 +5,41 @@ import classes.Vehicle;
 import classes.Transaction;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
 
 public class ShopPersistanceManager {
-    private static final String FILES_DIR = "src" + File.separator + "files" + File.separator + "shops";
+    private static final String FILES_DIR = DataPaths.SHOPS_DIR;
+    private static final String SECTIONS_PREFIX = "Sections:";
+    private static final String CHECKSUM_PREFIX = "Checksum:";
+    // "Checksum:<CRC32 of the rest of the file>\n" in 8 hex digits, files saved before it was kept have none
+    private static final int CHECKSUM_LINE_LENGTH = CHECKSUM_PREFIX.length() + 8 + 1;
+    private static final int OFFSET_DIGITS = 12;
+    // "Sections:<vehicles offset>,<transactions offset>\n" with fixed width offsets
+    private static final int SECTIONS_LINE_LENGTH = SECTIONS_PREFIX.length() + 2 * OFFSET_DIGITS + 2;
 
     /**
      * Save shop data to a file with a specific format and proper synchronization.
+     * Every save publishes a new immutable generation of the file (write-new-then-atomic-rename), 
+     * so readers never need a lock and never block a save.
      * @param shop The RentalShop object to save.
      * @return true if the data was saved successfully, false otherwise.
      */
     public static boolean saveShop(RentalShop shop) {
+        return saveShop(shop, true);
+    }
+
+    /**
+     * Save shop data, logging the save in the change log or not
+     * @param shop The RentalShop object to save.
+     * @param log false for a change replayed from the log, which is already in it
+     * @return true if the data was saved successfully, false otherwise.
+     */
+    public static boolean saveShop(RentalShop shop, boolean log) {
         String shopFile = FILES_DIR + File.separator + shop.getCity() + ".txt";
         File file = new File(shopFile);
         File dir = new File(file.getParent());
@@ -25,39 +47,81 @@ public class ShopPersistanceManager {
         // Create the directory
         if (!dir.exists()) dir.mkdirs();
         
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-             FileChannel channel = raf.getChannel()) {
-            // Acquire a writer lock on the file
-            FileLock lock = channel.lock();
-            
-            try {
-                raf.setLength(0); // Clear the file content
-
-                // Write the shop data to the file
-                raf.writeBytes("City:" + shop.getCity() + "\n");
-                raf.writeBytes("Spaces:" + shop.getSpaces() + "\n");
-                raf.writeBytes("Balance:" + shop.getBalance() + "\n");
-                raf.writeBytes("Lots:" + String.join(",", shop.getLots()) + "\n");
-                raf.writeBytes("Vehicles:\n");
-                for (Vehicle vehicle : shop.getVehicles()) {
-                    raf.writeBytes(vehicle.toString() + "\n");
-                }
-                raf.writeBytes("Transactions:\n");
+        // Serialize the shop data in memory
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] header = ("City:" + shop.getCity() + "\n"
+            + "Spaces:" + shop.getSpaces() + "\n"
+            + "Balance:" + Money.format(shop.getBalance()) + "\n"
+            + ((shop.getArchivedCount() > 0) ? "Archived:" + shop.getArchivedCount() + "\n" : "")
+            + "Lots:" + String.join(",", shop.getLots()) + "\n").getBytes(StandardCharsets.UTF_8);
+        StringBuilder vehicles = new StringBuilder(ShopSnapshot.VEHICLES_HEADER).append("\n");
+        for (Vehicle vehicle : shop.getVehicles()) {
+            vehicles.append(vehicle.toString()).append("\n");
+        }
+        byte[] vehicleBytes = vehicles.toString().getBytes(StandardCharsets.UTF_8);
+
+        // Section offsets let readers jump straight to the vehicles or the transactions
+        long vehiclesOffset = header.length + CHECKSUM_LINE_LENGTH + SECTIONS_LINE_LENGTH;
+        long transactionsOffset = vehiclesOffset + vehicleBytes.length;
+        content.write(header, 0, header.length);
+        content.write(new byte[CHECKSUM_LINE_LENGTH], 0, CHECKSUM_LINE_LENGTH); // Filled once the rest is written
+        content.write(String.format("%s%0" + OFFSET_DIGITS + "d,%0" + OFFSET_DIGITS + "d\n", SECTIONS_PREFIX, vehiclesOffset, transactionsOffset)
+            .getBytes(StandardCharsets.UTF_8), 0, SECTIONS_LINE_LENGTH);
+        content.write(vehicleBytes, 0, vehicleBytes.length);
+        content.write((ShopSnapshot.TRANSACTIONS_HEADER + "\n").getBytes(StandardCharsets.UTF_8), 0, ShopSnapshot.TRANSACTIONS_HEADER.length() + 1);
+        try {
+            if (shop.isTransactionsLoaded()) {
                 for (Transaction transaction : shop.getTransactions()) {
-                    raf.writeBytes(transaction.toString() + "\n");
+                    content.write((transaction.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            } else {
+                // The transactions were never parsed, copy the section bytes and add the new ones
+                shop.getSnapshot().copyTransactions(content);
+                for (Transaction transaction : shop.getPendingTransactions()) {
+                    content.write((transaction.toString() + "\n").getBytes(StandardCharsets.UTF_8));
                 }
-            } finally {
-                lock.release(); // Release the lock
             }
         } catch (IOException e) {
             System.err.println("Error saving shop data: " + e.getMessage());
             return false;
         }
-        return true;
+
+        if (!shop.isReadable()) {
+            System.err.println("Error saving shop data: the vehicles or transactions of " + shop.getCity() + " could not be read, the file is left as is.");
+            return false;
+        }
+
+        // Checksum of everything after its line, checked by the crash recovery
+        byte[] bytes = content.toByteArray();
+        int checked = header.length + CHECKSUM_LINE_LENGTH;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, checked, bytes.length - checked);
+        byte[] checksum = String.format("%s%08x\n", CHECKSUM_PREFIX, crc.getValue()).getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(checksum, 0, bytes, header.length, CHECKSUM_LINE_LENGTH);
+
+        // Publish the new generation through the persistence pipeline, then its events under the same shop lock,
+        // logged for the replicas if enabled
+        ChangeLog.Commit commit = () -> {
+            try {
+                PersistencePipeline.await(PersistencePipeline.get().publish(file, bytes));
+            } catch (IOException e) {
+                System.err.println("Error saving shop data: " + e.getMessage());
+                return false;
+            }
+            shop.publishEvents();
+            return true;
+        };
+        boolean saved = log ? ChangeLog.commit(commit, () -> ChangeLog.shopChange(shop)) : commit.run();
+        if (saved) shop.markSaved();
+        return saved;
     }
 
     /**
      * Load shop data from a file with a specific format and proper synchronization.
+     * Reads the current generation of the file without any lock, a concurrent save publishes a new
+     * generation and leaves the one being read intact until it is closed.
+     * Only the header (city, spaces, balance, archived count, lots) is parsed, the vehicles and transactions are loaded
+     * by the returned shop on first access, using the section offsets stored in the file.
      * @param city The city name of the shop to load.
      * @return A RentalShop object with the loaded data, or null if loading failed.
      */
@@ -68,82 +132,87 @@ public class ShopPersistanceManager {
         if (!file.exists()) return null;
         RentalShop shop = new RentalShop(shopFile, city);
         
-        try(RandomAccessFile raf = new RandomAccessFile(file, "r");
-            FileChannel channel = raf.getChannel()) {
-
-            // Acquire a reader lock on the file
-            FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
-
-            // Read the shop data from the file 
-            try {
-                raf.seek(0);
-                String line;
-
-                // Read the first line to get the city name 
-                if ((line = raf.readLine()) != null) { city = line.substring(5).trim(); }
-
-                // Read the second line to get the number of spaces 
-                if ((line = raf.readLine()) != null) {
-                    int spaces = Integer.parseInt(line.substring(7).trim());
-                    shop.setSpaces(spaces);
-                }
-
-                // Read the third line to get the balance 
-                if ((line = raf.readLine()) != null) {
-                    double balance = Double.parseDouble(line.substring(8).trim());
-                    shop.setBalance(balance);
-                }
-
-                // Read the fourth line to get the parking lots 
-                line = raf.readLine(); // Read "Lots:" line
-                if (line.startsWith("Lots:")) {
-                    String[] lotArray = line.substring(5).split(",");
-                    for (String lot : lotArray) {
-                        shop.addLot(lot.trim());
+        // Only the header is parsed here, the sections are read on first access through the snapshot.
+        // Opened through NIO so that the file can be renamed over while it is open (also on Windows)
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            long vehiclesOffset = -1;
+            long transactionsOffset = -1;
+            try (RecordReader reader = new RecordReader(channel)) {
+                while (reader.nextLine()) {
+                    if (reader.startsWith("City:")) {
+                        reader.skip(5);
+                        city = reader.readRest();
+                    } else if (reader.startsWith("Spaces:")) {
+                        reader.skip(7);
+                        shop.setSpaces(reader.readInt());
+                    } else if (reader.startsWith("Balance:")) {
+                        reader.skip(8);
+                        shop.setBalance(reader.readCents());
+                    } else if (reader.startsWith("Archived:")) {
+                        reader.skip(9);
+                        shop.setArchivedCount(reader.readInt());
+                    } else if (reader.startsWith("Lots:")) {
+                        reader.skip(5);
+                        while (!reader.atEnd()) {
+                            String lot = reader.readString(',');
+                            if (!lot.isEmpty()) shop.addLot(lot);
+                        }
+                    } else if (reader.startsWith(SECTIONS_PREFIX)) {
+                        reader.skip(SECTIONS_PREFIX.length());
+                        reader.readLong(); // The vehicles section follows the header
+                        reader.expect(',');
+                        transactionsOffset = reader.readLong();
+                    } else if (reader.startsWith(ShopSnapshot.VEHICLES_HEADER)) {
+                        vehiclesOffset = reader.lineOffset();
+                        break;
                     }
                 }
-
-                // Read the vehicles section
-                if ((line = raf.readLine()) != null && line.startsWith("Vehicles:")) {
-                    while ((line = raf.readLine()) != null) {
-                        if (line.startsWith("Transactions:")) break; // Transactions section starts here 
-                        String[] parts = line.split(",");
-                        String plate = parts[0].trim();
-                        String type = parts[1].trim();
-                        int odometer = Integer.parseInt(parts[2].trim());
-                        Vehicle vehicle = new Vehicle(plate, type, odometer);
-                        shop.addVehicle(vehicle);
-                    }
-                }
-
-                // Read the transactions section
-                if (line != null && line.startsWith("Transactions:")) {
-                    while ((line = raf.readLine()) != null) {
-                        String[] parts = line.split(";");
-                        // Retrieve the license plate of the vehicle
-                        String[] dummy = parts[0].split(": ");
-                        String licensePlate = dummy[1].trim();
-                        // Retrieve the kilometers driven during the rental period
-                        dummy = parts[1].split(": ");
-                        int distance = Integer.parseInt(dummy[1].replaceAll("\\D+", ""));
-                        // Retrieve the discount status 
-                        dummy = parts[2].split(": ");
-                        boolean discount = (dummy[1].trim().equals("10%")) ? true : false;
-                        // Retrieve the amount charged for the transaction
-                        dummy = parts[3].split(":");
-                        double amount = Double.parseDouble(dummy[1].substring(2).trim());
-                        // Create a new Transaction object and add it to the shop
-                        shop.addTransaction(new Transaction(licensePlate, distance, discount, amount));
-                    }
-                }
-            } finally {
-                lock.release(); // Release the lock
             }
-        } catch (IOException e) {
+            if (vehiclesOffset < 0) throw new IOException("Vehicles section not found in " + shopFile + ".");
+            shop.attachSnapshot(ShopSnapshot.of(channel, vehiclesOffset, transactionsOffset));
+        } catch (IOException | NumberFormatException e) {
             System.err.println("Error loading shop data: " + e.getMessage());
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException ignored) { }
             return null;
         }
 
         return shop;
     }
+
+    /**
+     * Check a shop file against its checksum, read whole. Files saved before checksums were kept only need
+     * their header and the vehicles section.
+     * @param file The shop file
+     * @return true if the file is complete and its content matches its checksum
+     */
+    public static boolean verifyShop(File file) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            return false;
+        }
+        byte[] prefix = CHECKSUM_PREFIX.getBytes(StandardCharsets.UTF_8);
+        boolean vehicles = false;
+        int start = 0;
+        while (start < bytes.length) {
+            int end = start;
+            while (end < bytes.length && bytes[end] != '\n') end++;
+            if (end == bytes.length) return false; // Every line of a complete file ends with a new line
+            String line = new String(bytes, start, Math.min(end - start, 64), StandardCharsets.UTF_8);
+            if (line.startsWith(CHECKSUM_PREFIX) && end - start == CHECKSUM_LINE_LENGTH - 1) {
+                CRC32 crc = new CRC32();
+                crc.update(bytes, end + 1, bytes.length - end - 1);
+                return line.substring(prefix.length).equals(String.format("%08x", crc.getValue()));
+            }
+            if (line.startsWith(ShopSnapshot.VEHICLES_HEADER)) vehicles = true;
+            if (vehicles) break; // No checksum before the sections, an older file
+            start = end + 1;
+        }
+        return vehicles;
+    }
 }
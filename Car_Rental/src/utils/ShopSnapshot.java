@@ -0,0 +1,191 @@
+package utils;
+
+import classes.Fleet;
+import classes.Transaction;
+import classes.Vehicle;
+import classes.VehicleType;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An open generation of a shop file whose vehicles and transactions sections are read on demand.
+ * The snapshot keeps the file open, so the generation stays readable even after a save publishes
+ * a newer one. Close it once the shop no longer needs lazy access.
+ */
+public class ShopSnapshot implements Closeable {
+    static final String VEHICLES_HEADER = "Vehicles:";
+    static final String TRANSACTIONS_HEADER = "Transactions:";
+
+    private final FileChannel channel;
+    private final long vehiclesOffset;   // Offset of the "Vehicles:" line
+    private long transactionsOffset;     // Offset of the "Transactions:" line, -1 until known
+    private boolean closed;
+
+    private ShopSnapshot(FileChannel channel, long vehiclesOffset, long transactionsOffset) {
+        this.channel = channel;
+        this.vehiclesOffset = vehiclesOffset;
+        this.transactionsOffset = transactionsOffset;
+    }
+
+    static ShopSnapshot of(FileChannel channel, long vehiclesOffset, long transactionsOffset) {
+        return new ShopSnapshot(channel, vehiclesOffset, transactionsOffset);
+    }
+
+    /**
+     * Parse the vehicles section
+     * @return the vehicles parked at the shop
+     */
+    public Fleet readVehicles() throws IOException {
+        ensureOpen();
+        Fleet vehicles = new Fleet();
+        try (RecordReader reader = new RecordReader(channel, vehiclesOffset, false)) {
+            if (!reader.nextLine() || !reader.startsWith(VEHICLES_HEADER)) throw new IOException("Vehicles section not found.");
+            while (reader.nextLine()) {
+                if (reader.startsWith(TRANSACTIONS_HEADER)) {
+                    transactionsOffset = reader.lineOffset();
+                    break;
+                }
+                if (reader.isBlank()) continue;
+                int plate = reader.readPlate();
+                reader.expect(',');
+                VehicleType type = reader.readType();
+                reader.expect(',');
+                int odometer = reader.readInt();
+                if (type == null) continue; // Skip vehicles of unknown type
+                vehicles.add(new Vehicle(plate, type, odometer));
+            }
+        }
+        return vehicles;
+    }
+
+    /**
+     * Parse the whole transactions section
+     * @return the transactions, in file order
+     */
+    public List<Transaction> readTransactions() throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        forEachTransaction(transactions::add);
+        return transactions;
+    }
+
+    /**
+     * Count the transactions without materializing them
+     * @return the number of transaction lines
+     */
+    public int countTransactions() throws IOException {
+        int count = 0;
+        try (RecordReader reader = transactionsReader()) {
+            while (reader.nextLine()) {
+                if (!reader.isBlank()) count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stream the transactions, parsing them while the stream is consumed
+     * @return a sequential stream of the transactions in file order
+     */
+    public Stream<Transaction> streamTransactions() throws IOException {
+        RecordReader reader = transactionsReader();
+        Spliterator<Transaction> spliterator = new Spliterators.AbstractSpliterator<Transaction>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super Transaction> action) {
+                try {
+                    while (reader.nextLine()) {
+                        if (reader.isBlank()) continue;
+                        action.accept(parseTransaction(reader));
+                        return true;
+                    }
+                    return false;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Copy the raw transaction lines (without the section header) to an output stream
+     * @param out The destination
+     */
+    public void copyTransactions(OutputStream out) throws IOException {
+        long start;
+        try (RecordReader reader = transactionsReader()) {
+            if (reader.isEmpty()) return; // No transactions section
+            start = reader.nextLineOffset();
+        }
+        long end = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) { }
+        out.write(buffer.array(), 0, buffer.position());
+        if (buffer.position() > 0 && buffer.get(buffer.position() - 1) != '\n') out.write('\n');
+    }
+
+    private void forEachTransaction(Consumer<Transaction> action) throws IOException {
+        try (RecordReader reader = transactionsReader()) {
+            while (reader.nextLine()) {
+                if (!reader.isBlank()) action.accept(parseTransaction(reader));
+            }
+        }
+    }
+
+    // Reader positioned right after the "Transactions:" line
+    private RecordReader transactionsReader() throws IOException {
+        ensureOpen();
+        if (transactionsOffset < 0) readVehicles(); // Old files without section offsets, find the section
+        RecordReader reader = new RecordReader(channel, Math.max(transactionsOffset, 0), false);
+        if (transactionsOffset < 0 || !reader.nextLine() || !reader.startsWith(TRANSACTIONS_HEADER)) {
+            reader.close();
+            return new RecordReader(new byte[0]); // No transactions section
+        }
+        return reader;
+    }
+
+    /**
+     * Parse a transaction line
+     * Format: "TRANSACTION: <plate>; Distance: <km> km; Discount: <10%|0%>; Amount: $<amount>[; Time: <millis>]"
+     */
+    static Transaction parseTransaction(RecordReader reader) {
+        // Retrieve the license plate of the vehicle
+        reader.skipPast(':');
+        int licensePlate = reader.readPlate();
+        // Retrieve the kilometers driven during the rental period
+        reader.skipPast(':');
+        int distance = reader.readInt();
+        // Retrieve the discount status 
+        reader.skipPast(':');
+        boolean discount = reader.readInt() == 10;
+        // Retrieve the amount charged for the transaction
+        reader.skipPast('$');
+        long amount = reader.readCents();
+        // Retrieve the time of the return, not recorded by older files
+        long time = reader.skipPast(':') ? reader.readLong() : 0;
+        return new Transaction(licensePlate, distance, discount, amount, time);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Shop snapshot is closed.");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            channel.close();
+        }
+    }
+}
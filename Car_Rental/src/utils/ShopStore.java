@@ -0,0 +1,39 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import classes.RentalShop;
+
+/**
+ * Where the shops are kept
+ */
+public interface ShopStore {
+    /**
+     * Load the current state of a shop
+     * @param city The city of the shop
+     * @return the loaded shop, or null if the shop does not exist or cannot be read
+     */
+    RentalShop load(String city);
+
+    /**
+     * Save the state of a shop
+     * @param shop The shop to save
+     * @return true if the shop was saved
+     */
+    boolean save(RentalShop shop);
+
+    /**
+     * @return the cities that have a shop, sorted
+     */
+    List<String> cities();
+
+    /**
+     * Lock a shop while it is loaded, changed and saved, see ShopLocks
+     * @param city The city of the shop
+     * @param operation What the lock is taken for, reported to waiters
+     * @return the held lock, released by close()
+     * @throws LockTimeoutException if the lock could not be taken in time
+     */
+    Closeable lock(String city, String operation) throws IOException;
+}
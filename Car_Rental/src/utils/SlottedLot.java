@@ -0,0 +1,535 @@
+package utils;
+
+import classes.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Opt-in layout of a lot file that lets shops pull and return vehicles of different types from one lot at the
+ * same time, enabled with -Dcarrental.lots.slotted=true or setEnabled(). A lot takes the layout of the process
+ * that writes it whole (LotManager), every access follows the layout the file has, so both kinds of lots mix.
+ *
+ * The file stays a text file of vehicle lines, still read by the tools that scan lots line by line:
+ *  - a header line of HEADER_WIDTH bytes: "#SLOTS <capacity> <count of each type>"
+ *  - one region per vehicle type, in VehicleType order, of <capacity> slots of SLOT_WIDTH bytes; a slot holds a
+ *    vehicle line "plate,type,odometer" padded with spaces, or only spaces when it is free
+ *  - lines appended after the regions by a process that did not know the layout; they are folded into the
+ *    regions by the next pull that finds none of its type, or by the next whole write
+ * A pull or a return of a type locks only the byte range of its region, then the header for the count update.
+ * Locks are always taken region first, header last. A full region grows all the regions at once under the
+ * whole file lock, so the holders of a region lock check the capacity again once they hold it.
+ * A count is lowered after its slot is freed and raised before a slot is filled: it is never below the vehicles
+ * of its region, and a count of 0 lets a pull skip the region without locking it.
+ *
+ * Slots and the header are written in place, through the slot journal of the lot ("<lot>.txt.slots") so a write
+ * torn by a crash cannot lose a vehicle. The journal has one record area per region and one for the header,
+ * each written only under the lock of its range: the record (magic, length, position, CRC32, bytes) is written
+ * and forced, then the slot, then the magic is cleared. The complete records left by a crash are written again
+ * by CrashRecovery, or by the next writer of the whole lot before it reads it; the whole lot writes then empty
+ * the journal, its positions belong to the old layout.
+ */
+public class SlottedLot {
+    static final int HEADER_WIDTH = 64;
+    static final int SLOT_WIDTH = 32;
+    private static final int MIN_CAPACITY = 16;
+    private static final String MAGIC = "#SLOTS";
+    private static final String JOURNAL_SUFFIX = ".slots";
+    private static final int RECORD_MAGIC = 0x534C4A31; // "SLJ1"
+    private static final int RECORD_HEADER = 20;         // Magic, length, position, CRC32 of length, position and bytes
+    private static final int RECORD_SIZE = RECORD_HEADER + HEADER_WIDTH;
+    private static final int HEADER_AREA = 0;           // Area of the header in the journal, region t uses t + 1
+    private static final byte[] FREE_SLOT = freeSlot();
+
+    private static volatile boolean enabled = Boolean.getBoolean("carrental.lots.slotted");
+
+    public static boolean isEnabled() { return enabled; }
+    public static void setEnabled(boolean enabled) { SlottedLot.enabled = enabled; }
+
+    // Capacity and counts of the regions, as written in the header
+    private static class Header {
+        final int capacity;
+        final int[] counts;
+
+        Header(int capacity, int[] counts) {
+            this.capacity = capacity;
+            this.counts = counts;
+        }
+
+        long regionStart(VehicleType type) { return HEADER_WIDTH + (long) type.ordinal() * capacity * SLOT_WIDTH; }
+        long regionSize() { return (long) capacity * SLOT_WIDTH; }
+        long end() { return HEADER_WIDTH + (long) counts.length * capacity * SLOT_WIDTH; }
+        boolean current() { return counts.length == VehicleType.count(); } // Written with the same vehicle types
+
+        byte[] toBytes() {
+            StringBuilder line = new StringBuilder(MAGIC).append(' ').append(capacity);
+            for (int count : counts) line.append(' ').append(count);
+            byte[] bytes = new byte[HEADER_WIDTH];
+            Arrays.fill(bytes, (byte) ' ');
+            byte[] text = line.toString().getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(text, 0, bytes, 0, Math.min(text.length, HEADER_WIDTH - 1));
+            bytes[HEADER_WIDTH - 1] = '\n';
+            return bytes;
+        }
+
+        static Header parse(byte[] bytes, File file) throws IOException {
+            if (!isSlotted(bytes)) throw new IOException("Lot file " + file.getName() + " is no longer slotted.");
+            String[] fields = new String(bytes, 0, Math.min(bytes.length, HEADER_WIDTH), StandardCharsets.UTF_8).trim().split(" +");
+            try {
+                int[] counts = new int[fields.length - 2];
+                for (int i = 0; i < counts.length; i++) counts[i] = Integer.parseInt(fields[i + 2]);
+                return new Header(Integer.parseInt(fields[1]), counts);
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid slotted lot header in " + file.getName() + ".");
+            }
+        }
+    }
+
+    private static byte[] freeSlot() {
+        byte[] slot = new byte[SLOT_WIDTH];
+        Arrays.fill(slot, (byte) ' ');
+        slot[SLOT_WIDTH - 1] = '\n';
+        return slot;
+    }
+
+    /**
+     * @param file A lot file
+     * @return true if the file has the slotted layout
+     */
+    public static boolean isSlotted(File file) throws IOException {
+        if (file.length() < HEADER_WIDTH) return false;
+        byte[] magic = new byte[MAGIC.length()];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.readFully(magic);
+        } catch (FileNotFoundException | EOFException e) {
+            return false;
+        }
+        return isSlotted(magic);
+    }
+
+    /**
+     * @param content The start of a lot file
+     * @return true if it is the header of a slotted lot
+     */
+    public static boolean isSlotted(byte[] content) {
+        if (content.length < MAGIC.length()) return false;
+        for (int i = 0; i < MAGIC.length(); i++) {
+            if (content[i] != MAGIC.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean force() {
+        return PersistencePipeline.get().getPolicy() != PersistencePipeline.SyncPolicy.NONE;
+    }
+
+    // ----- Whole lot -----
+
+    /**
+     * @param file A lot file
+     * @return the journal of its slot and header writes
+     */
+    public static File journalFile(File file) {
+        return new File(file.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Replace the content of a lot, under the whole file lock
+     * @param file The lot file
+     * @param vehicles The vehicles parked in the lot
+     * @param slotted true to write the slotted layout, false for one line per vehicle
+     */
+    public static void write(File file, Collection<Vehicle> vehicles, boolean slotted) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) dir.mkdirs();
+        byte[] content = slotted ? layout(vehicles, 0) : lines(vehicles); // Checks that every vehicle fits a slot before the file is touched
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            FileLocks.Lock lock = FileLocks.lock(channel, file, false, "write lot");
+            try {
+                replay(channel, file); // Its positions would land in the new content
+                PersistencePipeline.rewrite(file, channel, content, force());
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Stock vehicles in a lot and take one out of it in one change of its current content, under the whole file
+     * lock, see LotStore.update()
+     * @param file The lot file, slotted or not
+     * @param added The vehicles to park
+     * @param removedPlate Code of the plate of the vehicle that leaves the fleet, PlateCodec.NONE for none
+     * @param slotted true to write the slotted layout, false for one line per vehicle
+     * @return true if the vehicle to remove was in the lot
+     */
+    public static boolean update(File file, Collection<Vehicle> added, int removedPlate, boolean slotted) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) dir.mkdirs();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            FileLocks.Lock lock = FileLocks.lock(channel, file, false, "update lot");
+            try {
+                replay(channel, file);
+                List<Vehicle> vehicles = vehicles(PersistencePipeline.readFully(channel));
+                boolean removed = removedPlate != PlateCodec.NONE && vehicles.removeIf(vehicle -> vehicle.getPlateCode() == removedPlate);
+                vehicles.addAll(added);
+                PersistencePipeline.rewrite(file, channel, slotted ? layout(vehicles, 0) : lines(vehicles), force());
+                return removed;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    // The vehicles of a lot in either layout, the damaged lines are left out
+    private static List<Vehicle> vehicles(byte[] content) throws IOException {
+        List<Vehicle> vehicles = new ArrayList<>();
+        try (RecordReader reader = new RecordReader(content)) {
+            while (reader.nextLine()) {
+                Vehicle vehicle = parse(reader);
+                if (vehicle != null) vehicles.add(vehicle);
+            }
+        }
+        return vehicles;
+    }
+
+    private static byte[] lines(Collection<Vehicle> vehicles) {
+        StringBuilder content = new StringBuilder();
+        for (Vehicle vehicle : vehicles) {
+            content.append(vehicle.getLicensePlate()).append(',').append(vehicle.getType()).append(',').append(vehicle.getOdometer()).append('\n');
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Lay out the vehicles of a lot, the capacity leaves every region at least half free
+     * @param vehicles The vehicles parked in the lot
+     * @param minCapacity The smallest capacity of the regions
+     * @return the content of the lot file
+     */
+    private static byte[] layout(Collection<Vehicle> vehicles, int minCapacity) throws IOException {
+        List<List<Vehicle>> byType = new ArrayList<>();
+        for (int t = 0; t < VehicleType.count(); t++) byType.add(new ArrayList<>());
+        for (Vehicle vehicle : vehicles) byType.get(vehicle.getType().ordinal()).add(vehicle);
+        int capacity = Math.max(MIN_CAPACITY, minCapacity);
+        int[] counts = new int[VehicleType.count()];
+        for (int t = 0; t < counts.length; t++) {
+            counts[t] = byType.get(t).size();
+            capacity = Math.max(capacity, counts[t] * 2);
+        }
+
+        Header header = new Header(capacity, counts);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) header.end());
+        out.write(header.toBytes());
+        for (List<Vehicle> region : byType) {
+            for (Vehicle vehicle : region) out.write(slot(vehicle));
+            for (int i = region.size(); i < capacity; i++) out.write(FREE_SLOT);
+        }
+        return out.toByteArray();
+    }
+
+    // Write the lot again with the regions of at least a capacity, folding in the lines past the regions
+    private static void fold(FileChannel channel, File file, int minCapacity) throws IOException {
+        FileLocks.Lock lock = FileLocks.lock(channel, file, false, "fold lot");
+        try {
+            replay(channel, file);
+            byte[] content = PersistencePipeline.readFully(channel);
+            if (isSlotted(content)) {
+                Header header = Header.parse(content, file);
+                boolean done = header.current() && header.capacity >= minCapacity && content.length <= header.end();
+                if (done) return; // Another writer grew or folded the lot first
+            }
+            PersistencePipeline.rewrite(file, channel, layout(vehicles(content), minCapacity), force());
+        } finally {
+            lock.release();
+        }
+    }
+
+    // ----- Slot journal -----
+
+    /**
+     * Finish the slot and header writes of a lot interrupted by a crash, from its slot journal
+     * @param file The lot file
+     * @return true if a write was done again
+     */
+    public static boolean recover(File file) throws IOException {
+        File journal = journalFile(file);
+        if (!journal.exists() || journal.length() == 0 || !file.exists()) return false;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            FileLocks.Lock lock = FileLocks.lock(channel, file, false, "recover");
+            try {
+                return replay(channel, file);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    // Write again the complete records of the slot journal and empty it, called with the whole lot locked
+    private static boolean replay(FileChannel channel, File file) throws IOException {
+        File journalFile = journalFile(file);
+        if (!journalFile.exists() || journalFile.length() == 0) return false;
+        try (RandomAccessFile journal = new RandomAccessFile(journalFile, "rw")) {
+            byte[] bytes = PersistencePipeline.readFully(journal.getChannel());
+            ByteBuffer records = ByteBuffer.wrap(bytes);
+            boolean replayed = false;
+            boolean slotted = channel.size() >= HEADER_WIDTH && isSlotted(read(channel, 0, MAGIC.length()));
+            for (int start = 0; slotted && start + RECORD_HEADER <= bytes.length; start += RECORD_SIZE) {
+                if (records.getInt(start) != RECORD_MAGIC) continue; // Free area, or its write completed
+                int length = records.getInt(start + 4);
+                long position = records.getLong(start + 8);
+                boolean valid = length > 0 && length <= HEADER_WIDTH && start + RECORD_HEADER + length <= bytes.length
+                    && position >= 0 && position + length <= channel.size();
+                if (valid) {
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes, start + 4, 12);
+                    crc.update(bytes, start + RECORD_HEADER, length);
+                    valid = (int) crc.getValue() == records.getInt(start + 16);
+                }
+                if (!valid) continue; // Torn record, its write never started
+                writeFully(channel, Arrays.copyOfRange(bytes, start + RECORD_HEADER, start + RECORD_HEADER + length), position);
+                replayed = true;
+            }
+            if (replayed) channel.force(false);
+            journal.setLength(0);
+            return replayed;
+        }
+    }
+
+    // ----- Slots -----
+
+    private static byte[] slot(Vehicle vehicle) throws IOException {
+        String line = vehicle.getLicensePlate() + "," + vehicle.getType() + "," + vehicle.getOdometer();
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        if (text.length >= SLOT_WIDTH) throw new IOException("Vehicle " + vehicle.getLicensePlate() + " does not fit a lot slot.");
+        byte[] slot = FREE_SLOT.clone();
+        System.arraycopy(text, 0, slot, 0, text.length);
+        return slot;
+    }
+
+    // Parse the vehicle line the reader is on, null for the header, a free slot or a damaged line
+    private static Vehicle parse(RecordReader reader) {
+        if (reader.isBlank() || reader.startsWith("#")) return null;
+        try {
+            int plate = reader.readPlate();
+            VehicleType type = reader.expect(',') ? reader.readType() : null;
+            if (type == null || !reader.expect(',')) return null;
+            return new Vehicle(plate, type, reader.readInt());
+        } catch (IllegalArgumentException e) {
+            return null; // Includes NumberFormatException
+        }
+    }
+
+    // Read the header under a short shared lock of its range, or return null if the range is locked and wait is false
+    private static Header readHeader(FileChannel channel, File file, boolean wait) throws IOException {
+        FileLocks.Lock lock = wait ? FileLocks.lockRange(channel, file, 0, HEADER_WIDTH, true, "read lot header")
+            : FileLocks.tryLockRange(channel, file, 0, HEADER_WIDTH, true, "read lot header");
+        if (lock == null) return null;
+        try {
+            return Header.parse(read(channel, 0, HEADER_WIDTH), file);
+        } finally {
+            lock.release();
+        }
+    }
+
+    // Add a delta to the count of a type under a short exclusive lock of the header
+    private static void updateCount(FileChannel channel, FileChannel journal, File file, VehicleType type, int delta) throws IOException {
+        FileLocks.Lock lock = FileLocks.lockRange(channel, file, 0, HEADER_WIDTH, false, "update lot count");
+        try {
+            Header header = Header.parse(read(channel, 0, HEADER_WIDTH), file);
+            header.counts[type.ordinal()] = Math.max(0, header.counts[type.ordinal()] + delta);
+            write(channel, journal, HEADER_AREA, header.toBytes(), 0);
+        } finally {
+            lock.release();
+        }
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) break;
+        }
+        return buffer.array(); // Past the end of the file reads as zeros, which is not a vehicle line
+    }
+
+    // Write a slot or the header in place through its area of the slot journal, called with its range locked
+    private static void write(FileChannel channel, FileChannel journal, int area, byte[] bytes, long position) throws IOException {
+        boolean force = force();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + bytes.length)
+            .putInt(0, RECORD_MAGIC).putInt(4, bytes.length).putLong(8, position);
+        record.position(RECORD_HEADER);
+        record.put(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, 12);
+        crc.update(bytes);
+        record.putInt(16, (int) crc.getValue());
+        long start = (long) area * RECORD_SIZE;
+        writeFully(journal, record.array(), start);
+        if (force) journal.force(false);
+        writeFully(channel, bytes, position);
+        if (force) channel.force(false);
+        writeFully(journal, new byte[4], start); // The write is complete
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) channel.write(buffer, position + buffer.position());
+    }
+
+    /**
+     * Free the first slot of a region holding a vehicle, called with the region locked
+     * @param claim If not null, the vehicle is only taken if nobody set the claim before
+     * @return the vehicle, or null if the region is empty or the claim was taken
+     */
+    private static Vehicle takeSlot(FileChannel channel, FileChannel journal, Header header, VehicleType type, AtomicReference<Vehicle> claim) throws IOException {
+        byte[] region = read(channel, header.regionStart(type), (int) header.regionSize());
+        try (RecordReader reader = new RecordReader(region)) {
+            for (int slot = 0; reader.nextLine(); slot++) {
+                Vehicle vehicle = parse(reader);
+                if (vehicle == null || vehicle.getType() != type) continue;
+                if (claim != null && !claim.compareAndSet(null, vehicle)) return null;
+                write(channel, journal, type.ordinal() + 1, FREE_SLOT, header.regionStart(type) + (long) slot * SLOT_WIDTH);
+                return vehicle;
+            }
+        }
+        return null;
+    }
+
+    // Position of the first free slot of a region, or -1 if it is full; called with the region locked
+    private static long freeSlot(FileChannel channel, Header header, VehicleType type) throws IOException {
+        byte[] region = read(channel, header.regionStart(type), (int) header.regionSize());
+        for (int slot = 0; slot < header.capacity; slot++) {
+            boolean free = true;
+            for (int i = slot * SLOT_WIDTH; i < (slot + 1) * SLOT_WIDTH - 1 && free; i++) free = region[i] == ' ';
+            if (free) return header.regionStart(type) + (long) slot * SLOT_WIDTH;
+        }
+        return -1;
+    }
+
+    // ----- Pulls and returns -----
+
+    /**
+     * Take the first vehicle of a type out of a slotted lot, locking only the region of the type
+     * @param file The lot file
+     * @param type The type of vehicle wanted
+     * @return the vehicle, or null if the lot has none of that type
+     */
+    public static Vehicle pull(File file, VehicleType type) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel();
+             RandomAccessFile journal = new RandomAccessFile(journalFile(file), "rw")) {
+            boolean folded = false;
+            while (true) {
+                Header header = readHeader(channel, file, true);
+                if (header.current()) {
+                    if (header.counts[type.ordinal()] > 0) {
+                        FileLocks.Lock region = FileLocks.lockRange(channel, file, header.regionStart(type), header.regionSize(), false, "pull " + type);
+                        try {
+                            Header locked = readHeader(channel, file, true);
+                            if (locked.capacity != header.capacity || !locked.current()) continue; // Grown meanwhile, locate the region again
+                            Vehicle vehicle = takeSlot(channel, journal.getChannel(), locked, type, null);
+                            if (vehicle != null) {
+                                updateCount(channel, journal.getChannel(), file, type, -1);
+                                return vehicle;
+                            }
+                            updateCount(channel, journal.getChannel(), file, type, -locked.counts[type.ordinal()]); // Left high by a crash
+                        } finally {
+                            region.release();
+                        }
+                    }
+                    if (folded || channel.size() <= header.end()) return null;
+                } else if (folded) {
+                    throw new IOException("Lot file " + file.getName() + " could not be laid out again.");
+                }
+                fold(channel, file, 0); // Lines past the regions may hold the type
+                folded = true;
+            }
+        }
+    }
+
+    /**
+     * Take the first vehicle of a type out of a slotted lot only if its region is not locked, see LotStore.tryPull()
+     * @param file The lot file
+     * @param type The type of vehicle wanted
+     * @param claim Shared by the probes of one request, receives the vehicle taken
+     * @return whether the vehicle was taken, the lot had none to give, or the region was locked
+     */
+    public static LotStore.Probe tryPull(File file, VehicleType type, AtomicReference<Vehicle> claim) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel();
+             RandomAccessFile journal = new RandomAccessFile(journalFile(file), "rw")) {
+            Header header = readHeader(channel, file, false);
+            if (header == null || !header.current()) return LotStore.Probe.BUSY; // Left to the sequential pull
+            if (header.counts[type.ordinal()] == 0) {
+                return (channel.size() > header.end()) ? LotStore.Probe.BUSY : LotStore.Probe.EMPTY;
+            }
+            FileLocks.Lock region = FileLocks.tryLockRange(channel, file, header.regionStart(type), header.regionSize(), false, "pull " + type);
+            if (region == null) return LotStore.Probe.BUSY;
+            try {
+                Header locked = readHeader(channel, file, false);
+                if (locked == null || locked.capacity != header.capacity || !locked.current()) return LotStore.Probe.BUSY;
+                if (takeSlot(channel, journal.getChannel(), locked, type, claim) == null) return LotStore.Probe.EMPTY;
+                updateCount(channel, journal.getChannel(), file, type, -1);
+                return LotStore.Probe.TAKEN;
+            } finally {
+                region.release();
+            }
+        }
+    }
+
+    /**
+     * Park a vehicle in the first free slot of its region, growing the regions when it is full.
+     * A lot file that does not exist yet is created with the slotted layout.
+     * @param file The lot file
+     * @param vehicle The vehicle to park
+     */
+    public static void add(File file, Vehicle vehicle) throws IOException {
+        byte[] slot = slot(vehicle);
+        VehicleType type = vehicle.getType();
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) dir.mkdirs();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel();
+             RandomAccessFile journal = new RandomAccessFile(journalFile(file), "rw")) {
+            while (true) {
+                if (channel.size() == 0) {
+                    FileLocks.Lock lock = FileLocks.lock(channel, file, false, "create lot");
+                    try {
+                        if (channel.size() == 0) {
+                            replay(channel, file); // Records of a lot deleted meanwhile
+                            PersistencePipeline.rewrite(file, channel, layout(Collections.singletonList(vehicle), 0), force());
+                            return;
+                        }
+                    } finally {
+                        lock.release();
+                    }
+                    continue; // Created meanwhile
+                }
+                Header header = readHeader(channel, file, true);
+                if (header.current()) {
+                    FileLocks.Lock region = FileLocks.lockRange(channel, file, header.regionStart(type), header.regionSize(), false, "return " + type);
+                    try {
+                        Header locked = readHeader(channel, file, true);
+                        if (locked.capacity != header.capacity || !locked.current()) continue; // Grown meanwhile, locate the region again
+                        long position = freeSlot(channel, locked, type);
+                        if (position >= 0) {
+                            updateCount(channel, journal.getChannel(), file, type, 1);
+                            write(channel, journal.getChannel(), type.ordinal() + 1, slot, position);
+                            return;
+                        }
+                    } finally {
+                        region.release();
+                    }
+                }
+                fold(channel, file, header.current() ? header.capacity * 2 : 0); // The region is full, grow them all
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package utils;
+
+import java.io.IOException;
+
+/**
+ * The stores used by the shops and the tools.
+ *
+ * Three backends exist: the text files under the data directory (see DataPaths), shared by every process,
+ * a concurrent in-memory one, private to the process, for tests, simulations and benchmarks that must
+ * not pay for the disk, and a single page file with B+tree indexes and atomic transactions (see PageStorage).
+ * The default storage is selected with -Dcarrental.storage=<files|memory|pages> (default: files) or set
+ * explicitly with setDefault().
+ */
+public class Storage {
+    private static volatile Storage defaultStorage;
+
+    private final ShopStore shops;
+    private final LotStore lots;
+    private final RentalRegistry rentals;
+    private final PlateAllocator plates;
+    private final LocationStore locations;
+    private final Transactions transactions;
+
+    /**
+     * Work done on the stores as one unit
+     */
+    @FunctionalInterface
+    public interface Work<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Runs units of work, atomically when the backend supports it
+     */
+    public interface Transactions {
+        <T> T atomically(Work<T> work) throws IOException;
+    }
+
+    // Backends without transactions apply each update on its own
+    private static final Transactions DIRECT = new Transactions() {
+        public <T> T atomically(Work<T> work) throws IOException { return work.run(); }
+    };
+
+    public Storage(ShopStore shops, LotStore lots, RentalRegistry rentals, PlateAllocator plates, LocationStore locations) {
+        this(shops, lots, rentals, plates, locations, DIRECT);
+    }
+
+    public Storage(ShopStore shops, LotStore lots, RentalRegistry rentals, PlateAllocator plates, LocationStore locations, Transactions transactions) {
+        this.shops = shops;
+        this.lots = lots;
+        this.rentals = rentals;
+        this.plates = plates;
+        this.locations = locations;
+        this.transactions = transactions;
+    }
+
+    public ShopStore shops() { return shops; }
+    public LotStore lots() { return lots; }
+    public RentalRegistry rentals() { return rentals; }
+    public PlateAllocator plates() { return plates; }
+    public LocationStore locations() { return locations; }
+
+    /**
+     * Run updates of several stores as one unit. On the page store they are committed together or not at all,
+     * on the other backends they are applied one by one.
+     * @param work The updates
+     * @return the result of the work
+     */
+    public <T> T atomically(Work<T> work) throws IOException {
+        return transactions.atomically(work);
+    }
+
+    /**
+     * Create a storage from a backend name
+     * @param name "files", "memory" or "pages", ignoring case
+     * @return a new storage, or null if the name is not valid
+     * @throws java.io.UncheckedIOException if the page store cannot be opened
+     */
+    public static Storage create(String name) {
+        if (name == null) return null;
+        switch (name.trim().toLowerCase()) {
+            case "files": return FileStorage.create();
+            case "memory": return MemoryStorage.create();
+            case "pages": return PageStorage.create();
+            default: return null;
+        }
+    }
+
+    /**
+     * @return the storage used when none is given explicitly
+     */
+    public static Storage get() {
+        Storage storage = defaultStorage;
+        if (storage == null) {
+            synchronized (Storage.class) {
+                if (defaultStorage == null) {
+                    Storage configured = create(System.getProperty("carrental.storage"));
+                    defaultStorage = (configured != null) ? configured : FileStorage.create();
+                }
+                storage = defaultStorage;
+            }
+        }
+        return storage;
+    }
+
+    public static void setDefault(Storage storage) {
+        defaultStorage = storage;
+    }
+}
@@ -0,0 +1,236 @@
+package utils;
+
+import classes.Transaction;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cold tier of the shop transactions: the oldest transactions of a shop are moved out of the shop file into
+ * compressed archive segments, so the shop file keeps a bounded number of transactions however old the shop is.
+ * A transaction is due once the shop holds more than -Dcarrental.archive.keep transactions (default: 10000), or
+ * once it is older than -Dcarrental.archive.age milliseconds (default: 0, no age limit). Transactions are archived
+ * by whole segments of -Dcarrental.archive.segment transactions (default: 1000). setLimits() replaces the three.
+ *
+ * Files of a shop, in "archive/<city>" of the data directory:
+ *  - <first position>.gz : the transaction lines of a segment, in the shop file format, never modified
+ *  - segments.txt        : one summary line per segment, appended once the segment is written
+ *    <first position>,<count>,<total amount>,<lowest plate>,<highest plate>,<first time>,<last time>
+ * The position of a transaction counts all the transactions of the shop since it opened. The shop records
+ * how many were archived, the segments past that number were left by an interrupted archival and are ignored,
+ * the next archival writes them again. The balance of the shop is kept as is, it is not derived from the
+ * transactions, and the summaries give the archived totals without reading the segments.
+ */
+public class TransactionArchive {
+    private static final String SUMMARY_FILE = "segments.txt";
+    private static final String SEGMENT_SUFFIX = ".gz";
+
+    private static volatile int keep = Integer.getInteger("carrental.archive.keep", 10_000);
+    private static volatile long age = Long.getLong("carrental.archive.age", 0L);
+    private static volatile int segmentSize = Math.max(1, Integer.getInteger("carrental.archive.segment", 1_000));
+
+    public static int getKeep() { return keep; }
+    public static long getAge() { return age; }
+    public static int getSegmentSize() { return segmentSize; }
+
+    /**
+     * Replace the limits set by the system properties
+     * @param keep Transactions kept in a shop
+     * @param age Age in millis of the transactions archived whatever their number, 0 for no age limit
+     * @param segmentSize Transactions per segment
+     */
+    public static void setLimits(int keep, long age, int segmentSize) {
+        if (keep < 0 || age < 0 || segmentSize < 1) throw new IllegalArgumentException("Invalid archive limits.");
+        TransactionArchive.keep = keep;
+        TransactionArchive.age = age;
+        TransactionArchive.segmentSize = segmentSize;
+    }
+
+    /**
+     * Summary of an archive segment
+     */
+    public static class Segment {
+        private final String city;
+        private final long first;
+        private final int count;
+        private final long total;
+        private final String lowestPlate;
+        private final String highestPlate;
+        private final long firstTime;
+        private final long lastTime;
+
+        private Segment(String city, long first, int count, long total, String lowestPlate, String highestPlate, long firstTime, long lastTime) {
+            this.city = city;
+            this.first = first;
+            this.count = count;
+            this.total = total;
+            this.lowestPlate = lowestPlate;
+            this.highestPlate = highestPlate;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+        }
+
+        public String getCity() { return city; }
+        public long getFirst() { return first; }
+        public int getCount() { return count; }
+        public long getTotal() { return total; }
+        public String getLowestPlate() { return lowestPlate; }
+        public String getHighestPlate() { return highestPlate; }
+        public long getFirstTime() { return firstTime; }
+        public long getLastTime() { return lastTime; }
+
+        private File file() {
+            return new File(directory(city), String.format("%012d", first) + SEGMENT_SUFFIX);
+        }
+
+        private String toLine() {
+            StringBuilder line = new StringBuilder().append(first).append(',').append(count).append(',');
+            return Money.append(line, total).append(',').append(lowestPlate).append(',').append(highestPlate).append(',')
+                .append(firstTime).append(',').append(lastTime).append('\n').toString();
+        }
+
+        @Override
+        public String toString() {
+            return "Segment " + first + "-" + (first + count - 1) + ": " + count + " transactions, $" + Money.format(total)
+                + ", plates " + lowestPlate + " to " + highestPlate;
+        }
+    }
+
+    /**
+     * @param city The city of the shop
+     * @return the archive directory of the shop
+     */
+    public static File directory(String city) {
+        return new File(DataPaths.ARCHIVE_DIR, city);
+    }
+
+    /**
+     * Number of the oldest transactions due for the archive, a multiple of the segment size
+     * @param transactions The transactions kept in the shop, oldest first
+     * @param now The current time in millis
+     * @return the number of transactions to archive from the start of the list
+     */
+    public static int due(List<Transaction> transactions, long now) {
+        int due = Math.max(0, transactions.size() - keep);
+        if (age > 0) {
+            while (due < transactions.size() && transactions.get(due).getTime() < now - age) due++; // Unknown times count as old
+        }
+        return due / segmentSize * segmentSize;
+    }
+
+    /**
+     * Write a segment and its summary, the segment is complete before its summary is appended
+     * @param city The city of the shop
+     * @param first The position of the first transaction
+     * @param transactions The transactions of the segment
+     * @return the summary of the segment
+     */
+    public static Segment write(String city, long first, List<Transaction> transactions) throws IOException {
+        long total = 0;
+        String lowest = null;
+        String highest = null;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+            for (Transaction transaction : transactions) {
+                out.write(transaction.toString());
+                out.write('\n');
+                total += transaction.getAmount();
+                String plate = transaction.getLicensePlate();
+                if (lowest == null || plate.compareTo(lowest) < 0) lowest = plate;
+                if (highest == null || plate.compareTo(highest) > 0) highest = plate;
+            }
+        }
+        Segment segment = new Segment(city, first, transactions.size(), total, lowest, highest,
+            transactions.get(0).getTime(), transactions.get(transactions.size() - 1).getTime());
+        directory(city).mkdirs();
+        PersistencePipeline.await(PersistencePipeline.get().publish(segment.file(), bytes.toByteArray()));
+        PersistencePipeline.await(PersistencePipeline.get().append(new File(directory(city), SUMMARY_FILE),
+            segment.toLine().getBytes(StandardCharsets.UTF_8)));
+        return segment;
+    }
+
+    /**
+     * Summaries of the archived transactions of a shop, read from the summary file only
+     * @param city The city of the shop
+     * @param archived The number of transactions the shop archived
+     * @return the segments holding the positions before that number, in order
+     */
+    public static List<Segment> segments(String city, long archived) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        File summary = new File(directory(city), SUMMARY_FILE);
+        if (archived <= 0) return segments;
+        if (!summary.exists()) throw new IOException("Missing archive summary of " + city + ", " + archived + " transactions are archived.");
+        Map<Long, Segment> byFirst = new HashMap<>(); // A segment written again replaces its earlier summary
+        try (RecordReader reader = RecordReader.open(summary)) {
+            while (reader.nextLine()) {
+                if (reader.isBlank()) continue;
+                long first = reader.readLong();
+                reader.expect(',');
+                int count = reader.readInt();
+                reader.expect(',');
+                long total = reader.readCents();
+                reader.expect(',');
+                String lowest = reader.readString(',');
+                String highest = reader.readString(',');
+                long firstTime = reader.readLong();
+                reader.expect(',');
+                long lastTime = reader.readLong();
+                byFirst.put(first, new Segment(city, first, count, total, lowest, highest, firstTime, lastTime));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid archive summary of " + city + ": " + e.getMessage());
+        }
+        long next = 0;
+        while (next < archived) {
+            Segment segment = byFirst.get(next);
+            if (segment == null) throw new IOException("Archive segment " + next + " of " + city + " is missing.");
+            segments.add(segment);
+            next += segment.count;
+        }
+        return segments;
+    }
+
+    /**
+     * Stream the archived transactions of a shop, a segment is read and decompressed only when the stream reaches it
+     * @param city The city of the shop
+     * @param archived The number of transactions the shop archived
+     * @return the archived transactions, oldest first
+     */
+    public static Stream<Transaction> stream(String city, long archived) throws IOException {
+        return segments(city, archived).stream().flatMap(segment -> {
+            try {
+                return read(segment).stream();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Parse the transactions of a segment
+     * @param segment The summary of the segment
+     * @return the transactions of the segment
+     */
+    public static List<Transaction> read(Segment segment) throws IOException {
+        byte[] bytes;
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(segment.file().toPath()))) {
+            bytes = in.readAllBytes();
+        }
+        List<Transaction> transactions = new ArrayList<>(segment.count);
+        try (RecordReader reader = new RecordReader(bytes)) {
+            while (reader.nextLine()) {
+                if (!reader.isBlank()) transactions.add(ShopSnapshot.parseTransaction(reader));
+            }
+        }
+        if (transactions.size() != segment.count) {
+            throw new IOException("Archive segment " + segment.first + " of " + segment.city + " holds " + transactions.size()
+                + " transactions instead of " + segment.count + ".");
+        }
+        return transactions;
+    }
+}
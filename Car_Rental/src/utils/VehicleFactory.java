@@ -1,24 +1,26 @@
 package utils;
 
 import classes.Vehicle;
+import classes.VehicleType;
 
 public class VehicleFactory {
-    private static final String[] VEHICLE_TYPES = {"SEDAN", "SUV", "VAN"};
+    public static Vehicle createVehicle(VehicleType type) {
+        return createVehicle(type, Storage.get().plates());
+    }
 
-    public static Vehicle createVehicle(String type) {
-        boolean isValidType = false;
-        for (String vehicleType : VEHICLE_TYPES) {
-            if (vehicleType.equalsIgnoreCase(type)) {
-                isValidType = true;
-                break;
-            }
-        }
-        if (!isValidType) {
-            throw new IllegalArgumentException("Invalid vehicle type. Valid types are: SEDAN, SUV, VAN.");
+    /**
+     * Create a new vehicle with a plate from a given allocator
+     * @param type The type of vehicle
+     * @param plates The allocator of the license plate
+     * @return the new vehicle, with an odometer at 0
+     */
+    public static Vehicle createVehicle(VehicleType type, PlateAllocator plates) {
+        if (type == null) {
+            throw new IllegalArgumentException("Invalid vehicle type. Valid types are: " + VehicleType.names() + ".");
         }
         
-        String licensePlate = LicensePlateGenerator.generateLicensePlate();
+        String licensePlate = plates.allocate();
         int odometer = 0; // Default odometer value
         return new Vehicle(licensePlate, type, odometer);
     }
-}
+}
\ No newline at end of file